@@ -3,6 +3,8 @@ package org.lantern;
 import java.util.Queue;
 
 import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
@@ -27,16 +29,65 @@ public class ChunkedProxyDownloader extends SimpleChannelUpstreamHandler {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
     
-    private static final long CHUNK_SIZE = 2000000;
-    
-    private final Channel browserToProxyChannel;
+    private volatile Channel browserToProxyChannel;
 
     private final Queue<HttpRequest> httpRequests;
 
+    private final ProxyConnectionPool pool;
+
+    private final Proxy proxy;
+
+    /**
+     * The downloader for the remaining ranges of the current response, if
+     * any.
+     */
+    private volatile ParallelRangeDownloader downloader;
+
     public ChunkedProxyDownloader(final Channel browserToProxyChannel,
         final Queue<HttpRequest> httpRequests) {
+        this(browserToProxyChannel, httpRequests, null, null);
+    }
+    
+    /**
+     * Creates a new downloader that fetches ranges over additional channels
+     * from the specified pool.
+     * 
+     * @param browserToProxyChannel The channel to the browser.
+     * @param httpRequests The requests sent on this channel.
+     * @param pool The pool for additional channels, or <code>null</code> to
+     * fetch all ranges over this channel.
+     * @param proxy The source of proxies for additional channels.
+     */
+    public ChunkedProxyDownloader(final Channel browserToProxyChannel,
+        final Queue<HttpRequest> httpRequests, final ProxyConnectionPool pool,
+        final Proxy proxy) {
         this.browserToProxyChannel = browserToProxyChannel;
         this.httpRequests = httpRequests;
+        this.pool = pool;
+        this.proxy = proxy;
+    }
+    
+    /**
+     * Sets the channel to write responses to from now on. Processors that
+     * stay open across browser requests call this with each new request,
+     * as hedged requests each have their own view of the browser channel.
+     * 
+     * @param browserToProxyChannel The channel to the browser.
+     */
+    public void setBrowserToProxyChannel(final Channel browserToProxyChannel) {
+        this.browserToProxyChannel = browserToProxyChannel;
+    }
+    
+    /**
+     * Aborts any ranged download in progress, closing the additional
+     * channels it opened.
+     */
+    public void abort() {
+        final ParallelRangeDownloader prd = downloader;
+        if (prd != null) {
+            downloader = null;
+            prd.abort();
+        }
     }
     
     @Override
@@ -44,6 +95,20 @@ public class ChunkedProxyDownloader extends SimpleChannelUpstreamHandler {
         final MessageEvent e) {
         final Object msg = e.getMessage();
         
+        final ParallelRangeDownloader current = downloader;
+        if (current != null) {
+            if (msg instanceof HttpChunk) {
+                current.onPrimaryChunk((HttpChunk) msg);
+            } else {
+                httpRequests.remove();
+                current.onPrimaryResponse((HttpResponse) msg);
+            }
+            if (current.isDone()) {
+                log.info("Finished ranged download");
+                downloader = null;
+            }
+            return;
+        }
         if (msg instanceof HttpChunk) {
             final HttpChunk chunk = (HttpChunk) msg;
             
@@ -51,67 +116,76 @@ public class ChunkedProxyDownloader extends SimpleChannelUpstreamHandler {
                 log.info("GOT LAST CHUNK");
             }
             //log.info("Chunk size: {}", chunk.getContent().readableBytes());
-            browserToProxyChannel.write(chunk);
+            LanternHub.relayBackpressure().relay(ctx.getChannel(), 
+                browserToProxyChannel, chunk);
         } else {
             log.info("Got message on outbound handler: {}", msg);
             // There should always be a one-to-one relationship between
             // requests and responses, so we want to pop a request off the
-            // queue for every response we get in. This is only really
-            // needed so we have all the appropriate request values for
-            // making additional requests to handle 206 partial responses.
+            // queue for every response we get in. This is needed so we have
+            // all the appropriate request values for making additional 
+            // requests to handle 206 partial responses.
             final HttpRequest request = httpRequests.remove();
-            //final ChannelBuffer msg = (ChannelBuffer) e.getMessage();
-            //if (msg instanceof HttpResponse) {
             final HttpResponse response = (HttpResponse) msg;
             final int code = response.getStatus().getCode();
-            if (code != 206) {
-                if (code >= 500 && code < 600) {
-                    log.warn("Server error response: {}",response.getHeaders());
-                    browserToProxyChannel.close();
-                    return;
-                }
-                log.info("No 206. Writing whole response");
-                browserToProxyChannel.write(response);
-            } else {
-                
-                
-                // We just grab this before queuing the request because
-                // we're about to remove it.
-                final String cr = 
-                    response.getHeader(HttpHeaders.Names.CONTENT_RANGE);
-                final long cl = parseFullContentLength(cr);
-                
-                if (isFirstChunk(cr)) {
-                    // If this is the *first* partial response to this 
-                    // request, we need to build a new HTTP response as if 
-                    // it were a normal, non-partial 200 OK. We need to 
-                    // make sure not to do this for *every* 206 response, 
-                    // however.
-                    response.setStatus(HttpResponseStatus.OK);
-                    
-                    log.info("Setting Content Length to: "+cl+" from "+cr);
-                    
-                    // We need to set the appropriate total content length 
-                    // here. This should be the final value of the Content-Range
-                    // as the Content-Length header is just the length of the
-                    // content for this single response, not the full entity.
-                    response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, cl);
-                    response.removeHeader(HttpHeaders.Names.CONTENT_RANGE);
-                    browserToProxyChannel.write(response);
-                } else {
-                    // We need to grab the body of the partial response
-                    // and return it as an HTTP chunk.
-                    final HttpChunk chunk = 
-                        new DefaultHttpChunk(response.getContent());
-                    browserToProxyChannel.write(chunk);
-                }
-                
-                // Spin up additional requests on a new thread.
-                requestRange(request, cr, cl, ctx.getChannel());
+            if (code >= 500 && code < 600) {
+                log.warn("Server error response: {}",response.getHeaders());
+                browserToProxyChannel.close();
+                return;
+            }
+            final String cr = 
+                response.getHeader(HttpHeaders.Names.CONTENT_RANGE);
+            if (code != 206 || StringUtils.isBlank(cr) || !isFirstChunk(cr)) {
+                log.info("No initial 206. Writing whole response");
+                LanternHub.relayBackpressure().relay(ctx.getChannel(), 
+                    browserToProxyChannel, response);
+                return;
+            }
+            final long cl = parseFullContentLength(cr);
+            final long end = parseRangeEnd(cr);
+            
+            // If this is the first partial response to this request, we 
+            // need to build a new HTTP response as if it were a normal, 
+            // non-partial 200 OK.
+            response.setStatus(HttpResponseStatus.OK);
+            
+            log.info("Setting Content Length to: "+cl+" from "+cr);
+            
+            // We need to set the appropriate total content length 
+            // here. This should be the final value of the Content-Range
+            // as the Content-Length header is just the length of the
+            // content for this single response, not the full entity.
+            response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, cl);
+            response.removeHeader(HttpHeaders.Names.CONTENT_RANGE);
+            
+            // The body goes through the downloader so that it's written in
+            // order with the other ranges.
+            final ChannelBuffer content = response.getContent();
+            response.setContent(ChannelBuffers.EMPTY_BUFFER);
+            browserToProxyChannel.write(response);
+            if (end + 1 >= cl) {
+                log.info("Received full length...not requesting new range");
+                LanternHub.relayBackpressure().relay(ctx.getChannel(), 
+                    browserToProxyChannel, new DefaultHttpChunk(content));
+                return;
+            }
+            
+            final ParallelRangeDownloader prd = 
+                new ParallelRangeDownloader(browserToProxyChannel, 
+                    ctx.getChannel(), httpRequests, request, end, cl, pool,
+                    proxy);
+            prd.onFirstContent(content, !response.isChunked());
+            if (!prd.isDone()) {
+                this.downloader = prd;
+                prd.start();
             }
         }
     }
     
+    private long parseRangeEnd(final String contentRange) {
+        final String body = StringUtils.substringAfter(contentRange, "-");
+        return Long.parseLong(StringUtils.substringBefore(body, "/").trim());
+    }
 
     private boolean isFirstChunk(final String contentRange) {
         return contentRange.trim().startsWith("bytes 0-");
@@ -123,54 +197,11 @@ public class ChunkedProxyDownloader extends SimpleChannelUpstreamHandler {
         return Long.parseLong(fullLength);
     }
 
-    private void requestRange(final HttpRequest request, 
-        final String contentRange, final long fullContentLength, 
-        final Channel channel) {
-        log.info("Queuing request based on Content-Range: {}", contentRange);
-        // Note we don't need to thread this since it's all asynchronous 
-        // anyway.
-        final String body = 
-            StringUtils.substringAfter(contentRange, "bytes ");
-        if (StringUtils.isBlank(body)) {
-            log.error("Blank bytes body: "+contentRange);
-            return;
-        }
-        //final long contentLength = HttpHeaders.getContentLength(response);
-        final String startPlus = StringUtils.substringAfter(body, "-");
-        final String startString = StringUtils.substringBefore(startPlus, "/");
-        final long start = Long.parseLong(startString) + 1;
-        
-        // This means the last response provided the final range, so we don't
-        // want to request another one.
-        if (start == fullContentLength) {
-            log.info("Received full length...not requesting new range");
-            return;
-        }
-        final long end;
-        if (fullContentLength - start > CHUNK_SIZE) {
-            end = start + CHUNK_SIZE;
-        } else {
-            end = fullContentLength - 1;
-        }
-        request.setHeader(HttpHeaders.Names.RANGE, "bytes="+start+"-"+end);
-        writeRequest(request, channel);
-    }
-    
-    /**
-     * Helper method that ensures all written requests are properly recorded.
-     * 
-     * @param request The request.
-     */
-    private void writeRequest(final HttpRequest request, final Channel channel) {
-        this.httpRequests.add(request);
-        log.info("Writing request: {}", request);
-        channel.write(request);
-    }
-
     @Override
     public void channelClosed(final ChannelHandlerContext ctx, 
         final ChannelStateEvent e) throws Exception {
         log.info("Channel to external proxy closed");
+        abort();
         ProxyUtils.closeOnFlush(browserToProxyChannel);
     }
 
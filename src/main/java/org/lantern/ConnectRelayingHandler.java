@@ -0,0 +1,60 @@
+package org.lantern;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.littleshoot.proxy.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays the raw bytes of an HTTP CONNECT tunnel from one channel to
+ * another. This does the same as littleproxy's HttpConnectRelayingHandler
+ * but goes through {@link RelayBackpressure}, so a slow browser or proxy
+ * stops us reading from the other end of the tunnel rather than filling
+ * up its write buffer.
+ */
+public class ConnectRelayingHandler extends SimpleChannelUpstreamHandler {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Channel relayChannel;
+
+    /**
+     * Creates a new handler.
+     * 
+     * @param relayChannel The channel to relay everything we read to.
+     */
+    public ConnectRelayingHandler(final Channel relayChannel) {
+        this.relayChannel = relayChannel;
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx, 
+        final MessageEvent e) {
+        if (relayChannel.isConnected()) {
+            LanternHub.relayBackpressure().relay(ctx.getChannel(), 
+                relayChannel, e.getMessage());
+        } else {
+            log.info("Relay channel not connected -- closing");
+            ProxyUtils.closeOnFlush(e.getChannel());
+        }
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx, 
+        final ChannelStateEvent e) {
+        log.info("Got closed event on tunnel channel");
+        ProxyUtils.closeOnFlush(relayChannel);
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, 
+        final ExceptionEvent e) {
+        log.info("Caught exception on tunnel channel", e.getCause());
+        ProxyUtils.closeOnFlush(e.getChannel());
+    }
+}
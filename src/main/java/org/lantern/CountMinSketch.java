@@ -0,0 +1,99 @@
+package org.lantern;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Count-min sketch of Cormode and Muthukrishnan for estimating totals for
+ * any number of items in a fixed amount of memory. Each item adds to one
+ * counter in each of a few rows, and its estimate is the smallest of those
+ * counters, so estimates never undercount. With width w and depth d an
+ * estimate overcounts by more than 2/w of the total of all items with
+ * probability at most 1/2^d.
+ *
+ * Callers hash items themselves with {@link #hash(String)} so that an item
+ * that's added to many times is only hashed once. Counters are atomic, so
+ * any number of threads can add at once.
+ */
+public class CountMinSketch {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final int depth;
+
+    private final int width;
+
+    private final AtomicLongArray counters;
+
+    /**
+     * Creates a new sketch.
+     *
+     * @param depth The number of rows.
+     * @param width The number of counters in each row.
+     */
+    public CountMinSketch(final int depth, final int width) {
+        this.depth = depth;
+        this.width = width;
+        this.counters = new AtomicLongArray(depth * width);
+    }
+
+    /**
+     * Hashes an item for adding to or querying a sketch.
+     *
+     * @param item The item.
+     * @return The hash.
+     */
+    public static long hash(final String item) {
+        // This has to hash the whole string rather than build on its 32 bit 
+        // hash code, or strings with the same hash code would share all 
+        // their counters and the error bound wouldn't hold.
+        return HASH.hashString(item, Charsets.UTF_8).asLong();
+    }
+
+    /**
+     * Adds to the total for an item.
+     *
+     * @param hash The hash of the item from {@link #hash(String)}.
+     * @param count The amount to add.
+     */
+    public void add(final long hash, final long count) {
+        for (int row = 0; row < depth; row++) {
+            counters.addAndGet(index(hash, row), count);
+        }
+    }
+
+    /**
+     * Estimates the total for an item.
+     *
+     * @param hash The hash of the item from {@link #hash(String)}.
+     * @return The estimate, which is never less than the true total.
+     */
+    public long estimate(final long hash) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters.get(index(hash, row)));
+        }
+        return min;
+    }
+
+    /**
+     * Forgets all totals.
+     */
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0L);
+        }
+    }
+
+    private int index(final long hash, final int row) {
+        // Derive a hash for each row from the two halves of the hash, as
+        // Kirsch and Mitzenmacher show that's as good as independent ones.
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        final int combined = (h1 + row * h2) & Integer.MAX_VALUE;
+        return row * width + combined % width;
+    }
+}
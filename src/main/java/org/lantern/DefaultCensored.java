@@ -63,7 +63,7 @@ public class DefaultCensored implements Censored {
             return new Country("", "");
         }
         final com.maxmind.geoip.Country country = 
-            LanternHub.getGeoIpLookup().getCountry(address);
+            LanternHub.geoIpTable().getCountry(address);
         return new Country(country.getCode(), country.getName());
     }
 
@@ -124,7 +124,7 @@ public class DefaultCensored implements Censored {
     
     private String countryCode(final InetAddress address) {
         final com.maxmind.geoip.Country country = 
-            LanternHub.getGeoIpLookup().getCountry(address);
+            LanternHub.geoIpTable().getCountry(address);
         LOG.info("Country is: {}", country.getName());
         return country.getCode().trim();
     }
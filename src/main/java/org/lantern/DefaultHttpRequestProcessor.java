@@ -2,29 +2,18 @@ package org.lantern;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.security.NoSuchAlgorithmException;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLEngine;
-
-import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
-import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
 import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
-import org.jboss.netty.handler.ssl.SslHandler;
-import org.littleshoot.proxy.KeyStoreManager;
 import org.littleshoot.proxy.ProxyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,11 +24,8 @@ public class DefaultHttpRequestProcessor implements HttpRequestProcessor {
     
     private ChannelFuture cf;
     
-    private static final ClientSocketChannelFactory clientSocketChannelFactory =
-        new NioClientSocketChannelFactory(
-            Executors.newCachedThreadPool(),
-            Executors.newCachedThreadPool());
-
+    private ChunkedProxyDownloader downloader;
+    
     /**
      * These need to be synchronized with HTTP responses in the case where we
      * need to issue multiple HTTP range requests in response to 206 responses.
@@ -57,18 +43,15 @@ public class DefaultHttpRequestProcessor implements HttpRequestProcessor {
     private final boolean isLae;
 
     private final Proxy proxy;
-
-    private final KeyStoreManager keyStoreManager;
     
     public DefaultHttpRequestProcessor( 
         final ProxyStatusListener proxyStatusListener, 
         final HttpRequestTransformer transformer, final boolean isLae, 
-        final Proxy proxy, final KeyStoreManager keyStoreManager) {
+        final Proxy proxy) {
         this.proxyStatusListener = proxyStatusListener;
         this.transformer = transformer;
         this.isLae = isLae;
         this.proxy = proxy;
-        this.keyStoreManager = keyStoreManager;
     }
     
     private boolean hasProxy() {
@@ -90,6 +73,8 @@ public class DefaultHttpRequestProcessor implements HttpRequestProcessor {
         }
         if (cf == null) {
             cf = openOutgoingChannel(browserToProxyChannel);
+        } else {
+            downloader.setBrowserToProxyChannel(browserToProxyChannel);
         }
         final HttpRequest request = (HttpRequest) me.getMessage();
         this.transformer.transform(request, proxyAddress);
@@ -109,7 +94,13 @@ public class DefaultHttpRequestProcessor implements HttpRequestProcessor {
         if (cf == null) {
             return;
         }
+        this.downloader.abort();
         ProxyUtils.closeOnFlush(this.cf.getChannel());
+        
+        // We open a new channel if we get another request, which happens
+        // when a hedged request on this processor loses to another route.
+        this.cf = null;
+        this.httpRequests.clear();
     }
 
     private ChannelFuture openOutgoingChannel(
@@ -117,52 +108,31 @@ public class DefaultHttpRequestProcessor implements HttpRequestProcessor {
         
         browserToProxyChannel.setReadable(false);
 
-        // Start the connection attempt.
-        final ClientBootstrap cb = 
-            new ClientBootstrap(clientSocketChannelFactory);
-        
-        final ChannelPipeline pipeline = cb.getPipeline();
-        final SSLEngine engine;
+        // Grab an already handshaked channel from the pool if we can. The
+        // pooled channel already has the stats and SSL handlers installed.
+        final ProxyConnectionPool pool;
         if (this.isLae) {
-            log.info("Creating standard SSL engine");
-            // TODO: Pre-ship with approved certs.
-            try {
-                engine = SSLContext.getDefault().createSSLEngine();
-            } catch (final NoSuchAlgorithmException e) {
-                log.error("Could not create default SSL context", e);
-                throw new IllegalArgumentException("No algo?", e);
-            }
-        }
-        else {
-            log.info("Creating Lantern SSL engine");
-            final LanternClientSslContextFactory sslFactory =
-                new LanternClientSslContextFactory(this.keyStoreManager);
-            engine = sslFactory.getClientContext().createSSLEngine();
+            pool = LanternHub.laeConnectionPool();
+        } else {
+            pool = LanternHub.proxyConnectionPool();
         }
-        engine.setUseClientMode(true);
+        log.info("Getting channel to proxy at: {}", proxyAddress);
+        final ChannelFuture connectFuture = pool.acquire(proxyAddress);
         
-        ChannelHandler stats = new StatsTrackingHandler() {
-            @Override
-            public void addUpBytes(long bytes, Channel channel) {
-                statsTracker().addUpBytesViaProxies(bytes, channel);
-            }
-            @Override
-            public void addDownBytes(long bytes, Channel channel) {
-                statsTracker().addDownBytesViaProxies(bytes, channel);
-            }
-        };
-
-        pipeline.addLast("stats", stats);        
-        pipeline.addLast("ssl", new SslHandler(engine));
+        final ChannelPipeline pipeline = 
+            connectFuture.getChannel().getPipeline();
+        pipeline.addAfter("ssl", "score", 
+            new ProxyScoringHandler(proxyAddress, false));
+        pipeline.addAfter("score", "latency", new LatencyHandler(
+            this.isLae ? LatencyTracker.Route.LAE : LatencyTracker.Route.PROXY,
+            false));
         pipeline.addLast("decoder", new HttpResponseDecoder());
         pipeline.addLast("encoder", new HttpRequestEncoder());
-        pipeline.addLast("handler", 
-            new ChunkedProxyDownloader(browserToProxyChannel, httpRequests));
-        //this.proxyHost = proxyAddress.getHostName();
-        
-        log.info("Connecting to proxy at: {}", proxyAddress);
-        
-        final ChannelFuture connectFuture = cb.connect(proxyAddress);
+        // Only LAE splits responses into ranges, so only LAE fetches ranges
+        // over additional channels.
+        this.downloader = new ChunkedProxyDownloader(browserToProxyChannel, 
+            httpRequests, this.isLae ? pool : null, this.proxy);
+        pipeline.addLast("handler", this.downloader);
 
         // This is handy, as set readable to false while the channel is 
         // connecting ensures we won't get any incoming messages until
@@ -6,6 +6,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.security.GeneralSecurityException;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TimerTask;
 
 import javax.security.auth.login.CredentialException;
 import javax.servlet.http.HttpServletRequest;
@@ -41,6 +42,7 @@ public class DefaultLanternApi implements LanternApi {
         ROSTER,
         CONTACT,
         WHITELIST,
+        RELOADHTTPSEVERYWHERE,
         SETLOCALPASSWORD,
         UNLOCK,
         ERROR,
@@ -98,6 +100,9 @@ public class DefaultLanternApi implements LanternApi {
         case WHITELIST:
             handleWhitelist(resp);
             break;
+        case RELOADHTTPSEVERYWHERE:
+            handleReloadHttpsEverywhere(resp);
+            break;
         case SETLOCALPASSWORD:
             handleSetLocalPassword(req, resp);
             break;
@@ -332,6 +337,22 @@ public class DefaultLanternApi implements LanternApi {
         returnJson(resp, wl);
     }
 
+    private void handleReloadHttpsEverywhere(final HttpServletResponse resp) {
+        // Parsing the rules can take a while, so do it in the background.
+        // Requests use the old rules until the new ones are ready.
+        LanternHub.timer().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    LanternHub.httpsEverywhere().reload();
+                } catch (final RuntimeException e) {
+                    log.error("Could not reload HTTPS rules", e);
+                }
+            }
+        }, 0);
+        ok(resp);
+    }
+
 
     private void handleRoster(final HttpServletResponse resp) {
         log.info("Processing roster call.");
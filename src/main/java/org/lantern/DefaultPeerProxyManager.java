@@ -2,78 +2,110 @@ package org.lantern;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Class the keeps track of P2P connections to peers, dispatching them and
  * creating new ones as needed.
+ *
+ * Requests go to the peer the {@link PeerScorer} expects to complete them
+ * soonest, based on how well each peer has actually relayed data rather
+ * than how quickly we connected to it.
+ *
+ * We keep a small pool of established sockets for each peer. The pool for
+ * a peer grows with the rate of requests it serves, so that a new socket
+ * is usually ready by the time we need it, between a minimum and maximum
+ * size. Sockets that sit unused for too long are closed, and idle sockets
+ * are periodically checked to make sure the other side hasn't gone away.
+ * Peers we fail to connect to are backed off exponentially.
  */
 public class DefaultPeerProxyManager implements PeerProxyManager {
-    
+
     private final Logger log = LoggerFactory.getLogger(getClass());
-    
+
     private final Executor exec = Executors.newCachedThreadPool(
         new ThreadFactory() {
-        
+
         @Override
         public Thread newThread(final Runnable r) {
-            final Thread t = 
+            final Thread t =
                 new Thread(r, "P2P-Socket-Creation-Thread");
             t.setDaemon(true);
             return t;
         }
     });
-    
+
     /**
-     * Priority queue of sockets ordered by how long it took them to be 
-     * established.
-     * 
+     * The pool state for each peer we know about.
+     *
      * Package-access for easier testing.
      */
-    final PriorityBlockingQueue<ConnectionTimeSocket> timedSockets = 
-        new PriorityBlockingQueue<ConnectionTimeSocket>(40, 
-            new Comparator<ConnectionTimeSocket>() {
+    final Map<URI, PeerPool> peers = new ConcurrentHashMap<URI, PeerPool>();
 
-            @Override
-            public int compare(final ConnectionTimeSocket cts1, 
-                final ConnectionTimeSocket cts2) {
-                return cts1.elapsed.compareTo(cts2.elapsed);
-            }
-        });
+    /**
+     * Failures for each peer, as counted when opening sockets in
+     * {@link LanternUtils}. This has to live as long as we do for the
+     * counts to mean anything.
+     */
+    private final Map<URI, AtomicInteger> peerFailureCount =
+        new ConcurrentHashMap<URI, AtomicInteger>();
 
     private final boolean anon;
-    
+
+    private final PeerScorer scorer;
+
+    private TimerTask maintenanceTask;
+
+    private boolean closed;
+
     public DefaultPeerProxyManager(final boolean anon) {
+        this(anon, LanternHub.peerScorer());
+    }
+
+    /**
+     * Creates a new manager.
+     *
+     * @param anon Whether or not we're connecting to anonymous peers.
+     * @param scorer The scorer for choosing between peers.
+     */
+    public DefaultPeerProxyManager(final boolean anon,
+        final PeerScorer scorer) {
         this.anon = anon;
-        
+        this.scorer = scorer;
     }
 
     @Override
     public HttpRequestProcessor processRequest(
-        final Channel browserToProxyChannel, final ChannelHandlerContext ctx, 
+        final Channel browserToProxyChannel, final ChannelHandlerContext ctx,
         final MessageEvent me) throws IOException {
-        
-        // This removes the highest priority socket.
-        final ConnectionTimeSocket cts = this.timedSockets.poll();
+
+        final ConnectionTimeSocket cts = takeSocket();
         if (cts == null) {
             return null;
         }
-        // When we use a socket, we always replace it with a new one.
-        onPeer(cts.peerUri);
+        final PeerPool pool = poolFor(cts.peerUri);
+
+        // Top the pool back up now rather than waiting until we're out.
+        refill(pool);
         cts.requestProcessor.processRequest(browserToProxyChannel, ctx, me);
         return cts.requestProcessor;
     }
@@ -85,69 +117,451 @@ public class DefaultPeerProxyManager implements PeerProxyManager {
             return;
         }
         log.info("Received peer URI {}...attempting connection...", peerUri);
-        // Unclear how this count will be used for now.
-        final Map<URI, AtomicInteger> peerFailureCount = 
-            new HashMap<URI, AtomicInteger>();
+        scheduleMaintenance();
+        refill(poolFor(peerUri));
+    }
+
+    /**
+     * Picks the peer we expect to handle a request fastest out of the ones
+     * we have sockets ready for, and takes a socket to it.
+     *
+     * Package-access for easier testing.
+     */
+    ConnectionTimeSocket takeSocket() {
+        while (true) {
+            final List<URI> candidates = new ArrayList<URI>();
+            for (final PeerPool pool : peers.values()) {
+                if (pool.hasReady()) {
+                    candidates.add(pool.peerUri);
+                }
+            }
+            final URI peerUri = scorer.select(candidates);
+            if (peerUri == null) {
+                return null;
+            }
+            final PeerPool pool = poolFor(peerUri);
+            final ConnectionTimeSocket cts =
+                pool.take(System.currentTimeMillis());
+            if (cts != null) {
+                pool.onRequest();
+                return cts;
+            }
+            // Another request beat us to the last socket or everything
+            // there was stale, so choose again.
+        }
+    }
+
+    /**
+     * Opens as many new sockets to the peer as we need to bring its pool up
+     * to the size it should be, unless we're backing off from the peer.
+     */
+    private void refill(final PeerPool pool) {
+        final int toOpen = pool.reserveDials(System.currentTimeMillis());
+        for (int i = 0; i < toOpen; i++) {
+            dial(pool);
+        }
+    }
+
+    private void dial(final PeerPool pool) {
+        final URI peerUri = pool.peerUri;
         exec.execute(new Runnable() {
 
             @Override
             public void run() {
+                final ConnectionTimeSocket ts =
+                    new ConnectionTimeSocket(peerUri);
                 try {
-                    final ConnectionTimeSocket ts = 
-                        new ConnectionTimeSocket(peerUri);
-
                     final Socket sock = LanternUtils.openOutgoingPeerSocket(
-                        peerUri, LanternHub.xmppHandler().getP2PClient(), 
+                        peerUri, LanternHub.xmppHandler().getP2PClient(),
                         peerFailureCount);
                     log.info("Got socket and adding it for peer: {}", peerUri);
                     ts.onSocket(sock);
-                    timedSockets.add(ts);
                 } catch (final IOException e) {
                     log.info("Could not create peer socket");
-                }                
+                    final long delay = pool.onFailure();
+                    log.info("Backing off from {} for {}ms", peerUri, delay);
+                    return;
+                }
+                synchronized (DefaultPeerProxyManager.this) {
+                    if (closed) {
+                        pool.onClosed();
+                        ts.close();
+                        return;
+                    }
+                }
+                pool.onConnect(ts);
             }
-            
+
         });
     }
 
+    private PeerPool poolFor(final URI peerUri) {
+        synchronized (peers) {
+            PeerPool pool = peers.get(peerUri);
+            if (pool == null) {
+                pool = new PeerPool(peerUri);
+                peers.put(peerUri, pool);
+            }
+            return pool;
+        }
+    }
+
+    private synchronized void scheduleMaintenance() {
+        if (maintenanceTask != null || closed) {
+            return;
+        }
+        maintenanceTask = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    maintain();
+                } catch (final Throwable t) {
+                    log.warn("Error maintaining peer sockets", t);
+                }
+            }
+        };
+        final long interval = LanternConstants.PEER_POOL_CHECK_INTERVAL;
+        LanternHub.timer().schedule(maintenanceTask, interval, interval);
+    }
+
+    /**
+     * Evicts idle and dead sockets and refills pools that have dropped
+     * below their target size.
+     *
+     * Package-access for easier testing.
+     */
+    void maintain() {
+        final long now = System.currentTimeMillis();
+        for (final PeerPool pool : peers.values()) {
+            for (final ConnectionTimeSocket cts : pool.snapshot()) {
+                // If we can't remove it, a request just took it.
+                if (!pool.remove(cts)) {
+                    continue;
+                }
+                final boolean stale = now - cts.idleSince >
+                    LanternConstants.PEER_SOCKET_IDLE_TIMEOUT;
+                if (stale || !isAlive(cts.sock)) {
+                    log.info("Evicting {} socket to {}",
+                        stale ? "idle" : "dead", cts.peerUri);
+                    cts.close();
+                } else {
+                    pool.restore(cts);
+                }
+            }
+            refill(pool);
+        }
+    }
+
+    /**
+     * Checks whether a socket we haven't sent anything on is still usable.
+     * The peer shouldn't send us anything before we make a request, so we
+     * treat both the end of the stream and unexpected data as dead.
+     */
+    private boolean isAlive(final Socket sock) {
+        if (sock == null) {
+            return true;
+        }
+        if (sock.isClosed() || !sock.isConnected() || sock.isInputShutdown()) {
+            return false;
+        }
+        final int timeout;
+        try {
+            timeout = sock.getSoTimeout();
+            sock.setSoTimeout(1);
+        } catch (final IOException e) {
+            // Not every P2P socket supports timeouts, so this is the best we
+            // can do.
+            return true;
+        }
+        try {
+            sock.getInputStream().read();
+            return false;
+        } catch (final SocketTimeoutException e) {
+            return true;
+        } catch (final IOException e) {
+            return false;
+        } finally {
+            try {
+                sock.setSoTimeout(timeout);
+            } catch (final IOException e) {
+                log.debug("Could not reset socket timeout", e);
+            }
+        }
+    }
+
+    @Override
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        final JSONArray pools = new JSONArray();
+        for (final PeerPool pool : peers.values()) {
+            pools.add(pool.toJson());
+        }
+        json.put("peers", pools);
+        return json;
+    }
+
+    /**
+     * Pool state for a single peer.
+     *
+     * Package-access for easier testing.
+     */
+    static final class PeerPool {
+
+        /**
+         * The weight we give each new sample in our averages.
+         */
+        private static final double ALPHA = 0.3;
+
+        private final URI peerUri;
+
+        /**
+         * Sockets we've established to the peer that are ready for
+         * requests, newest first. Newer sockets are the least likely to
+         * have been dropped by a NAT or the peer.
+         */
+        private final LinkedList<ConnectionTimeSocket> ready =
+            new LinkedList<ConnectionTimeSocket>();
+
+        private int dialing;
+
+        private int failures;
+
+        private long backoffUntil;
+
+        private double requestsPerSecond;
+
+        private long lastRequest;
+
+        private double connectMillis = -1;
+
+        PeerPool(final URI peerUri) {
+            this.peerUri = peerUri;
+        }
+
+        synchronized void onRequest() {
+            final long now = System.currentTimeMillis();
+            if (lastRequest != 0L) {
+                final double rate = 1000.0 / Math.max(1L, now - lastRequest);
+                requestsPerSecond =
+                    ALPHA * rate + (1 - ALPHA) * requestsPerSecond;
+            }
+            lastRequest = now;
+        }
+
+        /**
+         * Adds a newly established socket to the pool.
+         */
+        synchronized void onConnect(final ConnectionTimeSocket cts) {
+            dialing--;
+            ready.addFirst(cts);
+            failures = 0;
+            backoffUntil = 0L;
+            final long millis = cts.elapsed;
+            connectMillis = connectMillis < 0 ? millis :
+                ALPHA * millis + (1 - ALPHA) * connectMillis;
+        }
+
+        /**
+         * Called when a dial succeeds after we've shut down.
+         */
+        synchronized void onClosed() {
+            dialing--;
+        }
+
+        synchronized boolean hasReady() {
+            return !ready.isEmpty();
+        }
+
+        /**
+         * Takes the newest socket from the pool, closing any that have
+         * been idle too long.
+         *
+         * @return The socket, or <code>null</code> if there are none.
+         */
+        ConnectionTimeSocket take(final long now) {
+            final List<ConnectionTimeSocket> stale =
+                new ArrayList<ConnectionTimeSocket>();
+            ConnectionTimeSocket taken = null;
+            synchronized (this) {
+                while (!ready.isEmpty()) {
+                    final ConnectionTimeSocket cts = ready.removeFirst();
+                    if ((cts.sock != null && cts.sock.isClosed()) || now -
+                        cts.idleSince > LanternConstants.PEER_SOCKET_IDLE_TIMEOUT) {
+                        stale.add(cts);
+                    } else {
+                        taken = cts;
+                        break;
+                    }
+                }
+            }
+            for (final ConnectionTimeSocket cts : stale) {
+                cts.close();
+            }
+            return taken;
+        }
+
+        synchronized List<ConnectionTimeSocket> snapshot() {
+            return new ArrayList<ConnectionTimeSocket>(ready);
+        }
+
+        synchronized boolean remove(final ConnectionTimeSocket cts) {
+            return ready.remove(cts);
+        }
+
+        /**
+         * Puts back a socket we took out to check, keeping the age order.
+         */
+        synchronized void restore(final ConnectionTimeSocket cts) {
+            int i = 0;
+            for (final ConnectionTimeSocket other : ready) {
+                if (other.idleSince < cts.idleSince) {
+                    break;
+                }
+                i++;
+            }
+            ready.add(i, cts);
+        }
+
+        /**
+         * Records a failed connection attempt.
+         *
+         * @return How long we'll back off from the peer, in milliseconds.
+         */
+        synchronized long onFailure() {
+            dialing--;
+            failures++;
+            final long delay = Math.min(LanternConstants.PEER_BACKOFF_MAX,
+                LanternConstants.PEER_BACKOFF_BASE <<
+                    Math.min(failures - 1, 30));
+            backoffUntil = System.currentTimeMillis() + delay;
+            return delay;
+        }
+
+        synchronized boolean isBackingOff(final long now) {
+            return now < backoffUntil;
+        }
+
+        /**
+         * The number of sockets we want ready for this peer. That's enough
+         * to cover the requests we expect while a new socket is being
+         * established, within the configured bounds.
+         */
+        synchronized int targetSize(final long now) {
+            // Let the rate fall off once requests stop coming in.
+            final double rate = lastRequest == 0L ? 0.0 : Math.min(
+                requestsPerSecond, 1000.0 / Math.max(1L, now - lastRequest));
+            final double connect = connectMillis < 0 ? 0.0 : connectMillis;
+            // The minimum already covers a request arriving mid-connect.
+            final int demand = (int) (rate * connect / 1000.0);
+            return Math.max(LanternConstants.PEER_POOL_MIN,
+                Math.min(LanternConstants.PEER_POOL_MAX,
+                    LanternConstants.PEER_POOL_MIN + demand));
+        }
+
+        /**
+         * Works out how many new sockets to open and records them as being
+         * dialed.
+         */
+        synchronized int reserveDials(final long now) {
+            if (isBackingOff(now)) {
+                return 0;
+            }
+            // Only probe a failing peer with one connection at a time.
+            final int max = failures > 0 ? 1 : targetSize(now);
+            final int toOpen = Math.max(0, max - ready.size() - dialing);
+            dialing += toOpen;
+            return toOpen;
+        }
+
+        synchronized JSONObject toJson() {
+            final JSONObject json = new JSONObject();
+            final long now = System.currentTimeMillis();
+            json.put("peer", peerUri.toASCIIString());
+            json.put("idle", ready.size());
+            json.put("dialing", dialing);
+            json.put("target", targetSize(now));
+            json.put("failures", failures);
+            json.put("backing_off", isBackingOff(now));
+            return json;
+        }
+    }
+
     /**
      * Class holding a socket and an HTTP request processor that also tracks
      * connection times.
-     * 
+     *
      * Package-access for easier testing.
      */
     final class ConnectionTimeSocket {
         private final long startTime = System.currentTimeMillis();
         Long elapsed;
-        
+
+        /**
+         * When this socket became available for requests.
+         */
+        long idleSince = startTime;
+
         /**
-         * We only store the peer URI so we can create a new connection to the
-         * peer when this one succeeds.
+         * The peer, so we can create a new connection to the peer when this
+         * one is used and attribute its performance to the right peer.
          */
         private final URI peerUri;
         private HttpRequestProcessor requestProcessor;
-        
+        private Socket sock;
+
         public ConnectionTimeSocket(final URI peerUri) {
             this.peerUri = peerUri;
         }
 
         private void onSocket(final Socket sock) {
-            this.elapsed = System.currentTimeMillis() - this.startTime;
+            this.sock = sock;
+            this.idleSince = System.currentTimeMillis();
+            this.elapsed = this.idleSince - this.startTime;
+            LanternHub.latencyTracker().record(anon ?
+                LatencyTracker.Route.ANONYMOUS_PEER :
+                LatencyTracker.Route.TRUSTED_PEER,
+                LatencyTracker.Phase.CONNECT, this.elapsed * 1000000L);
             if (anon) {
-                this.requestProcessor = 
-                    new PeerHttpConnectRequestProcessor(sock);
+                this.requestProcessor =
+                    new PeerHttpConnectRequestProcessor(sock, peerUri, scorer);
             } else {
-                this.requestProcessor = 
-                    new PeerChannelHttpRequestProcessor(sock);
+                this.requestProcessor =
+                    new PeerChannelHttpRequestProcessor(sock, peerUri, scorer);
                     //new PeerHttpRequestProcessor(sock);
             }
         }
+
+        private void close() {
+            // We haven't sent anything on the socket, so there's nothing
+            // for the request processor to clean up.
+            if (this.sock != null) {
+                try {
+                    this.sock.close();
+                } catch (final IOException e) {
+                    log.debug("Error closing peer socket", e);
+                }
+            }
+        }
     }
 
     @Override
     public void closeAll() {
-        for (final ConnectionTimeSocket sock : this.timedSockets) {
-            sock.requestProcessor.close();
+        synchronized (this) {
+            closed = true;
+            if (maintenanceTask != null) {
+                maintenanceTask.cancel();
+                maintenanceTask = null;
+            }
+        }
+        for (final PeerPool pool : peers.values()) {
+            for (final ConnectionTimeSocket cts : pool.snapshot()) {
+                // Pooled sockets haven't served a request, so we close them
+                // just as we do when evicting them. If we can't remove one,
+                // a request just took it and owns it now.
+                if (pool.remove(cts)) {
+                    cts.close();
+                }
+            }
         }
     }
 }
@@ -12,6 +12,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -818,7 +819,8 @@ public class DefaultXmppHandler implements XmppHandler {
     private void addLaeProxy(final String cur) {
         LOG.info("Adding LAE proxy");
         addProxyWithChecks(this.laeProxySet, this.laeProxies, 
-            new ProxyHolder(cur, new InetSocketAddress(cur, 443)), cur);
+            new ProxyHolder(cur, new InetSocketAddress(cur, 443)), cur,
+            LanternHub.laeConnectionPool());
     }
     
     private void addGeneralProxy(final String cur) {
@@ -829,12 +831,12 @@ public class DefaultXmppHandler implements XmppHandler {
         final InetSocketAddress isa = 
             new InetSocketAddress(hostname, port);
         addProxyWithChecks(proxySet, proxies, new ProxyHolder(hostname, isa), 
-            cur);
+            cur, LanternHub.proxyConnectionPool());
     }
 
     private void addProxyWithChecks(final Set<ProxyHolder> set,
         final Queue<ProxyHolder> queue, final ProxyHolder ph, 
-        final String fullProxyString) {
+        final String fullProxyString, final ProxyConnectionPool pool) {
         if (set.contains(ph)) {
             LOG.info("We already know about proxy "+ph+" in {}", set);
             
@@ -862,6 +864,10 @@ public class DefaultXmppHandler implements XmppHandler {
                     LOG.info("Queue is now: {}", queue);
                 }
             }
+            
+            // Start handshaking with the proxy so we have channels ready
+            // by the time the browser needs them.
+            pool.warm(ph.isa);
         } catch (final IOException e) {
             LOG.error("Could not connect to: {}", ph);
             sendErrorMessage(ph.isa, e.getMessage());
@@ -891,20 +897,17 @@ public class DefaultXmppHandler implements XmppHandler {
         LOG.info("COULD NOT CONNECT TO STANDARD PROXY!! Proxy address: {}", 
             proxyAddress);
         
-        // For now we assume this is because we've lost our connection.
-        //onCouldNotConnect(new ProxyHolder(proxyAddress.getHostName(), proxyAddress), 
-        //    this.proxySet, this.proxies);
+        // We don't remove the proxy since we may have just lost our 
+        // connection, but we stop using it for a while so other proxies
+        // get the traffic if it's really down.
+        LanternHub.proxyScorer().onFailure(proxyAddress);
     }
     
     @Override
     public void onCouldNotConnectToLae(final InetSocketAddress proxyAddress) {
         LOG.info("COULD NOT CONNECT TO LAE PROXY!! Proxy address: {}", 
             proxyAddress);
-        
-        // For now we assume this is because we've lost our connection.
-        
-        //onCouldNotConnect(new ProxyHolder(proxyAddress.getHostName(), proxyAddress), 
-        //    this.laeProxySet, this.laeProxies);
+        LanternHub.proxyScorer().onFailure(proxyAddress);
     }
     
     private void onCouldNotConnect(final ProxyHolder proxyAddress,
@@ -1000,16 +1003,17 @@ public class DefaultXmppHandler implements XmppHandler {
     */
 
     private InetSocketAddress getProxy(final Queue<ProxyHolder> queue) {
-        synchronized (queue) {
-            if (queue.isEmpty()) {
-                LOG.info("No proxy addresses");
-                return null;
-            }
-            final ProxyHolder proxy = queue.remove();
-            queue.add(proxy);
-            LOG.info("FIFO queue is now: {}", queue);
-            return proxy.isa;
+        final Collection<InetSocketAddress> candidates = 
+            new ArrayList<InetSocketAddress>(queue.size());
+        for (final ProxyHolder ph : queue) {
+            candidates.add(ph.isa);
+        }
+        final InetSocketAddress proxy = 
+            LanternHub.proxyScorer().select(candidates);
+        if (proxy == null) {
+            LOG.info("No proxy addresses");
         }
+        return proxy;
     }
 
     @Override
@@ -1101,18 +1105,10 @@ public class DefaultXmppHandler implements XmppHandler {
 
     private SocketFactory newTlsSocketFactory() {
         LOG.info("Creating TLS socket factory");
-        try {
-            final SSLContext clientContext = SSLContext.getInstance("TLS");
-            clientContext.init(null, 
-                LanternHub.getKeyStoreManager().getTrustManagers(), null);
-            return clientContext.getSocketFactory();
-        } catch (final NoSuchAlgorithmException e) {
-            LOG.error("No TLS?", e);
-            throw new Error("No TLS?", e);
-        } catch (final KeyManagementException e) {
-            LOG.error("Key managmement issue?", e);
-            throw new Error("Key managmement issue?", e);
-        }
+        // We use the shared context so peer connections share the SSL
+        // session cache with all our other connections.
+        return LanternHub.clientSslContextFactory().getClientContext().
+            getSocketFactory();
     }
 
     @Override
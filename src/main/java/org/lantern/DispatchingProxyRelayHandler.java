@@ -3,25 +3,22 @@ package org.lantern;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
-import java.util.concurrent.Executors;
-
-import javax.net.ssl.SSLEngine;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
-import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
-import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
@@ -32,14 +29,13 @@ import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.HttpVersion;
-import org.jboss.netty.handler.ssl.SslHandler;
 import org.littleshoot.proxy.DefaultRelayPipelineFactoryFactory;
-import org.littleshoot.proxy.HttpConnectRelayingHandler;
 import org.littleshoot.proxy.HttpFilter;
 import org.littleshoot.proxy.HttpRequestHandler;
 import org.littleshoot.proxy.HttpResponseFilters;
 import org.littleshoot.proxy.KeyStoreManager;
 import org.littleshoot.proxy.ProxyUtils;
+import org.littleshoot.proxy.RelayListener;
 import org.littleshoot.proxy.RelayPipelineFactoryFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,20 +65,7 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
     private static final boolean ANONYMOUS_ACTIVE = true;
     private static final boolean TRUSTED_ACTIVE = true;
     private static final boolean LAE_ACTIVE = true;
-    
-    private static final ClientSocketChannelFactory clientSocketChannelFactory =
-        new NioClientSocketChannelFactory(
-            Executors.newCachedThreadPool(),
-            Executors.newCachedThreadPool());
-    
-    static {
-        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
-            @Override
-            public void run() {
-                //clientSocketChannelFactory.releaseExternalResources();
-            }
-        }));
-    }
+    private static final boolean HEDGING_ACTIVE = true;
     
     private final HttpRequestProcessor unproxiedRequestProcessor = 
         new HttpRequestProcessor() {
@@ -94,9 +77,38 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
                             return null;
                         }
                     }, null, 
-                    new DefaultChannelGroup("HTTP-Proxy-Server"));
+                    new DefaultChannelGroup("HTTP-Proxy-Server")) {
+                    @Override
+                    public ChannelPipelineFactory getRelayPipelineFactory(
+                        final HttpRequest httpRequest,
+                        final Channel browserToProxyChannel,
+                        final RelayListener relayListener) {
+                        final ChannelPipelineFactory innerFactory =
+                            super.getRelayPipelineFactory(httpRequest,
+                                browserToProxyChannel, relayListener);
+                        return new ChannelPipelineFactory() {
+                            @Override
+                            public ChannelPipeline getPipeline()
+                                throws Exception {
+                                final ChannelPipeline pipeline =
+                                    innerFactory.getPipeline();
+                                // littleproxy writes responses to the browser
+                                // itself, so we just stop reading from the
+                                // site when the browser falls behind.
+                                pipeline.addFirst("throttle", 
+                                    LanternHub.relayBackpressure().newThrottle(
+                                        browserToProxyChannel));
+                                // First, so it sees the channel open.
+                                pipeline.addFirst("latency", new LatencyHandler(
+                                    LatencyTracker.Route.DIRECT, false));
+                                return pipeline;
+                            }
+                        };
+                    }
+                };
             private final HttpRequestHandler requestHandler =
-                new HttpRequestHandler(clientSocketChannelFactory, pf);
+                new HttpRequestHandler(
+                    LanternHub.clientSocketChannelFactory(), pf);
             
             @Override
             public boolean processRequest(final Channel browserChannel,
@@ -185,40 +197,48 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
                 }
             },  proxyStatusListener, encryptingP2pClient, this.keyStoreManager);
         */
-        this.proxyRequestProcessor =
-            new DefaultHttpRequestProcessor(LanternHub.getProxyStatusListener(),
-                new HttpRequestTransformer() {
-                    @Override
-                    public void transform(final HttpRequest request, 
-                        final InetSocketAddress proxyAddress) {
-                        // Does nothing.
-                    }
-                }, false,
-                new Proxy() {
-                    @Override
-                    public URI getPeerProxy() {
-                        throw new UnsupportedOperationException(
-                            "Peer proxy not supported here.");
-                    }
-                    @Override
-                    public InetSocketAddress getProxy() {
-                        return LanternHub.getProxyProvider().getProxy();
-                    }
-                }, this.keyStoreManager);
-        this.laeRequestProcessor =
-            new DefaultHttpRequestProcessor(LanternHub.getProxyStatusListener(),
-                new LaeHttpRequestTransformer(), true,
-                new Proxy() {
-                    @Override
-                    public URI getPeerProxy() {
-                        throw new UnsupportedOperationException(
-                            "Peer proxy not supported here.");
-                    }
-                    @Override
-                    public InetSocketAddress getProxy() {
-                        return LanternHub.getProxyProvider().getLaeProxy();
-                    }
-            }, null);
+        this.proxyRequestProcessor = newProxyRequestProcessor();
+        this.laeRequestProcessor = newLaeRequestProcessor();
+    }
+    
+    private HttpRequestProcessor newProxyRequestProcessor() {
+        return new DefaultHttpRequestProcessor(
+            LanternHub.getProxyStatusListener(),
+            new HttpRequestTransformer() {
+                @Override
+                public void transform(final HttpRequest request, 
+                    final InetSocketAddress proxyAddress) {
+                    // Does nothing.
+                }
+            }, false,
+            new Proxy() {
+                @Override
+                public URI getPeerProxy() {
+                    throw new UnsupportedOperationException(
+                        "Peer proxy not supported here.");
+                }
+                @Override
+                public InetSocketAddress getProxy() {
+                    return LanternHub.getProxyProvider().getProxy();
+                }
+            });
+    }
+    
+    private HttpRequestProcessor newLaeRequestProcessor() {
+        return new DefaultHttpRequestProcessor(
+            LanternHub.getProxyStatusListener(),
+            new LaeHttpRequestTransformer(), true,
+            new Proxy() {
+                @Override
+                public URI getPeerProxy() {
+                    throw new UnsupportedOperationException(
+                        "Peer proxy not supported here.");
+                }
+                @Override
+                public InetSocketAddress getProxy() {
+                    return LanternHub.getProxyProvider().getLaeProxy();
+                }
+            });
     }
 
     @Override
@@ -228,6 +248,13 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
         log.info("Received {} total messages", messagesReceived);
         if (!readingChunks) {
             log.info("Reading HTTP request (not a chunk)...");
+            if (this.currentRequestProcessor instanceof 
+                HedgingHttpRequestProcessor) {
+                // Hedged processors only ever handle a single request, so 
+                // we're done with the last one.
+                ((HedgingHttpRequestProcessor) 
+                    this.currentRequestProcessor).finish();
+            }
             this.currentRequestProcessor = dispatchRequest(ctx, me);
         } 
         else {
@@ -270,11 +297,18 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
             readingChunks = false;
         }
         
-        this.proxying = LanternUtils.shouldProxy(request);
+        // Most requests are for hosts we've routed recently, so we can 
+        // usually skip checking the whitelist and the HTTPS rules.
+        final RoutingCache.Decision decision = 
+            LanternHub.routingCache().decide(request);
+        final DomainTraffic.Route route = 
+            decision.getRoute(LanternHub.settings().isProxyAllSites());
+        this.proxying = route == DomainTraffic.Route.PROXIED;
         
         if (proxying) {
             // If it's an HTTP request, see if we can redirect it to HTTPS.
-            final String https = LanternHub.httpsEverywhere().toHttps(uri);
+            final String https = decision.hasHttpsRules() ? 
+                LanternHub.httpsEverywhere().toHttps(uri) : uri;
             if (!https.equals(uri)) {
                 final HttpResponse response = 
                     new DefaultHttpResponse(request.getProtocolVersion(), 
@@ -295,10 +329,14 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
             }
             log.info("Not converting to HTTPS");
             LanternHub.statsTracker().incrementProxiedRequests();
+            LanternHub.domainTraffic().onRequest(route, 
+                browserToProxyChannel, request);
             return dispatchProxyRequest(ctx, me);
         } else {
             log.info("Not proxying!");
             LanternHub.statsTracker().incrementDirectRequests();
+            LanternHub.domainTraffic().onRequest(route, 
+                browserToProxyChannel, request);
             try {
                 this.unproxiedRequestProcessor.processRequest(
                     browserToProxyChannel, ctx, me);
@@ -342,6 +380,15 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
             }
 
         }
+        if (HEDGING_ACTIVE && isHedgeable(request)) {
+            final HttpRequestProcessor hedging = 
+                new HedgingHttpRequestProcessor(hedgeRoutes(request), 
+                    LanternHub.hedgeTracker());
+            if (hedging.processRequest(browserToProxyChannel, ctx, me)) {
+                log.info("Processing hedged request");
+                return hedging;
+            }
+        }
         try {
             if (TRUSTED_ACTIVE) {
                 final PeerProxyManager provider = 
@@ -382,6 +429,72 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
         return null;
     }
 
+    /**
+     * We only hedge requests that are safe to send twice and that don't have
+     * bodies we'd need to send down more than one route.
+     */
+    private boolean isHedgeable(final HttpRequest request) {
+        return request.getMethod() == HttpMethod.GET && !request.isChunked();
+    }
+    
+    private List<HedgingHttpRequestProcessor.Route> hedgeRoutes(
+        final HttpRequest request) {
+        final List<HedgingHttpRequestProcessor.Route> routes = 
+            new ArrayList<HedgingHttpRequestProcessor.Route>();
+        if (TRUSTED_ACTIVE) {
+            final PeerProxyManager provider = 
+                LanternHub.getProxyProvider().getTrustedPeerProxyManager();
+            if (provider != null) {
+                routes.add(new HedgingHttpRequestProcessor.Route() {
+                    @Override
+                    public String getName() {
+                        return "peer";
+                    }
+                    @Override
+                    public HttpRequestProcessor send(final Channel channel,
+                        final ChannelHandlerContext ctx, 
+                        final MessageEvent me, final boolean hedge) 
+                        throws IOException {
+                        return provider.processRequest(channel, ctx, me);
+                    }
+                });
+            }
+        }
+        if (useLae() && isLae(request)) {
+            routes.add(new HedgingHttpRequestProcessor.Route() {
+                @Override
+                public String getName() {
+                    return "lae";
+                }
+                @Override
+                public HttpRequestProcessor send(final Channel channel,
+                    final ChannelHandlerContext ctx, final MessageEvent me,
+                    final boolean hedge) throws IOException {
+                    final HttpRequestProcessor rp = hedge ? 
+                        newLaeRequestProcessor() : laeRequestProcessor;
+                    return rp.processRequest(channel, ctx, me) ? rp : null;
+                }
+            });
+        }
+        if (useStandardProxies()) {
+            routes.add(new HedgingHttpRequestProcessor.Route() {
+                @Override
+                public String getName() {
+                    return "proxy";
+                }
+                @Override
+                public HttpRequestProcessor send(final Channel channel,
+                    final ChannelHandlerContext ctx, final MessageEvent me,
+                    final boolean hedge) throws IOException {
+                    final HttpRequestProcessor rp = hedge ? 
+                        newProxyRequestProcessor() : proxyRequestProcessor;
+                    return rp.processRequest(channel, ctx, me) ? rp : null;
+                }
+            });
+        }
+        return routes;
+    }
+
     private boolean useStandardProxies() {
         return PROXIES_ACTIVE && LanternHub.settings().isUseCloudProxies();
     }
@@ -448,29 +561,32 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
         throws IOException {
         this.browserToProxyChannel.setReadable(false);
 
-        // Start the connection attempt.
-        final ClientBootstrap cb = 
-            new ClientBootstrap(LanternUtils.clientSocketChannelFactory);
-        
-        final ChannelPipeline pipeline = cb.getPipeline();
+        log.info("Connecting to relay proxy");
+        final InetSocketAddress isa = LanternHub.getProxyProvider().getProxy();
+        if (isa == null) {
+            log.error("NO PROXY AVAILABLE?");
+            ProxyUtils.closeOnFlush(browserToProxyChannel);
+            throw new IOException("No proxy to use for CONNECT?");
+        }
         
         // This is slightly odd, as we tunnel SSL inside SSL, but we'd 
         // otherwise just be running an open CONNECT proxy.
         
-        // It's also necessary to use our own engine here, as we need to trust
-        // the cert from the proxy.
-        final LanternClientSslContextFactory sslFactory =
-            new LanternClientSslContextFactory(this.keyStoreManager);
-        final SSLEngine engine =
-            sslFactory.getClientContext().createSSLEngine();
-        engine.setUseClientMode(true);
+        // The pooled channels use our own engine, as we need to trust
+        // the cert from the proxy, and have typically already completed the
+        // SSL handshake.
+        final ChannelFuture cf = 
+            LanternHub.proxyConnectionPool().acquire(isa);
+        final ChannelPipeline pipeline = cf.getChannel().getPipeline();
         
-        ChannelHandler stats = new StatsTrackingHandler() {
+        final ChannelHandler stats = new StatsTrackingHandler() {
             @Override
             public void addDownBytes(long bytes, Channel channel) {
                 // global bytes proxied statistic
                 //log.info("Recording proxied bytes through HTTP CONNECT: {}", bytes);
                 statsTracker().addBytesProxied(bytes, channel);
+                LanternHub.domainTraffic().addBytes(
+                    DomainTraffic.Route.PROXIED, browserToProxyChannel, bytes);
                 
                 // contributes to local download rate
                 statsTracker().addDownBytesViaProxies(bytes, channel);
@@ -482,19 +598,13 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
             }
         };        
 
-        pipeline.addLast("stats", stats);
-        pipeline.addLast("ssl", new SslHandler(engine));
+        pipeline.replace("stats", "stats", stats);
+        pipeline.addAfter("ssl", "score", new ProxyScoringHandler(isa, true));
+        pipeline.addAfter("score", "latency",
+            new LatencyHandler(LatencyTracker.Route.PROXY, true));
         pipeline.addLast("encoder", new HttpRequestEncoder());
         pipeline.addLast("handler", 
-            new HttpConnectRelayingHandler(this.browserToProxyChannel, null));
-        log.info("Connecting to relay proxy");
-        final InetSocketAddress isa = LanternHub.getProxyProvider().getProxy();
-        if (isa == null) {
-            log.error("NO PROXY AVAILABLE?");
-            ProxyUtils.closeOnFlush(browserToProxyChannel);
-            throw new IOException("No proxy to use for CONNECT?");
-        }
-        final ChannelFuture cf = cb.connect(isa);
+            new ConnectRelayingHandler(this.browserToProxyChannel));
         log.info("Got an outbound channel on: {}", hashCode());
         
         final ChannelPipeline browserPipeline = 
@@ -503,7 +613,7 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
         browserPipeline.remove("decoder");
         browserPipeline.remove("handler");
         browserPipeline.addLast("handler", 
-            new HttpConnectRelayingHandler(cf.getChannel(), null));
+            new ConnectRelayingHandler(cf.getChannel()));
         
         // This is handy, as set readable to false while the channel is 
         // connecting ensures we won't get any incoming messages until
@@ -0,0 +1,347 @@
+package org.lantern;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.net.InternetDomainName;
+
+/**
+ * Keeps track of how many bytes and requests go to each registrable domain,
+ * such as google.com for www.google.com, separately for requests we proxy,
+ * requests we send directly and requests we handle for other users in give
+ * mode. Totals are kept in count-min sketches so memory stays fixed however
+ * many domains we see, and for each route we keep the domains with the
+ * largest byte totals.
+ *
+ * The domain of each request is worked out once when the request arrives
+ * and remembered for the channel, so accounting for the bytes of the
+ * response is just adding to the sketch.
+ */
+public class DomainTraffic {
+
+    /**
+     * The ways we can handle a request.
+     */
+    public enum Route {
+        PROXIED,
+        DIRECT,
+        GIVE,
+    }
+
+    private final ChannelLocal<Domain> channelDomains =
+        new ChannelLocal<Domain>();
+
+    /**
+     * The domains of recently seen hosts.
+     */
+    private final Cache<String, Domain> hostDomains =
+        CacheBuilder.newBuilder().maximumSize(
+            LanternConstants.DOMAIN_CACHE_SIZE).build();
+
+    private final RouteTraffic[] routes;
+
+    public DomainTraffic() {
+        this(LanternConstants.DOMAIN_SKETCH_DEPTH,
+            LanternConstants.DOMAIN_SKETCH_WIDTH,
+            LanternConstants.TOP_DOMAINS);
+    }
+
+    /**
+     * Creates a new tracker.
+     *
+     * @param depth The depth of each count-min sketch.
+     * @param width The width of each count-min sketch.
+     * @param top The number of domains with the most bytes we keep for each
+     * route.
+     */
+    public DomainTraffic(final int depth, final int width, final int top) {
+        final Route[] values = Route.values();
+        this.routes = new RouteTraffic[values.length];
+        for (int i = 0; i < values.length; i++) {
+            routes[i] = new RouteTraffic(depth, width, top);
+        }
+    }
+
+    /**
+     * Records a request, remembering its domain for the bytes of the
+     * response on the specified channel.
+     *
+     * @param route How we're handling the request.
+     * @param channel The channel the response bytes will be recorded for,
+     * or <code>null</code> if callers will record them with the returned
+     * domain.
+     * @param request The request.
+     * @return The domain of the request.
+     */
+    public Domain onRequest(final Route route, final Channel channel,
+        final HttpRequest request) {
+        final Domain domain = toDomain(hostOf(request));
+        if (channel != null) {
+            channelDomains.set(channel, domain);
+        }
+        routes[route.ordinal()].requests.add(domain.hash, 1L);
+        return domain;
+    }
+
+    /**
+     * Records bytes for the last request on the specified channel.
+     *
+     * @param route How we handled the request.
+     * @param channel The channel.
+     * @param bytes The number of bytes.
+     */
+    public void addBytes(final Route route, final Channel channel,
+        final long bytes) {
+        final Domain domain = channelDomains.get(channel);
+        if (domain != null) {
+            addBytes(route, domain, bytes);
+        }
+    }
+
+    /**
+     * Records bytes for a domain.
+     *
+     * @param route How we handled the request.
+     * @param domain The domain.
+     * @param bytes The number of bytes.
+     */
+    public void addBytes(final Route route, final Domain domain,
+        final long bytes) {
+        routes[route.ordinal()].addBytes(domain, bytes);
+    }
+
+    /**
+     * @return The estimated bytes for the specified domain.
+     */
+    public long getBytes(final Route route, final String domain) {
+        return routes[route.ordinal()].bytes.estimate(
+            CountMinSketch.hash(domain));
+    }
+
+    /**
+     * @return The estimated requests for the specified domain.
+     */
+    public long getRequests(final Route route, final String domain) {
+        return routes[route.ordinal()].requests.estimate(
+            CountMinSketch.hash(domain));
+    }
+
+    /**
+     * @return The domains with the most bytes for the route, largest first.
+     */
+    public List<String> getTopDomains(final Route route) {
+        final RouteTraffic traffic = routes[route.ordinal()];
+        final List<Domain> top = new ArrayList<Domain>(traffic.top.values());
+        Collections.sort(top, new Comparator<Domain>() {
+            @Override
+            public int compare(final Domain d1, final Domain d2) {
+                final long b1 = traffic.bytes.estimate(d1.hash);
+                final long b2 = traffic.bytes.estimate(d2.hash);
+                if (b1 == b2) {
+                    return 0;
+                }
+                return b1 > b2 ? -1 : 1;
+            }
+        });
+        final List<String> names = new ArrayList<String>(top.size());
+        for (final Domain domain : top) {
+            names.add(domain.name);
+        }
+        return names;
+    }
+
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        for (final Route route : Route.values()) {
+            final JSONArray top = new JSONArray();
+            for (final String name : getTopDomains(route)) {
+                final JSONObject domain = toJson(route, name);
+                domain.put("whitelisted",
+                    LanternHub.whitelist().isWhitelisted(name));
+                top.add(domain);
+            }
+            json.put(route.name().toLowerCase(Locale.US), top);
+        }
+        return json;
+    }
+
+    /**
+     * @return The estimated bytes and requests for a single domain on each
+     * route.
+     */
+    public JSONObject toJson(final String domain) {
+        final String name = toDomain(domain.trim()).name;
+        final JSONObject json = new JSONObject();
+        for (final Route route : Route.values()) {
+            json.put(route.name().toLowerCase(Locale.US),
+                toJson(route, name));
+        }
+        return json;
+    }
+
+    private JSONObject toJson(final Route route, final String name) {
+        final JSONObject json = new JSONObject();
+        json.put("domain", name);
+        json.put("bytes", getBytes(route, name));
+        json.put("requests", getRequests(route, name));
+        return json;
+    }
+
+    private Domain toDomain(final String host) {
+        final Domain cached = hostDomains.getIfPresent(host);
+        if (cached != null) {
+            return cached;
+        }
+        final Domain domain = new Domain(registrableDomain(host));
+        hostDomains.put(host, domain);
+        return domain;
+    }
+
+    /**
+     * Returns the domain under the public suffix for a host, for example
+     * google.co.uk for www.google.co.uk. Anything that isn't under a public
+     * suffix, such as an IP address, is returned as is.
+     *
+     * @param host The host.
+     * @return The registrable domain.
+     */
+    public static String registrableDomain(final String host) {
+        try {
+            final InternetDomainName name = InternetDomainName.fromLenient(host);
+            if (name.isUnderPublicSuffix()) {
+                return name.topPrivateDomain().name();
+            }
+        } catch (final IllegalArgumentException e) {
+            // Not a domain name.
+        }
+        return host;
+    }
+
+    /**
+     * @return The lower cased host a request is for, without any port.
+     */
+    static String hostOf(final HttpRequest request) {
+        String host = request.getHeader(HttpHeaders.Names.HOST);
+        if (StringUtils.isBlank(host)) {
+            // Absolute URIs for proxies, or host:port for CONNECT.
+            host = request.getUri();
+            if (host.contains("://")) {
+                host = StringUtils.substringAfter(host, "://");
+            }
+            host = StringUtils.substringBefore(host, "/");
+        }
+        if (!host.startsWith("[")) {
+            host = StringUtils.substringBefore(host, ":");
+        }
+        return host.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * A domain along with its hash in our sketches.
+     */
+    public static final class Domain {
+
+        private final String name;
+
+        private final long hash;
+
+        private Domain(final String name) {
+            this.name = name;
+            this.hash = CountMinSketch.hash(name);
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final class RouteTraffic {
+
+        private final CountMinSketch bytes;
+
+        private final CountMinSketch requests;
+
+        private final int capacity;
+
+        /**
+         * The domains with the most bytes. We only change this while
+         * holding the lock on this object.
+         */
+        private final Map<String, Domain> top =
+            new ConcurrentHashMap<String, Domain>();
+
+        /**
+         * The smallest estimate among the top domains when we last looked.
+         * Estimates only grow, so anything with an estimate no larger than
+         * this can't be bigger than any of the top domains.
+         */
+        private volatile long minTop;
+
+        private RouteTraffic(final int depth, final int width,
+            final int capacity) {
+            this.bytes = new CountMinSketch(depth, width);
+            this.requests = new CountMinSketch(depth, width);
+            this.capacity = capacity;
+        }
+
+        private void addBytes(final Domain domain, final long count) {
+            bytes.add(domain.hash, count);
+            if (top.containsKey(domain.name)) {
+                return;
+            }
+            final long estimate = bytes.estimate(domain.hash);
+            if (top.size() >= capacity && estimate <= minTop) {
+                return;
+            }
+            synchronized (this) {
+                if (top.containsKey(domain.name)) {
+                    return;
+                }
+                if (top.size() < capacity) {
+                    top.put(domain.name, domain);
+                    minTop = min();
+                    return;
+                }
+                Domain smallest = null;
+                long smallestEstimate = Long.MAX_VALUE;
+                for (final Domain candidate : top.values()) {
+                    final long e = bytes.estimate(candidate.hash);
+                    if (e < smallestEstimate) {
+                        smallestEstimate = e;
+                        smallest = candidate;
+                    }
+                }
+                if (estimate > smallestEstimate) {
+                    top.remove(smallest.name);
+                    top.put(domain.name, domain);
+                    minTop = min();
+                } else {
+                    minTop = smallestEstimate;
+                }
+            }
+        }
+
+        private long min() {
+            long min = Long.MAX_VALUE;
+            for (final Domain candidate : top.values()) {
+                min = Math.min(min, bytes.estimate(candidate.hash));
+            }
+            return min;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.lantern;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+import com.maxmind.geoip.Country;
+import com.maxmind.geoip.LookupService;
+
+/**
+ * Table of IPv4 address ranges and the country each is in, built from the
+ * GeoIP database. The GeoIP database is a binary tree we'd otherwise have
+ * to walk under the lock of the {@link LookupService}, while this is just
+ * a sorted array of the first address of each range alongside the country
+ * of each range, memory mapped from a file, so lookups are a binary search
+ * any number of threads can do at once without allocating anything.
+ *
+ * The file starts with a header of the magic number, the number of ranges
+ * and the number of countries. Then come the first address of each range
+ * as ints, offset so that signed comparisons order them as unsigned
+ * addresses, the index of the country of each range as ints, and finally
+ * the code and name of each country.
+ */
+public class GeoIpTable {
+
+    /**
+     * Identifies our files ("LGT1"), and changes whenever the format does.
+     */
+    private static final int MAGIC = 0x4c475431;
+
+    private static final int HEADER_BYTES = 12;
+
+    private static final Country UNKNOWN = new Country("--", "N/A");
+
+    private final ByteBuffer table;
+
+    private final int ranges;
+
+    private final Country[] countries;
+
+    private GeoIpTable() {
+        this.table = null;
+        this.ranges = 0;
+        this.countries = new Country[0];
+    }
+
+    /**
+     * Returns a table with no ranges, which puts every address in an
+     * unknown country. We use this if we can't load the real table.
+     *
+     * @return The empty table.
+     */
+    public static GeoIpTable empty() {
+        return new GeoIpTable();
+    }
+
+    /**
+     * Maps a table built with {@link #build(LookupService, File)}.
+     *
+     * @param file The table.
+     * @throws IOException If the file can't be read or isn't a table.
+     */
+    public GeoIpTable(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final MappedByteBuffer mapped = raf.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (mapped.getInt(0) != MAGIC) {
+                throw new IOException("Not a GeoIP table: " + file);
+            }
+            this.ranges = mapped.getInt(4);
+            this.countries = new Country[mapped.getInt(8)];
+            final byte[] names = 
+                new byte[(int) raf.length() - HEADER_BYTES - ranges * 8];
+            mapped.position(HEADER_BYTES + ranges * 8);
+            mapped.get(names);
+            final DataInputStream in = 
+                new DataInputStream(new ByteArrayInputStream(names));
+            for (int i = 0; i < countries.length; i++) {
+                countries[i] = new Country(in.readUTF(), in.readUTF());
+            }
+            this.table = mapped.asReadOnlyBuffer();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the country of the specified address.
+     *
+     * @param address The address.
+     * @return The country, which has the code "--" if we don't know it.
+     */
+    public Country getCountry(final InetAddress address) {
+        if (!(address instanceof Inet4Address)) {
+            return UNKNOWN;
+        }
+        final byte[] bytes = address.getAddress();
+        final int ip = ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) |
+            ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+        return getCountry(ip);
+    }
+
+    /**
+     * Returns the country of the specified IPv4 address.
+     *
+     * @param ip The address, with the first octet in the high bits.
+     * @return The country, which has the code "--" if we don't know it.
+     */
+    public Country getCountry(final int ip) {
+        if (ranges == 0) {
+            return UNKNOWN;
+        }
+        final int key = ip ^ Integer.MIN_VALUE;
+        // Find the last range starting at or before the address. The first
+        // range always starts at 0.0.0.0.
+        int low = 0;
+        int high = ranges - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (table.getInt(HEADER_BYTES + mid * 4) <= key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return countries[table.getInt(HEADER_BYTES + (ranges + low) * 4)];
+    }
+
+    /**
+     * @return The number of ranges in the table.
+     */
+    public int getRanges() {
+        return ranges;
+    }
+
+    /**
+     * Writes the table for the specified GeoIP database to a file. We walk
+     * the address space a network at a time, using the netmask the lookup
+     * service gives us for each address to skip to the next network, and
+     * merge neighboring networks in the same country.
+     *
+     * @param lookup The GeoIP database.
+     * @param file The file to write the table to.
+     * @throws IOException If we can't write the file.
+     */
+    public static void build(final LookupService lookup, final File file)
+        throws IOException {
+        final List<Integer> starts = new ArrayList<Integer>();
+        final List<Integer> indexes = new ArrayList<Integer>();
+        final List<Country> countries = new ArrayList<Country>();
+        final Map<Integer, Integer> idToIndex = new HashMap<Integer, Integer>();
+        int lastId = -1;
+        long ip = 0;
+        while (ip <= 0xffffffffL) {
+            final int id;
+            final int netmask;
+            synchronized (lookup) {
+                id = lookup.getID(ip);
+                netmask = lookup.last_netmask();
+            }
+            if (id != lastId) {
+                Integer index = idToIndex.get(id);
+                if (index == null) {
+                    index = countries.size();
+                    idToIndex.put(id, index);
+                    countries.add(lookup.getCountry(ip));
+                }
+                starts.add((int) ip ^ Integer.MIN_VALUE);
+                indexes.add(index);
+                lastId = id;
+            }
+            // Skip to the first address after this network.
+            ip = ((ip >>> (32 - netmask)) + 1) << (32 - netmask);
+        }
+
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream os = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            os.writeInt(MAGIC);
+            os.writeInt(starts.size());
+            os.writeInt(countries.size());
+            for (final int start : starts) {
+                os.writeInt(start);
+            }
+            for (final int index : indexes) {
+                os.writeInt(index);
+            }
+            for (final Country country : countries) {
+                os.writeUTF(country.getCode());
+                os.writeUTF(country.getName());
+            }
+            os.close();
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+        if (file.isFile() && !file.delete()) {
+            throw new IOException("Could not replace " + file);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp);
+        }
+    }
+
+    /**
+     * Builds a table from the command line, for example when packaging.
+     *
+     * @param args The GeoIP database and the file to write the table to.
+     * @throws IOException If we can't read the database or write the table.
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: GeoIpTable <GeoIP.dat> <table>");
+            System.exit(1);
+        }
+        final LookupService lookup = new LookupService(new File(args[0]),
+            LookupService.GEOIP_MEMORY_CACHE);
+        try {
+            build(lookup, new File(args[1]));
+        } finally {
+            lookup.close();
+        }
+    }
+}
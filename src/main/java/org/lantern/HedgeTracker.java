@@ -0,0 +1,166 @@
+package org.lantern;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Keeps track of how long each route takes to start answering requests,
+ * and how often hedged requests fire and win. The hedge delay for a route
+ * is the 95th percentile of its recent response times, so we only send a
+ * second copy of roughly the slowest one in twenty requests.
+ */
+public class HedgeTracker {
+
+    /**
+     * The number of recent response times we keep for each route.
+     */
+    private static final int SAMPLES = 128;
+
+    /**
+     * Until we have this many samples for a route we use the default delay.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    private final Map<String, RouteSamples> routes =
+        new ConcurrentHashMap<String, RouteSamples>();
+
+    private final AtomicLong requests = new AtomicLong(0L);
+
+    private final AtomicLong hedges = new AtomicLong(0L);
+
+    private final AtomicLong hedgeWins = new AtomicLong(0L);
+
+    /**
+     * Records the time a route took to return response headers. For a route
+     * that lost to a hedge this is the time we'd waited on it, but no less
+     * than its hedge delay, since it can only be slower than that. Losing 
+     * hedges shouldn't be recorded at all, as they started late and the
+     * time we waited on them is less than their real response time.
+     *
+     * @param route The name of the route.
+     * @param millis The elapsed time in milliseconds.
+     */
+    public void addSample(final String route, final long millis) {
+        samplesFor(route).add(millis);
+    }
+
+    /**
+     * Returns how long we should wait for the specified route to return
+     * response headers before hedging the request on another route.
+     *
+     * @param route The name of the route.
+     * @return The delay in milliseconds.
+     */
+    public long getHedgeDelay(final String route) {
+        final long p95 = samplesFor(route).percentile(0.95);
+        if (p95 < 0) {
+            return LanternConstants.HEDGE_DEFAULT_DELAY;
+        }
+        return Math.max(LanternConstants.HEDGE_MIN_DELAY,
+            Math.min(p95, LanternConstants.HEDGE_MAX_DELAY));
+    }
+
+    public void onRequest() {
+        requests.incrementAndGet();
+    }
+
+    public void onHedge() {
+        hedges.incrementAndGet();
+    }
+
+    public void onHedgeWin() {
+        hedgeWins.incrementAndGet();
+    }
+
+    public long getHedgeableRequests() {
+        return requests.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return The fraction of hedgeable requests we sent a hedge for.
+     */
+    public double getHedgeRate() {
+        final long total = requests.get();
+        if (total == 0) {
+            return 0.0;
+        }
+        return (double) hedges.get() / total;
+    }
+
+    /**
+     * @return The fraction of hedges that answered before the original
+     * request.
+     */
+    public double getHedgeWinRate() {
+        final long total = hedges.get();
+        if (total == 0) {
+            return 0.0;
+        }
+        return (double) hedgeWins.get() / total;
+    }
+
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        json.put("requests", getHedgeableRequests());
+        json.put("hedges", getHedges());
+        json.put("hedge_wins", getHedgeWins());
+        json.put("hedge_rate", getHedgeRate());
+        json.put("hedge_win_rate", getHedgeWinRate());
+        final JSONObject delays = new JSONObject();
+        for (final String route : routes.keySet()) {
+            delays.put(route, getHedgeDelay(route));
+        }
+        json.put("delays", delays);
+        return json;
+    }
+
+    private RouteSamples samplesFor(final String route) {
+        synchronized (routes) {
+            RouteSamples samples = routes.get(route);
+            if (samples == null) {
+                samples = new RouteSamples();
+                routes.put(route, samples);
+            }
+            return samples;
+        }
+    }
+
+    private static final class RouteSamples {
+
+        private final long[] samples = new long[SAMPLES];
+
+        private int next;
+
+        private int size;
+
+        private synchronized void add(final long millis) {
+            samples[next] = millis;
+            next = (next + 1) % SAMPLES;
+            if (size < SAMPLES) {
+                size++;
+            }
+        }
+
+        private synchronized long percentile(final double p) {
+            if (size < MIN_SAMPLES) {
+                return -1;
+            }
+            final long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            final int index = (int) Math.ceil(p * size) - 1;
+            return sorted[Math.max(0, index)];
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package org.lantern;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processor for a single idempotent request that can send the request over
+ * more than one route. We start with the first route that accepts the
+ * request. If it hasn't returned response headers within the hedge delay
+ * for that route, or if it fails outright, we send a copy of the request on
+ * the next route. Whichever route returns response headers first wins, and
+ * we cancel the others.
+ *
+ * Each route writes to its own view of the browser channel. Writes and
+ * closes from routes that haven't won are simply dropped, so losing routes
+ * never touch the browser connection.
+ *
+ * Only the hedges open new connections. The first route we send a request
+ * on uses the processor it keeps for the browser connection, so requests
+ * that don't need hedging reuse the same proxy connection just as they
+ * would without hedging.
+ */
+public class HedgingHttpRequestProcessor implements HttpRequestProcessor {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * A way of sending a request to a proxy.
+     */
+    public interface Route {
+
+        /**
+         * @return The name of the route, for tracking its response times.
+         */
+        String getName();
+
+        /**
+         * Sends the request over this route.
+         *
+         * @param browserToProxyChannel The channel to write responses to.
+         * @param ctx The context for the browser channel.
+         * @param me The event containing the request.
+         * @param hedge Whether or not this is a hedge running alongside
+         * another route, in which case the route should use a new processor
+         * rather than the one it keeps for the browser connection.
+         * @return The processor handling the request, or <code>null</code>
+         * if the route couldn't take it.
+         * @throws IOException If there's an error sending the request.
+         */
+        HttpRequestProcessor send(Channel browserToProxyChannel,
+            ChannelHandlerContext ctx, MessageEvent me, boolean hedge) 
+            throws IOException;
+    }
+
+    private final List<Route> routes;
+
+    private final HedgeTracker tracker;
+
+    private final List<Attempt> attempts = new ArrayList<Attempt>();
+
+    private int nextRoute;
+
+    private Attempt winner;
+
+    private boolean hedged;
+
+    /**
+     * Set once we're closed, after which no route touches the browser.
+     */
+    private boolean detached;
+
+    /**
+     * Set once the browser has moved on to its next request, after which we
+     * don't send the request on any more routes.
+     */
+    private boolean finished;
+
+    private TimerTask hedgeTask;
+
+    private Channel browserToProxyChannel;
+
+    private ChannelHandlerContext ctx;
+
+    private HttpRequest request;
+
+    private SocketAddress remoteAddress;
+
+    /**
+     * Creates a new processor.
+     *
+     * @param routes The routes to try, in order of preference.
+     * @param tracker The tracker for response times and hedge metrics.
+     */
+    public HedgingHttpRequestProcessor(final List<Route> routes,
+        final HedgeTracker tracker) {
+        this.routes = routes;
+        this.tracker = tracker;
+    }
+
+    @Override
+    public boolean processRequest(final Channel browserToProxyChannel,
+        final ChannelHandlerContext ctx, final MessageEvent me) {
+        this.browserToProxyChannel = browserToProxyChannel;
+        this.ctx = ctx;
+        this.request = (HttpRequest) me.getMessage();
+        this.remoteAddress = me.getRemoteAddress();
+
+        final Attempt primary = launchNext(false);
+        if (primary == null) {
+            return false;
+        }
+        tracker.onRequest();
+        if (nextRoute < routes.size()) {
+            final long delay = primary.delay;
+            synchronized (this) {
+                // The primary route may have already answered.
+                if (winner == null && !detached) {
+                    hedgeTask = new TimerTask() {
+                        @Override
+                        public void run() {
+                            // This runs on the shared timer, which would 
+                            // stop for everyone if we let this escape.
+                            try {
+                                hedge();
+                            } catch (final RuntimeException e) {
+                                log.warn("Could not hedge request -- " +
+                                    "waiting on the first route", e);
+                            }
+                        }
+                    };
+                    LanternHub.timer().schedule(hedgeTask, delay);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean processChunk(final ChannelHandlerContext ctx,
+        final MessageEvent me) {
+        // We only ever hedge requests without bodies.
+        log.warn("Unexpected chunk on hedged request");
+        return false;
+    }
+
+    @Override
+    public void close() {
+        final List<Attempt> toClose;
+        synchronized (this) {
+            detached = true;
+            cancelHedgeTask();
+            toClose = new ArrayList<Attempt>(attempts);
+        }
+        for (final Attempt attempt : toClose) {
+            attempt.cancel();
+        }
+    }
+
+    /**
+     * Called when the browser sends its next request. We close any hedges
+     * but leave the processor the first route keeps for the browser
+     * connection open if it answered, so the next request can reuse its
+     * connection to the proxy.
+     */
+    public void finish() {
+        final List<Attempt> toClose = new ArrayList<Attempt>();
+        synchronized (this) {
+            finished = true;
+            cancelHedgeTask();
+            for (final Attempt attempt : attempts) {
+                if (attempt != winner || attempt.hedge) {
+                    toClose.add(attempt);
+                }
+            }
+        }
+        for (final Attempt attempt : toClose) {
+            attempt.cancel();
+        }
+    }
+
+    private void hedge() {
+        synchronized (this) {
+            if (winner != null || detached || finished || hedged) {
+                return;
+            }
+            hedged = true;
+        }
+        log.info("No response headers in time -- hedging {}",
+            request.getUri());
+        if (launchNext(true) != null) {
+            tracker.onHedge();
+        }
+    }
+
+    /**
+     * Sends the request on the next route that accepts it.
+     *
+     * @param hedge Whether or not this is a hedge for a slow route.
+     * @return The attempt for the route, or <code>null</code> if no more
+     * routes would take the request.
+     */
+    private Attempt launchNext(final boolean hedge) {
+        while (true) {
+            final Attempt attempt;
+            synchronized (this) {
+                if (detached || finished || nextRoute >= routes.size()) {
+                    return null;
+                }
+                attempt = new Attempt(routes.get(nextRoute++), hedge);
+                attempts.add(attempt);
+            }
+            try {
+                final MessageEvent copy = new UpstreamMessageEvent(
+                    browserToProxyChannel, LanternUtils.copyRequest(request), 
+                    remoteAddress);
+                final HttpRequestProcessor rp =
+                    attempt.route.send(attempt.channel, ctx, copy, hedge);
+                if (rp != null) {
+                    attempt.setProcessor(rp);
+                    return attempt;
+                }
+            } catch (final IOException e) {
+                log.info("Could not send request on " + attempt.route.getName(),
+                    e);
+            } catch (final RuntimeException e) {
+                log.warn("Error sending request on " + 
+                    attempt.route.getName(), e);
+            }
+            synchronized (this) {
+                attempt.failed = true;
+            }
+        }
+    }
+
+    /**
+     * Called when a route has response headers for us.
+     *
+     * @return <code>true</code> if the route is the winner.
+     */
+    private boolean claim(final Attempt attempt) {
+        final List<Attempt> losers = new ArrayList<Attempt>();
+        synchronized (this) {
+            if (detached) {
+                return false;
+            }
+            if (winner != null) {
+                return winner == attempt;
+            }
+            winner = attempt;
+            cancelHedgeTask();
+            final long now = System.currentTimeMillis();
+            tracker.addSample(attempt.route.getName(), now - attempt.started);
+            if (attempt.hedge) {
+                tracker.onHedgeWin();
+            }
+            for (final Attempt other : attempts) {
+                if (other != attempt && !other.failed) {
+                    losers.add(other);
+                    // A route we sent the request on first has taken at 
+                    // least as long as we've waited on it, and at least its
+                    // hedge delay, or we wouldn't have hedged. Leaving it 
+                    // out would pull its hedge delay down. A losing hedge 
+                    // started later, so the time we've waited on it tells
+                    // us nothing and we skip it.
+                    if (!other.hedge) {
+                        tracker.addSample(other.route.getName(),
+                            Math.max(now - other.started, other.delay));
+                    }
+                }
+            }
+        }
+        for (final Attempt loser : losers) {
+            loser.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * Called when a route closes its view of the browser channel before
+     * winning, typically because it couldn't connect to its proxy.
+     */
+    private void onFailure(final Attempt attempt) {
+        boolean waiting = false;
+        synchronized (this) {
+            if (detached || finished || winner != null || attempt.failed) {
+                return;
+            }
+            attempt.failed = true;
+            for (final Attempt other : attempts) {
+                if (!other.failed) {
+                    // Still waiting on another route.
+                    waiting = true;
+                }
+            }
+            if (!waiting) {
+                cancelHedgeTask();
+            }
+        }
+        // Closing the route's processor means it starts afresh with the
+        // next request rather than holding on to a dead channel.
+        attempt.cancel();
+        if (waiting) {
+            return;
+        }
+        log.info("Route {} failed -- trying next route",
+            attempt.route.getName());
+        if (launchNext(false) == null) {
+            browserToProxyChannel.close();
+        }
+    }
+
+    private void cancelHedgeTask() {
+        if (hedgeTask != null) {
+            hedgeTask.cancel();
+            hedgeTask = null;
+        }
+    }
+
+    /**
+     * A request sent over a single route.
+     */
+    private final class Attempt {
+
+        private final Route route;
+
+        private final RouteChannel channel = new RouteChannel(this);
+
+        private final long started = System.currentTimeMillis();
+
+        private final boolean hedge;
+
+        /**
+         * How long we wait on this route before hedging, or 0 for hedges.
+         */
+        private final long delay;
+
+        private HttpRequestProcessor processor;
+
+        private boolean cancelled;
+
+        private boolean failed;
+
+        private Attempt(final Route route, final boolean hedge) {
+            this.route = route;
+            this.hedge = hedge;
+            this.delay = hedge ? 0L : tracker.getHedgeDelay(route.getName());
+        }
+
+        private void setProcessor(final HttpRequestProcessor processor) {
+            final boolean cancel;
+            synchronized (HedgingHttpRequestProcessor.this) {
+                this.processor = processor;
+                cancel = cancelled;
+            }
+            // We may have lost while the route was still sending.
+            if (cancel) {
+                processor.close();
+            }
+        }
+
+        private void cancel() {
+            final HttpRequestProcessor rp;
+            synchronized (HedgingHttpRequestProcessor.this) {
+                cancelled = true;
+                rp = processor;
+            }
+            if (rp != null) {
+                rp.close();
+            }
+        }
+
+        private boolean isCancelled() {
+            synchronized (HedgingHttpRequestProcessor.this) {
+                return cancelled;
+            }
+        }
+
+        private boolean isWinner() {
+            synchronized (HedgingHttpRequestProcessor.this) {
+                return winner == this && !detached && !cancelled;
+            }
+        }
+    }
+
+    /**
+     * A route's view of the browser channel. Everything is passed through
+     * to the browser channel for the winning route. For other routes writes
+     * and closes are dropped, and reads are left alone.
+     */
+    private final class RouteChannel implements Channel {
+
+        private final Attempt attempt;
+
+        private RouteChannel(final Attempt attempt) {
+            this.attempt = attempt;
+        }
+
+        @Override
+        public ChannelFuture write(final Object message) {
+            if (message instanceof HttpResponse) {
+                if (claim(attempt)) {
+                    return browserToProxyChannel.write(message);
+                }
+                attempt.cancel();
+            } else if (attempt.isWinner()) {
+                return browserToProxyChannel.write(message);
+            }
+            return Channels.succeededFuture(this);
+        }
+
+        @Override
+        public ChannelFuture write(final Object message,
+            final SocketAddress remoteAddress) {
+            return write(message);
+        }
+
+        @Override
+        public ChannelFuture close() {
+            if (attempt.isWinner()) {
+                return browserToProxyChannel.close();
+            }
+            if (!attempt.isCancelled()) {
+                onFailure(attempt);
+            }
+            return Channels.succeededFuture(this);
+        }
+
+        @Override
+        public ChannelFuture setReadable(final boolean readable) {
+            // We never have request bodies to hold back.
+            return Channels.succeededFuture(this);
+        }
+
+        @Override
+        public ChannelFuture setInterestOps(final int interestOps) {
+            return Channels.succeededFuture(this);
+        }
+
+        @Override
+        public Integer getId() {
+            return browserToProxyChannel.getId();
+        }
+
+        @Override
+        public ChannelFactory getFactory() {
+            return browserToProxyChannel.getFactory();
+        }
+
+        @Override
+        public Channel getParent() {
+            return browserToProxyChannel.getParent();
+        }
+
+        @Override
+        public ChannelConfig getConfig() {
+            return browserToProxyChannel.getConfig();
+        }
+
+        @Override
+        public ChannelPipeline getPipeline() {
+            return browserToProxyChannel.getPipeline();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return browserToProxyChannel.isOpen();
+        }
+
+        @Override
+        public boolean isBound() {
+            return browserToProxyChannel.isBound();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return browserToProxyChannel.isConnected();
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return browserToProxyChannel.getLocalAddress();
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return browserToProxyChannel.getRemoteAddress();
+        }
+
+        @Override
+        public ChannelFuture bind(final SocketAddress localAddress) {
+            throw new UnsupportedOperationException("Cannot bind");
+        }
+
+        @Override
+        public ChannelFuture connect(final SocketAddress remoteAddress) {
+            throw new UnsupportedOperationException("Cannot connect");
+        }
+
+        @Override
+        public ChannelFuture disconnect() {
+            return close();
+        }
+
+        @Override
+        public ChannelFuture unbind() {
+            return close();
+        }
+
+        @Override
+        public ChannelFuture getCloseFuture() {
+            return browserToProxyChannel.getCloseFuture();
+        }
+
+        @Override
+        public int getInterestOps() {
+            return browserToProxyChannel.getInterestOps();
+        }
+
+        @Override
+        public boolean isReadable() {
+            return browserToProxyChannel.isReadable();
+        }
+
+        @Override
+        public boolean isWritable() {
+            return browserToProxyChannel.isWritable();
+        }
+
+        @Override
+        public int compareTo(final Channel o) {
+            return browserToProxyChannel.compareTo(o);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.lantern;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Estimates the number of distinct items seen in a fixed amount of memory,
+ * using the HyperLogLog algorithm of Flajolet et al. Each item is hashed,
+ * the first bits of the hash pick a register, and the register keeps the
+ * longest run of leading zeros seen in the rest of the hash. With 2^p
+ * registers the standard error of the estimate is about 1.04 / sqrt(2^p).
+ */
+public class HyperLogLog {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final int precision;
+
+    private final byte[] registers;
+
+    /**
+     * Creates a new estimator.
+     *
+     * @param precision The number of bits of the hash used to pick a
+     * register, between 4 and 16.
+     */
+    public HyperLogLog(final int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("Bad precision: " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Adds an item.
+     *
+     * @param item The bytes of the item.
+     */
+    public void offer(final byte[] item) {
+        offerHash(HASH.hashBytes(item).asLong());
+    }
+
+    /**
+     * Adds an item that's already been hashed.
+     *
+     * @param hash A uniformly distributed 64 bit hash of the item.
+     */
+    public synchronized void offerHash(final long hash) {
+        final int index = (int) (hash >>> (64 - precision));
+        // Mark the end of the bits we look at so the rank is bounded.
+        final long rest = (hash << precision) | (1L << (precision - 1));
+        final byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * @return The estimated number of distinct items added.
+     */
+    public synchronized long cardinality() {
+        final int m = registers.length;
+        double sum = 0.0;
+        int zeros = 0;
+        for (final byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        final double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // Linear counting is more accurate for small cardinalities.
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Forgets everything added so far.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = 0;
+        }
+    }
+
+    private static double alpha(final int m) {
+        switch (m) {
+        case 16:
+            return 0.673;
+        case 32:
+            return 0.697;
+        case 64:
+            return 0.709;
+        default:
+            return 0.7213 / (1.0 + 1.079 / m);
+        }
+    }
+}
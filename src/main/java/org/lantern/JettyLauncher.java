@@ -397,6 +397,22 @@ public class JettyLauncher {
                 json = LanternHub.config().httpsEverywhere();
             } else if (stripped.startsWith("/stats")) {
                 json = LanternHub.statsTracker().toJson();
+            } else if (stripped.startsWith("/history")) {
+                final long now = System.currentTimeMillis();
+                final long to = longParam(request, "to", now);
+                final long from = longParam(request, "from", to - 5 * 60 * 1000);
+                json = LanternHub.statsTracker().historyJson(from, to, 
+                    longParam(request, "resolution", 0L));
+            } else if (stripped.startsWith("/domains")) {
+                final String domain = request.getParameter("domain");
+                if (StringUtils.isBlank(domain)) {
+                    json = LanternHub.domainTraffic().toJson().toJSONString();
+                } else {
+                    json = LanternHub.domainTraffic().toJson(domain)
+                        .toJSONString();
+                }
+            } else if (stripped.startsWith("/latency")) {
+                json = LanternHub.latencyTracker().toJson().toJSONString();
             } else if (stripped.startsWith("/oni")) {
                 json = LanternHub.statsTracker().oniJson();
             } else if (stripped.startsWith("/country/")) {
@@ -443,6 +459,20 @@ public class JettyLauncher {
 
     }
 
+    private long longParam(final HttpServletRequest request, 
+        final String name, final long defaultValue) {
+        final String value = request.getParameter(name);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (final NumberFormatException e) {
+            log.info("Bad value for {}: {}", name, value);
+            return defaultValue;
+        }
+    }
+
     private String bodyToString(final HttpServletRequest request) 
         throws IOException {
         final InputStream is = request.getInputStream();
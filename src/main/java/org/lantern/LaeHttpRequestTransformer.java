@@ -15,8 +15,6 @@ public class LaeHttpRequestTransformer implements HttpRequestTransformer {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
     
-    private static final long CHUNK_SIZE = 2000000;
-    
     @Override
     public void transform(final HttpRequest request,
         final InetSocketAddress proxyAddress) {
@@ -41,7 +39,26 @@ public class LaeHttpRequestTransformer implements HttpRequestTransformer {
             return;
         }
         
-        request.setHeader(HttpHeaders.Names.RANGE, "bytes=0-"+CHUNK_SIZE);
+        // The range sizer grows this for later ranges on fast links.
+        final long size = LanternHub.rangeSizer().getInitialSize();
+        request.setHeader(HttpHeaders.Names.RANGE, "bytes=0-"+(size - 1));
+    }
+
+    /**
+     * Points a request we've already transformed for one LAE proxy at a
+     * different LAE proxy.
+     * 
+     * @param request The transformed request.
+     * @param proxyAddress The address of the new proxy.
+     */
+    public static void retarget(final HttpRequest request, 
+        final InetSocketAddress proxyAddress) {
+        final String uri = request.getUri();
+        final String hostAndPath = StringUtils.substringAfter(uri, "://");
+        final String path = StringUtils.substringAfter(hostAndPath, "/");
+        final String host = proxyAddress.getHostName();
+        request.setHeader("Host", host);
+        request.setUri("https://" + host + "/" + path);
     }
 
 }
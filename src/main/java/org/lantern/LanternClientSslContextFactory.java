@@ -1,34 +1,122 @@
 package org.lantern;
 
+import java.net.InetSocketAddress;
 import java.security.Security;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
 
 import org.littleshoot.proxy.KeyStoreManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Factory for the client side SSL context used for connections to Lantern
+ * proxies and peers. A single instance of this is shared through
+ * {@link LanternHub} so that all connections share one SSL session cache
+ * and can use abbreviated handshakes when reconnecting. The context is
+ * rebuilt whenever the trust store changes.
+ */
 public class LanternClientSslContextFactory {
 
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
     private static final String PROTOCOL = "TLS";
-    private final SSLContext CLIENT_CONTEXT;
-    
+
+    private final KeyStoreManager ksm;
+
+    private final int sessionCacheSize;
+
+    private final int sessionTimeout;
+
+    private volatile SSLContext clientContext;
+
+    private volatile int trustStoreVersion;
+
     public LanternClientSslContextFactory(final KeyStoreManager ksm) {
+        this(ksm, LanternConstants.SSL_SESSION_CACHE_SIZE,
+            LanternConstants.SSL_SESSION_TIMEOUT);
+    }
+
+    /**
+     * Creates a new factory.
+     *
+     * @param ksm The key store manager with our trust managers.
+     * @param sessionCacheSize The maximum number of SSL sessions to cache.
+     * @param sessionTimeout The time in seconds cached sessions are valid.
+     */
+    public LanternClientSslContextFactory(final KeyStoreManager ksm,
+        final int sessionCacheSize, final int sessionTimeout) {
+        this.ksm = ksm;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeout = sessionTimeout;
+        this.trustStoreVersion = currentTrustStoreVersion();
+        this.clientContext = newClientContext();
+    }
+
+    private SSLContext newClientContext() {
         String algorithm = Security.getProperty("ssl.KeyManagerFactory.algorithm");
         if (algorithm == null) {
             algorithm = "SunX509";
         }
 
-        SSLContext clientContext = null;
+        final SSLContext context;
         try {
-            clientContext = SSLContext.getInstance(PROTOCOL);
-            clientContext.init(null, ksm.getTrustManagers(), null);
+            context = SSLContext.getInstance(PROTOCOL);
+            context.init(null, ksm.getTrustManagers(), null);
         } catch (final Exception e) {
             throw new Error(
                     "Failed to initialize the client-side SSLContext", e);
         }
-        CLIENT_CONTEXT = clientContext;
+        final SSLSessionContext sessions = context.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeout);
+        }
+        return context;
     }
 
+    private int currentTrustStoreVersion() {
+        if (ksm instanceof LanternKeyStoreManager) {
+            return ((LanternKeyStoreManager) ksm).getTrustStoreVersion();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the current client context, rebuilding it first if the trust
+     * store has changed since it was created.
+     *
+     * @return The client context.
+     */
     public SSLContext getClientContext() {
-        return CLIENT_CONTEXT;
+        final int version = currentTrustStoreVersion();
+        if (version != trustStoreVersion) {
+            synchronized (this) {
+                if (version != trustStoreVersion) {
+                    log.info("Trust store changed -- rebuilding SSL context");
+                    clientContext = newClientContext();
+                    trustStoreVersion = version;
+                }
+            }
+        }
+        return clientContext;
+    }
+
+    /**
+     * Creates a new client mode engine for the specified remote host. We
+     * always pass the host and port when creating engines because the SSL
+     * session cache is keyed on them -- without them sessions are never
+     * resumed.
+     *
+     * @param remoteAddress The address of the remote host.
+     * @return The new engine.
+     */
+    public SSLEngine newEngine(final InetSocketAddress remoteAddress) {
+        final SSLEngine engine = getClientContext().createSSLEngine(
+            remoteAddress.getHostName(), remoteAddress.getPort());
+        engine.setUseClientMode(true);
+        return engine;
     }
 }
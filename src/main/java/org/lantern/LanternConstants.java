@@ -93,7 +93,243 @@ public class LanternConstants {
 
     public static final String START_AT_LOGIN = "startAtLogin";
 
+    /**
+     * The number of idle, already handshaked channels we try to keep open to
+     * each cloud proxy.
+     */
+    public static final int PROXY_POOL_MIN_IDLE = 2;
+    
+    /**
+     * The maximum number of channels we open to each cloud proxy, whether
+     * connecting, idle or in use. Each browser connection we proxy holds
+     * one, so this matches the number of connections browsers open to a 
+     * single proxy.
+     */
+    public static final int PROXY_POOL_MAX_TOTAL = 32;
+    
+    /**
+     * How long we keep idle channels to cloud proxies open, in milliseconds.
+     * This is a little shorter than the typical server-side idle timeout.
+     */
+    public static final long PROXY_POOL_IDLE_TIMEOUT = 50 * 1000;
+    
+    /**
+     * How often we check idle channels to cloud proxies, in milliseconds.
+     */
+    public static final long PROXY_POOL_HEALTH_CHECK_INTERVAL = 10 * 1000;
+
+    /**
+     * How long in milliseconds we stop using a proxy after it first fails.
+     * This doubles with each further consecutive failure.
+     */
+    public static final long PROXY_QUARANTINE_BASE = 5 * 1000;
+    
+    /**
+     * The longest we ever stop using a failing proxy, in milliseconds.
+     */
+    public static final long PROXY_QUARANTINE_MAX = 5 * 60 * 1000;
+
+    /**
+     * The maximum number of channels we use at once to fetch the ranges of
+     * a single large download through LAE.
+     */
+    public static final int RANGE_CONNECTIONS = 4;
+    
+    /**
+     * The maximum number of bytes of a single ranged download we hold in
+     * memory or have requested but not yet received.
+     */
+    public static final long RANGE_BUFFER_LIMIT = 16 * 1024 * 1024;
+
+    /**
+     * The smallest range we request for downloads through LAE.
+     */
+    public static final long RANGE_SIZE_MIN = 64 * 1024;
+    
+    /**
+     * The largest range we request for downloads through LAE. This has to
+     * stay well within the App Engine limit on response sizes.
+     */
+    public static final long RANGE_SIZE_MAX = 8 * 1024 * 1024;
+    
+    /**
+     * The size of the first range of a download through LAE before we've
+     * measured anything.
+     */
+    public static final long RANGE_SIZE_INITIAL = 512 * 1024;
+
+    /**
+     * How long in milliseconds we wait for response headers before hedging
+     * a request on another route when we don't know the 95th percentile
+     * response time of the route yet.
+     */
+    public static final long HEDGE_DEFAULT_DELAY = 1000;
+    
+    /**
+     * The shortest time in milliseconds we'll wait before hedging.
+     */
+    public static final long HEDGE_MIN_DELAY = 100;
+    
+    /**
+     * The longest time in milliseconds we'll wait before hedging.
+     */
+    public static final long HEDGE_MAX_DELAY = 5 * 1000;
+
+    /**
+     * The fewest established sockets we keep ready for each peer.
+     */
+    public static final int PEER_POOL_MIN = 1;
+    
+    /**
+     * The most established sockets we keep ready for each peer, however
+     * busy it is.
+     */
+    public static final int PEER_POOL_MAX = 8;
+    
+    /**
+     * How long in milliseconds an unused peer socket stays in the pool
+     * before we close it.
+     */
+    public static final long PEER_SOCKET_IDLE_TIMEOUT = 2 * 60 * 1000;
+    
+    /**
+     * How often in milliseconds we check idle peer sockets and refill
+     * peer pools.
+     */
+    public static final long PEER_POOL_CHECK_INTERVAL = 30 * 1000;
+    
+    /**
+     * How long in milliseconds we wait before dialing a peer again after
+     * it first fails. This doubles with each further consecutive failure.
+     */
+    public static final long PEER_BACKOFF_BASE = 5 * 1000;
+    
+    /**
+     * The longest we ever wait before dialing a failing peer again, in
+     * milliseconds.
+     */
+    public static final long PEER_BACKOFF_MAX = 10 * 60 * 1000;
+
+    /**
+     * The fraction of peer requests we send to a random peer rather than
+     * the best one, so that our measurements of other peers stay current.
+     */
+    public static final double PEER_EXPLORATION = 0.1;
+    
+    /**
+     * How long in milliseconds before we stop trusting a peer's score and
+     * measure it again.
+     */
+    public static final long PEER_SCORE_STALE = 10 * 60 * 1000;
+    
+    /**
+     * The size of the buffers we read peer sockets into.
+     */
+    public static final int PEER_READ_BUFFER_SIZE = 16 * 1024;
+    
+    /**
+     * The most peer read buffers we keep around for reuse.
+     */
+    public static final int PEER_READ_BUFFERS = 256;
+    
+    /**
+     * The most peer sockets we read at once. Each one takes a thread, so
+     * past this we close new peer sockets instead.
+     */
+    public static final int PEER_READER_THREADS = 256;
+
+    /**
+     * The maximum number of relayed bytes we hold in write buffers across
+     * all connections before we stop reading from the other ends.
+     */
+    public static final long RELAY_BUFFER_LIMIT = 32 * 1024 * 1024;
+
+    /**
+     * The number of addresses we remember the country of so we don't have
+     * to look them up again when we record their traffic.
+     */
+    public static final int GEOIP_CACHE_SIZE = 4096;
+
+    /**
+     * The precision of our estimates of the number of users from each
+     * country. We keep 2 to the power of this many bytes per country, and
+     * the estimates are typically within 1.04 / sqrt(2^precision).
+     */
+    public static final int COUNTRY_USERS_PRECISION = 10;
+
+    /**
+     * The number of the most active addresses we report for each country.
+     */
+    public static final int COUNTRY_TOP_ADDRESSES = 10;
+
+    /**
+     * The number of rows in the sketches we count the traffic to each
+     * domain in.
+     */
+    public static final int DOMAIN_SKETCH_DEPTH = 4;
+
+    /**
+     * The number of counters in each row of the sketches we count the
+     * traffic to each domain in.
+     */
+    public static final int DOMAIN_SKETCH_WIDTH = 2048;
+
+    /**
+     * The number of domains with the most traffic we report for each way
+     * we handle requests.
+     */
+    public static final int TOP_DOMAINS = 20;
+
+    /**
+     * The number of hosts we remember the registrable domain of.
+     */
+    public static final int DOMAIN_CACHE_SIZE = 1024;
+
+    /**
+     * The port the stats server listens on, on localhost only.
+     */
+    public static final int STATS_SERVER_PORT = 7878;
+
+    /**
+     * How often in milliseconds the stats server refreshes its serialized
+     * stats and metrics while anyone is asking for them.
+     */
+    public static final long STATS_SNAPSHOT_INTERVAL = 5 * 1000;
+
+    /**
+     * How often in milliseconds we check the HTTPS Everywhere rules 
+     * directory for changes.
+     */
+    public static final long HTTPS_RULES_CHECK_INTERVAL = 30 * 1000;
+
+    /**
+     * The maximum number of hosts we cache routing decisions for.
+     */
+    public static final int ROUTING_CACHE_SIZE = 4096;
+
+    /**
+     * How long in milliseconds we cache the routing decision for a host.
+     */
+    public static final long ROUTING_CACHE_TTL = 60 * 1000;
+
+    /**
+     * The maximum number of SSL sessions our shared client context caches
+     * for resumption.
+     */
+    public static final int SSL_SESSION_CACHE_SIZE = 512;
+    
+    /**
+     * How long cached client SSL sessions are valid, in seconds.
+     */
+    public static final int SSL_SESSION_TIMEOUT = 8 * 60 * 60;
+
     public static final File DEFAULT_SETTINGS_FILE = 
         new File(LanternUtils.configDir(), "settings.json");
 
+    /**
+     * The directory we keep the history of our traffic in.
+     */
+    public static final File TRAFFIC_HISTORY_DIR = 
+        new File(LanternUtils.configDir(), "history");
+
 }
@@ -36,6 +36,8 @@ public class LanternHttpResponseEncoder extends ProxyHttpResponseEncoder {
             // This is called when we just pass unproxied requests over to
             // LittleProxy.
             this.statsTracker.addDirectBytes(bytes);
+            LanternHub.domainTraffic().addBytes(DomainTraffic.Route.DIRECT, 
+                channel, bytes);
         } else {
             // If it's *not* a ProxyHttpResponse, that means it's something
             // we didn't simply pass to LittleProxy and instead proxied
@@ -46,6 +48,8 @@ public class LanternHttpResponseEncoder extends ProxyHttpResponseEncoder {
             
             // global bytes proxied statistic
             this.statsTracker.addBytesProxied(bytes, channel);
+            LanternHub.domainTraffic().addBytes(DomainTraffic.Route.PROXIED, 
+                channel, bytes);
         }
         return cb;
     }
@@ -5,13 +5,21 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Map;
 import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.SystemUtils;
@@ -49,6 +57,9 @@ public class LanternHub {
     private static final File UNZIPPED = 
         new File(LanternUtils.dataDir(), "GeoIP.dat");
     
+    private static final File GEOIP_TABLE = 
+        new File(LanternUtils.dataDir(), "GeoIP.table");
+    
     private static final AtomicReference<TrustedContactsManager> trustedContactsManager =
         new AtomicReference<TrustedContactsManager>();
     private static final AtomicReference<Display> display = 
@@ -85,6 +96,9 @@ public class LanternHub {
     private static final AtomicReference<LookupService> lookupService = 
         new AtomicReference<LookupService>();
     
+    private static final AtomicReference<GeoIpTable> geoIpTable = 
+        new AtomicReference<GeoIpTable>();
+    
     private static final AtomicReference<JettyLauncher> jettyLauncher =
         new AtomicReference<JettyLauncher>();
     
@@ -116,9 +130,65 @@ public class LanternHub {
     private static final AtomicReference<HttpsEverywhere> httpsEverywhere =
         new AtomicReference<HttpsEverywhere>();
     
+    /**
+     * Rule reloads download and parse the full rule set, so they run here
+     * rather than on the shared timer thread.
+     */
+    private static final ExecutorService httpsRulesReloader =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "HTTPS-Everywhere-Reload");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    
     private static final AtomicReference<Settings> settings = 
         new AtomicReference<Settings>();
     
+    private static final AtomicReference<SharedClientSocketChannelFactory> clientSocketChannelFactory =
+        new AtomicReference<SharedClientSocketChannelFactory>();
+    
+    private static final AtomicReference<ProxyScorer> proxyScorer =
+        new AtomicReference<ProxyScorer>();
+    
+    private static final AtomicReference<HedgeTracker> hedgeTracker =
+        new AtomicReference<HedgeTracker>();
+    
+    private static final AtomicReference<RangeSizer> rangeSizer =
+        new AtomicReference<RangeSizer>();
+    
+    private static final AtomicReference<RelayBackpressure> relayBackpressure =
+        new AtomicReference<RelayBackpressure>();
+    
+    private static final AtomicReference<PeerScorer> peerScorer =
+        new AtomicReference<PeerScorer>();
+    
+    private static final AtomicReference<PeerTransport> peerTransport =
+        new AtomicReference<PeerTransport>();
+    
+    private static final AtomicReference<TrafficHistory> trafficHistory =
+        new AtomicReference<TrafficHistory>();
+    
+    private static final AtomicReference<DomainTraffic> domainTraffic =
+        new AtomicReference<DomainTraffic>();
+    
+    private static final AtomicReference<LatencyTracker> latencyTracker =
+        new AtomicReference<LatencyTracker>();
+    
+    private static final AtomicReference<RoutingCache> routingCache =
+        new AtomicReference<RoutingCache>();
+    
+    private static final AtomicReference<LanternClientSslContextFactory> clientSslContextFactory =
+        new AtomicReference<LanternClientSslContextFactory>();
+    
+    private static final AtomicReference<ProxyConnectionPool> proxyConnectionPool =
+        new AtomicReference<ProxyConnectionPool>();
+    
+    private static final AtomicReference<ProxyConnectionPool> laeConnectionPool =
+        new AtomicReference<ProxyConnectionPool>();
+    
     private static final Configurator configurator = new Configurator();
     
     static {
@@ -143,6 +213,17 @@ public class LanternHub {
             }
             
         }, "Write-Settings-Thread"));
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final SharedClientSocketChannelFactory factory = 
+                    clientSocketChannelFactory.get();
+                if (factory != null) {
+                    factory.stop();
+                }
+            }
+        }, "Stop-Client-Transport-Thread"));
     }
     
     public static LookupService getGeoIpLookup() {
@@ -154,6 +235,47 @@ public class LanternHub {
         }
     }
     
+    /**
+     * Accessor for the table we look up the countries of addresses in. 
+     * This is much cheaper to look up addresses in than the lookup service,
+     * particularly from many threads at once. We look up the country of
+     * every connection, so once the table is loaded this doesn't lock.
+     * 
+     * @return The GeoIP table, which is empty if we couldn't load it.
+     */
+    public static GeoIpTable geoIpTable() {
+        final GeoIpTable table = geoIpTable.get();
+        if (table != null) {
+            return table;
+        }
+        synchronized (geoIpTable) {
+            if (geoIpTable.get() == null) {
+                geoIpTable.set(buildGeoIpTable());
+            }
+            return geoIpTable.get();
+        }
+    }
+    
+    private static GeoIpTable buildGeoIpTable() {
+        final File gz = new File("GeoIP.dat.gz");
+        if (!GEOIP_TABLE.isFile() || 
+            GEOIP_TABLE.lastModified() < gz.lastModified()) {
+            try {
+                GeoIpTable.build(getGeoIpLookup(), GEOIP_TABLE);
+            } catch (final IOException e) {
+                LOG.error("Could not build GeoIP table?", e);
+            }
+        }
+        try {
+            return new GeoIpTable(GEOIP_TABLE);
+        } catch (final IOException e) {
+            LOG.error("Could not load GeoIP table?", e);
+        }
+        // Every address is in an unknown country rather than every caller
+        // having to check for this.
+        return GeoIpTable.empty();
+    }
+    
     private static LookupService buildLookupService() {
         if (!UNZIPPED.isFile())  {
             final File file = new File("GeoIP.dat.gz");
@@ -231,6 +353,244 @@ public class LanternHub {
         }
     }
 
+    /**
+     * Accessor for the single client transport all outbound connections
+     * should use.
+     * 
+     * @return The shared client socket channel factory.
+     */
+    public static SharedClientSocketChannelFactory clientSocketChannelFactory() {
+        synchronized (clientSocketChannelFactory) {
+            if (clientSocketChannelFactory.get() == null) {
+                clientSocketChannelFactory.set(
+                    new SharedClientSocketChannelFactory());
+            }
+            return clientSocketChannelFactory.get();
+        }
+    }
+
+    /**
+     * Accessor for the scorer tracking the health and speed of our cloud
+     * proxies.
+     * 
+     * @return The proxy scorer.
+     */
+    public static ProxyScorer proxyScorer() {
+        synchronized (proxyScorer) {
+            if (proxyScorer.get() == null) {
+                proxyScorer.set(new ProxyScorer());
+            }
+            return proxyScorer.get();
+        }
+    }
+    
+    /**
+     * Accessor for the tracker of route response times and hedged requests.
+     * 
+     * @return The hedge tracker.
+     */
+    public static HedgeTracker hedgeTracker() {
+        synchronized (hedgeTracker) {
+            if (hedgeTracker.get() == null) {
+                hedgeTracker.set(new HedgeTracker());
+            }
+            return hedgeTracker.get();
+        }
+    }
+    
+    /**
+     * Accessor for the sizer choosing range sizes for LAE downloads.
+     * 
+     * @return The range sizer.
+     */
+    public static RangeSizer rangeSizer() {
+        synchronized (rangeSizer) {
+            if (rangeSizer.get() == null) {
+                rangeSizer.set(new RangeSizer());
+            }
+            return rangeSizer.get();
+        }
+    }
+    
+    /**
+     * Accessor for the backpressure shared by all relayed connections.
+     * 
+     * @return The relay backpressure.
+     */
+    public static RelayBackpressure relayBackpressure() {
+        synchronized (relayBackpressure) {
+            if (relayBackpressure.get() == null) {
+                relayBackpressure.set(new RelayBackpressure());
+            }
+            return relayBackpressure.get();
+        }
+    }
+    
+    /**
+     * Accessor for the scorer that picks which peers to send requests to.
+     * 
+     * @return The peer scorer.
+     */
+    public static PeerScorer peerScorer() {
+        synchronized (peerScorer) {
+            if (peerScorer.get() == null) {
+                peerScorer.set(new PeerScorer());
+            }
+            return peerScorer.get();
+        }
+    }
+    
+    /**
+     * Accessor for the stored history of our traffic and peer counts.
+     * 
+     * @return The traffic history.
+     */
+    public static TrafficHistory trafficHistory() {
+        synchronized (trafficHistory) {
+            if (trafficHistory.get() == null) {
+                trafficHistory.set(new TrafficHistory());
+            }
+            return trafficHistory.get();
+        }
+    }
+    
+    /**
+     * Accessor for the traffic we've seen to each domain.
+     * 
+     * @return The domain traffic.
+     */
+    public static DomainTraffic domainTraffic() {
+        synchronized (domainTraffic) {
+            if (domainTraffic.get() == null) {
+                domainTraffic.set(new DomainTraffic());
+            }
+            return domainTraffic.get();
+        }
+    }
+    
+    /**
+     * Accessor for the latencies of the requests we send.
+     * 
+     * @return The latency tracker.
+     */
+    public static LatencyTracker latencyTracker() {
+        synchronized (latencyTracker) {
+            if (latencyTracker.get() == null) {
+                latencyTracker.set(new LatencyTracker());
+            }
+            return latencyTracker.get();
+        }
+    }
+    
+    /**
+     * Accessor for the cached routing decisions for each host.
+     * 
+     * @return The routing cache.
+     */
+    public static RoutingCache routingCache() {
+        synchronized (routingCache) {
+            if (routingCache.get() == null) {
+                routingCache.set(new RoutingCache(
+                    LanternConstants.ROUTING_CACHE_SIZE, 
+                    LanternConstants.ROUTING_CACHE_TTL));
+            }
+            return routingCache.get();
+        }
+    }
+    
+    /**
+     * Accessor for the threads and buffers shared by all peer sockets.
+     * 
+     * @return The peer transport.
+     */
+    public static PeerTransport peerTransport() {
+        synchronized (peerTransport) {
+            if (peerTransport.get() == null) {
+                peerTransport.set(new PeerTransport());
+            }
+            return peerTransport.get();
+        }
+    }
+    
+    /**
+     * Accessor for the client SSL context factory shared by all connections
+     * to Lantern proxies and peers, allowing SSL session resumption.
+     * 
+     * @return The shared client SSL context factory.
+     */
+    public static LanternClientSslContextFactory clientSslContextFactory() {
+        synchronized (clientSslContextFactory) {
+            if (clientSslContextFactory.get() == null) {
+                clientSslContextFactory.set(
+                    new LanternClientSslContextFactory(getKeyStoreManager()));
+            }
+            return clientSslContextFactory.get();
+        }
+    }
+    
+    /**
+     * Accessor for the pool of pre-handshaked channels to our standard cloud
+     * proxies.
+     * 
+     * @return The pool.
+     */
+    public static ProxyConnectionPool proxyConnectionPool() {
+        synchronized (proxyConnectionPool) {
+            if (proxyConnectionPool.get() == null) {
+                proxyConnectionPool.set(new ProxyConnectionPool("Proxy",
+                    LatencyTracker.Route.PROXY,
+                    new ProxyConnectionPool.SslEngineSource() {
+                        @Override
+                        public SSLEngine newEngine(
+                            final InetSocketAddress proxyAddress) {
+                            return clientSslContextFactory().newEngine(
+                                proxyAddress);
+                        }
+                    }, LanternConstants.PROXY_POOL_MIN_IDLE, 
+                    LanternConstants.PROXY_POOL_MAX_TOTAL,
+                    LanternConstants.PROXY_POOL_IDLE_TIMEOUT,
+                    LanternConstants.PROXY_POOL_HEALTH_CHECK_INTERVAL));
+            }
+            return proxyConnectionPool.get();
+        }
+    }
+    
+    /**
+     * Accessor for the pool of pre-handshaked channels to our App Engine
+     * proxies.
+     * 
+     * @return The pool.
+     */
+    public static ProxyConnectionPool laeConnectionPool() {
+        synchronized (laeConnectionPool) {
+            if (laeConnectionPool.get() == null) {
+                laeConnectionPool.set(new ProxyConnectionPool("LAE",
+                    LatencyTracker.Route.LAE,
+                    new ProxyConnectionPool.SslEngineSource() {
+                        @Override
+                        public SSLEngine newEngine(
+                            final InetSocketAddress proxyAddress) {
+                            // TODO: Pre-ship with approved certs.
+                            try {
+                                // Passing the host and port allows the
+                                // default context to resume sessions.
+                                return SSLContext.getDefault().createSSLEngine(
+                                    proxyAddress.getHostName(), 
+                                    proxyAddress.getPort());
+                            } catch (final NoSuchAlgorithmException e) {
+                                LOG.error("Could not create default SSL context", e);
+                                throw new IllegalArgumentException("No algo?", e);
+                            }
+                        }
+                    }, LanternConstants.PROXY_POOL_MIN_IDLE, 
+                    LanternConstants.PROXY_POOL_MAX_TOTAL,
+                    LanternConstants.PROXY_POOL_IDLE_TIMEOUT,
+                    LanternConstants.PROXY_POOL_HEALTH_CHECK_INTERVAL));
+            }
+            return laeConnectionPool.get();
+        }
+    }
+
     public static LanternKeyStoreManager getKeyStoreManager() {
         synchronized (proxyKeyStore) {
             if (proxyKeyStore.get() == null) {
@@ -506,7 +866,29 @@ public class LanternHub {
     public static HttpsEverywhere httpsEverywhere() {
         synchronized (httpsEverywhere) {
             if (httpsEverywhere.get() == null) {
-                httpsEverywhere.set(new HttpsEverywhere());
+                final HttpsEverywhere https = new HttpsEverywhere();
+                final Runnable reload = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            https.checkForUpdates();
+                        } catch (final RuntimeException e) {
+                            LOG.error("Could not reload HTTPS rules", e);
+                        }
+                    }
+                };
+                timer().schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            httpsRulesReloader.execute(reload);
+                        } catch (final RuntimeException e) {
+                            LOG.error("Could not schedule HTTPS rules reload", e);
+                        }
+                    }
+                }, LanternConstants.HTTPS_RULES_CHECK_INTERVAL, 
+                    LanternConstants.HTTPS_RULES_CHECK_INTERVAL);
+                httpsEverywhere.set(https);
             }
             return httpsEverywhere.get();
         }
@@ -6,6 +6,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.TrustManager;
 
@@ -36,6 +37,12 @@ public class LanternKeyStoreManager implements KeyStoreManager {
     private final TrustManager[] trustManagers;
 
     private final LanternTrustManager lanternTrustManager;
+    
+    /**
+     * Incremented whenever we add a cert to the trust store so that cached
+     * SSL contexts know to rebuild.
+     */
+    private final AtomicInteger trustStoreVersion = new AtomicInteger(0);
 
     public LanternKeyStoreManager() {
         this(null);
@@ -213,6 +220,16 @@ public class LanternKeyStoreManager implements KeyStoreManager {
     public void addBase64Cert(final String macAddress, final String base64Cert) 
         throws IOException {
         this.lanternTrustManager.addBase64Cert(macAddress, base64Cert);
+        trustStoreVersion.incrementAndGet();
+    }
+    
+    /**
+     * Returns a number that changes whenever the trust store changes.
+     * 
+     * @return The current version of the trust store.
+     */
+    public int getTrustStoreVersion() {
+        return trustStoreVersion.get();
     }
 
     public TrustManager[] getTrustManagers() {
@@ -38,7 +38,6 @@ import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
@@ -62,13 +61,12 @@ import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.ObjectWriter;
 import org.codehaus.jackson.map.SerializationConfig.Feature;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMessage;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -141,12 +139,6 @@ public class LanternUtils {
         } 
     }
     
-    public static final ClientSocketChannelFactory clientSocketChannelFactory =
-        new NioClientSocketChannelFactory(
-            Executors.newCachedThreadPool(),
-            Executors.newCachedThreadPool());
-    
-    
     /**
      * Helper method that ensures all written requests are properly recorded.
      * 
@@ -159,10 +151,31 @@ public class LanternUtils {
         LanternUtils.genericWrite(request, cf);
     }
     
+    /**
+     * Makes a copy of the specified request that can be modified and sent
+     * independently of the original.
+     * 
+     * @param original The request to copy.
+     * @return The copy.
+     */
+    public static HttpRequest copyRequest(final HttpRequest original) {
+        final HttpRequest copy = new DefaultHttpRequest(
+            original.getProtocolVersion(), original.getMethod(),
+            original.getUri());
+        for (final Entry<String, String> header : original.getHeaders()) {
+            copy.addHeader(header.getKey(), header.getValue());
+        }
+        copy.setChunked(original.isChunked());
+        copy.setContent(original.getContent().duplicate());
+        return copy;
+    }
+    
     public static void genericWrite(final Object message, 
         final ChannelFuture future) {
         final Channel ch = future.getChannel();
-        if (ch.isConnected()) {
+        // Note the future may be for more than the connection itself, such
+        // as for a pooled channel that's completed its SSL handshake.
+        if (future.isSuccess()) {
             ch.write(message);
         } else {
             future.addListener(new ChannelFutureListener() {
@@ -243,22 +256,44 @@ public class LanternUtils {
     
     public static void startReading(final Socket sock, final Channel channel, 
         final boolean recordStats) {
+        startReading(sock, channel, recordStats, null);
+    }
+    
+    /**
+     * Relays everything read from the socket to the channel on a peer 
+     * transport thread.
+     * 
+     * @param sock The socket to read from.
+     * @param channel The channel to write to.
+     * @param recordStats Whether or not to record the bytes in our stats.
+     * @param transfer The measurement to report the first response bytes
+     * to, or <code>null</code>. Tunnels can sit idle for any length of time
+     * so we only use them to measure time to first byte and errors, not
+     * throughput.
+     */
+    public static void startReading(final Socket sock, final Channel channel, 
+        final boolean recordStats, final PeerScorer.Transfer transfer) {
+        final PeerTransport transport = LanternHub.peerTransport();
         final Runnable runner = new Runnable() {
             @Override
             public void run() {
-                final byte[] buffer = new byte[4096];
+                final byte[] buffer = transport.acquire();
+                final ChannelBufferFactory factory = 
+                    channel.getConfig().getBufferFactory();
                 long count = 0;
-                int n = 0;
                 try {
                     final InputStream is = sock.getInputStream();
-                    while (-1 != (n = is.read(buffer))) {
-                        //LOG.info("Writing response data: {}", new String(buffer, 0, n));
-                        // We need to make a copy of the buffer here because
-                        // the writes are asynchronous, so the bytes can
-                        // otherwise get scrambled.
-                        final ChannelBuffer buf =
-                            ChannelBuffers.copiedBuffer(buffer, 0, n);
-                        channel.write(buf);
+                    ChannelBuffer buf;
+                    while (null != (buf = transport.read(is, buffer, factory))) {
+                        // The transport copies what it read out of the 
+                        // pooled buffer because the writes are asynchronous.
+                        final int n = buf.readableBytes();
+                        if (transfer != null) {
+                            transfer.onBytes(n);
+                            transfer.onComplete();
+                        }
+                        LanternHub.relayBackpressure().relayBlocking(
+                            channel, buf);
                         if (recordStats) {
                             StatsTracker tracker = LanternHub.statsTracker();
                             tracker.addBytesProxied(n, sock);
@@ -268,9 +303,15 @@ public class LanternUtils {
                         
                     }
                     ProxyUtils.closeOnFlush(channel);
+                    if (transfer != null) {
+                        transfer.onClosed();
+                    }
 
                 } catch (final IOException e) {
                     LOG.info("Exception relaying peer data back to browser",e);
+                    if (transfer != null) {
+                        transfer.onError();
+                    }
                     ProxyUtils.closeOnFlush(channel);
                     
                     // The other side probably just closed the connection!!
@@ -278,13 +319,19 @@ public class LanternUtils {
                     //channel.close();
                     //proxyStatusListener.onError(peerUri);
                     
+                } finally {
+                    transport.release(buffer);
                 }
             }
         };
-        final Thread peerReadingThread = 
-            new Thread(runner, "Peer-Data-Reading-Thread");
-        peerReadingThread.setDaemon(true);
-        peerReadingThread.start();
+        if (!transport.execute(runner)) {
+            LOG.warn("Too many peer sockets to read -- closing");
+            IOUtils.closeQuietly(sock);
+            if (transfer != null) {
+                transfer.onError();
+            }
+            ProxyUtils.closeOnFlush(channel);
+        }
     }
     
     public static String getMacAddress() {
@@ -0,0 +1,116 @@
+package org.lantern;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+/**
+ * Handler for channels we send requests on that records time to first byte
+ * and total time of each request with the {@link LatencyTracker}. As with
+ * the {@link ProxyScoringHandler}, each write after we've started receiving
+ * a response is treated as a new request, and the response is over when
+ * the next request starts or the channel closes. For CONNECT tunnels we
+ * only time the first byte, as the tunnel lasts as long as the browser
+ * keeps it open.
+ *
+ * If the handler is in the pipeline when the channel opens, it also records
+ * how long the channel took to connect.
+ */
+public class LatencyHandler extends SimpleChannelHandler {
+
+    private final LatencyTracker.Route route;
+
+    private final boolean tunnel;
+
+    private final LatencyTracker tracker;
+
+    private long opened;
+
+    private long requestSent;
+
+    private long firstByte;
+
+    private long lastByte;
+
+    /**
+     * Creates a new handler.
+     *
+     * @param route The route of the requests on the channel.
+     * @param tunnel Whether or not the channel carries a CONNECT tunnel.
+     */
+    public LatencyHandler(final LatencyTracker.Route route,
+        final boolean tunnel) {
+        this.route = route;
+        this.tunnel = tunnel;
+        this.tracker = LanternHub.latencyTracker();
+    }
+
+    @Override
+    public void channelOpen(final ChannelHandlerContext ctx,
+        final ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            opened = System.nanoTime();
+        }
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void channelConnected(final ChannelHandlerContext ctx,
+        final ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            if (opened != 0L) {
+                tracker.record(route, LatencyTracker.Phase.CONNECT,
+                    System.nanoTime() - opened);
+            }
+        }
+        super.channelConnected(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+        final MessageEvent e) throws Exception {
+        synchronized (this) {
+            if (requestSent == 0L || (firstByte != 0L && !tunnel)) {
+                recordTotal();
+                requestSent = System.nanoTime();
+                firstByte = 0L;
+            }
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+        final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            final long now = System.nanoTime();
+            synchronized (this) {
+                if (requestSent != 0L && firstByte == 0L) {
+                    firstByte = now;
+                    tracker.record(route, LatencyTracker.Phase.TTFB,
+                        now - requestSent);
+                }
+                lastByte = now;
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx,
+        final ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            recordTotal();
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    private void recordTotal() {
+        if (firstByte != 0L && !tunnel) {
+            tracker.record(route, LatencyTracker.Phase.TOTAL,
+                lastByte - requestSent);
+        }
+    }
+}
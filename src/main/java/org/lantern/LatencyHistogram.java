@@ -0,0 +1,178 @@
+package org.lantern;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with log-linear buckets, in the
+ * style of HdrHistogram. Each power of two is split into 16 equal buckets,
+ * so any value we report is within about 6% of a value that was recorded,
+ * from a microsecond up to several hours, in a few hundred counters.
+ *
+ * Recording just increments atomic counters, so any number of threads can
+ * record at once without locking. Percentiles read while others are
+ * recording may be off by the values recorded meanwhile.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of each value we keep below its highest bit.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The highest bit of the largest value we distinguish, which is
+     * about 19 hours in microseconds. Anything larger goes in the top
+     * bucket.
+     */
+    private static final int MAX_BIT = 35;
+
+    private static final long MAX_VALUE = (1L << (MAX_BIT + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(
+        (MAX_BIT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong(0L);
+
+    private final AtomicLong sum = new AtomicLong(0L);
+
+    private final AtomicLong max = new AtomicLong(0L);
+
+    /**
+     * Records a latency.
+     *
+     * @param micros The latency in microseconds.
+     */
+    public void record(final long micros) {
+        final long value = Math.min(Math.max(micros, 0L), MAX_VALUE);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the latency that the specified fraction of recorded latencies
+     * are no larger than, for example 0.99 for the 99th percentile.
+     *
+     * @param fraction The fraction, between 0 and 1.
+     * @return The latency in microseconds, or 0 if we haven't recorded
+     * any.
+     */
+    public long percentile(final double fraction) {
+        final long total = count.get();
+        if (total == 0L) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(fraction * total));
+        long seen = 0L;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                // The top of the bucket, but never more than we've seen.
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Counts the recorded latencies below each of the specified bounds in
+     * a single pass, so the counts are consistent with each other. Bounds
+     * should be powers of two, or other values that start a bucket, for the
+     * counts to be exact.
+     *
+     * @param bounds The bounds in microseconds, in increasing order.
+     * @return The number of latencies below each bound, followed by the
+     * number of latencies counted in total.
+     */
+    public long[] countsBelow(final long[] bounds) {
+        final long[] below = new long[bounds.length + 1];
+        long seen = 0L;
+        int bound = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            while (bound < bounds.length && bounds[bound] <= MAX_VALUE &&
+                index(bounds[bound]) <= i) {
+                below[bound++] = seen;
+            }
+            seen += counts.get(i);
+        }
+        while (bound < bounds.length) {
+            below[bound++] = seen;
+        }
+        below[bounds.length] = seen;
+        return below;
+    }
+
+    /**
+     * @return The number of latencies recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The sum of all recorded latencies in microseconds.
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return The mean latency in microseconds.
+     */
+    public long getMean() {
+        final long total = count.get();
+        if (total == 0L) {
+            return 0L;
+        }
+        return sum.get() / total;
+    }
+
+    /**
+     * @return The largest latency recorded in microseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Forgets all recorded latencies.
+     */
+    public void clear() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0L);
+        }
+        count.set(0L);
+        sum.set(0L);
+        max.set(0L);
+    }
+
+    static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift =
+            63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS +
+            (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long highestValue(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowest =
+            (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
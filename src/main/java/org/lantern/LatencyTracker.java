@@ -0,0 +1,131 @@
+package org.lantern;
+
+import java.util.Locale;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Keeps latency histograms for each way we send requests and each phase of
+ * a request, from opening the connection to receiving the last byte of the
+ * response.
+ */
+public class LatencyTracker {
+
+    /**
+     * The ways we send requests.
+     */
+    public enum Route {
+        DIRECT,
+        TRUSTED_PEER,
+        ANONYMOUS_PEER,
+        LAE,
+        PROXY,
+    }
+
+    /**
+     * The phases of a request we time.
+     */
+    public enum Phase {
+        /**
+         * Opening the connection, including NAT traversal for peers.
+         */
+        CONNECT,
+
+        /**
+         * The TLS handshake on a connection we've opened.
+         */
+        TLS,
+
+        /**
+         * From sending the request to the first byte of the response.
+         */
+        TTFB,
+
+        /**
+         * From sending the request to the last byte of the response.
+         */
+        TOTAL,
+    }
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final String[] PERCENTILE_NAMES =
+        {"p50", "p90", "p99", "p999"};
+
+    private final LatencyHistogram[][] histograms;
+
+    public LatencyTracker() {
+        final int routes = Route.values().length;
+        final int phases = Phase.values().length;
+        this.histograms = new LatencyHistogram[routes][phases];
+        for (int r = 0; r < routes; r++) {
+            for (int p = 0; p < phases; p++) {
+                histograms[r][p] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Records the time a phase of a request took.
+     *
+     * @param route How the request was sent.
+     * @param phase The phase.
+     * @param nanos The time the phase took in nanoseconds.
+     */
+    public void record(final Route route, final Phase phase,
+        final long nanos) {
+        histograms[route.ordinal()][phase.ordinal()].record(nanos / 1000);
+    }
+
+    /**
+     * @return The histogram for a phase of requests sent on a route.
+     */
+    public LatencyHistogram getHistogram(final Route route,
+        final Phase phase) {
+        return histograms[route.ordinal()][phase.ordinal()];
+    }
+
+    /**
+     * Forgets all recorded latencies.
+     */
+    public void reset() {
+        for (final LatencyHistogram[] phases : histograms) {
+            for (final LatencyHistogram histogram : phases) {
+                histogram.clear();
+            }
+        }
+    }
+
+    /**
+     * @return The number of samples and the percentiles in milliseconds of
+     * each phase on each route.
+     */
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        for (final Route route : Route.values()) {
+            final JSONObject phases = new JSONObject();
+            for (final Phase phase : Phase.values()) {
+                phases.put(phase.name().toLowerCase(Locale.US),
+                    toJson(getHistogram(route, phase)));
+            }
+            json.put(route.name().toLowerCase(Locale.US), phases);
+        }
+        return json;
+    }
+
+    private JSONObject toJson(final LatencyHistogram histogram) {
+        final JSONObject json = new JSONObject();
+        json.put("count", histogram.getCount());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            json.put(PERCENTILE_NAMES[i],
+                toMillis(histogram.percentile(PERCENTILES[i])));
+        }
+        json.put("mean", toMillis(histogram.getMean()));
+        json.put("max", toMillis(histogram.getMax()));
+        return json;
+    }
+
+    private static double toMillis(final long micros) {
+        return micros / 1000.0;
+    }
+}
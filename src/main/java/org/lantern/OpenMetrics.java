@@ -0,0 +1,137 @@
+package org.lantern;
+
+/**
+ * Writes metrics in the OpenMetrics text format, as scraped by Prometheus
+ * and compatible collectors. Callers start each metric family with
+ * {@link #family(String, String, String)} and then add its samples.
+ *
+ * See https://github.com/OpenObservability/OpenMetrics/blob/main/specification/OpenMetrics.md
+ */
+public class OpenMetrics {
+
+    /**
+     * The content type of the format.
+     */
+    public static final String CONTENT_TYPE =
+        "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final StringBuilder sb = new StringBuilder(8192);
+
+    /**
+     * Starts a metric family.
+     *
+     * @param name The name of the family, without any suffix such as
+     * _total.
+     * @param type The type, such as counter, gauge or histogram.
+     * @param help A description of the family.
+     * @return This writer.
+     */
+    public OpenMetrics family(final String name, final String type,
+        final String help) {
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append("# HELP ").append(name).append(' ');
+        escape(help);
+        sb.append('\n');
+        return this;
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param name The name of the sample, including any suffix.
+     * @param value The value.
+     * @param labels Label names and values, alternately.
+     * @return This writer.
+     */
+    public OpenMetrics sample(final String name, final long value,
+        final String... labels) {
+        name(name, labels);
+        sb.append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param name The name of the sample, including any suffix.
+     * @param value The value.
+     * @param labels Label names and values, alternately.
+     * @return This writer.
+     */
+    public OpenMetrics sample(final String name, final double value,
+        final String... labels) {
+        name(name, labels);
+        sb.append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * Adds the samples of a latency histogram, in seconds, to a histogram
+     * family.
+     *
+     * @param name The name of the family.
+     * @param histogram The histogram.
+     * @param bounds The upper bounds of the buckets in microseconds.
+     * @param labels Label names and values, alternately.
+     * @return This writer.
+     */
+    public OpenMetrics histogram(final String name,
+        final LatencyHistogram histogram, final long[] bounds,
+        final String... labels) {
+        final long[] below = histogram.countsBelow(bounds);
+        final String[] bucketLabels = new String[labels.length + 2];
+        System.arraycopy(labels, 0, bucketLabels, 0, labels.length);
+        bucketLabels[labels.length] = "le";
+        for (int i = 0; i < bounds.length; i++) {
+            bucketLabels[labels.length + 1] = String.valueOf(bounds[i] / 1e6);
+            sample(name + "_bucket", below[i], bucketLabels);
+        }
+        bucketLabels[labels.length + 1] = "+Inf";
+        final long count = below[bounds.length];
+        sample(name + "_bucket", count, bucketLabels);
+        sample(name + "_count", count, labels);
+        sample(name + "_sum", histogram.getSum() / 1e6, labels);
+        return this;
+    }
+
+    /**
+     * @return The metrics written so far, terminated as the format
+     * requires.
+     */
+    @Override
+    public String toString() {
+        return sb.toString() + "# EOF\n";
+    }
+
+    private void name(final String name, final String... labels) {
+        sb.append(name);
+        if (labels.length > 0) {
+            sb.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(labels[i]).append("=\"");
+                escape(labels[i + 1]);
+                sb.append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+    }
+
+    private void escape(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\') {
+                sb.append("\\\\");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '"') {
+                sb.append("\\\"");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package org.lantern;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+import org.littleshoot.proxy.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads the rest of an entity in ranges over several channels at once,
+ * writing the ranges back to the browser in order. This is what lets large
+ * downloads through App Engine, which limits the size of each response,
+ * run at more than one range per round trip.
+ *
+ * The channel the first range arrived on is always used. When we have a
+ * connection pool we open additional channels to the same or other LAE
+ * proxies, each with at most one range request outstanding at a time.
+ * Ranges that arrive out of order are held in memory until the ranges
+ * before them have been written, and we only request more ranges while
+ * buffered and outstanding bytes stay under a cap.
+ *
+ * If the browser goes away we abort the download, closing every channel
+ * we opened for it, so we don't keep fetching ranges nobody will read.
+ */
+public class ParallelRangeDownloader {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Channel browserToProxyChannel;
+
+    private final Queue<HttpRequest> httpRequests;
+
+    private final HttpRequest template;
+
+    private final long fullContentLength;
+
+    private final RangeSizer.Download sizer;
+
+    private final long bufferLimit;
+
+    private final ProxyConnectionPool pool;
+
+    private final Proxy proxy;
+
+    private final RelayBackpressure backpressure;
+
+    private final Lane primary;
+
+    private final List<Lane> lanes = new ArrayList<Lane>();
+
+    /**
+     * Every additional channel we've drawn from the pool, including those
+     * still connecting, so we can close them all when we're done.
+     */
+    private final List<Channel> secondaryChannels = new ArrayList<Channel>();
+
+    private final ChannelFutureListener browserClosed =
+        new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                log.info("Browser closed -- aborting ranged download");
+                abort();
+            }
+        };
+
+    /**
+     * Pieces of the entity we've received but can't write yet, keyed by
+     * their offset.
+     */
+    private final TreeMap<Long, ChannelBuffer> pending =
+        new TreeMap<Long, ChannelBuffer>();
+
+    /**
+     * Ranges we need to fetch again because the channel fetching them
+     * closed.
+     */
+    private final Queue<long[]> retries = new LinkedList<long[]>();
+
+    private long writeOffset;
+
+    private long requestOffset;
+
+    private long bufferedBytes;
+
+    private long outstandingBytes;
+
+    private boolean done;
+
+    /**
+     * Creates a new downloader for an entity whose first range is already
+     * being received on the specified channel.
+     *
+     * @param browserToProxyChannel The channel to the browser.
+     * @param primaryChannel The channel the first range is arriving on.
+     * @param httpRequests The queue of requests on the primary channel that
+     * responses are matched against.
+     * @param template The request for the first range.
+     * @param firstRangeEnd The last byte of the first range.
+     * @param fullContentLength The length of the full entity.
+     * @param pool The pool to draw additional channels from, or
+     * <code>null</code> to only use the primary channel.
+     * @param proxy The source of proxies for additional channels.
+     */
+    public ParallelRangeDownloader(final Channel browserToProxyChannel,
+        final Channel primaryChannel, final Queue<HttpRequest> httpRequests,
+        final HttpRequest template, final long firstRangeEnd,
+        final long fullContentLength, final ProxyConnectionPool pool,
+        final Proxy proxy) {
+        this.browserToProxyChannel = browserToProxyChannel;
+        this.httpRequests = httpRequests;
+        this.template = template;
+        this.fullContentLength = fullContentLength;
+        this.sizer = LanternHub.rangeSizer().newDownload(firstRangeEnd + 1);
+        this.bufferLimit = LanternConstants.RANGE_BUFFER_LIMIT;
+        this.pool = pool;
+        this.proxy = proxy;
+        this.backpressure = LanternHub.relayBackpressure();
+        this.primary = new Lane(primaryChannel, template, true);
+        this.primary.start = 0L;
+        this.primary.end = firstRangeEnd;
+        this.primary.busy = true;
+        this.requestOffset = firstRangeEnd + 1;
+        this.outstandingBytes = firstRangeEnd + 1;
+        this.lanes.add(primary);
+    }
+
+    /**
+     * Starts opening additional channels for the remaining ranges.
+     */
+    public void start() {
+        browserToProxyChannel.getCloseFuture().addListener(browserClosed);
+        if (pool == null || requestOffset >= fullContentLength) {
+            return;
+        }
+        final long remaining = fullContentLength - requestOffset;
+        final long size = sizer.currentSize();
+        final int extra = (int) Math.min(
+            LanternConstants.RANGE_CONNECTIONS - 1,
+            (remaining + size - 1) / size);
+        for (int i = 0; i < extra; i++) {
+            openLane();
+        }
+    }
+
+    /**
+     * Called with the body of the first range, or any part of it, that
+     * arrived along with the response headers.
+     *
+     * @param content The content.
+     * @param last Whether or not this is all of the first range.
+     */
+    public void onFirstContent(final ChannelBuffer content,
+        final boolean last) {
+        onContent(primary, content, last);
+    }
+
+    /**
+     * Called with each response on the primary channel while we're
+     * downloading.
+     */
+    public void onPrimaryResponse(final HttpResponse response) {
+        onResponse(primary, response);
+    }
+
+    /**
+     * Called with each chunk on the primary channel while we're downloading.
+     */
+    public void onPrimaryChunk(final HttpChunk chunk) {
+        onContent(primary, chunk.getContent(), chunk.isLast());
+    }
+
+    /**
+     * @return Whether or not we've written the whole entity or given up.
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    private void openLane() {
+        final InetSocketAddress isa = proxy.getProxy();
+        if (isa == null) {
+            return;
+        }
+        final HttpRequest request = LanternUtils.copyRequest(template);
+        LaeHttpRequestTransformer.retarget(request, isa);
+        final ChannelFuture cf = pool.acquire(isa);
+        synchronized (this) {
+            if (done) {
+                cf.getChannel().close();
+                return;
+            }
+            secondaryChannels.add(cf.getChannel());
+        }
+        final Lane lane = new Lane(cf.getChannel(), request, false);
+        final ChannelPipeline pipeline = cf.getChannel().getPipeline();
+        pipeline.addAfter("ssl", "score", new ProxyScoringHandler(isa, false));
+        pipeline.addLast("decoder", new HttpResponseDecoder());
+        pipeline.addLast("encoder", new HttpRequestEncoder());
+        pipeline.addLast("handler", new LaneHandler(lane));
+        cf.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    log.info("Could not open range channel to {}", isa);
+                    return;
+                }
+                synchronized (ParallelRangeDownloader.this) {
+                    if (done) {
+                        future.getChannel().close();
+                        return;
+                    }
+                    lanes.add(lane);
+                }
+                dispatch();
+            }
+        });
+    }
+
+    private void onResponse(final Lane lane, final HttpResponse response) {
+        final int code = response.getStatus().getCode();
+        final String cr =
+            response.getHeader(HttpHeaders.Names.CONTENT_RANGE);
+        if (code != 206 || StringUtils.isBlank(cr) ||
+            parseRangeStart(cr) != lane.start) {
+            log.warn("Unexpected response to range request: {}",
+                response.getHeaders());
+            abort();
+            return;
+        }
+        synchronized (this) {
+            lane.headersReceived = System.currentTimeMillis();
+        }
+        final ChannelBuffer content = response.getContent();
+        // Large ranges come in as chunks after the response.
+        onContent(lane, content, !response.isChunked());
+    }
+
+    private void onContent(final Lane lane, final ChannelBuffer content,
+        final boolean last) {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            final int size = content.readableBytes();
+            if (size > 0) {
+                final long offset = lane.start + lane.received;
+                lane.received += size;
+                outstandingBytes -= size;
+                pending.put(offset, content);
+                bufferedBytes += size;
+                flush(lane);
+            }
+            if (last) {
+                final long expected = lane.end - lane.start + 1;
+                if (lane.received != expected) {
+                    log.warn("Expected {} bytes in range but got {}",
+                        expected, lane.received);
+                    abort();
+                    return;
+                }
+                lane.busy = false;
+                if (lane.sent != 0L) {
+                    sizer.onRange(expected, lane.headersReceived - lane.sent,
+                        System.currentTimeMillis() - lane.sent);
+                }
+            }
+            if (writeOffset == fullContentLength) {
+                log.info("Finished writing {} bytes", fullContentLength);
+                finish();
+                return;
+            }
+        }
+        if (last) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Writes any pieces we can to the browser in order, holding back the
+     * lane that delivered the latest piece if the browser can't keep up.
+     */
+    private void flush(final Lane lane) {
+        while (!pending.isEmpty() && pending.firstKey() == writeOffset) {
+            final Map.Entry<Long, ChannelBuffer> first =
+                pending.pollFirstEntry();
+            final ChannelBuffer buf = first.getValue();
+            final int size = buf.readableBytes();
+            backpressure.relay(lane.channel, browserToProxyChannel,
+                new DefaultHttpChunk(buf));
+            writeOffset += size;
+            bufferedBytes -= size;
+        }
+    }
+
+    /**
+     * Sends range requests on any idle channels, as long as we're under the
+     * buffer limit.
+     */
+    private void dispatch() {
+        final List<Lane> toSend = new ArrayList<Lane>();
+        synchronized (this) {
+            for (final Lane lane : lanes) {
+                if (lane.busy || done) {
+                    continue;
+                }
+                final long start;
+                final long end;
+                final long[] retry = retries.peek();
+                if (retry != null) {
+                    start = retry[0];
+                    end = retry[1];
+                } else if (requestOffset < fullContentLength) {
+                    start = requestOffset;
+                    end = Math.min(start + sizer.currentSize(), 
+                        fullContentLength) - 1;
+                } else {
+                    break;
+                }
+                final long size = end - start + 1;
+                final boolean idle = outstandingBytes == 0 && bufferedBytes == 0;
+                if (!idle && outstandingBytes + bufferedBytes + size > bufferLimit) {
+                    log.debug("Range buffer full -- waiting");
+                    break;
+                }
+                if (retry != null) {
+                    retries.remove();
+                } else {
+                    sizer.nextSize();
+                    requestOffset = end + 1;
+                }
+                outstandingBytes += size;
+                lane.start = start;
+                lane.end = end;
+                lane.received = 0L;
+                lane.busy = true;
+                toSend.add(lane);
+            }
+        }
+        for (final Lane lane : toSend) {
+            lane.send();
+        }
+    }
+
+    /**
+     * Called when a secondary channel closes. Anything it hadn't received
+     * yet gets requested again on another channel.
+     */
+    private void onLaneClosed(final Lane lane) {
+        synchronized (this) {
+            lanes.remove(lane);
+            secondaryChannels.remove(lane.channel);
+            if (done || !lane.busy) {
+                return;
+            }
+            final long from = lane.start + lane.received;
+            retries.add(new long[] {from, lane.end});
+            outstandingBytes -= lane.end - from + 1;
+            sizer.onFailure();
+            lane.busy = false;
+        }
+        // The primary channel is always there to pick up the retry.
+        dispatch();
+    }
+
+    private void finish() {
+        done = true;
+        sizer.finish();
+        closeSecondaryLanes();
+    }
+
+    /**
+     * Gives up on the download, closing all the additional channels and
+     * the browser channel and dropping any ranges we've buffered. This is
+     * safe to call more than once and after we've finished.
+     */
+    public void abort() {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            pending.clear();
+            bufferedBytes = 0L;
+            closeSecondaryLanes();
+        }
+        ProxyUtils.closeOnFlush(browserToProxyChannel);
+    }
+
+    private void closeSecondaryLanes() {
+        browserToProxyChannel.getCloseFuture().removeListener(browserClosed);
+        // Closing a channel can call back into onLaneClosed, so we work
+        // from a copy.
+        final List<Channel> toClose = new ArrayList<Channel>(secondaryChannels);
+        secondaryChannels.clear();
+        for (final Channel ch : toClose) {
+            ch.close();
+        }
+    }
+
+    private static long parseRangeStart(final String contentRange) {
+        final String body =
+            StringUtils.substringAfter(contentRange, "bytes ").trim();
+        return Long.parseLong(StringUtils.substringBefore(body, "-"));
+    }
+
+    private final class Lane {
+
+        private final Channel channel;
+
+        private final HttpRequest request;
+
+        private final boolean isPrimary;
+
+        private long start;
+
+        private long end;
+
+        private long received;
+
+        private boolean busy;
+
+        /**
+         * When we sent the current request, or zero if we didn't send it.
+         */
+        private long sent;
+
+        private long headersReceived;
+
+        private Lane(final Channel channel, final HttpRequest request,
+            final boolean isPrimary) {
+            this.channel = channel;
+            this.request = request;
+            this.isPrimary = isPrimary;
+        }
+
+        private void send() {
+            final HttpRequest range = LanternUtils.copyRequest(request);
+            final long rangeStart;
+            final long rangeEnd;
+            synchronized (ParallelRangeDownloader.this) {
+                rangeStart = start;
+                rangeEnd = end;
+                sent = System.currentTimeMillis();
+            }
+            range.setHeader(HttpHeaders.Names.RANGE,
+                "bytes=" + rangeStart + "-" + rangeEnd);
+            if (isPrimary) {
+                httpRequests.add(range);
+            }
+            log.debug("Requesting range {}-{}", rangeStart, rangeEnd);
+            channel.write(range);
+        }
+    }
+
+    private final class LaneHandler extends SimpleChannelUpstreamHandler {
+
+        private final Lane lane;
+
+        private LaneHandler(final Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) {
+            final Object msg = e.getMessage();
+            if (msg instanceof HttpChunk) {
+                final HttpChunk chunk = (HttpChunk) msg;
+                onContent(lane, chunk.getContent(), chunk.isLast());
+            } else {
+                onResponse(lane, (HttpResponse) msg);
+            }
+        }
+
+        @Override
+        public void channelClosed(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) {
+            onLaneClosed(lane);
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx,
+            final ExceptionEvent e) {
+            log.info("Exception on range channel", e.getCause());
+            e.getChannel().close();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.lantern;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.URI;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandler;
@@ -15,6 +16,7 @@ import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
 
 import org.littleshoot.proxy.ProxyUtils;
@@ -42,9 +44,31 @@ public class PeerChannelHttpRequestProcessor implements HttpRequestProcessor {
     private final Socket sock;
     private volatile PeerSocketChannel peerChannel;
     private volatile PeerSink peerSink;
+    private final URI peerUri;
+    private final PeerScorer scorer;
+    
+    /**
+     * The measurement for the request we're waiting on a response to, if
+     * we're reporting to a scorer.
+     */
+    private volatile PeerScorer.Transfer transfer;
 
     public PeerChannelHttpRequestProcessor(final Socket sock) {
+        this(sock, null, null);
+    }
+
+    /**
+     * Creates a new processor that reports how the peer performs.
+     * 
+     * @param sock The socket to the peer.
+     * @param peerUri The URI of the peer.
+     * @param scorer The scorer to report to.
+     */
+    public PeerChannelHttpRequestProcessor(final Socket sock, 
+        final URI peerUri, final PeerScorer scorer) {
         this.sock = sock;
+        this.peerUri = peerUri;
+        this.scorer = scorer;
         peerSink = new PeerSink();
     }
 
@@ -76,6 +100,10 @@ public class PeerChannelHttpRequestProcessor implements HttpRequestProcessor {
         }
 
         final HttpRequest request = (HttpRequest) me.getMessage();
+        if (scorer != null) {
+            transfer = scorer.newTransfer(peerUri,
+                LatencyTracker.Route.TRUSTED_PEER, false);
+        }
         Channels.write(peerChannel, request);
         
         // We return true in all these case to preserve the behavior before
@@ -111,13 +139,41 @@ public class PeerChannelHttpRequestProcessor implements HttpRequestProcessor {
 
         @Override
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent me) {
-            browserToProxyChannel.write(me.getMessage());
+            final PeerScorer.Transfer current = transfer;
+            if (current != null) {
+                measure(current, me.getMessage());
+            }
+            // This runs on the thread reading the peer socket, so blocking
+            // it holds back the peer until the browser catches up.
+            LanternHub.relayBackpressure().relayBlocking(
+                browserToProxyChannel, me.getMessage());
+        }
+        
+        private void measure(final PeerScorer.Transfer current, 
+            final Object msg) {
+            if (msg instanceof HttpResponse) {
+                final HttpResponse response = (HttpResponse) msg;
+                current.onBytes(response.getContent().readableBytes());
+                if (!response.isChunked()) {
+                    current.onComplete();
+                }
+            } else if (msg instanceof HttpChunk) {
+                final HttpChunk chunk = (HttpChunk) msg;
+                current.onBytes(chunk.getContent().readableBytes());
+                if (chunk.isLast()) {
+                    current.onComplete();
+                }
+            }
         }
         
         @Override
          public void channelClosed(final ChannelHandlerContext ctx, 
              final ChannelStateEvent e) throws Exception {
              log.info("Channel to peer proxy closed, closing browserToProxy channel.");
+             final PeerScorer.Transfer current = transfer;
+             if (current != null) {
+                 current.onClosed();
+             }
              ProxyUtils.closeOnFlush(browserToProxyChannel);
          }
 
@@ -125,6 +181,10 @@ public class PeerChannelHttpRequestProcessor implements HttpRequestProcessor {
          public void exceptionCaught(final ChannelHandlerContext ctx, 
              final ExceptionEvent e) throws Exception {
              log.error("Caught exception on peer proxy channel", e.getCause());
+             final PeerScorer.Transfer current = transfer;
+             if (current != null) {
+                 current.onError();
+             }
              Channels.close(e.getChannel()); 
          }
     }
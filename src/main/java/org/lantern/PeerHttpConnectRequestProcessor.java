@@ -3,6 +3,7 @@ package org.lantern;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.URI;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.IOUtils;
@@ -25,8 +26,26 @@ public class PeerHttpConnectRequestProcessor implements HttpRequestProcessor {
 
     private final Socket sock;
 
+    private final URI peerUri;
+
+    private final PeerScorer scorer;
+
     public PeerHttpConnectRequestProcessor(final Socket sock) {
+        this(sock, null, null);
+    }
+
+    /**
+     * Creates a new processor that reports how the peer performs.
+     * 
+     * @param sock The socket to the peer.
+     * @param peerUri The URI of the peer.
+     * @param scorer The scorer to report to.
+     */
+    public PeerHttpConnectRequestProcessor(final Socket sock, 
+        final URI peerUri, final PeerScorer scorer) {
         this.sock = sock;
+        this.peerUri = peerUri;
+        this.scorer = scorer;
     }
 
     @Override
@@ -42,7 +61,9 @@ public class PeerHttpConnectRequestProcessor implements HttpRequestProcessor {
             // encoder that records stats is removed from the 
             // browserToProxyChannel pipeline.
             LanternUtils.startReading(this.sock,
-                browserToProxyChannel, true);
+                browserToProxyChannel, true, 
+                scorer == null ? null : scorer.newTransfer(peerUri,
+                    LatencyTracker.Route.ANONYMOUS_PEER, true));
             
             log.info("Got an outbound socket on request handler hash {} to {}", 
                 hashCode(), this.sock);
@@ -6,6 +6,7 @@ import java.net.URI;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
+import org.json.simple.JSONObject;
 
 /**
  * Interface for classes that store established P2P sockets.
@@ -19,4 +20,9 @@ public interface PeerProxyManager {
     
     void closeAll();
 
+    /**
+     * @return The state of our connections to peers, for stats.
+     */
+    JSONObject toJson();
+
 }
@@ -1,7 +1,7 @@
 package org.lantern;
 
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PushbackInputStream;
 import java.net.SocketException;
 import java.nio.channels.ClosedChannelException;
 import java.util.regex.Pattern; 
@@ -18,7 +18,8 @@ import org.slf4j.LoggerFactory;
 /** 
  * this is a worker that reads from the peer socket channel.
  * largely cargo culted from org.jboss.netty.channel.socket.oio.OioWorker
- * which is private and a bit more general.
+ * which is private and a bit more general. it runs on a thread from the
+ * shared {@link PeerTransport} and reads into one of its pooled buffers.
  */
 class PeerReadingWorker implements Runnable {
     
@@ -34,48 +35,43 @@ class PeerReadingWorker implements Runnable {
     @Override
     public void run() {
         channel.workerThread = Thread.currentThread();
-        final PushbackInputStream in = channel.getInputStream();
-
-        while (channel.isOpen()) {
-            synchronized (channel.interestOpsLock) {
-                while (!channel.isReadable()) {
-                    try {
-                        // notify() is not called at all.
-                        // close() and setInterestOps() calls Thread.interrupt()
-                        channel.interestOpsLock.wait();
-                    } catch (InterruptedException e) {
-                        if (!channel.isOpen()) {
-                            break;
+        final InputStream in = channel.getInputStream();
+        final PeerTransport transport = LanternHub.peerTransport();
+        final byte[] buf = transport.acquire();
+        try {
+            while (channel.isOpen()) {
+                synchronized (channel.interestOpsLock) {
+                    while (!channel.isReadable()) {
+                        try {
+                            // notify() is not called at all.
+                            // close() and setInterestOps() calls Thread.interrupt()
+                            channel.interestOpsLock.wait();
+                        } catch (InterruptedException e) {
+                            if (!channel.isOpen()) {
+                                break;
+                            }
                         }
                     }
                 }
-            }
 
-            byte[] buf;
-            int readBytes;
-            try {
-                int bytesToRead = in.available();
-                if (bytesToRead > 0) {
-                    buf = new byte[bytesToRead];
-                    readBytes = in.read(buf);
-                } else {
-                    int b = in.read();
-                    if (b < 0) {
+                final ChannelBuffer data;
+                try {
+                    data = transport.read(in, buf,
+                        channel.getConfig().getBufferFactory());
+                    if (data == null) {
                         break;
                     }
-                    in.unread(b);
-                    continue;
-                }
-            } catch (Throwable t) {
-                if (!channel.socket.isClosed()) {
-                    Channels.fireExceptionCaught(channel, t);
+                } catch (Throwable t) {
+                    if (!channel.socket.isClosed()) {
+                        Channels.fireExceptionCaught(channel, t);
+                    }
+                    break;
                 }
-                break;
-            }
 
-            Channels.fireMessageReceived(
-                    channel,
-                    channel.getConfig().getBufferFactory().getBuffer(buf, 0, readBytes));
+                Channels.fireMessageReceived(channel, data);
+            }
+        } finally {
+            transport.release(buf);
         }
 
         // Setting the workerThread to null will prevent any channel
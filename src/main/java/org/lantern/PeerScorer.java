@@ -0,0 +1,350 @@
+package org.lantern;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Keeps track of how well each peer relays data and picks which peer to
+ * send new requests to. For each peer we keep exponentially weighted moving
+ * averages of time to first byte, throughput and error rate, and pick the
+ * peer with the lowest expected time to complete a typical request.
+ *
+ * Greedily picking the best peer would mean new peers and peers whose
+ * measurements have gone stale never get measured, so we always try those
+ * first, and otherwise pick a peer at random a small fraction of the time.
+ */
+public class PeerScorer {
+
+    /**
+     * The weight given to each new sample in the moving averages.
+     */
+    private static final double ALPHA = 0.3;
+
+    /**
+     * The response size we use to turn throughput into an expected transfer
+     * time when comparing peers.
+     */
+    private static final double REFERENCE_BYTES = 100 * 1024;
+
+    /**
+     * We only take throughput samples from responses at least this big, as
+     * smaller ones mostly measure latency.
+     */
+    private static final long MIN_THROUGHPUT_BYTES = 32 * 1024;
+
+    /**
+     * We never treat a peer as failing more often than this, so even a bad
+     * peer has a finite cost.
+     */
+    private static final double MAX_ERROR_RATE = 0.9;
+
+    /**
+     * The time in milliseconds we assume a failed request costs for peers
+     * we have no timings for.
+     */
+    private static final double ERROR_PENALTY = 5 * 1000;
+
+    private final ConcurrentHashMap<URI, PeerScore> scores =
+        new ConcurrentHashMap<URI, PeerScore>();
+
+    private final Random random;
+
+    private final double exploration;
+
+    private final long staleAfter;
+
+    public PeerScorer() {
+        this(LanternConstants.PEER_EXPLORATION,
+            LanternConstants.PEER_SCORE_STALE, new Random());
+    }
+
+    /**
+     * Creates a new scorer.
+     *
+     * @param exploration The fraction of requests sent to a random peer.
+     * @param staleAfter The time in milliseconds after which we measure a
+     * peer again regardless of its score.
+     * @param random The source of randomness for exploration.
+     */
+    public PeerScorer(final double exploration, final long staleAfter,
+        final Random random) {
+        this.exploration = exploration;
+        this.staleAfter = staleAfter;
+        this.random = random;
+    }
+
+    /**
+     * Picks a peer from the specified candidates.
+     *
+     * @param candidates The peers to choose from.
+     * @return The chosen peer, or <code>null</code> if there are no
+     * candidates.
+     */
+    public URI select(final Collection<URI> candidates) {
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        final List<URI> unmeasured = new ArrayList<URI>();
+        URI best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (final URI uri : candidates) {
+            final PeerScore score = scores.get(uri);
+            if (score == null || now - score.lastUpdated() > staleAfter) {
+                unmeasured.add(uri);
+                continue;
+            }
+            final double cost = score.cost();
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = uri;
+            }
+        }
+        if (!unmeasured.isEmpty()) {
+            return unmeasured.get(random.nextInt(unmeasured.size()));
+        }
+        if (candidates.size() > 1 && random.nextDouble() < exploration) {
+            final List<URI> all = new ArrayList<URI>(candidates);
+            return all.get(random.nextInt(all.size()));
+        }
+        return best;
+    }
+
+    /**
+     * Starts measuring a request sent to the specified peer.
+     *
+     * @param uri The peer.
+     * @return The measurement to report the response to.
+     */
+    public Transfer newTransfer(final URI uri) {
+        return new Transfer(uri, null, false);
+    }
+
+    /**
+     * Starts measuring a request sent to the specified peer, also recording
+     * its latency with the {@link LatencyTracker}.
+     *
+     * @param uri The peer.
+     * @param route The route to record the latency for.
+     * @param tunnel Whether or not the request opens a CONNECT tunnel, in
+     * which case we only record the time to first byte.
+     * @return The measurement to report the response to.
+     */
+    public Transfer newTransfer(final URI uri,
+        final LatencyTracker.Route route, final boolean tunnel) {
+        return new Transfer(uri, route, tunnel);
+    }
+
+    /**
+     * Returns the expected time in milliseconds to complete a typical
+     * request through the specified peer, allowing for retries after
+     * errors. Peers we haven't measured are considered free.
+     *
+     * @param uri The peer.
+     * @return The expected cost.
+     */
+    public double cost(final URI uri) {
+        final PeerScore score = scores.get(uri);
+        if (score == null) {
+            return 0.0;
+        }
+        return score.cost();
+    }
+
+    public JSONArray toJson() {
+        final JSONArray json = new JSONArray();
+        for (final Map.Entry<URI, PeerScore> entry : scores.entrySet()) {
+            final PeerScore score = entry.getValue();
+            final JSONObject peer = new JSONObject();
+            peer.put("peer", entry.getKey().toASCIIString());
+            synchronized (score) {
+                peer.put("ttfb_ms", score.firstByte);
+                peer.put("bytes_per_ms", score.throughput);
+                peer.put("error_rate", score.errorRate);
+                peer.put("last_updated", score.lastUpdated);
+            }
+            peer.put("cost_ms", score.cost());
+            json.add(peer);
+        }
+        return json;
+    }
+
+    private PeerScore scoreFor(final URI uri) {
+        final PeerScore score = scores.get(uri);
+        if (score != null) {
+            return score;
+        }
+        final PeerScore newScore = new PeerScore();
+        final PeerScore existing = scores.putIfAbsent(uri, newScore);
+        return existing == null ? newScore : existing;
+    }
+
+    private static double ewma(final double current, final double sample) {
+        if (current < 0) {
+            return sample;
+        }
+        return ALPHA * sample + (1 - ALPHA) * current;
+    }
+
+    /**
+     * Measures a single request to a peer. Callers report the first byte of
+     * the response, each chunk of bytes received, and then either the end
+     * of the response or an error. Only the first outcome counts.
+     */
+    public final class Transfer {
+
+        private final URI uri;
+
+        private final LatencyTracker.Route route;
+
+        private final boolean tunnel;
+
+        private final long started = System.currentTimeMillis();
+
+        private long firstByte;
+
+        private long bytes;
+
+        private boolean finished;
+
+        private Transfer(final URI uri, final LatencyTracker.Route route,
+            final boolean tunnel) {
+            this.uri = uri;
+            this.route = route;
+            this.tunnel = tunnel;
+        }
+
+        /**
+         * Records bytes of the response, starting the transfer timer with
+         * the first ones.
+         *
+         * @param count The number of bytes received.
+         */
+        public synchronized void onBytes(final long count) {
+            if (finished) {
+                return;
+            }
+            if (firstByte == 0L) {
+                firstByte = System.currentTimeMillis();
+            }
+            bytes += count;
+        }
+
+        /**
+         * Records that the whole response has arrived.
+         */
+        public void onComplete() {
+            final long ttfb;
+            final long transferred;
+            final long millis;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                if (firstByte == 0L) {
+                    firstByte = System.currentTimeMillis();
+                }
+                ttfb = firstByte - started;
+                transferred = bytes;
+                millis = System.currentTimeMillis() - firstByte;
+            }
+            scoreFor(uri).onSuccess(ttfb, transferred, millis);
+            if (route != null) {
+                final LatencyTracker tracker = LanternHub.latencyTracker();
+                tracker.record(route, LatencyTracker.Phase.TTFB,
+                    ttfb * 1000000L);
+                if (!tunnel) {
+                    tracker.record(route, LatencyTracker.Phase.TOTAL,
+                        (ttfb + millis) * 1000000L);
+                }
+            }
+        }
+
+        /**
+         * Records that the request failed.
+         */
+        public void onError() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            scoreFor(uri).onError();
+        }
+
+        /**
+         * Called when the connection closes. If we never got any of the
+         * response that counts as an error, otherwise whatever we received
+         * counts as the response.
+         */
+        public void onClosed() {
+            final boolean gotBytes;
+            synchronized (this) {
+                gotBytes = firstByte != 0L;
+            }
+            if (gotBytes) {
+                onComplete();
+            } else {
+                onError();
+            }
+        }
+    }
+
+    private static final class PeerScore {
+
+        private double firstByte = -1;
+
+        private double throughput = -1;
+
+        private double errorRate = 0.0;
+
+        private long lastUpdated;
+
+        private synchronized void onSuccess(final long ttfb, final long bytes,
+            final long millis) {
+            firstByte = ewma(firstByte, ttfb);
+            if (bytes >= MIN_THROUGHPUT_BYTES && millis > 0) {
+                throughput = ewma(throughput, (double) bytes / millis);
+            }
+            errorRate = ewma(errorRate, 0.0);
+            lastUpdated = System.currentTimeMillis();
+        }
+
+        private synchronized void onError() {
+            errorRate = ewma(errorRate, 1.0);
+            lastUpdated = System.currentTimeMillis();
+        }
+
+        private synchronized long lastUpdated() {
+            return lastUpdated;
+        }
+
+        private synchronized double cost() {
+            double cost = 0.0;
+            if (firstByte > 0) {
+                cost += firstByte;
+            }
+            if (throughput > 0) {
+                cost += REFERENCE_BYTES / throughput;
+            }
+            // Each error means trying again, so a peer that fails a
+            // fraction p of the time takes 1/(1-p) attempts on average.
+            final double failing = Math.min(errorRate, MAX_ERROR_RATE);
+            if (firstByte < 0) {
+                // All we know is that it fails.
+                cost += failing * ERROR_PENALTY;
+            }
+            return cost / (1.0 - failing);
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package org.lantern;
 
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PushbackInputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
@@ -29,7 +29,7 @@ class PeerSocketChannel extends AbstractChannel implements SocketChannel {
     volatile Thread workerThread;
     private volatile InetSocketAddress localAddress;
     private volatile InetSocketAddress remoteAddress;
-    volatile PushbackInputStream in;
+    volatile InputStream in;
     volatile OutputStream out;
 
     PeerSocketChannel(
@@ -46,18 +46,18 @@ class PeerSocketChannel extends AbstractChannel implements SocketChannel {
         // just act like someone called connect and it worked.
         try {
             Channels.fireChannelOpen(this);
-            this.in = new PushbackInputStream(socket.getInputStream());
+            this.in = socket.getInputStream();
             this.out = socket.getOutputStream();
         
             Channels.fireChannelBound(this, getLocalAddress());
             Channels.fireChannelConnected(this, getRemoteAddress());
         
-            // start an oio worker for ourself...
-            Runnable runner = new PeerReadingWorker(this);
-            final Thread peerReadingThread = 
-                new Thread(runner, "Peer-Data-Reading-Thread");
-            peerReadingThread.setDaemon(true);
-            peerReadingThread.start();
+            // start an oio worker for ourself on the shared reader pool...
+            if (!LanternHub.peerTransport().execute(
+                new PeerReadingWorker(this))) {
+                // ...or give up on the socket if we can't read it.
+                PeerReadingWorker.close(this, Channels.future(this));
+            }
         }
         catch (Throwable t) {
             Channels.fireExceptionCaught(this, t);
@@ -128,7 +128,7 @@ class PeerSocketChannel extends AbstractChannel implements SocketChannel {
         }
     }
 
-    PushbackInputStream getInputStream() {
+    InputStream getInputStream() {
       return in;
     }
 
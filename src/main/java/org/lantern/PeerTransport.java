@@ -0,0 +1,193 @@
+package org.lantern;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.json.simple.JSONObject;
+
+/**
+ * Shared reading machinery for peer sockets. This is not an event-driven
+ * transport: the sockets we get from the P2P library are plain stream
+ * sockets with no selectable channel, so each one still needs a thread
+ * blocked in read while it's open. Those threads come from a shared pool
+ * rather than being created and thrown away for every socket, and the pool
+ * is bounded, so we refuse new peer sockets rather than pile up threads
+ * once it's full. Reads go into pooled buffers instead of a new array per
+ * read. Only the bytes actually read are copied out, since decoders further
+ * down the pipeline can hold on to what we give them.
+ */
+public class PeerTransport {
+
+    private final int bufferSize;
+
+    private final int maxPooledBuffers;
+
+    private final ThreadPoolExecutor readers;
+
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+    private final AtomicInteger pooledBuffers = new AtomicInteger(0);
+
+    private final AtomicLong bufferAllocations = new AtomicLong(0L);
+
+    private final AtomicLong rejectedReaders = new AtomicLong(0L);
+
+    private final AtomicLong reads = new AtomicLong(0L);
+
+    private final AtomicLong bytesRead = new AtomicLong(0L);
+
+    public PeerTransport() {
+        this(LanternConstants.PEER_READ_BUFFER_SIZE,
+            LanternConstants.PEER_READ_BUFFERS,
+            LanternConstants.PEER_READER_THREADS);
+    }
+
+    /**
+     * Creates a new transport.
+     *
+     * @param bufferSize The size of each read buffer.
+     * @param maxPooledBuffers The most buffers we keep around for reuse.
+     * @param maxReaders The most peer sockets we read at once, each of which
+     * takes a thread.
+     */
+    public PeerTransport(final int bufferSize, final int maxPooledBuffers,
+        final int maxReaders) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        final AtomicInteger threadNumber = new AtomicInteger(0);
+        this.readers = new ThreadPoolExecutor(0, maxReaders,
+            60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r,
+                        "Peer-Data-Reading-Thread-" +
+                        threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /**
+     * Runs a reader for a peer socket on one of the pooled threads.
+     *
+     * @param reader The reader.
+     * @return <code>true</code> if the reader is running, or
+     * <code>false</code> if we're already reading as many sockets as we
+     * can, in which case the caller should close the socket.
+     */
+    public boolean execute(final Runnable reader) {
+        try {
+            readers.execute(reader);
+            return true;
+        } catch (final RejectedExecutionException e) {
+            rejectedReaders.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Takes a read buffer from the pool, allocating one if the pool is
+     * empty. Callers must return it with {@link #release(byte[])}.
+     *
+     * @return The buffer.
+     */
+    public byte[] acquire() {
+        final byte[] buf = buffers.poll();
+        if (buf != null) {
+            pooledBuffers.decrementAndGet();
+            return buf;
+        }
+        bufferAllocations.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Returns a read buffer to the pool.
+     *
+     * @param buf The buffer.
+     */
+    public void release(final byte[] buf) {
+        if (pooledBuffers.incrementAndGet() > maxPooledBuffers) {
+            pooledBuffers.decrementAndGet();
+            return;
+        }
+        buffers.add(buf);
+    }
+
+    /**
+     * Blocks until there's data on the stream and returns a copy of it.
+     *
+     * @param in The stream to read from.
+     * @param buf A buffer from {@link #acquire()} to read into.
+     * @param factory The factory for the returned buffer.
+     * @return The data read, or <code>null</code> at the end of the stream.
+     * @throws IOException If there's an error reading.
+     */
+    public ChannelBuffer read(final InputStream in, final byte[] buf,
+        final ChannelBufferFactory factory) throws IOException {
+        final int n = in.read(buf);
+        if (n < 0) {
+            return null;
+        }
+        reads.incrementAndGet();
+        bytesRead.addAndGet(n);
+        return factory.getBuffer(buf, 0, n);
+    }
+
+    /**
+     * @return The number of threads currently reading peer sockets.
+     */
+    public int getActiveReaders() {
+        return readers.getActiveCount();
+    }
+
+    /**
+     * @return The number of peer sockets we refused to read because all
+     * the reader threads were busy.
+     */
+    public long getRejectedReaders() {
+        return rejectedReaders.get();
+    }
+
+    /**
+     * @return The number of read buffers we've had to allocate.
+     */
+    public long getBufferAllocations() {
+        return bufferAllocations.get();
+    }
+
+    /**
+     * @return The average number of bytes returned by each read.
+     */
+    public long getAverageReadSize() {
+        final long count = reads.get();
+        if (count == 0) {
+            return 0L;
+        }
+        return bytesRead.get() / count;
+    }
+
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        json.put("active_readers", getActiveReaders());
+        json.put("pooled_threads", readers.getPoolSize());
+        json.put("rejected_readers", getRejectedReaders());
+        json.put("buffer_allocations", getBufferAllocations());
+        json.put("bytes_read", bytesRead.get());
+        json.put("average_read_size", getAverageReadSize());
+        return json;
+    }
+}
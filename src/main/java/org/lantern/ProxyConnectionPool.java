@@ -0,0 +1,571 @@
+package org.lantern;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLEngine;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of pre-connected, already handshaked TLS channels to our cloud
+ * proxies. Pooled channels are handed out once and never returned, as both
+ * the HTTP and the CONNECT paths tie an outgoing channel to a single browser
+ * connection. The pool just makes sure the TCP connect and the SSL handshake
+ * have typically already happened by the time a browser connection needs
+ * a channel, refilling itself in the background.
+ *
+ * Every channel we open to a proxy counts against its limit until it
+ * closes, whether it's connecting, idle or handed out. Once a proxy is at
+ * its limit, further requests for channels wait in line and connect as
+ * soon as any channel to the proxy closes, so a burst of requests can't
+ * open any number of connections.
+ *
+ * Each pooled channel has a pipeline consisting of a "stats" handler
+ * recording bytes via proxies and an "ssl" handler. Callers add their own
+ * handlers to the pipeline of the returned channel.
+ */
+public class ProxyConnectionPool {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Name of the handler watching idle channels in the pool.
+     */
+    private static final String IDLE_HANDLER = "idle";
+
+    /**
+     * We stop refilling pools that haven't been drawn from in this long.
+     */
+    private static final long ACTIVE_WINDOW = 5 * 60 * 1000;
+
+    /**
+     * Creates SSL engines for new connections to proxies.
+     */
+    public interface SslEngineSource {
+
+        /**
+         * Creates a new client mode SSL engine for the specified proxy.
+         *
+         * @param proxyAddress The address of the proxy.
+         * @return The new engine.
+         */
+        SSLEngine newEngine(InetSocketAddress proxyAddress);
+    }
+
+    private final Map<InetSocketAddress, ProxyPool> pools =
+        new ConcurrentHashMap<InetSocketAddress, ProxyPool>();
+
+    private final String name;
+
+    private final LatencyTracker.Route route;
+
+    private final SslEngineSource engineSource;
+
+    private final int minIdle;
+
+    private final int maxTotal;
+
+    private final long idleTimeout;
+
+    private final AtomicLong hits = new AtomicLong(0L);
+
+    private final AtomicLong misses = new AtomicLong(0L);
+
+    private final AtomicLong waits = new AtomicLong(0L);
+
+    private final AtomicLong fullHandshakes = new AtomicLong(0L);
+
+    private final AtomicLong resumedHandshakes = new AtomicLong(0L);
+
+    /**
+     * Creates a new pool.
+     *
+     * @param name The name of the pool, for logging.
+     * @param route The route to record connect and handshake times for.
+     * @param engineSource The source for SSL engines for new connections.
+     * @param minIdle The number of idle, handshaked channels we try to keep
+     * open to each proxy.
+     * @param maxTotal The maximum number of open channels to each proxy,
+     * including those in use.
+     * @param idleTimeout The time in milliseconds after which we close idle
+     * channels. This should be shorter than the proxy's own idle timeout,
+     * as we only notice idle channels the proxy has closed, not ones lost
+     * silently somewhere along the way.
+     * @param healthCheckInterval How often in milliseconds to evict idle
+     * channels that have closed or expired and top the pool back up.
+     */
+    public ProxyConnectionPool(final String name,
+        final LatencyTracker.Route route,
+        final SslEngineSource engineSource, final int minIdle,
+        final int maxTotal, final long idleTimeout,
+        final long healthCheckInterval) {
+        this.name = name;
+        this.route = route;
+        this.engineSource = engineSource;
+        this.minIdle = minIdle;
+        this.maxTotal = maxTotal;
+        this.idleTimeout = idleTimeout;
+        LanternHub.timer().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                checkIdle();
+            }
+        }, healthCheckInterval, healthCheckInterval);
+    }
+
+    /**
+     * Starts opening idle channels to the specified proxy if we don't have
+     * enough already.
+     *
+     * @param proxyAddress The address of the proxy.
+     */
+    public void warm(final InetSocketAddress proxyAddress) {
+        fill(poolFor(proxyAddress));
+    }
+
+    /**
+     * Returns a future for a handshaked channel to the specified proxy. The
+     * channel is available immediately from the returned future, so callers
+     * can add handlers to its pipeline right away, but they should only
+     * write to it once the future has succeeded.
+     *
+     * @param proxyAddress The address of the proxy.
+     * @return The future for the channel.
+     */
+    public ChannelFuture acquire(final InetSocketAddress proxyAddress) {
+        final ProxyPool pool = poolFor(proxyAddress);
+        pool.lastAcquired = System.currentTimeMillis();
+        ChannelFuture future = null;
+        while (future == null) {
+            final IdleChannel idle = pool.idle.poll();
+            if (idle == null) {
+                break;
+            }
+            final Channel ch = idle.future.getChannel();
+            if (!ch.isConnected()) {
+                log.debug("Discarding dead pooled channel");
+                continue;
+            }
+            final ChannelPipeline pipeline = ch.getPipeline();
+            if (pipeline.get(IDLE_HANDLER) != null) {
+                pipeline.remove(IDLE_HANDLER);
+            }
+            future = idle.future;
+        }
+
+        if (future != null) {
+            hits.incrementAndGet();
+            log.debug("Using pooled channel to {}", proxyAddress);
+        } else {
+            misses.incrementAndGet();
+            log.debug("No pooled channel to {}", proxyAddress);
+            final Connect connect = new Connect(pool, false);
+            future = connect.ready;
+            if (reserve(pool)) {
+                start(connect);
+            } else {
+                log.info("Already have {} channels to {} -- waiting for one "+
+                    "to close", maxTotal, proxyAddress);
+                waits.incrementAndGet();
+                pool.waiting.add(connect);
+                // A channel may have closed before we got in line.
+                drain(pool);
+            }
+        }
+        fill(pool);
+        return future;
+    }
+
+    /**
+     * Closes all idle channels.
+     */
+    public void closeAll() {
+        for (final ProxyPool pool : pools.values()) {
+            IdleChannel idle;
+            while ((idle = pool.idle.poll()) != null) {
+                idle.future.getChannel().close();
+            }
+        }
+    }
+
+    /**
+     * @return The number of times a pooled channel was available.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of times we had to connect on demand.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of times we had to wait for a channel to close
+     * before connecting, because the proxy was at its limit.
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /**
+     * @return The number of handshakes that negotiated a new SSL session.
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * @return The number of handshakes that resumed a cached SSL session.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @return The number of idle channels across all proxies.
+     */
+    public int getIdleChannels() {
+        int total = 0;
+        for (final ProxyPool pool : pools.values()) {
+            total += pool.idle.size();
+        }
+        return total;
+    }
+
+    private ProxyPool poolFor(final InetSocketAddress proxyAddress) {
+        synchronized (pools) {
+            ProxyPool pool = pools.get(proxyAddress);
+            if (pool == null) {
+                pool = new ProxyPool(proxyAddress);
+                pools.put(proxyAddress, pool);
+            }
+            return pool;
+        }
+    }
+
+    private void fill(final ProxyPool pool) {
+        while (true) {
+            final int pending = pool.pending.get();
+            final int idle = pool.idle.size();
+            // Requests waiting for a slot come before spare channels.
+            if (idle + pending >= minIdle || !pool.waiting.isEmpty()) {
+                return;
+            }
+            if (!pool.pending.compareAndSet(pending, pending + 1)) {
+                continue;
+            }
+            if (!reserve(pool)) {
+                pool.pending.decrementAndGet();
+                return;
+            }
+            final Connect connect;
+            try {
+                connect = new Connect(pool, true);
+            } catch (final RuntimeException e) {
+                // There's no channel to close in this case, so give back 
+                // the slots ourselves and try again on the next health 
+                // check rather than spinning.
+                pool.pending.decrementAndGet();
+                release(pool);
+                log.warn("Could not start connecting to "+pool.address, e);
+                return;
+            }
+            start(connect);
+        }
+    }
+
+    /**
+     * Takes one of the proxy's open channel slots if any are free.
+     */
+    private boolean reserve(final ProxyPool pool) {
+        while (true) {
+            final int open = pool.open.get();
+            if (open >= maxTotal) {
+                return false;
+            }
+            if (pool.open.compareAndSet(open, open + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a slot, letting the next waiting request connect.
+     */
+    private void release(final ProxyPool pool) {
+        pool.open.decrementAndGet();
+        drain(pool);
+    }
+
+    /**
+     * Connects waiting requests for as long as there are free slots.
+     */
+    private void drain(final ProxyPool pool) {
+        while (!pool.waiting.isEmpty() && reserve(pool)) {
+            final Connect connect = pool.waiting.poll();
+            if (connect == null) {
+                pool.open.decrementAndGet();
+                // Another thread took it, but a waiter may have arrived in
+                // the meantime.
+                continue;
+            }
+            if (!connect.channel.isOpen()) {
+                // The caller gave up on it while it was waiting.
+                pool.open.decrementAndGet();
+                connect.ready.setFailure(new ClosedChannelException());
+                continue;
+            }
+            start(connect);
+        }
+    }
+
+    /**
+     * Starts connecting a channel we've already reserved a slot for. The
+     * slot is released when the channel closes, which it also does if the
+     * connection attempt fails.
+     */
+    private void start(final Connect connect) {
+        final ProxyPool pool = connect.pool;
+        final Channel ch = connect.channel;
+        final boolean toIdle = connect.toIdle;
+        final SslHandler ssl = connect.ssl;
+        final SSLEngine engine = connect.engine;
+        final ChannelFuture ready = connect.ready;
+        ch.getCloseFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                release(pool);
+            }
+        });
+
+        final long connectStart = System.nanoTime();
+        final ChannelFuture connectFuture = ch.connect(pool.address);
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture cf) {
+                if (!cf.isSuccess()) {
+                    log.info("Could not connect to {}", pool.address);
+                    if (toIdle) {
+                        // Callers report their own failures.
+                        pool.pending.decrementAndGet();
+                        LanternHub.proxyScorer().onFailure(pool.address);
+                    }
+                    ready.setFailure(cf.getCause());
+                    return;
+                }
+                final long handshakeStartNanos = System.nanoTime();
+                LanternHub.latencyTracker().record(route,
+                    LatencyTracker.Phase.CONNECT,
+                    handshakeStartNanos - connectStart);
+                final long handshakeStart = System.currentTimeMillis();
+                ssl.handshake().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(final ChannelFuture hf) {
+                        if (toIdle) {
+                            pool.pending.decrementAndGet();
+                        }
+                        if (!hf.isSuccess()) {
+                            log.info("Handshake with {} failed", pool.address);
+                            if (toIdle) {
+                                LanternHub.proxyScorer().onFailure(
+                                    pool.address);
+                            }
+                            ch.close();
+                            ready.setFailure(hf.getCause());
+                            return;
+                        }
+                        final long now = System.nanoTime();
+                        LanternHub.latencyTracker().record(route,
+                            LatencyTracker.Phase.TLS,
+                            now - handshakeStartNanos);
+                        // A resumed session was created before this
+                        // handshake started.
+                        if (engine.getSession().getCreationTime() <
+                            handshakeStart) {
+                            resumedHandshakes.incrementAndGet();
+                        } else {
+                            fullHandshakes.incrementAndGet();
+                        }
+                        LanternHub.proxyScorer().onConnect(pool.address,
+                            (now - connectStart) / 1000000);
+                        ready.setSuccess();
+                        if (toIdle) {
+                            pool.idle.add(new IdleChannel(ready));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void checkIdle() {
+        final long now = System.currentTimeMillis();
+        for (final ProxyPool pool : pools.values()) {
+            final Iterator<IdleChannel> iter = pool.idle.iterator();
+            while (iter.hasNext()) {
+                final IdleChannel idle = iter.next();
+                final Channel ch = idle.future.getChannel();
+                if (!ch.isConnected()) {
+                    iter.remove();
+                } else if (now - idle.created > idleTimeout) {
+                    // Removing it first means nobody else can grab it
+                    // while we're closing it.
+                    if (pool.idle.remove(idle)) {
+                        ch.close();
+                    }
+                }
+            }
+            if (now - pool.lastAcquired < ACTIVE_WINDOW) {
+                fill(pool);
+            }
+        }
+        log.debug("{} pool has {} idle channels", name, getIdleChannels());
+    }
+
+    private static final class ProxyPool {
+
+        private final InetSocketAddress address;
+
+        private final Queue<IdleChannel> idle =
+            new ConcurrentLinkedQueue<IdleChannel>();
+
+        private final AtomicInteger pending = new AtomicInteger(0);
+
+        /**
+         * The number of channels to the proxy we've started connecting and
+         * that haven't closed yet.
+         */
+        private final AtomicInteger open = new AtomicInteger(0);
+
+        private final Queue<Connect> waiting =
+            new ConcurrentLinkedQueue<Connect>();
+
+        private volatile long lastAcquired = System.currentTimeMillis();
+
+        private ProxyPool(final InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * A channel to a proxy, created with its pipeline but not necessarily
+     * connected yet, so callers can set it up while it waits for a slot.
+     */
+    private final class Connect {
+
+        private final ProxyPool pool;
+
+        private final boolean toIdle;
+
+        private final SSLEngine engine;
+
+        private final SslHandler ssl;
+
+        private final Channel channel;
+
+        private final ChannelFuture ready;
+
+        private Connect(final ProxyPool pool, final boolean toIdle) {
+            this.pool = pool;
+            this.toIdle = toIdle;
+            this.engine = engineSource.newEngine(pool.address);
+            this.engine.setUseClientMode(true);
+            this.ssl = new SslHandler(engine);
+            final ChannelPipeline pipeline = Channels.pipeline();
+            pipeline.addLast("stats", new StatsTrackingHandler() {
+                @Override
+                public void addUpBytes(final long bytes, 
+                    final Channel channel) {
+                    statsTracker().addUpBytesViaProxies(bytes, channel);
+                }
+                @Override
+                public void addDownBytes(final long bytes, 
+                    final Channel channel) {
+                    statsTracker().addDownBytesViaProxies(bytes, channel);
+                }
+            });
+            pipeline.addLast("ssl", ssl);
+            if (toIdle) {
+                pipeline.addLast(IDLE_HANDLER, new IdleHandler(pool));
+            }
+            this.channel = 
+                LanternHub.clientSocketChannelFactory().newChannel(pipeline);
+            this.ready = new DefaultChannelFuture(channel, false);
+        }
+    }
+
+    private static final class IdleChannel {
+
+        private final ChannelFuture future;
+
+        private final long created = System.currentTimeMillis();
+
+        private IdleChannel(final ChannelFuture future) {
+            this.future = future;
+        }
+    }
+
+    /**
+     * Handler that sits at the end of the pipeline of idle channels,
+     * discarding them if the proxy closes them or sends unsolicited data.
+     */
+    private final class IdleHandler extends SimpleChannelUpstreamHandler {
+
+        private final ProxyPool pool;
+
+        private IdleHandler(final ProxyPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) {
+            log.warn("Unexpected data on idle channel to {}", pool.address);
+            e.getChannel().close();
+        }
+
+        @Override
+        public void channelClosed(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) {
+            final Iterator<IdleChannel> iter = pool.idle.iterator();
+            while (iter.hasNext()) {
+                if (iter.next().future.getChannel() == e.getChannel()) {
+                    iter.remove();
+                }
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx,
+            final ExceptionEvent e) {
+            log.info("Exception on idle channel to "+pool.address,
+                e.getCause());
+            e.getChannel().close();
+        }
+    }
+}
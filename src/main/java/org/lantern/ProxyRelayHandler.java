@@ -1,7 +1,6 @@
 package org.lantern;
 
 import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
 
 import javax.net.ssl.SSLEngine;
 
@@ -16,8 +15,6 @@ import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.handler.ssl.SslHandler;
 import org.littleshoot.proxy.KeyStoreManager;
 import org.littleshoot.proxy.ProxyUtils;
@@ -42,11 +39,6 @@ public class ProxyRelayHandler extends SimpleChannelUpstreamHandler {
 
     private final ProxyStatusListener proxyStatusListener;
     
-    private final ClientSocketChannelFactory clientSocketChannelFactory =
-        new NioClientSocketChannelFactory(
-            Executors.newCachedThreadPool(),
-            Executors.newCachedThreadPool());
-
     private final KeyStoreManager keyStoreManager;
 
     
@@ -54,8 +46,6 @@ public class ProxyRelayHandler extends SimpleChannelUpstreamHandler {
      * Creates a new relayer to a proxy.
      * 
      * @param proxyAddress The address of the proxy.
-     * @param clientSocketChannelFactory The factory for creating socket 
-     * channels to the proxy.
      * @param proxyStatusListener The class to notify of changes in the proxy
      * status.
      * @param keyStoreManager Determines whether the proxy should be trusted.
@@ -74,7 +64,8 @@ public class ProxyRelayHandler extends SimpleChannelUpstreamHandler {
         final MessageEvent me) {
         messagesReceived++;
         log.info("Received {} total messages", messagesReceived);
-        this.outboundChannel.write(me.getMessage());
+        LanternHub.relayBackpressure().relay(ctx.getChannel(), 
+            this.outboundChannel, me.getMessage());
     }
     
     @Override
@@ -88,7 +79,7 @@ public class ProxyRelayHandler extends SimpleChannelUpstreamHandler {
 
         // Start the connection attempt.
         final ClientBootstrap cb = 
-            new ClientBootstrap(this.clientSocketChannelFactory);
+            new ClientBootstrap(LanternHub.clientSocketChannelFactory());
         
         final ChannelPipeline pipeline = cb.getPipeline();
         
@@ -151,7 +142,8 @@ public class ProxyRelayHandler extends SimpleChannelUpstreamHandler {
         public void messageReceived(final ChannelHandlerContext ctx, 
             final MessageEvent e) throws Exception {
             final ChannelBuffer msg = (ChannelBuffer) e.getMessage();
-            inboundChannel.write(msg);
+            LanternHub.relayBackpressure().relay(ctx.getChannel(), 
+                inboundChannel, msg);
         }
 
         @Override
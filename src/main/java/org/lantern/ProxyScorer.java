@@ -0,0 +1,289 @@
+package org.lantern;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of how well each of our cloud proxies is performing and picks
+ * which proxy to use for new connections. For each proxy we keep an
+ * exponentially weighted moving average of connect time, time to first
+ * byte and throughput. Selection uses the "power of two choices" -- we pick
+ * two healthy proxies at random and use whichever one is cheaper, which
+ * sends most traffic to the fastest proxies without stampeding any one of
+ * them.
+ *
+ * Proxies that fail are quarantined for a period that doubles with each
+ * consecutive failure. Once the quarantine expires the proxy gets picked
+ * again like any other, and a single success clears its failure history.
+ */
+public class ProxyScorer {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The weight given to each new sample in the moving averages.
+     */
+    private static final double ALPHA = 0.3;
+
+    /**
+     * The response size we use to turn throughput into an expected transfer
+     * time when comparing proxies.
+     */
+    private static final double REFERENCE_BYTES = 100 * 1024;
+
+    /**
+     * We only take throughput samples from responses at least this big, as
+     * smaller ones mostly measure latency.
+     */
+    private static final long MIN_THROUGHPUT_BYTES = 32 * 1024;
+
+    private final ConcurrentHashMap<InetSocketAddress, ProxyScore> scores =
+        new ConcurrentHashMap<InetSocketAddress, ProxyScore>();
+
+    private final Random random = new Random();
+
+    private final long baseQuarantine;
+
+    private final long maxQuarantine;
+
+    public ProxyScorer() {
+        this(LanternConstants.PROXY_QUARANTINE_BASE,
+            LanternConstants.PROXY_QUARANTINE_MAX);
+    }
+
+    /**
+     * Creates a new scorer.
+     *
+     * @param baseQuarantine The time in milliseconds a proxy is quarantined
+     * after its first failure.
+     * @param maxQuarantine The maximum time in milliseconds we ever
+     * quarantine a proxy for.
+     */
+    public ProxyScorer(final long baseQuarantine, final long maxQuarantine) {
+        this.baseQuarantine = baseQuarantine;
+        this.maxQuarantine = maxQuarantine;
+    }
+
+    /**
+     * Picks a proxy from the specified candidates.
+     *
+     * @param candidates The proxies to choose from.
+     * @return The chosen proxy, or <code>null</code> if there are no
+     * candidates.
+     */
+    public InetSocketAddress select(
+        final Collection<InetSocketAddress> candidates) {
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        final List<InetSocketAddress> healthy =
+            new ArrayList<InetSocketAddress>(candidates.size());
+        InetSocketAddress soonest = null;
+        long soonestRelease = Long.MAX_VALUE;
+        for (final InetSocketAddress isa : candidates) {
+            final ProxyScore score = scores.get(isa);
+            final long release = score == null ? 0L : score.quarantinedUntil;
+            if (release <= now) {
+                healthy.add(isa);
+            } else if (release < soonestRelease) {
+                soonestRelease = release;
+                soonest = isa;
+            }
+        }
+        if (healthy.isEmpty()) {
+            // Everything is quarantined, so the best we can do is try the
+            // one that's due back first.
+            log.info("All proxies quarantined -- using {}", soonest);
+            return soonest;
+        }
+        final int size = healthy.size();
+        if (size == 1) {
+            return healthy.get(0);
+        }
+        final int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        final InetSocketAddress a = healthy.get(first);
+        final InetSocketAddress b = healthy.get(second);
+        return cost(a) <= cost(b) ? a : b;
+    }
+
+    /**
+     * Records the time it took to connect and handshake with a proxy.
+     *
+     * @param isa The address of the proxy.
+     * @param millis The time taken in milliseconds.
+     */
+    public void onConnect(final InetSocketAddress isa, final long millis) {
+        scoreFor(isa).onConnect(millis);
+    }
+
+    /**
+     * Records the time from sending a request to a proxy until receiving
+     * the first byte of the response.
+     *
+     * @param isa The address of the proxy.
+     * @param millis The time taken in milliseconds.
+     */
+    public void onFirstByte(final InetSocketAddress isa, final long millis) {
+        scoreFor(isa).onFirstByte(millis);
+    }
+
+    /**
+     * Records a response transfer from a proxy. Small responses are ignored.
+     *
+     * @param isa The address of the proxy.
+     * @param bytes The number of bytes received.
+     * @param millis The time between the first and last byte.
+     */
+    public void onTransfer(final InetSocketAddress isa, final long bytes,
+        final long millis) {
+        if (bytes < MIN_THROUGHPUT_BYTES || millis <= 0) {
+            return;
+        }
+        scoreFor(isa).onThroughput((double) bytes / millis);
+    }
+
+    /**
+     * Records a failure to connect to or use a proxy, quarantining it.
+     *
+     * @param isa The address of the proxy.
+     */
+    public void onFailure(final InetSocketAddress isa) {
+        final long quarantine = scoreFor(isa).onFailure(baseQuarantine,
+            maxQuarantine);
+        log.info("Quarantining {} for {} ms", isa, quarantine);
+    }
+
+    /**
+     * Returns whether or not the specified proxy is currently quarantined.
+     *
+     * @param isa The address of the proxy.
+     * @return <code>true</code> if the proxy is quarantined.
+     */
+    public boolean isQuarantined(final InetSocketAddress isa) {
+        final ProxyScore score = scores.get(isa);
+        return score != null &&
+            score.quarantinedUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the expected cost in milliseconds of fetching a typical
+     * response through the specified proxy. Proxies we haven't measured yet
+     * are considered free so that they get tried.
+     *
+     * @param isa The address of the proxy.
+     * @return The expected cost.
+     */
+    public double cost(final InetSocketAddress isa) {
+        final ProxyScore score = scores.get(isa);
+        if (score == null) {
+            return 0.0;
+        }
+        return score.cost();
+    }
+
+    public JSONArray toJson() {
+        final JSONArray json = new JSONArray();
+        for (final Map.Entry<InetSocketAddress, ProxyScore> entry :
+            scores.entrySet()) {
+            final ProxyScore score = entry.getValue();
+            final JSONObject proxy = new JSONObject();
+            proxy.put("address", entry.getKey().toString());
+            synchronized (score) {
+                proxy.put("connect_ms", score.connect);
+                proxy.put("ttfb_ms", score.firstByte);
+                proxy.put("bytes_per_ms", score.throughput);
+                proxy.put("failures", score.failures);
+            }
+            proxy.put("quarantined", isQuarantined(entry.getKey()));
+            json.add(proxy);
+        }
+        return json;
+    }
+
+    private ProxyScore scoreFor(final InetSocketAddress isa) {
+        final ProxyScore score = scores.get(isa);
+        if (score != null) {
+            return score;
+        }
+        final ProxyScore newScore = new ProxyScore();
+        final ProxyScore existing = scores.putIfAbsent(isa, newScore);
+        return existing == null ? newScore : existing;
+    }
+
+    private static double ewma(final double current, final double sample) {
+        if (current < 0) {
+            return sample;
+        }
+        return ALPHA * sample + (1 - ALPHA) * current;
+    }
+
+    private static final class ProxyScore {
+
+        private double connect = -1;
+
+        private double firstByte = -1;
+
+        private double throughput = -1;
+
+        private int failures;
+
+        private volatile long quarantinedUntil;
+
+        private synchronized void onConnect(final long millis) {
+            connect = ewma(connect, millis);
+            onSuccess();
+        }
+
+        private synchronized void onFirstByte(final long millis) {
+            firstByte = ewma(firstByte, millis);
+            onSuccess();
+        }
+
+        private synchronized void onThroughput(final double bytesPerMilli) {
+            throughput = ewma(throughput, bytesPerMilli);
+        }
+
+        private void onSuccess() {
+            failures = 0;
+            quarantinedUntil = 0L;
+        }
+
+        private synchronized long onFailure(final long base, final long max) {
+            failures++;
+            // Cap the shift so we don't overflow with lots of failures.
+            final long quarantine =
+                Math.min(base << Math.min(failures - 1, 20), max);
+            quarantinedUntil = System.currentTimeMillis() + quarantine;
+            return quarantine;
+        }
+
+        private synchronized double cost() {
+            double cost = 0.0;
+            if (connect > 0) {
+                cost += connect;
+            }
+            if (firstByte > 0) {
+                cost += firstByte;
+            }
+            if (throughput > 0) {
+                cost += REFERENCE_BYTES / throughput;
+            }
+            return cost;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.lantern;
+
+import java.net.InetSocketAddress;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+/**
+ * Handler that sits just after the SSL handler on channels to cloud proxies
+ * and reports time to first byte and throughput to the {@link ProxyScorer}.
+ * Each write after we've started receiving a response is treated as a new
+ * request unless the channel is a CONNECT tunnel, in which case we only
+ * time the first request.
+ */
+public class ProxyScoringHandler extends SimpleChannelHandler {
+
+    private final InetSocketAddress proxyAddress;
+
+    private final boolean tunnel;
+
+    private final ProxyScorer scorer;
+
+    private long requestSent;
+
+    private long firstByte;
+
+    private long lastByte;
+
+    private long bytes;
+
+    /**
+     * Creates a new handler.
+     *
+     * @param proxyAddress The address of the proxy the channel is to.
+     * @param tunnel Whether or not the channel carries a CONNECT tunnel.
+     */
+    public ProxyScoringHandler(final InetSocketAddress proxyAddress,
+        final boolean tunnel) {
+        this.proxyAddress = proxyAddress;
+        this.tunnel = tunnel;
+        this.scorer = LanternHub.proxyScorer();
+    }
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+        final MessageEvent e) throws Exception {
+        synchronized (this) {
+            if (requestSent == 0L || (firstByte != 0L && !tunnel)) {
+                recordTransfer();
+                requestSent = System.currentTimeMillis();
+                firstByte = 0L;
+                bytes = 0L;
+            }
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+        final MessageEvent e) throws Exception {
+        final Object msg = e.getMessage();
+        if (msg instanceof ChannelBuffer) {
+            final long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (requestSent != 0L && firstByte == 0L) {
+                    firstByte = now;
+                    scorer.onFirstByte(proxyAddress, now - requestSent);
+                }
+                lastByte = now;
+                bytes += ((ChannelBuffer) msg).readableBytes();
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx,
+        final ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            recordTransfer();
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    private void recordTransfer() {
+        if (firstByte != 0L) {
+            scorer.onTransfer(proxyAddress, bytes, lastByte - firstByte);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.lantern;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Chooses how big a range to request for each part of a download through
+ * LAE. Small ranges are cheap to retry on slow links but waste a round trip
+ * per range on fast ones, so each download starts small and grows its range
+ * size much like TCP slow start, doubling with each range until a range
+ * takes several round trips to transfer. Failures halve the size. What each
+ * download learns feeds into the size the next download starts with.
+ */
+public class RangeSizer {
+
+    /**
+     * We aim for ranges that take this many round trips to transfer, which
+     * keeps the per-request overhead to around a fifth of the time.
+     */
+    private static final long TARGET_RTTS = 4;
+
+    /**
+     * The weight new downloads get in the starting size for later ones.
+     */
+    private static final double ALPHA = 0.25;
+
+    private final long minSize;
+
+    private final long maxSize;
+
+    private volatile long initialSize;
+
+    private final AtomicLong ranges = new AtomicLong(0L);
+
+    private final AtomicLong rangeBytes = new AtomicLong(0L);
+
+    private final AtomicLong smallest = new AtomicLong(Long.MAX_VALUE);
+
+    private final AtomicLong largest = new AtomicLong(0L);
+
+    public RangeSizer() {
+        this(LanternConstants.RANGE_SIZE_MIN, LanternConstants.RANGE_SIZE_MAX,
+            LanternConstants.RANGE_SIZE_INITIAL);
+    }
+
+    /**
+     * Creates a new sizer.
+     *
+     * @param minSize The smallest range we'll request.
+     * @param maxSize The largest range we'll request. This needs to stay
+     * within the response size limits of App Engine.
+     * @param initialSize The size of the first range before we've learned
+     * anything.
+     */
+    public RangeSizer(final long minSize, final long maxSize,
+        final long initialSize) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.initialSize = initialSize;
+    }
+
+    /**
+     * @return The size of the first range to request for a new download.
+     */
+    public long getInitialSize() {
+        return initialSize;
+    }
+
+    /**
+     * Creates a new estimator for a single download.
+     *
+     * @param firstRangeSize The size of the range already requested.
+     * @return The new estimator.
+     */
+    public Download newDownload(final long firstRangeSize) {
+        return new Download(firstRangeSize);
+    }
+
+    /**
+     * @return The number of ranges we've requested.
+     */
+    public long getRanges() {
+        return ranges.get();
+    }
+
+    /**
+     * @return The average size of the ranges we've requested.
+     */
+    public long getAverageSize() {
+        final long count = ranges.get();
+        if (count == 0) {
+            return 0L;
+        }
+        return rangeBytes.get() / count;
+    }
+
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        json.put("ranges", getRanges());
+        json.put("average_size", getAverageSize());
+        json.put("smallest", getRanges() == 0 ? 0L : smallest.get());
+        json.put("largest", largest.get());
+        json.put("initial_size", getInitialSize());
+        return json;
+    }
+
+    private void record(final long size) {
+        ranges.incrementAndGet();
+        rangeBytes.addAndGet(size);
+        long cur;
+        while (size < (cur = smallest.get())) {
+            if (smallest.compareAndSet(cur, size)) {
+                break;
+            }
+        }
+        while (size > (cur = largest.get())) {
+            if (largest.compareAndSet(cur, size)) {
+                break;
+            }
+        }
+    }
+
+    private long clamp(final long size) {
+        return Math.max(minSize, Math.min(maxSize, size));
+    }
+
+    /**
+     * Range size estimator for a single download.
+     */
+    public final class Download {
+
+        private long size;
+
+        private boolean slowStart = true;
+
+        private Download(final long firstRangeSize) {
+            this.size = clamp(firstRangeSize);
+        }
+
+        /**
+         * Returns the size of the next range to request and records it.
+         *
+         * @return The size in bytes.
+         */
+        public synchronized long nextSize() {
+            record(size);
+            return size;
+        }
+
+        /**
+         * Returns the current size without recording it.
+         *
+         * @return The size in bytes.
+         */
+        public synchronized long currentSize() {
+            return size;
+        }
+
+        /**
+         * Adjusts the range size based on how a completed range performed.
+         *
+         * @param bytes The size of the range.
+         * @param firstByte The time from sending the request to getting
+         * the response headers, which we use as the round trip time.
+         * @param total The time from sending the request to getting the
+         * last byte.
+         */
+        public synchronized void onRange(final long bytes,
+            final long firstByte, final long total) {
+            final long rtt = Math.max(1L, firstByte);
+            final long transfer = Math.max(1L, total - firstByte);
+            final long target = clamp(bytes * rtt * TARGET_RTTS / transfer);
+            if (slowStart) {
+                if (size >= target) {
+                    slowStart = false;
+                    size = target;
+                } else {
+                    size = clamp(size * 2);
+                }
+            } else {
+                // Move most of the way to the target, smoothing out noise.
+                size = clamp((size + 3 * target) / 4);
+            }
+        }
+
+        /**
+         * Halves the range size after a range failed part way through.
+         */
+        public synchronized void onFailure() {
+            slowStart = false;
+            size = clamp(size / 2);
+        }
+
+        /**
+         * Feeds what we learned into the starting size for future
+         * downloads.
+         */
+        public synchronized void finish() {
+            initialSize = clamp(
+                (long) (ALPHA * size + (1 - ALPHA) * initialSize));
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.lantern;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies backpressure to everything we relay between two connections.
+ * When the channel we're writing to can't keep up we stop reading from the
+ * connection the data is coming from, and start reading again once the
+ * slow channel has drained. On top of that we keep a single budget for the
+ * bytes written to any relay channel but not yet flushed to the network, so
+ * lots of connections that are each within their own limits can't add up
+ * to more memory than we want to spend on them.
+ */
+public class RelayBackpressure {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final String HANDLER_NAME = "backpressure";
+
+    private final long limit;
+
+    private final AtomicLong inFlight = new AtomicLong(0L);
+
+    private final AtomicLong suspensions = new AtomicLong(0L);
+
+    /**
+     * Channels we stopped reading from because we were over budget.
+     */
+    private final Queue<Channel> overBudget =
+        new ConcurrentLinkedQueue<Channel>();
+
+    public RelayBackpressure() {
+        this(LanternConstants.RELAY_BUFFER_LIMIT);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param limit The maximum number of relayed bytes we hold in write
+     * buffers across all channels before we stop reading.
+     */
+    public RelayBackpressure(final long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Writes a message read from one channel to another. If the target
+     * can't take any more data, or we're over the global budget, we stop
+     * reading from the source until there's room again.
+     *
+     * @param source The channel the message was read from.
+     * @param target The channel to write to.
+     * @param msg The message.
+     * @return The future for the write.
+     */
+    public ChannelFuture relay(final Channel source, final Channel target,
+        final Object msg) {
+        final ChannelFuture future = write(target, msg);
+        if (!target.isWritable()) {
+            suspend(source, target);
+        } else if (inFlight.get() > limit) {
+            suspensions.incrementAndGet();
+            source.setReadable(false);
+            overBudget.add(source);
+            // The last write may have completed before we were queued.
+            if (inFlight.get() <= limit / 2) {
+                resumeOverBudget();
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Writes a message read by a thread blocking on a socket or other
+     * stream. Instead of suspending reads we simply block the reading
+     * thread until the write completes whenever the target isn't keeping up.
+     *
+     * @param target The channel to write to.
+     * @param msg The message.
+     */
+    public void relayBlocking(final Channel target, final Object msg) {
+        final ChannelFuture future = write(target, msg);
+        if (!target.isWritable() || inFlight.get() > limit) {
+            suspensions.incrementAndGet();
+            future.awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * Creates a handler for relays where code we don't own does the writes,
+     * such as the relay pipelines littleproxy builds for unproxied
+     * requests. The handler goes in the pipeline of the channel we read
+     * from, passes each message on to be written and then stops reading if
+     * the target can't keep up. We can't see how much those writes buffer,
+     * so they don't count against the global budget.
+     *
+     * @param target The channel the relay writes to.
+     * @return The handler.
+     */
+    public ChannelHandler newThrottle(final Channel target) {
+        return new SimpleChannelUpstreamHandler() {
+            @Override
+            public void messageReceived(final ChannelHandlerContext ctx,
+                final MessageEvent e) throws Exception {
+                super.messageReceived(ctx, e);
+                if (!target.isWritable()) {
+                    suspend(ctx.getChannel(), target);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return The number of relayed bytes written to channels but not yet
+     * flushed.
+     */
+    public long getInFlightBytes() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return The number of times we've held back a reader.
+     */
+    public long getSuspensions() {
+        return suspensions.get();
+    }
+
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        json.put("in_flight_bytes", getInFlightBytes());
+        json.put("limit", limit);
+        json.put("suspensions", getSuspensions());
+        return json;
+    }
+
+    private ChannelFuture write(final Channel target, final Object msg) {
+        // The size has to be read before the write consumes the buffer.
+        final long size = sizeOf(msg);
+        inFlight.addAndGet(size);
+        final ChannelFuture future = target.write(msg);
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture cf) {
+                if (inFlight.addAndGet(-size) <= limit / 2) {
+                    resumeOverBudget();
+                }
+            }
+        });
+        return future;
+    }
+
+    private void suspend(final Channel source, final Channel target) {
+        suspensions.incrementAndGet();
+        source.setReadable(false);
+        final WritabilityHandler handler = handlerFor(target);
+        handler.add(source);
+        // The target may have drained before we registered.
+        if (target.isWritable() || !target.isOpen()) {
+            handler.resumeAll();
+        }
+    }
+
+    private WritabilityHandler handlerFor(final Channel target) {
+        final ChannelPipeline pipeline = target.getPipeline();
+        synchronized (pipeline) {
+            WritabilityHandler handler =
+                (WritabilityHandler) pipeline.get(HANDLER_NAME);
+            if (handler == null) {
+                handler = new WritabilityHandler();
+                pipeline.addFirst(HANDLER_NAME, handler);
+            }
+            return handler;
+        }
+    }
+
+    private void resumeOverBudget() {
+        Channel source;
+        while (inFlight.get() <= limit && (source = overBudget.poll()) != null) {
+            resume(source);
+        }
+    }
+
+    private void resume(final Channel source) {
+        if (inFlight.get() > limit) {
+            overBudget.add(source);
+        } else if (source.isOpen()) {
+            source.setReadable(true);
+        }
+    }
+
+    private static long sizeOf(final Object msg) {
+        if (msg instanceof ChannelBuffer) {
+            return ((ChannelBuffer) msg).readableBytes();
+        }
+        if (msg instanceof HttpChunk) {
+            return ((HttpChunk) msg).getContent().readableBytes();
+        }
+        if (msg instanceof HttpMessage) {
+            return ((HttpMessage) msg).getContent().readableBytes();
+        }
+        return 0L;
+    }
+
+    /**
+     * Sits at the front of a relay target's pipeline and resumes reading
+     * from the channels feeding it once it's writable again.
+     */
+    private final class WritabilityHandler
+        extends SimpleChannelUpstreamHandler {
+
+        private final Set<Channel> sources = new LinkedHashSet<Channel>();
+
+        private void add(final Channel source) {
+            synchronized (sources) {
+                sources.add(source);
+            }
+        }
+
+        private void resumeAll() {
+            final List<Channel> toResume;
+            synchronized (sources) {
+                toResume = new ArrayList<Channel>(sources);
+                sources.clear();
+            }
+            for (final Channel source : toResume) {
+                resume(source);
+            }
+        }
+
+        @Override
+        public void channelInterestChanged(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+            if (e.getChannel().isWritable()) {
+                resumeAll();
+            }
+            super.channelInterestChanged(ctx, e);
+        }
+
+        @Override
+        public void channelClosed(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+            // Let the sources read so they notice their peer is gone.
+            log.debug("Relay target closed -- resuming sources");
+            resumeAll();
+            super.channelClosed(ctx, e);
+        }
+    }
+}
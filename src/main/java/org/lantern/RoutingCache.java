@@ -0,0 +1,269 @@
+package org.lantern;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.json.simple.JSONObject;
+import org.lantern.httpseverywhere.RuleIndex;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches how we route requests to each host. A single page typically makes
+ * dozens of requests to the same few hosts, and without this we'd check
+ * the whitelist, parsing the URI and referer, and look up HTTPS Everywhere
+ * rules for every one of them.
+ *
+ * Decisions are keyed by the scheme, the host and the host of the referer,
+ * since the whitelist goes by the referer when there is one. Hosts are
+ * found with the same parser the whitelist uses, and looking up a decision
+ * compares them in place in the URIs, ignoring case, so a hit doesn't
+ * build any strings. Each decision remembers the whitelist entries and
+ * HTTPS Everywhere rules it was made with, and we make it again if either
+ * has been replaced since. The cache holds a bounded number of hosts and
+ * forgets decisions after a while.
+ */
+public class RoutingCache {
+
+    private final Cache<Key, Decision> decisions;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxHosts The maximum number of decisions to keep.
+     * @param ttl How long in milliseconds to keep each decision.
+     */
+    public RoutingCache(final int maxHosts, final long ttl) {
+        this.decisions = CacheBuilder.newBuilder().maximumSize(maxHosts).
+            expireAfterWrite(ttl, TimeUnit.MILLISECONDS).build();
+    }
+
+    /**
+     * Returns how to route the given request with the current whitelist
+     * and HTTPS Everywhere rules.
+     *
+     * @param request The request.
+     * @return The decision.
+     */
+    public Decision decide(final HttpRequest request) {
+        return decide(request, LanternHub.whitelist(),
+            LanternHub.httpsEverywhere().ruleIndex());
+    }
+
+    /**
+     * Returns how to route the given request with the given whitelist and
+     * rules.
+     *
+     * @param request The request.
+     * @param whitelist The whitelist.
+     * @param rules The HTTPS Everywhere rules.
+     * @return The decision.
+     */
+    public Decision decide(final HttpRequest request,
+        final Whitelist whitelist, final RuleIndex rules) {
+        final String uri = request.getUri();
+        final boolean http = uri.startsWith("http://");
+        final String referer = request.getHeader(HttpHeaders.Names.REFERER);
+        final Key key = new Key(http, uri,
+            StringUtils.isBlank(referer) ? "" : referer);
+
+        // Get the entries before we check them so that if they change in
+        // the meantime the decision is made again next time.
+        final Collection<WhitelistEntry> entries = whitelist.getEntries();
+        final Decision cached = decisions.getIfPresent(key);
+        if (cached != null && cached.entries == entries &&
+            cached.rules == rules) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        final Decision decision = new Decision(
+            whitelist.isWhitelisted(request),
+            http && !rules.get(WhitelistMatcher.toHost(uri)).isEmpty(),
+            entries, rules);
+        // Store a copy of just the hosts rather than hold on to the URIs.
+        decisions.put(key.compact(), decision);
+        return decision;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the fraction of requests we routed using a cached decision.
+     *
+     * @return The hit rate, or 0 if we haven't routed anything yet.
+     */
+    public double getHitRate() {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * @return The number of decisions currently cached.
+     */
+    public long size() {
+        return decisions.size();
+    }
+
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        json.put("hits", getHits());
+        json.put("misses", getMisses());
+        json.put("hit_rate", getHitRate());
+        json.put("size", size());
+        return json;
+    }
+
+    /**
+     * The scheme, host and referer host of a request. The hosts are ranges
+     * of the URIs they came from, compared ignoring case.
+     */
+    private static final class Key {
+
+        private final boolean http;
+
+        private final String uri;
+
+        private final int hostStart;
+
+        private final int hostEnd;
+
+        private final String referer;
+
+        private final int refererStart;
+
+        private final int refererEnd;
+
+        private final int hash;
+
+        private Key(final boolean http, final String uri,
+            final String referer) {
+            this(http, uri, WhitelistMatcher.hostBounds(uri), referer,
+                referer.length() == 0 ? 0L :
+                    WhitelistMatcher.hostBounds(referer));
+        }
+
+        private Key(final boolean http, final String uri, final long host,
+            final String referer, final long refererHost) {
+            this.http = http;
+            this.uri = uri;
+            this.hostStart = (int) (host >>> 32);
+            this.hostEnd = (int) host;
+            this.referer = referer;
+            this.refererStart = (int) (refererHost >>> 32);
+            this.refererEnd = (int) refererHost;
+            int h = http ? 1 : 0;
+            h = hash(h, uri, hostStart, hostEnd);
+            h = hash(h, referer, refererStart, refererEnd);
+            this.hash = h;
+        }
+
+        /**
+         * @return A copy of the key that only holds on to the hosts.
+         */
+        private Key compact() {
+            final String host = uri.substring(hostStart, hostEnd);
+            final String refererHost =
+                referer.substring(refererStart, refererEnd);
+            return new Key(http, host, host.length(), refererHost,
+                refererHost.length());
+        }
+
+        private static int hash(int h, final String s, final int start,
+            final int end) {
+            for (int i = start; i < end; i++) {
+                h = 31 * h + Character.toLowerCase(s.charAt(i));
+            }
+            return 31 * h + (end - start);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            final int hostLength = hostEnd - hostStart;
+            final int refererLength = refererEnd - refererStart;
+            return hash == other.hash && http == other.http &&
+                hostLength == other.hostEnd - other.hostStart &&
+                refererLength == other.refererEnd - other.refererStart &&
+                uri.regionMatches(true, hostStart, other.uri,
+                    other.hostStart, hostLength) &&
+                referer.regionMatches(true, refererStart, other.referer,
+                    other.refererStart, refererLength);
+        }
+    }
+
+    /**
+     * How to route requests for a host.
+     */
+    public static final class Decision {
+
+        private final boolean whitelisted;
+
+        private final boolean httpsRules;
+
+        private final Collection<WhitelistEntry> entries;
+
+        private final RuleIndex rules;
+
+        private Decision(final boolean whitelisted, final boolean httpsRules,
+            final Collection<WhitelistEntry> entries, final RuleIndex rules) {
+            this.whitelisted = whitelisted;
+            this.httpsRules = httpsRules;
+            this.entries = entries;
+            this.rules = rules;
+        }
+
+        /**
+         * @return Whether the host, or the referer host if there is one, is
+         * on the whitelist.
+         */
+        public boolean isWhitelisted() {
+            return whitelisted;
+        }
+
+        /**
+         * @return Whether any HTTPS Everywhere rules target the host, in
+         * which case the request might be redirected to HTTPS. This is
+         * always <code>false</code> for requests other than plain HTTP.
+         */
+        public boolean hasHttpsRules() {
+            return httpsRules;
+        }
+
+        /**
+         * @return The route for the request, given whether we're proxying
+         * all sites.
+         */
+        public DomainTraffic.Route getRoute(final boolean proxyAllSites) {
+            return proxyAllSites || whitelisted ?
+                DomainTraffic.Route.PROXIED : DomainTraffic.Route.DIRECT;
+        }
+    }
+}
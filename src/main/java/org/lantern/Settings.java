@@ -417,6 +417,15 @@ public class Settings implements MutableSettings {
         return LanternHub.statsTracker().getDownBytesPerSecond();
     }
     
+    /**
+     * @return A snapshot of the percentiles of request latencies on each
+     * route.
+     */
+    @JsonView(UIStateSettings.class)
+    public Map<String, Object> getLatency() {
+        return LanternHub.latencyTracker().toJson();
+    }
+
     @JsonView(UIStateSettings.class)
     public long getUpTotalThisRun() {
         return LanternHub.statsTracker().getUpBytesThisRun();
@@ -0,0 +1,164 @@
+package org.lantern;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.SocketChannel;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single client transport shared by every outbound bootstrap in Lantern.
+ * This wraps one {@link NioClientSocketChannelFactory} with a worker count
+ * sized to the number of cores and a single boss thread so the number of
+ * selector threads stays fixed no matter how many browser connections we
+ * relay.
+ *
+ * Callers frequently hand this to third party code that calls
+ * {@link #releaseExternalResources()} when it's done with a bootstrap, so
+ * that call is ignored here. The transport is only torn down through
+ * {@link #stop()}, which happens on shutdown.
+ */
+public class SharedClientSocketChannelFactory
+    implements ClientSocketChannelFactory {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Netty's NIO client only ever uses a single boss thread per factory.
+     */
+    private static final int BOSS_THREADS = 1;
+
+    private final AtomicInteger liveThreads = new AtomicInteger(0);
+
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+    private final ChannelGroup allChannels =
+        new DefaultChannelGroup("Shared-Client-Channels");
+
+    private final ExecutorService bossExecutor;
+
+    private final ExecutorService workerExecutor;
+
+    private final NioClientSocketChannelFactory delegate;
+
+    private final int workerCount;
+
+    /**
+     * Creates a new shared factory with one worker per available core,
+     * doubled as Netty does by default.
+     */
+    public SharedClientSocketChannelFactory() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Creates a new shared factory with the specified number of workers.
+     *
+     * @param workerCount The number of NIO worker threads to use.
+     */
+    public SharedClientSocketChannelFactory(final int workerCount) {
+        this.workerCount = workerCount;
+        this.bossExecutor = Executors.newFixedThreadPool(BOSS_THREADS,
+            newThreadFactory("Lantern-Client-Boss"));
+        this.workerExecutor = Executors.newFixedThreadPool(workerCount,
+            newThreadFactory("Lantern-Client-Worker"));
+        this.delegate = new NioClientSocketChannelFactory(bossExecutor,
+            workerExecutor, workerCount);
+        log.info("Created shared client transport with {} workers",
+            workerCount);
+    }
+
+    private ThreadFactory newThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger(0);
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Runnable counted = new Runnable() {
+                    @Override
+                    public void run() {
+                        liveThreads.incrementAndGet();
+                        try {
+                            r.run();
+                        } finally {
+                            liveThreads.decrementAndGet();
+                        }
+                    }
+                };
+                final Thread t =
+                    new Thread(counted, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    @Override
+    public SocketChannel newChannel(final ChannelPipeline pipeline) {
+        if (stopped.get()) {
+            throw new IllegalStateException("Client transport stopped");
+        }
+        final SocketChannel ch = this.delegate.newChannel(pipeline);
+
+        // Closed channels are removed from the group automatically.
+        allChannels.add(ch);
+        return ch;
+    }
+
+    /**
+     * This is a no-op since the factory is shared. Use {@link #stop()} to
+     * actually release resources.
+     */
+    @Override
+    public void releaseExternalResources() {
+        log.debug("Ignoring release request on shared client transport");
+    }
+
+    /**
+     * Closes all open client channels and releases all threads used by
+     * this factory.
+     */
+    public void stop() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        log.info("Stopping shared client transport");
+        allChannels.close().awaitUninterruptibly(6 * 1000);
+        this.delegate.releaseExternalResources();
+        log.info("Stopped shared client transport");
+    }
+
+    /**
+     * Gauge for the number of threads currently running on behalf of this
+     * transport, both boss and worker.
+     *
+     * @return The number of live threads.
+     */
+    public int getLiveThreads() {
+        return liveThreads.get();
+    }
+
+    /**
+     * Gauge for the number of client channels currently open.
+     *
+     * @return The number of open channels.
+     */
+    public int getOpenChannels() {
+        return allChannels.size();
+    }
+
+    /**
+     * @return The maximum number of threads this transport will ever use.
+     */
+    public int getMaxThreads() {
+        return workerCount + BOSS_THREADS;
+    }
+}
@@ -0,0 +1,133 @@
+package org.lantern;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the items with the largest totals in a stream using a fixed number
+ * of counters, with the Space-Saving algorithm of Metwally et al. When an
+ * item we have no counter for arrives and all the counters are in use, it
+ * takes over the counter with the smallest total, inheriting that total as
+ * its possible overcount. Any item whose true total is more than the total
+ * of everything divided by the number of counters is guaranteed a counter.
+ *
+ * @param <T> The type of the items.
+ */
+public class SpaceSaving<T> {
+
+    private final int capacity;
+
+    private final Map<T, Counter<T>> counters;
+
+    /**
+     * Creates a new tracker.
+     *
+     * @param capacity The number of counters, and so the most items we
+     * track at once.
+     */
+    public SpaceSaving(final int capacity) {
+        this.capacity = capacity;
+        this.counters = new HashMap<T, Counter<T>>(capacity * 2);
+    }
+
+    /**
+     * Adds to the total for an item.
+     *
+     * @param item The item.
+     * @param count The amount to add.
+     */
+    public synchronized void offer(final T item, final long count) {
+        final Counter<T> counter = counters.get(item);
+        if (counter != null) {
+            counter.count += count;
+            return;
+        }
+        if (counters.size() < capacity) {
+            counters.put(item, new Counter<T>(item, count, 0L));
+            return;
+        }
+        Counter<T> min = null;
+        for (final Counter<T> candidate : counters.values()) {
+            if (min == null || candidate.count < min.count) {
+                min = candidate;
+            }
+        }
+        counters.remove(min.item);
+        min.item = item;
+        min.error = min.count;
+        min.count += count;
+        counters.put(item, min);
+    }
+
+    /**
+     * @return Copies of the counters, largest first.
+     */
+    public synchronized List<Counter<T>> top() {
+        final List<Counter<T>> top =
+            new ArrayList<Counter<T>>(counters.size());
+        for (final Counter<T> counter : counters.values()) {
+            top.add(new Counter<T>(counter.item, counter.count,
+                counter.error));
+        }
+        Collections.sort(top, new Comparator<Counter<T>>() {
+            @Override
+            public int compare(final Counter<T> c1, final Counter<T> c2) {
+                if (c1.count == c2.count) {
+                    return 0;
+                }
+                return c1.count > c2.count ? -1 : 1;
+            }
+        });
+        return top;
+    }
+
+    /**
+     * Forgets all items.
+     */
+    public synchronized void clear() {
+        counters.clear();
+    }
+
+    /**
+     * The total for an item.
+     *
+     * @param <T> The type of the item.
+     */
+    public static final class Counter<T> {
+
+        private T item;
+
+        private long count;
+
+        private long error;
+
+        private Counter(final T item, final long count, final long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * @return The total for the item, which may overcount it by up to
+         * {@link #getError()}.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The most the total may overcount the item by.
+         */
+        public long getError() {
+            return error;
+        }
+    }
+}
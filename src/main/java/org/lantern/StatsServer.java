@@ -1,152 +1,444 @@
 package org.lantern;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Class that serves JSON stats over REST.
+ * Class that serves JSON stats over REST, along with our metrics in the
+ * OpenMetrics text format at /metrics.
+ *
+ * The server runs on Netty, so any number of clients can hold keep-alive
+ * connections open without tying up threads. The full stats and the
+ * metrics, which is what most clients ask for, are serialized and gzipped
+ * in the background every {@link LanternConstants#STATS_SNAPSHOT_INTERVAL}
+ * while anyone is asking for them, so serving them is just writing out
+ * bytes we already have. That happens on its own thread rather than the
+ * shared timer, so a slow or failed refresh can't hold up or cancel
+ * anything else.
  */
 public class StatsServer {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
-    
-    private final ExecutorService service = 
-        Executors.newCachedThreadPool(new ThreadFactory() {
-            
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * We stop refreshing snapshots nobody has asked for in this long.
+     */
+    private static final long ACTIVE_WINDOW = 60 * 1000;
+
+    /**
+     * Responses smaller than this aren't worth compressing.
+     */
+    private static final int MIN_GZIP_BYTES = 256;
+
+    private static final String JSON = "application/json";
+
+    private final ChannelGroup allChannels =
+        new DefaultChannelGroup("Stats-Server");
+
+    private final ServerBootstrap bootstrap = new ServerBootstrap(
+        new NioServerSocketChannelFactory(
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "Stats-Server-Boss");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }),
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "Stats-Server-Worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            })));
+
+    private final ScheduledExecutorService refresher =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
             @Override
             public Thread newThread(final Runnable r) {
-                final Thread t = new Thread(r, "Stats-Client-Thread");
+                final Thread t = new Thread(r, "Stats-Snapshot-Refresher");
                 t.setDaemon(true);
                 return t;
             }
         });
-    
+
+    private ScheduledFuture<?> refreshTask;
+
+    private final Snapshot stats = new Snapshot(JSON) {
+        @Override
+        protected String generate() {
+            return LanternHub.statsTracker().toJson();
+        }
+    };
+
+    private final Snapshot metrics = new Snapshot(OpenMetrics.CONTENT_TYPE) {
+        @Override
+        protected String generate() {
+            return LanternHub.statsTracker().toMetrics();
+        }
+    };
+
     public void serve() {
-        service.execute(new Runnable() {
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                final ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("decoder", new HttpRequestDecoder());
+                pipeline.addLast("aggregator", new HttpChunkAggregator(65536));
+                pipeline.addLast("encoder", new HttpResponseEncoder());
+                pipeline.addLast("handler", new StatsHandler());
+                return pipeline;
+            }
+        });
+        final Channel channel = bootstrap.bind(new InetSocketAddress(
+            "127.0.0.1", LanternConstants.STATS_SERVER_PORT));
+        allChannels.add(channel);
+
+        refreshTask = refresher.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
+                // An exception would stop all future refreshes.
                 try {
-                    final ServerSocket server = new ServerSocket();
-                    server.bind(new InetSocketAddress("127.0.0.1", 7878));
-                    while (true) {
-                        final Socket sock = server.accept();
-                        processSocket(sock);
-                    }
-                } catch (final IOException e) {
-                    log.error("Could not run stats server?", e);
+                    stats.refreshIfActive();
+                    metrics.refreshIfActive();
+                } catch (final RuntimeException e) {
+                    log.error("Could not refresh stats", e);
                 }
             }
-        });
+        }, LanternConstants.STATS_SNAPSHOT_INTERVAL,
+            LanternConstants.STATS_SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
-    private void processSocket(final Socket sock) {
-        service.execute(new Runnable() {
+    public void stop() {
+        log.info("Shutting down stats server");
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+        }
+        refresher.shutdown();
+        allChannels.close().awaitUninterruptibly(6 * 1000);
+        bootstrap.releaseExternalResources();
+    }
 
-            @Override
-            public void run() {
-                log.info("Got socket!!");
+    /**
+     * Returns the JSON for a request, or <code>null</code> if we have
+     * nothing at the requested path.
+     */
+    private String json(final String path,
+        final Map<String, List<String>> params) {
+        if (path.equals("/history")) {
+            final long now = System.currentTimeMillis();
+            final long to = param(params, "to", now);
+            final long from = param(params, "from", to - 5 * 60 * 1000);
+            return LanternHub.statsTracker().historyJson(from, to,
+                param(params, "resolution", 0L));
+        } else if (path.equals("/domains")) {
+            final String domain = param(params, "domain");
+            if (StringUtils.isBlank(domain)) {
+                return LanternHub.domainTraffic().toJson().toJSONString();
+            }
+            return LanternHub.domainTraffic().toJson(domain).toJSONString();
+        } else if (path.equals("/latency")) {
+            return LanternHub.latencyTracker().toJson().toJSONString();
+        } else if (path.equals("/oni")) {
+            return LanternHub.statsTracker().oniJson();
+        } else if (path.startsWith("/country/")) {
+            final String country =
+                StringUtils.substringAfter(path, "/country/").trim();
+            return LanternHub.statsTracker().countryData(country);
+        } else if (path.equals("/googleContentRemovalProductReason")) {
+            return LanternHub.statsTracker().googleContentRemovalProductReason();
+        } else if (path.equals("/googleContentRemovalRequests")) {
+            return LanternHub.statsTracker().googleContentRemovalRequests();
+        } else if (path.equals("/googleUserRequests")) {
+            return LanternHub.statsTracker().googleUserRequests();
+        } else if (path.equals("/googleRemovalByProductRequests")) {
+            return LanternHub.statsTracker().googleRemovalByProductRequests();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of a numeric query parameter.
+     */
+    private long param(final Map<String, List<String>> params,
+        final String name, final long defaultValue) {
+        final String value = param(params, name);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            log.info("Bad value for {}: {}", name, value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of a query parameter, or <code>null</code> if there
+     * isn't one.
+     */
+    private static String param(final Map<String, List<String>> params,
+        final String name) {
+        final List<String> values = params.get(name);
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        return values.get(0);
+    }
+
+    private static byte[] gzip(final byte[] bytes) {
+        final ByteArrayOutputStream baos =
+            new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try {
+            final GZIPOutputStream gzip = new GZIPOutputStream(baos);
+            gzip.write(bytes);
+            gzip.close();
+        } catch (final IOException e) {
+            // Can't happen writing to memory.
+            throw new IllegalStateException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * A response body, along with its gzipped form once anyone's asked for
+     * it.
+     */
+    private static final class Body {
+
+        private final String contentType;
+
+        private final byte[] bytes;
+
+        private byte[] gzipped;
+
+        private final long created = System.currentTimeMillis();
+
+        private Body(final String contentType, final String text) {
+            this.contentType = contentType;
+            this.bytes = text.getBytes(UTF_8);
+        }
+
+        /**
+         * @return The gzipped body, or <code>null</code> if it's too small
+         * to be worth compressing.
+         */
+        private synchronized byte[] gzipped() {
+            if (gzipped == null && bytes.length >= MIN_GZIP_BYTES) {
+                gzipped = gzip(bytes);
+            }
+            return gzipped;
+        }
+    }
+
+    /**
+     * A body we generate in the background for all clients to share.
+     */
+    private abstract class Snapshot {
+
+        private final String contentType;
+
+        private volatile Body body;
+
+        private volatile long lastRequested;
+
+        private Snapshot(final String contentType) {
+            this.contentType = contentType;
+        }
+
+        protected abstract String generate();
+
+        private Body get() {
+            final long now = System.currentTimeMillis();
+            lastRequested = now;
+            final Body current = body;
+            final long maxAge = 2 * LanternConstants.STATS_SNAPSHOT_INTERVAL;
+            if (current == null) {
+                return refresh();
+            }
+            if (now - current.created >= maxAge) {
+                // We haven't been refreshing, so nobody's asked in a while.
+                // Serve what we have rather than generate it on this I/O 
+                // thread, and have a fresh one ready for next time.
                 try {
-                    final InputStream is = sock.getInputStream();
-                    final BufferedReader br = 
-                        new BufferedReader(new InputStreamReader(is, "UTF-8"));
-                    String cur = br.readLine();
-                    final String requestLine = cur;
-                    if (StringUtils.isBlank(cur)) {
-                        log.info("Closing blank request socket");
-                        IOUtils.closeQuietly(sock);
-                        return;
-                    } 
-                    
-                    
-                    while (StringUtils.isNotBlank(cur)) {
-                        log.info(cur);
-                        cur = br.readLine();
-                    }
-                    log.info("Read all headers...");
-
-                    final String json;
-                    if (requestLine.startsWith("GET /stats")) {
-                        json = LanternHub.statsTracker().toJson();
-                    } else if (requestLine.startsWith("GET /oni")) {
-                        json = LanternHub.statsTracker().oniJson();
-                    } else if (requestLine.startsWith("GET /country/")) {
-                        final String country;
-                        if (requestLine.contains("?")) {
-                            country = StringUtils.substringBetween(requestLine, "/country/", "?");
-                        } else {
-                            country = StringUtils.substringBetween(requestLine, "/country/", "HTTP");
+                    refresher.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                refresh();
+                            } catch (final RuntimeException e) {
+                                log.error("Could not refresh stats", e);
+                            }
                         }
-                            
-                        json = LanternHub.statsTracker().countryData(country);
-                    } else if (requestLine.startsWith("GET /googleContentRemovalProductReason")) {
-                        json = LanternHub.statsTracker().googleContentRemovalProductReason();
-                    } else if (requestLine.startsWith("GET /googleContentRemovalRequests")) {
-                        json = LanternHub.statsTracker().googleContentRemovalRequests();
-                    } else if (requestLine.startsWith("GET /googleUserRequests")) {
-                        json = LanternHub.statsTracker().googleUserRequests();
-                    } else if (requestLine.startsWith("GET /googleRemovalByProductRequests")) {
-                        json = LanternHub.statsTracker().googleRemovalByProductRequests();
-                    } else {
-                        json = "";
-                    }
-                    final String wrapped = wrapInCallback(requestLine, json);
-                    final String ct;
-                    if (json.equals(wrapped)) {
-                        ct = "application/json";
-                    } else {
-                        ct = "text/javascript";
-                    }
-                    OutputStream os = sock.getOutputStream();
-                    final String response = 
-                        "HTTP/1.1 200 OK\r\n"+
-                        "Content-Type: "+ct+"\r\n"+
-                        "Connection: close\r\n"+
-                        "Content-Length: "+wrapped.length()+"\r\n"+
-                        "\r\n"+
-                        wrapped;
-                    os.write(response.getBytes("UTF-8"));
-                } catch (final IOException e) {
-                    log.info("Exception serving stats!", e);
-                } finally {
-                    IOUtils.closeQuietly(sock);
+                    });
+                } catch (final RejectedExecutionException e) {
+                    // We're shutting down.
                 }
             }
-            
-        });
+            return current;
+        }
+
+        private void refreshIfActive() {
+            if (System.currentTimeMillis() - lastRequested < ACTIVE_WINDOW) {
+                refresh();
+            }
+        }
+
+        private synchronized Body refresh() {
+            final Body current = body;
+            if (current != null && System.currentTimeMillis() -
+                current.created < LanternConstants.STATS_SNAPSHOT_INTERVAL / 2) {
+                // Someone else just did it.
+                return current;
+            }
+            final Body fresh = new Body(contentType, generate());
+            // Most scrapers and browsers accept gzip, so compress it up
+            // front rather than on the first request.
+            fresh.gzipped();
+            body = fresh;
+            return fresh;
+        }
     }
 
-    
-    protected String wrapInCallback(final String rl, final String json) {
-        if (!rl.contains("callback=")) {
-            return json;
-        }
-        final String requestLine = 
-            StringUtils.substringBefore(rl, "HTTP").trim();
-        final String callback;
-        final String cb = 
-            StringUtils.substringAfter(requestLine, "callback=");
-        if (StringUtils.isBlank(cb)) {
-            return json;
-        }
-        if (cb.contains("&")) {
-            callback = StringUtils.substringBefore(cb, "&");
-        } else {
-            callback = cb;
-        }
-        return callback + "("+json+")";
+    private final class StatsHandler extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void channelOpen(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+            allChannels.add(e.getChannel());
+            super.channelOpen(ctx, e);
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent me) {
+            final HttpRequest request = (HttpRequest) me.getMessage();
+            final QueryStringDecoder query =
+                new QueryStringDecoder(request.getUri());
+            final String path = query.getPath();
+            final Map<String, List<String>> params = query.getParameters();
+            final String callback = param(params, "callback");
+
+            Body body;
+            if (request.getMethod() != HttpMethod.GET &&
+                request.getMethod() != HttpMethod.HEAD) {
+                body = null;
+            } else if (path.equals("/stats")) {
+                body = stats.get();
+            } else if (path.equals("/metrics")) {
+                body = metrics.get();
+            } else {
+                final String json = json(path, params);
+                body = json == null ? null : new Body(JSON, json);
+            }
+            if (body != null && StringUtils.isNotBlank(callback)) {
+                body = new Body("text/javascript",
+                    callback + "(" + new String(body.bytes, UTF_8) + ")");
+            }
+            respond(me.getChannel(), request, body);
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx,
+            final ExceptionEvent e) {
+            log.info("Exception serving stats", e.getCause());
+            e.getChannel().close();
+        }
+
+        private void respond(final Channel channel,
+            final HttpRequest request, final Body body) {
+            final HttpResponse response;
+            if (body == null) {
+                response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.NOT_FOUND);
+                response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, 0);
+            } else {
+                response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.OK);
+                response.setHeader(HttpHeaders.Names.CONTENT_TYPE,
+                    body.contentType);
+                response.setHeader(HttpHeaders.Names.VARY,
+                    HttpHeaders.Names.ACCEPT_ENCODING);
+                final String accept =
+                    request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING);
+                final byte[] gzipped = accept != null &&
+                    accept.contains(HttpHeaders.Values.GZIP) ?
+                    body.gzipped() : null;
+                final byte[] bytes;
+                if (gzipped != null) {
+                    response.setHeader(HttpHeaders.Names.CONTENT_ENCODING,
+                        HttpHeaders.Values.GZIP);
+                    bytes = gzipped;
+                } else {
+                    bytes = body.bytes;
+                }
+                response.setHeader(HttpHeaders.Names.CONTENT_LENGTH,
+                    bytes.length);
+                if (request.getMethod() != HttpMethod.HEAD) {
+                    response.setContent(ChannelBuffers.wrappedBuffer(bytes));
+                }
+            }
+            final boolean keepAlive = HttpHeaders.isKeepAlive(request);
+            if (keepAlive) {
+                if (request.getProtocolVersion() == HttpVersion.HTTP_1_0) {
+                    response.setHeader(HttpHeaders.Names.CONNECTION,
+                        HttpHeaders.Values.KEEP_ALIVE);
+                }
+            } else {
+                response.setHeader(HttpHeaders.Names.CONNECTION,
+                    HttpHeaders.Values.CLOSE);
+            }
+            final ChannelFuture future = channel.write(response);
+            if (!keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
     }
 }
@@ -8,21 +8,30 @@ import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.HashSet;
-import java.util.Set;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.lastbamboo.common.stun.client.PublicIpAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.maxmind.geoip.LookupService;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * Class for tracking all Lantern data. This also displays data from the 
@@ -89,6 +98,47 @@ public class StatsTracker implements LanternData {
     private static final ConcurrentHashMap<String, CountryData> countries = 
         new ConcurrentHashMap<String, StatsTracker.CountryData>();
     
+    /**
+     * The country data for each channel we've recorded traffic for. The 
+     * channels are weakly referenced, so entries go with the channel.
+     */
+    private static final ChannelLocal<CountryData> channelCountries = 
+        new ChannelLocal<CountryData>();
+    
+    /**
+     * The country data for recently seen addresses, so we don't have to 
+     * look up addresses we've already seen in the GeoIP database. This is
+     * consulted from every I/O thread, so it's a concurrent cache rather
+     * than a map behind a single lock.
+     */
+    private static final Cache<InetAddress, CountryData> addressCountries = 
+        CacheBuilder.newBuilder().maximumSize(
+            LanternConstants.GEOIP_CACHE_SIZE).build();
+    
+    private static final AtomicLong geoIpHits = new AtomicLong(0L);
+    
+    private static final AtomicLong geoIpMisses = new AtomicLong(0L);
+    
+    /**
+     * The bucket bounds in microseconds of the latency histograms we export,
+     * powers of two from about a tenth of a millisecond to half a minute.
+     */
+    private static final long[] LATENCY_BUCKETS = new long[19];
+    
+    static {
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            LATENCY_BUCKETS[i] = 1L << (i + 7);
+        }
+    }
+    
+    /**
+     * The country of our public address, which takes a network lookup to
+     * find, so we only do it once.
+     */
+    private volatile String homeland;
+    
+    private final AtomicBoolean lookingUpHomeland = new AtomicBoolean(false);
+    
     static {
         // Adding Cuba and North Korea since ONI has no data for them but they
         // seem to clearly censor.
@@ -146,7 +196,20 @@ public class StatsTracker implements LanternData {
         
     }
 
-    public StatsTracker() {}
+    /**
+     * The last second we added to the traffic history.
+     */
+    private long lastHistorySecond = -1;
+
+    public StatsTracker() {
+        // Roll each second up into the stored history once it's complete.
+        LanternHub.timer().scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                recordHistory(System.currentTimeMillis());
+            }
+        }, ONE_SECOND, ONE_SECOND);
+    }
 
     private static void addGoogleProductAndReason(final String[] columnNames, 
         final String fileName, final int countryCodeIndex, 
@@ -412,6 +475,8 @@ public class StatsTracker implements LanternData {
         upBytesPerSecondToPeers.reset();
         downBytesPerSecondFromPeers.reset();
         peersPerSecond.reset();
+        LanternHub.trafficHistory().reset();
+        LanternHub.latencyTracker().reset();
         // others?
     }
     
@@ -506,12 +571,37 @@ public class StatsTracker implements LanternData {
         return (long) (ts.windowAverage(windowStart, windowEnd) + 0.5);
     }
     
+    private synchronized void recordHistory(final long now) {
+        // The last complete second. We only keep the couple of seconds 
+        // before that, so if we've fallen further behind the rest is lost.
+        final long second = now / ONE_SECOND - 1;
+        final long first = 
+            Math.max(lastHistorySecond + 1, second - DATA_RATE_SECONDS);
+        final TrafficHistory history = LanternHub.trafficHistory();
+        for (long s = first; s <= second; s++) {
+            final long start = s * ONE_SECOND;
+            final long end = start + ONE_SECOND - 1;
+            history.record(start, new long[] {
+                (long) upBytesPerSecondViaProxies.windowTotal(start, end),
+                (long) downBytesPerSecondViaProxies.windowTotal(start, end),
+                (long) upBytesPerSecondForPeers.windowTotal(start, end),
+                (long) downBytesPerSecondForPeers.windowTotal(start, end),
+                (long) upBytesPerSecondToPeers.windowTotal(start, end),
+                (long) downBytesPerSecondFromPeers.windowTotal(start, end),
+                (long) peersPerSecond.windowTotal(start, end),
+            });
+        }
+        lastHistorySecond = second;
+    }
+    
     /**
      * request bytes this lantern proxy sent to other lanterns for proxying
      */
     public void addUpBytesViaProxies(final long bp, final Channel channel) {
         upBytesPerSecondViaProxies.addData(bp);
-        log.debug("upBytesPerSecondViaProxies += {} up-rate {}", bp, getUpBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("upBytesPerSecondViaProxies += {} up-rate {}", bp, getUpBytesPerSecond());
+        }
     }
 
     /**
@@ -519,7 +609,9 @@ public class StatsTracker implements LanternData {
      */
     public void addUpBytesViaProxies(final long bp, final Socket sock) {
         upBytesPerSecondViaProxies.addData(bp);
-        log.debug("upBytesPerSecondViaProxies += {} up-rate {}", bp, getUpBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("upBytesPerSecondViaProxies += {} up-rate {}", bp, getUpBytesPerSecond());
+        }
     }
 
     /**
@@ -528,7 +620,9 @@ public class StatsTracker implements LanternData {
      */
     public void addUpBytesForPeers(final long bp, final Channel channel) {
         upBytesPerSecondForPeers.addData(bp);
-        log.debug("upBytesPerSecondForPeers += {} up-rate {}", bp, getUpBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("upBytesPerSecondForPeers += {} up-rate {}", bp, getUpBytesPerSecond());
+        }
     }
 
     /**
@@ -537,7 +631,9 @@ public class StatsTracker implements LanternData {
      */
     public void addUpBytesForPeers(final long bp, final Socket sock) {
         upBytesPerSecondForPeers.addData(bp);
-        log.debug("upBytesPerSecondForPeers += {} up-rate {}", bp, getUpBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("upBytesPerSecondForPeers += {} up-rate {}", bp, getUpBytesPerSecond());
+        }
     }
 
     /**
@@ -545,7 +641,9 @@ public class StatsTracker implements LanternData {
      */
     public void addDownBytesViaProxies(final long bp, final Channel channel) {
         downBytesPerSecondViaProxies.addData(bp);
-        log.debug("downBytesPerSecondViaProxies += {} down-rate {}", bp, getDownBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("downBytesPerSecondViaProxies += {} down-rate {}", bp, getDownBytesPerSecond());
+        }
     }
 
     /**
@@ -553,7 +651,9 @@ public class StatsTracker implements LanternData {
      */
     public void addDownBytesViaProxies(final long bp, final Socket sock) {
         downBytesPerSecondViaProxies.addData(bp);
-        log.debug("downBytesPerSecondViaProxies += {} down-rate {}", bp, getDownBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("downBytesPerSecondViaProxies += {} down-rate {}", bp, getDownBytesPerSecond());
+        }
     }
 
     /**
@@ -562,7 +662,9 @@ public class StatsTracker implements LanternData {
      */
     public void addDownBytesForPeers(final long bp, final Channel channel) {
         downBytesPerSecondForPeers.addData(bp);
-        log.debug("downBytesPerSecondForPeers += {} down-rate {}", bp, getDownBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("downBytesPerSecondForPeers += {} down-rate {}", bp, getDownBytesPerSecond());
+        }
     }
     /**
      * bytes downloaded on behalf of another lantern by this
@@ -570,7 +672,9 @@ public class StatsTracker implements LanternData {
      */
     public void addDownBytesForPeers(final long bp, final Socket sock) {
         downBytesPerSecondForPeers.addData(bp);
-        log.debug("downBytesPerSecondForPeers += {} down-rate {}", bp, getDownBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("downBytesPerSecondForPeers += {} down-rate {}", bp, getDownBytesPerSecond());
+        }
     }
     
     /**
@@ -578,14 +682,18 @@ public class StatsTracker implements LanternData {
      */
     public void addDownBytesFromPeers(final long bp, final Channel channel) {
         downBytesPerSecondFromPeers.addData(bp);
-        log.debug("downBytesPerSecondFromPeers += {} down-rate {}", bp, getDownBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("downBytesPerSecondFromPeers += {} down-rate {}", bp, getDownBytesPerSecond());
+        }
     }
     /**
      * request bytes sent by peers to this lantern
      */
     public void addDownBytesFromPeers(final long bp, final Socket sock) {
         downBytesPerSecondFromPeers.addData(bp);
-        log.debug("downBytesPerSecondFromPeers += {} down-rate {}", bp, getDownBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("downBytesPerSecondFromPeers += {} down-rate {}", bp, getDownBytesPerSecond());
+        }
     }
     
     /** 
@@ -593,14 +701,18 @@ public class StatsTracker implements LanternData {
      */
     public void addUpBytesToPeers(final long bp, final Channel channel) {
         upBytesPerSecondToPeers.addData(bp);
-        log.debug("upBytesPerSecondToPeers += {} up-rate {}", bp, getUpBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("upBytesPerSecondToPeers += {} up-rate {}", bp, getUpBytesPerSecond());
+        }
     }
     /** 
      * reply bytes send to peers by this lantern
      */
     public void addUpBytesToPeers(final long bp, final Socket sock) {
         upBytesPerSecondToPeers.addData(bp);
-        log.debug("upBytesPerSecondToPeers += {} up-rate {}", bp, getUpBytesPerSecond());
+        if (log.isDebugEnabled()) {
+            log.debug("upBytesPerSecondToPeers += {} up-rate {}", bp, getUpBytesPerSecond());
+        }
     }
 
 
@@ -608,7 +720,7 @@ public class StatsTracker implements LanternData {
         bytesProxied.addAndGet(bp);
         final CountryData cd = toCountryData(channel);
         if (cd != null) {
-            cd.bytes += bp;
+            cd.addBytes((InetSocketAddress) channel.getRemoteAddress(), bp);
         }
         else {
             log.warn("No CountryData for {} Not adding bytes proxied.", channel);
@@ -619,13 +731,62 @@ public class StatsTracker implements LanternData {
         bytesProxied.addAndGet(bp);
         final CountryData cd = toCountryData(sock);
         if (cd != null) {
-            cd.bytes += bp;
+            cd.addBytes(
+                (InetSocketAddress) sock.getRemoteSocketAddress(), bp);
         }
         else {
             log.warn("No CountryData for {} Not adding bytes proxied.", sock);
         }
     }
 
+    /**
+     * Gauge for the number of threads used by the shared client transport.
+     */
+    public int getClientTransportThreads() {
+        return LanternHub.clientSocketChannelFactory().getLiveThreads();
+    }
+    
+    /**
+     * Gauge for the number of open channels on the shared client transport.
+     */
+    public int getClientTransportChannels() {
+        return LanternHub.clientSocketChannelFactory().getOpenChannels();
+    }
+    
+    /**
+     * Returns the fraction of SSL handshakes with our cloud proxies that
+     * resumed a cached session.
+     */
+    public double getProxySslResumptionRate() {
+        return resumptionRate(LanternHub.proxyConnectionPool());
+    }
+    
+    /**
+     * Returns the fraction of SSL handshakes with LAE proxies that resumed
+     * a cached session.
+     */
+    public double getLaeSslResumptionRate() {
+        return resumptionRate(LanternHub.laeConnectionPool());
+    }
+    
+    private double resumptionRate(final ProxyConnectionPool pool) {
+        final long resumed = pool.getResumedHandshakes();
+        final long total = resumed + pool.getFullHandshakes();
+        if (total == 0) {
+            return 0.0;
+        }
+        return (double) resumed / total;
+    }
+    
+    private JSONObject sslJson(final ProxyConnectionPool pool) {
+        final JSONObject json = new JSONObject();
+        json.put("full_handshakes", pool.getFullHandshakes());
+        json.put("resumed_handshakes", pool.getResumedHandshakes());
+        json.put("resumption_rate", resumptionRate(pool));
+        json.put("pool_waits", pool.getWaits());
+        return json;
+    }
+
     @Override
     public long getTotalBytesProxied() {
         return bytesProxied.get();
@@ -659,9 +820,19 @@ public class StatsTracker implements LanternData {
     }
 
     private CountryData toCountryData(final Channel channel) {
+        // The remote address of a channel never changes, so we only need to
+        // look it up once.
+        final CountryData cached = channelCountries.get(channel);
+        if (cached != null) {
+            return cached;
+        }
         final InetSocketAddress isa = 
             (InetSocketAddress) channel.getRemoteAddress();
-        return toCountryData(isa);
+        final CountryData cd = toCountryData(isa);
+        if (cd != null) {
+            channelCountries.set(channel, cd);
+        }
+        return cd;
     }
     
     
@@ -676,27 +847,76 @@ public class StatsTracker implements LanternData {
             return null;
         }
         
-        final LookupService ls = LanternHub.getGeoIpLookup();
         final InetAddress addr = isa.getAddress();
-        final Country country = new Country(ls.getCountry(addr));
-        final CountryData cd;
-        final CountryData temp = new CountryData(country);
-        final CountryData existing = 
-            countries.putIfAbsent(country.getCode(), temp);
-        if (existing == null) {
-            cd = temp;
-        } else {
-            cd = existing;
+        final CountryData cached = addressCountries.getIfPresent(addr);
+        if (cached != null) {
+            geoIpHits.incrementAndGet();
+            return cached;
+        }
+        geoIpMisses.incrementAndGet();
+        final com.maxmind.geoip.Country geo = 
+            LanternHub.geoIpTable().getCountry(addr);
+        CountryData cd = countries.get(geo.getCode());
+        if (cd == null) {
+            final CountryData temp = new CountryData(new Country(geo));
+            final CountryData existing = 
+                countries.putIfAbsent(geo.getCode(), temp);
+            cd = existing == null ? temp : existing;
         }
         
-        cd.addresses.add(addr);
+        cd.users.offer(addr.getAddress());
+        addressCountries.put(addr, cd);
         return cd;
     }
 
+    private JSONObject geoIpJson() {
+        final JSONObject json = new JSONObject();
+        json.put("hits", geoIpHits.get());
+        json.put("misses", geoIpMisses.get());
+        json.put("cached", addressCountries.size());
+        return json;
+    }
+
+    /**
+     * The key for the IDs we publish in place of the addresses of the
+     * users we proxy for. The stats are served as JSONP, so any page the
+     * user visits can read them, and the addresses themselves would give
+     * away who in a censored country is using us. The key is new each time
+     * we start, so IDs can't be matched up across runs or nodes.
+     */
+    private static final byte[] ADDRESS_KEY = new byte[32];
+    
+    static {
+        LanternHub.secureRandom().nextBytes(ADDRESS_KEY);
+    }
+    
+    /**
+     * Returns a keyed hash of the given address that tells addresses apart
+     * without revealing them.
+     */
+    private static String addressId(final InetAddress address) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(ADDRESS_KEY, "HmacSHA256"));
+            final byte[] hash = mac.doFinal(address.getAddress());
+            return new String(Hex.encodeHex(Arrays.copyOf(hash, 8)));
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("No HMAC-SHA256?", e);
+        }
+    }
+
     private static final class CountryData {
-        private final Set<InetAddress> addresses = new HashSet<InetAddress>();
-        private volatile int requests;
-        private volatile long bytes;
+        /**
+         * Estimates the number of distinct addresses we've seen from the 
+         * country in a fixed amount of memory.
+         */
+        private final HyperLogLog users = 
+            new HyperLogLog(LanternConstants.COUNTRY_USERS_PRECISION);
+        private final SpaceSaving<InetAddress> topAddresses = 
+            new SpaceSaving<InetAddress>(
+                LanternConstants.COUNTRY_TOP_ADDRESSES);
+        private final AtomicInteger requests = new AtomicInteger(0);
+        private final AtomicLong bytes = new AtomicLong(0L);
         
         private final JSONObject lanternData = new JSONObject();
         final JSONObject data = new JSONObject();
@@ -708,10 +928,27 @@ public class StatsTracker implements LanternData {
             data.put("lantern", lanternData);
         }
 
+        private void addBytes(final InetSocketAddress isa, final long bp) {
+            bytes.addAndGet(bp);
+            if (isa != null) {
+                topAddresses.offer(isa.getAddress(), bp);
+            }
+        }
+
         private JSONObject toJson() {
-            lanternData.put("users", addresses.size());
-            lanternData.put("proxied_bytes", bytes);
-            lanternData.put("proxied_requests", requests);
+            lanternData.put("users", users.cardinality());
+            lanternData.put("proxied_bytes", bytes.get());
+            lanternData.put("proxied_requests", requests.get());
+            final JSONArray top = new JSONArray();
+            for (final SpaceSaving.Counter<InetAddress> counter : 
+                topAddresses.top()) {
+                final JSONObject address = new JSONObject();
+                address.put("id", addressId(counter.getItem()));
+                address.put("proxied_bytes", counter.getCount());
+                address.put("error", counter.getError());
+                top.add(address);
+            }
+            lanternData.put("top_addresses", top);
 
             return data;
         }
@@ -724,10 +961,32 @@ public class StatsTracker implements LanternData {
         json.put("proxied_bytes", bytesProxied);
         json.put("proxied_requests", proxiedRequests);
         
-        final LookupService ls = LanternHub.getGeoIpLookup();
-        final InetAddress ia = new PublicIpAddress().getPublicIpAddress();
-        final String homeland = ls.getCountry(ia).getCode();
-        json.put("my_country", homeland);
+        final JSONObject transport = new JSONObject();
+        transport.put("threads", getClientTransportThreads());
+        transport.put("channels", getClientTransportChannels());
+        json.put("client_transport", transport);
+        
+        final JSONObject ssl = new JSONObject();
+        ssl.put("proxy", sslJson(LanternHub.proxyConnectionPool()));
+        ssl.put("lae", sslJson(LanternHub.laeConnectionPool()));
+        json.put("ssl", ssl);
+        json.put("proxies", LanternHub.proxyScorer().toJson());
+        json.put("hedging", LanternHub.hedgeTracker().toJson());
+        json.put("ranges", LanternHub.rangeSizer().toJson());
+        json.put("relay", LanternHub.relayBackpressure().toJson());
+        json.put("peer_transport", LanternHub.peerTransport().toJson());
+        final JSONObject peerPools = new JSONObject();
+        peerPools.put("trusted", LanternHub.trustedPeerProxyManager().toJson());
+        peerPools.put("anonymous", 
+            LanternHub.anonymousPeerProxyManager().toJson());
+        json.put("peer_pools", peerPools);
+        json.put("peer_scores", LanternHub.peerScorer().toJson());
+        json.put("history", LanternHub.trafficHistory().toJson());
+        json.put("geoip", geoIpJson());
+        json.put("latency", LanternHub.latencyTracker().toJson());
+        json.put("routing", LanternHub.routingCache().toJson());
+        
+        json.put("my_country", getHomeland());
         
         final JSONArray countryData = new JSONArray();
         json.put("countries", countryData);
@@ -739,6 +998,188 @@ public class StatsTracker implements LanternData {
         return json.toJSONString();
     }
 
+    /**
+     * Returns the code of the country we're in, or the unknown country
+     * code until we've looked up our public address. That lookup goes out
+     * over the network, so we do it once in the background rather than on
+     * whatever thread is asking.
+     */
+    private String getHomeland() {
+        final String known = homeland;
+        if (known != null) {
+            return known;
+        }
+        if (lookingUpHomeland.compareAndSet(false, true)) {
+            final Thread lookup = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final InetAddress ia = 
+                            new PublicIpAddress().getPublicIpAddress();
+                        if (ia != null) {
+                            homeland = LanternHub.geoIpTable().getCountry(
+                                ia).getCode();
+                        }
+                    } catch (final RuntimeException e) {
+                        log.warn("Could not look up our country", e);
+                    } finally {
+                        // If we didn't get it we try again next time.
+                        lookingUpHomeland.set(false);
+                    }
+                }
+            }, "Homeland-Lookup-Thread");
+            lookup.setDaemon(true);
+            lookup.start();
+        }
+        return LanternHub.geoIpTable().getCountry((InetAddress) null).getCode();
+    }
+
+    /**
+     * Returns our counters, gauges and latency histograms in the OpenMetrics
+     * text format.
+     * 
+     * @return The metrics.
+     */
+    public String toMetrics() {
+        final OpenMetrics metrics = new OpenMetrics();
+        metrics.family("lantern_up_bytes", "counter",
+            "Bytes sent this run.");
+        metrics.sample("lantern_up_bytes_total", 
+            getUpBytesThisRunForPeers(), "route", "for_peers");
+        metrics.sample("lantern_up_bytes_total", 
+            getUpBytesThisRunViaProxies(), "route", "via_proxies");
+        metrics.sample("lantern_up_bytes_total", 
+            getUpBytesThisRunToPeers(), "route", "to_peers");
+        metrics.family("lantern_down_bytes", "counter",
+            "Bytes received this run.");
+        metrics.sample("lantern_down_bytes_total", 
+            getDownBytesThisRunForPeers(), "route", "for_peers");
+        metrics.sample("lantern_down_bytes_total", 
+            getDownBytesThisRunViaProxies(), "route", "via_proxies");
+        metrics.sample("lantern_down_bytes_total", 
+            getDownBytesThisRunFromPeers(), "route", "from_peers");
+        metrics.family("lantern_up_rate_bytes", "gauge",
+            "Bytes sent in the last complete second.");
+        metrics.sample("lantern_up_rate_bytes", 
+            getUpBytesPerSecondForPeers(), "route", "for_peers");
+        metrics.sample("lantern_up_rate_bytes", 
+            getUpBytesPerSecondViaProxies(), "route", "via_proxies");
+        metrics.sample("lantern_up_rate_bytes", 
+            getUpBytesPerSecondToPeers(), "route", "to_peers");
+        metrics.family("lantern_down_rate_bytes", "gauge",
+            "Bytes received in the last complete second.");
+        metrics.sample("lantern_down_rate_bytes", 
+            getDownBytesPerSecondForPeers(), "route", "for_peers");
+        metrics.sample("lantern_down_rate_bytes", 
+            getDownBytesPerSecondViaProxies(), "route", "via_proxies");
+        metrics.sample("lantern_down_rate_bytes", 
+            getDownBytesPerSecondFromPeers(), "route", "from_peers");
+        
+        metrics.family("lantern_requests", "counter",
+            "Browser requests by how we handled them.");
+        metrics.sample("lantern_requests_total", getDirectRequests(), 
+            "route", "direct");
+        metrics.sample("lantern_requests_total", getTotalProxiedRequests(), 
+            "route", "proxied");
+        metrics.family("lantern_request_bytes", "counter",
+            "Bytes of responses to browser requests by how we handled them.");
+        metrics.sample("lantern_request_bytes_total", getDirectBytes(), 
+            "route", "direct");
+        metrics.sample("lantern_request_bytes_total", getTotalBytesProxied(),
+            "route", "proxied");
+        metrics.family("lantern_peers", "gauge",
+            "Peers we proxied for in the last complete second.");
+        metrics.sample("lantern_peers", getPeerCount());
+        metrics.family("lantern_countries", "gauge",
+            "Countries we've proxied for.");
+        metrics.sample("lantern_countries", countries.size());
+        metrics.family("lantern_geoip_lookups", "counter",
+            "Country lookups by whether the address was cached.");
+        metrics.sample("lantern_geoip_lookups_total", geoIpHits.get(), 
+            "result", "hit");
+        metrics.sample("lantern_geoip_lookups_total", geoIpMisses.get(), 
+            "result", "miss");
+        
+        final RoutingCache routing = LanternHub.routingCache();
+        metrics.family("lantern_routing_decisions", "counter",
+            "Requests routed by whether the decision for the host was cached.");
+        metrics.sample("lantern_routing_decisions_total", routing.getHits(), 
+            "result", "hit");
+        metrics.sample("lantern_routing_decisions_total", routing.getMisses(), 
+            "result", "miss");
+        
+        metrics.family("lantern_client_transport_threads", "gauge",
+            "Threads of the shared client transport.");
+        metrics.sample("lantern_client_transport_threads", 
+            getClientTransportThreads());
+        metrics.family("lantern_client_transport_channels", "gauge",
+            "Open channels on the shared client transport.");
+        metrics.sample("lantern_client_transport_channels", 
+            getClientTransportChannels());
+        
+        final ProxyConnectionPool proxyPool = 
+            LanternHub.proxyConnectionPool();
+        final ProxyConnectionPool laePool = LanternHub.laeConnectionPool();
+        metrics.family("lantern_pool_idle_channels", "gauge",
+            "Idle, handshaked channels to proxies.");
+        metrics.sample("lantern_pool_idle_channels", 
+            proxyPool.getIdleChannels(), "pool", "proxy");
+        metrics.sample("lantern_pool_idle_channels", 
+            laePool.getIdleChannels(), "pool", "lae");
+        metrics.family("lantern_pool_acquires", "counter",
+            "Channels taken from the pools by whether one was idle.");
+        metrics.sample("lantern_pool_acquires_total", proxyPool.getHits(), 
+            "pool", "proxy", "result", "hit");
+        metrics.sample("lantern_pool_acquires_total", proxyPool.getMisses(), 
+            "pool", "proxy", "result", "miss");
+        metrics.sample("lantern_pool_acquires_total", laePool.getHits(), 
+            "pool", "lae", "result", "hit");
+        metrics.sample("lantern_pool_acquires_total", laePool.getMisses(), 
+            "pool", "lae", "result", "miss");
+        metrics.family("lantern_pool_handshakes", "counter",
+            "SSL handshakes with proxies by whether they resumed a session.");
+        metrics.sample("lantern_pool_handshakes_total", 
+            proxyPool.getFullHandshakes(), "pool", "proxy", "type", "full");
+        metrics.sample("lantern_pool_handshakes_total", 
+            proxyPool.getResumedHandshakes(), "pool", "proxy", 
+            "type", "resumed");
+        metrics.sample("lantern_pool_handshakes_total", 
+            laePool.getFullHandshakes(), "pool", "lae", "type", "full");
+        metrics.sample("lantern_pool_handshakes_total", 
+            laePool.getResumedHandshakes(), "pool", "lae", 
+            "type", "resumed");
+        
+        final LatencyTracker latency = LanternHub.latencyTracker();
+        metrics.family("lantern_latency_seconds", "histogram",
+            "Time taken by each phase of requests on each route.");
+        for (final LatencyTracker.Route route : 
+            LatencyTracker.Route.values()) {
+            for (final LatencyTracker.Phase phase : 
+                LatencyTracker.Phase.values()) {
+                metrics.histogram("lantern_latency_seconds", 
+                    latency.getHistogram(route, phase), LATENCY_BUCKETS,
+                    "route", route.name().toLowerCase(Locale.US), 
+                    "phase", phase.name().toLowerCase(Locale.US));
+            }
+        }
+        return metrics.toString();
+    }
+
+    /**
+     * Returns our traffic and peer counts over the specified period. See
+     * {@link TrafficHistory#query(long, long, long)}.
+     * 
+     * @param from The start of the period.
+     * @param to The end of the period.
+     * @param resolution The finest resolution wanted, in milliseconds.
+     * @return The history as JSON.
+     */
+    public String historyJson(final long from, final long to, 
+        final long resolution) {
+        return LanternHub.trafficHistory().query(from, to, 
+            resolution).toJSONString();
+    }
+
     public String oniJson() {
         return oniJson.toJSONString();
     }
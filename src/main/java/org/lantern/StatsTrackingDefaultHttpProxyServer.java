@@ -246,6 +246,11 @@ public class StatsTrackingDefaultHttpProxyServer implements HttpProxyServer {
             final RelayListener relayListener) {
             final ChannelPipelineFactory innerFactory =
                     super.getRelayPipelineFactory(httpRequest, browserToProxyChannel, relayListener);
+            // Each relay is to a single host, so the bytes it reads are for
+            // the domain of the request that opened it.
+            final DomainTraffic.Domain domain = 
+                LanternHub.domainTraffic().onRequest(
+                    DomainTraffic.Route.GIVE, null, httpRequest);
 
             return new ChannelPipelineFactory() {
                 @Override
@@ -259,6 +264,8 @@ public class StatsTrackingDefaultHttpProxyServer implements HttpProxyServer {
                         @Override
                         public void addDownBytes(final long bytes, final Channel channel) {
                             statsTracker().addDownBytesForPeers(bytes, browserToProxyChannel);
+                            LanternHub.domainTraffic().addBytes(
+                                DomainTraffic.Route.GIVE, domain, bytes);
                         }
                     });
                     return pipeline;
@@ -1,38 +1,82 @@
 package org.lantern;
 
-import java.util.List;
-import java.util.LinkedList;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 
-/** 
+/**
  * TimeSeries1D tracks a set of observations
  * over time.
  *
+ * Observations are kept in a fixed size ring of time buckets, so adding
+ * data never allocates and never takes a lock. Each bucket is split into
+ * a few counters that threads add to based on their id, which keeps
+ * threads recording at the same moment from all contending for the same
+ * counter. A bucket is only cleared when a newer time bucket that maps to
+ * the same slot is first written to.
+ *
+ * With an age limit the ring holds exactly the buckets within the limit.
+ * Without one we keep the most recent {@link #DEFAULT_CAPACITY} buckets.
  */
 public class TimeSeries1D {
-    
+
     protected static final long NO_AGE_LIMIT = -1;
     protected static final long DEFAULT_BUCKET_SIZE = 1;
-    private final ConcurrentNavigableMap<Long, AtomicLong> observations;
-    private final AtomicLong lifetimeTotal;
+
+    /**
+     * The number of buckets we keep when there's no age limit.
+     */
+    protected static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The number of counters each bucket is split into. This must be a
+     * power of two.
+     */
+    private static final int STRIPES = 4;
+
+    /**
+     * The spacing between lifetime counters, so that each sits on its own
+     * cache line.
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * Marks a slot that doesn't hold any bucket yet.
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * Marks a slot that's being cleared for a new bucket.
+     */
+    private static final long CLEARING = Long.MIN_VALUE + 1;
+
+    /**
+     * The bucket each slot currently holds.
+     */
+    private final AtomicLongArray keys;
+
+    /**
+     * The counters for each slot. Stripe s of slot i is at
+     * s * capacity + i, so the stripes of a bucket are far apart.
+     */
+    private final AtomicLongArray values;
+    private final AtomicLongArray lifetimeTotal;
+    private final AtomicLong newestBucket = new AtomicLong(EMPTY);
+    private final int capacity;
     private final long bucketSizeMillis;
     private final long ageLimit;
-    
-    /** 
-     * construct a TimeSeries1D with no bucketing 
+
+    /**
+     * construct a TimeSeries1D with no bucketing
      * (bucket size = 1ms) and no age limit
      */
     public TimeSeries1D() {
         this(DEFAULT_BUCKET_SIZE, NO_AGE_LIMIT);
     }
-    
-    /** 
-     * construct a TimeSeries1D with a specific 
-     * time bucket size and no age limit. 
+
+    /**
+     * construct a TimeSeries1D with a specific
+     * time bucket size and no age limit.
      * observations will be clustered into buckets
      * of the given time length.
      *
@@ -43,85 +87,112 @@ public class TimeSeries1D {
         this(bucketSizeMillis, NO_AGE_LIMIT);
     }
 
-    /** 
-     * construct a TimeSeries1D with a specific 
+    /**
+     * construct a TimeSeries1D with a specific
      * time bucket size and age limit. Observations
      * will be clustered into buckets of given time length.
      * An observation bucket may be discarded when the difference
-     * between the newest entry and the time associated with 
+     * between the newest entry and the time associated with
      * the bucket is greater than the ageLimit given.
-     * 
+     *
      * @param bucketSizeMillis - the size in milliseconds of the
      *        time buckets used to cluster observations
-     * 
+     *
      * @param ageLimit the maximum difference in age between the
      *        newest and oldest entries.
-     * 
-     */        
+     *
+     */
     public TimeSeries1D(long bucketSizeMillis, long ageLimit) {
         this.bucketSizeMillis = bucketSizeMillis;
-        this.observations = new ConcurrentSkipListMap<Long,AtomicLong>();
-        this.lifetimeTotal = new AtomicLong(0);
         this.ageLimit = ageLimit;
+        if (ageLimit == NO_AGE_LIMIT) {
+            this.capacity = DEFAULT_CAPACITY;
+        } else {
+            // The oldest bucket we keep can start up to a bucket before
+            // the age limit.
+            this.capacity = (int) (ageLimit / bucketSizeMillis) + 2;
+        }
+        this.keys = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            keys.set(i, EMPTY);
+        }
+        this.values = new AtomicLongArray(capacity * STRIPES);
+        this.lifetimeTotal = new AtomicLongArray(STRIPES * PADDING);
     }
-    
-    /** 
+
+    /**
      * @return the size of the buckets in milliseconds.
      */
     public long getBucketSize() {
         return bucketSizeMillis;
     }
-    
-    /** 
+
+    /**
      * add an observation at the current timestamp.
      * this value is _added_ to any other observations
      * in the time bucket that covers the current time.
-     * 
+     *
      * @param value the value at the current time
-     */ 
+     */
     public void addData(long value) {
         addData(System.currentTimeMillis(), value);
     }
-    
+
     /**
      * add an observation at a specific timestamp.
      * this value is _added_ to any other observations
      * in the time bucket that covers the given timestamp
-     * 
+     *
      * @param timestamp the timestamp for the observation
      * @param value the value at the given timestamp
      */
     public void addData(long timestamp, long value) {
-        lifetimeTotal.addAndGet(value);
+        final int stripe = stripe();
+        lifetimeTotal.addAndGet(stripe * PADDING, value);
         final long bucketKey = bucketForTimestamp(timestamp);
-        if (!observations.containsKey(bucketKey)) {
-            observations.putIfAbsent(bucketKey, new AtomicLong(0));
-        }
-        final AtomicLong bucket = observations.get(bucketKey);        
-        // may have been concurrently cleaned up for being too old...
-        if (bucket == null) {
+        final long newest = advanceTo(bucketKey);
+        if (bucketKey < oldestBucket(newest)) {
+            // Too old to keep.
             return;
         }
-        
-        bucket.addAndGet(value);
-        checkLimits();
-        // could certainly update other statistics here.
+        final int slot = slotFor(bucketKey);
+        while (true) {
+            final long key = keys.get(slot);
+            if (key == bucketKey) {
+                values.addAndGet(stripe * capacity + slot, value);
+                return;
+            }
+            if (key == CLEARING) {
+                // Someone else is rolling this slot over, which only
+                // takes a moment.
+                Thread.yield();
+                continue;
+            }
+            if (key != EMPTY && key > bucketKey) {
+                // The slot has already moved on to a newer bucket.
+                return;
+            }
+            if (keys.compareAndSet(slot, key, CLEARING)) {
+                for (int s = 0; s < STRIPES; s++) {
+                    values.set(s * capacity + slot, 0L);
+                }
+                keys.set(slot, bucketKey);
+            }
+        }
     }
 
     public long latestValue() {
-        Map.Entry<Long, AtomicLong> last = observations.lastEntry(); 
-        if (last != null) {
-            return last.getValue().get();
-        }
-        else {
+        final long newest = newestBucket.get();
+        if (newest == EMPTY) {
             return 0;
         }
+        return bucketValue(newest);
     }
 
-    /** 
-     * computes the average *per bucket* value in the set of 
+    /**
+     * computes the average *per bucket* value in the set of
      * buckets that cover the time window given.
-     * 
+     *
      * @param windowMin minimum time in the window
      * @param windowMax maximum time in the window
      *
@@ -131,22 +202,15 @@ public class TimeSeries1D {
     public double windowAverage(long minTimestamp, long maxTimestamp) {
         long minBucket = bucketForTimestamp(minTimestamp);
         long maxBucket = bucketForTimestamp(maxTimestamp);
-        
+
         long buckets = (maxBucket - minBucket) + 1;
-        long total = 0;
-        
-        for (AtomicLong cur :
-             observations.subMap(minBucket, true, maxBucket, true).values()) {
-            total += cur.get(); 
-        }
-        
-        return total / (double) buckets;
+        return sumBuckets(minBucket, maxBucket) / (double) buckets;
     }
-    
-    /** 
+
+    /**
      * computes the total value in the set of
      * buckets that cover the time window given.
-     * 
+     *
      * @param windowMin minimum time in the window
      * @param windowMax maximum time in the window
      *
@@ -156,66 +220,119 @@ public class TimeSeries1D {
     public double windowTotal(long minTimestamp, long maxTimestamp) {
         long minBucket = bucketForTimestamp(minTimestamp);
         long maxBucket = bucketForTimestamp(maxTimestamp);
-        
-        long total = 0;
-        for (AtomicLong cur :
-             observations.subMap(minBucket, true, maxBucket, true).values()) {
-            total += cur.get(); 
-        }
-        
-        return total;
+
+        return sumBuckets(minBucket, maxBucket);
     }
-    
-    /** 
+
+    /**
      * returns the total of all observations seen by this
      * time series (including those outside the current set)
      */
     public long lifetimeTotal() {
-        return lifetimeTotal.get();
+        long total = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            total += lifetimeTotal.get(s * PADDING);
+        }
+        return total;
     }
-    
+
     /**
      * resets the lifetime total of all observations to 0
      */
     public void resetLifetimeTotal() {
         resetLifetimeTotal(0);
     }
-    
+
     /**
      * resets the lifetime total of all observations to the
      * given value.
      */
     public void resetLifetimeTotal(long value) {
-        lifetimeTotal.set(value);
+        lifetimeTotal.set(0, value);
+        for (int s = 1; s < STRIPES; s++) {
+            lifetimeTotal.set(s * PADDING, 0L);
+        }
     }
-    
-    // reset values 
+
+    // reset values
     public void reset() {
-        observations.clear();
+        for (int i = 0; i < capacity; i++) {
+            keys.set(i, EMPTY);
+        }
+        for (int i = 0; i < values.length(); i++) {
+            values.set(i, 0L);
+        }
+        newestBucket.set(EMPTY);
         resetLifetimeTotal();
     }
-    
+
     // ...
 
     protected long bucketForTimestamp(long timestamp) {
         return (long) timestamp / bucketSizeMillis;
     }
-    
-    protected void checkLimits() {
+
+    /**
+     * Records the bucket as the newest if it is.
+     *
+     * @return The newest bucket.
+     */
+    private long advanceTo(final long bucketKey) {
+        while (true) {
+            final long newest = newestBucket.get();
+            if (newest != EMPTY && newest >= bucketKey) {
+                return newest;
+            }
+            if (newestBucket.compareAndSet(newest, bucketKey)) {
+                return bucketKey;
+            }
+        }
+    }
+
+    /**
+     * @return The oldest bucket we keep given the newest bucket.
+     */
+    private long oldestBucket(final long newest) {
+        final long oldest = newest - capacity + 1;
         if (ageLimit == NO_AGE_LIMIT) {
-            return;
+            return oldest;
         }
-        
-        long newestKey = observations.lastKey();
-        long minKey = bucketForTimestamp((newestKey*bucketSizeMillis) - ageLimit);
-        
-        List<Long> deleteKeys = new LinkedList<Long>();
-        for (long i : observations.headMap(minKey).keySet()) {
-            deleteKeys.add(i);
+        return Math.max(oldest,
+            bucketForTimestamp((newest * bucketSizeMillis) - ageLimit));
+    }
+
+    private long sumBuckets(final long minBucket, final long maxBucket) {
+        final long newest = newestBucket.get();
+        if (newest == EMPTY) {
+            return 0;
         }
-        for (long key : deleteKeys) {
-            observations.remove(key);
+        final long from = Math.max(minBucket, oldestBucket(newest));
+        final long to = Math.min(maxBucket, newest);
+        long total = 0;
+        for (long bucket = from; bucket <= to; bucket++) {
+            total += bucketValue(bucket);
         }
+        return total;
     }
 
-}
\ No newline at end of file
+    private long bucketValue(final long bucketKey) {
+        final int slot = slotFor(bucketKey);
+        if (keys.get(slot) != bucketKey) {
+            return 0;
+        }
+        long total = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            total += values.get(s * capacity + slot);
+        }
+        return total;
+    }
+
+    private int slotFor(final long bucketKey) {
+        final int slot = (int) (bucketKey % capacity);
+        return slot < 0 ? slot + capacity : slot;
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,485 @@
+package org.lantern;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the history of our traffic and peer counts at a few resolutions,
+ * so we can show any period from the last few minutes to the last month
+ * without keeping every second. Each second of data is rolled up into
+ * per-second buckets for five minutes, per-minute buckets for a day and
+ * per-hour buckets for a month.
+ *
+ * Each tier has its own file. Whenever a bucket closes we append a record
+ * for it, and we rewrite the file from what's in memory when it gets
+ * twice as many records as the tier holds. A bucket can be written more
+ * than once, for example when we write a partial bucket on shutdown and
+ * then carry on adding to it after we start again, in which case the last
+ * record for the bucket wins.
+ */
+public class TrafficHistory {
+
+    /**
+     * The names of the series we keep, in the order callers give values
+     * to {@link #record(long, long[])}.
+     */
+    public static final String[] SERIES = {
+        "up_via_proxies",
+        "down_via_proxies",
+        "up_for_peers",
+        "down_for_peers",
+        "up_to_peers",
+        "down_from_peers",
+        "peers",
+    };
+
+    /**
+     * The index of the peer count. Unlike the byte counts, we average this
+     * over the seconds in each bucket rather than summing it.
+     */
+    public static final int PEERS = 6;
+
+    private static final long ONE_SECOND = 1000;
+    private static final long ONE_MINUTE = 60 * ONE_SECOND;
+    private static final long ONE_HOUR = 60 * ONE_MINUTE;
+    private static final long ONE_DAY = 24 * ONE_HOUR;
+
+    /**
+     * Identifies our files ("LTH1"), and changes whenever the format does.
+     */
+    private static final int MAGIC = 0x4c544831;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Source of the current time, so tests can pin it down.
+     */
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final Clock clock;
+
+    private final Tier[] tiers;
+
+    public TrafficHistory() {
+        this(LanternConstants.TRAFFIC_HISTORY_DIR);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "Write-Traffic-History-Thread"));
+    }
+
+    /**
+     * Creates a new history, loading anything already stored in the
+     * specified directory.
+     *
+     * @param dir The directory to store the history in.
+     */
+    public TrafficHistory(final File dir) {
+        this(dir, SYSTEM_CLOCK);
+    }
+
+    TrafficHistory(final File dir, final Clock clock) {
+        this.clock = clock;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.error("Could not create history directory at {}", dir);
+        }
+        this.tiers = new Tier[] {
+            new Tier(new File(dir, "seconds.dat"), ONE_SECOND, 5 * ONE_MINUTE),
+            new Tier(new File(dir, "minutes.dat"), ONE_MINUTE, ONE_DAY),
+            new Tier(new File(dir, "hours.dat"), ONE_HOUR, 30 * ONE_DAY),
+        };
+        final long now = clock.currentTimeMillis();
+        for (final Tier tier : tiers) {
+            tier.load(now);
+        }
+    }
+
+    /**
+     * Records a second of data.
+     *
+     * @param timestamp A time within the second.
+     * @param values The value of each of the {@link #SERIES} for the second.
+     */
+    public void record(final long timestamp, final long[] values) {
+        for (final Tier tier : tiers) {
+            tier.add(timestamp, values);
+        }
+    }
+
+    /**
+     * Returns the history for the specified period from the finest tier
+     * that still covers all of it, or the coarsest tier if none do.
+     *
+     * @param from The start of the period.
+     * @param to The end of the period.
+     * @return The history.
+     */
+    public JSONObject query(final long from, final long to) {
+        return query(from, to, 0L);
+    }
+
+    /**
+     * Returns the history for the specified period from the finest tier
+     * that covers all of it at no finer than the specified resolution.
+     * Each series has one value per bucket, starting with the bucket
+     * containing <code>from</code>. Byte counts are totals for the bucket
+     * and peer counts are averages over the seconds we recorded in it.
+     * The period is clamped to what the tier holds, so we never return
+     * more buckets than that however long the period is.
+     *
+     * @param from The start of the period.
+     * @param to The end of the period.
+     * @param resolution The finest resolution wanted, in milliseconds.
+     * @return The history.
+     */
+    public JSONObject query(final long from, final long to,
+        final long resolution) {
+        final long now = clock.currentTimeMillis();
+        Tier tier = tiers[tiers.length - 1];
+        for (final Tier candidate : tiers) {
+            if (candidate.resolution >= resolution &&
+                now - candidate.retention <= from) {
+                tier = candidate;
+                break;
+            }
+        }
+        return tier.query(Math.max(from, now - tier.retention), 
+            Math.min(to, now));
+    }
+
+    /**
+     * Writes any buckets that haven't closed yet.
+     */
+    public void flush() {
+        for (final Tier tier : tiers) {
+            tier.flush();
+        }
+    }
+
+    /**
+     * Forgets all history, including what's on disk.
+     */
+    public void reset() {
+        for (final Tier tier : tiers) {
+            tier.reset();
+        }
+    }
+
+    public JSONArray toJson() {
+        final JSONArray json = new JSONArray();
+        for (final Tier tier : tiers) {
+            json.add(tier.toJson());
+        }
+        return json;
+    }
+
+    private final class Tier {
+
+        private final File file;
+
+        private final long resolution;
+
+        private final long retention;
+
+        /**
+         * The number of seconds recorded in each bucket.
+         */
+        private final TimeSeries1D seconds;
+
+        private final TimeSeries1D[] series =
+            new TimeSeries1D[SERIES.length];
+
+        private final int capacity;
+
+        private long openBucket = -1;
+
+        private DataOutputStream out;
+
+        private int records;
+
+        private Tier(final File file, final long resolution,
+            final long retention) {
+            this.file = file;
+            this.resolution = resolution;
+            this.retention = retention;
+            this.capacity = (int) (retention / resolution);
+            this.seconds = new TimeSeries1D(resolution, retention);
+            for (int i = 0; i < series.length; i++) {
+                series[i] = new TimeSeries1D(resolution, retention);
+            }
+        }
+
+        private synchronized void add(final long timestamp,
+            final long[] values) {
+            final long bucket = timestamp / resolution;
+            if (openBucket != -1 && bucket != openBucket) {
+                append(openBucket);
+            }
+            openBucket = bucket;
+            seconds.addData(timestamp, 1L);
+            for (int i = 0; i < series.length; i++) {
+                series[i].addData(timestamp, values[i]);
+            }
+        }
+
+        private synchronized void flush() {
+            if (openBucket != -1) {
+                append(openBucket);
+            }
+            IOUtils.closeQuietly(out);
+            out = null;
+        }
+
+        private synchronized void reset() {
+            IOUtils.closeQuietly(out);
+            out = null;
+            openBucket = -1;
+            records = 0;
+            seconds.reset();
+            for (final TimeSeries1D ts : series) {
+                ts.reset();
+            }
+            if (file.isFile() && !file.delete()) {
+                log.warn("Could not delete {}", file);
+            }
+        }
+
+        private JSONObject query(final long from, final long to) {
+            final long first = from / resolution;
+            final long last = Math.min(to / resolution, first + capacity);
+            final JSONArray secondsJson = new JSONArray();
+            final JSONArray[] seriesJson = new JSONArray[series.length];
+            for (int i = 0; i < series.length; i++) {
+                seriesJson[i] = new JSONArray();
+            }
+            for (long bucket = first; bucket <= last; bucket++) {
+                final long[] values = bucketValues(bucket);
+                secondsJson.add(values[0]);
+                for (int i = 0; i < series.length; i++) {
+                    long value = values[i + 1];
+                    if (i == PEERS) {
+                        value = values[0] == 0 ? 0 :
+                            (value + values[0] / 2) / values[0];
+                    }
+                    seriesJson[i].add(value);
+                }
+            }
+            final JSONObject json = new JSONObject();
+            json.put("resolution", resolution);
+            json.put("start", first * resolution);
+            json.put("seconds", secondsJson);
+            for (int i = 0; i < series.length; i++) {
+                json.put(SERIES[i], seriesJson[i]);
+            }
+            return json;
+        }
+
+        private JSONObject toJson() {
+            final JSONObject json = new JSONObject();
+            json.put("resolution", resolution);
+            json.put("retention", retention);
+            synchronized (this) {
+                json.put("records", records);
+            }
+            json.put("file_bytes", file.length());
+            return json;
+        }
+
+        /**
+         * @return The number of seconds in the bucket followed by the
+         * value of each series.
+         */
+        private long[] bucketValues(final long bucket) {
+            final long start = bucket * resolution;
+            final long end = start + resolution - 1;
+            final long[] values = new long[series.length + 1];
+            values[0] = (long) seconds.windowTotal(start, end);
+            for (int i = 0; i < series.length; i++) {
+                values[i + 1] = (long) series[i].windowTotal(start, end);
+            }
+            return values;
+        }
+
+        private void append(final long bucket) {
+            if (records >= 2 * capacity) {
+                compact();
+                return;
+            }
+            try {
+                if (out == null) {
+                    final boolean header = !file.isFile();
+                    out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file, true)));
+                    if (header) {
+                        writeHeader(out);
+                    }
+                }
+                writeRecord(out, bucket, bucketValues(bucket));
+                out.flush();
+                records++;
+            } catch (final IOException e) {
+                log.warn("Could not write history to " + file, e);
+                IOUtils.closeQuietly(out);
+                out = null;
+            }
+        }
+
+        private void load(final long now) {
+            if (!file.isFile()) {
+                return;
+            }
+            // Later records for a bucket replace earlier ones.
+            final Map<Long, long[]> buckets = new TreeMap<Long, long[]>();
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+                if (in.readInt() != MAGIC || in.readLong() != resolution) {
+                    log.info("Ignoring history in unknown format at {}", file);
+                } else {
+                    while (true) {
+                        final long bucket = readVarLong(in);
+                        final long[] values = new long[series.length + 1];
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = readVarLong(in);
+                        }
+                        buckets.put(bucket, values);
+                    }
+                }
+            } catch (final EOFException e) {
+                // Either the end of the file or a record we were writing
+                // when we stopped, which we'll drop when we compact.
+            } catch (final IOException e) {
+                log.warn("Could not read history from " + file, e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+
+            final long oldest = (now - retention) / resolution;
+            for (final Map.Entry<Long, long[]> entry : buckets.entrySet()) {
+                final long bucket = entry.getKey();
+                if (bucket < oldest) {
+                    continue;
+                }
+                final long timestamp = bucket * resolution;
+                final long[] values = entry.getValue();
+                seconds.addData(timestamp, values[0]);
+                for (int i = 0; i < series.length; i++) {
+                    series[i].addData(timestamp, values[i + 1]);
+                }
+            }
+            synchronized (this) {
+                compact();
+            }
+        }
+
+        /**
+         * Rewrites the file with just the buckets we hold in memory.
+         */
+        private void compact() {
+            IOUtils.closeQuietly(out);
+            out = null;
+            final File temp = new File(file.getPath() + ".tmp");
+            DataOutputStream os = null;
+            int written = 0;
+            try {
+                os = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+                writeHeader(os);
+                final long newest = openBucket != -1 ? openBucket :
+                    clock.currentTimeMillis() / resolution;
+                for (long bucket = newest - capacity; bucket <= newest;
+                    bucket++) {
+                    final long[] values = bucketValues(bucket);
+                    if (values[0] == 0) {
+                        continue;
+                    }
+                    writeRecord(os, bucket, values);
+                    written++;
+                }
+                os.close();
+                os = null;
+                if (file.isFile() && !file.delete()) {
+                    log.warn("Could not replace {}", file);
+                    return;
+                }
+                if (!temp.renameTo(file)) {
+                    log.warn("Could not rename {}", temp);
+                    return;
+                }
+                records = written;
+            } catch (final IOException e) {
+                log.warn("Could not compact history at " + file, e);
+            } finally {
+                IOUtils.closeQuietly(os);
+            }
+        }
+
+        private void writeHeader(final DataOutput os) throws IOException {
+            os.writeInt(MAGIC);
+            os.writeLong(resolution);
+        }
+
+        private void writeRecord(final DataOutput os, final long bucket,
+            final long[] values) throws IOException {
+            writeVarLong(os, bucket);
+            for (final long value : values) {
+                writeVarLong(os, value);
+            }
+        }
+    }
+
+    /**
+     * Writes a non-negative value seven bits at a time, low bits first,
+     * with the high bit of each byte set if more bytes follow.
+     */
+    private static void writeVarLong(final DataOutput os, final long value)
+        throws IOException {
+        long remaining = Math.max(0L, value);
+        while ((remaining & ~0x7FL) != 0) {
+            os.writeByte((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        os.writeByte((int) remaining);
+    }
+
+    private static long readVarLong(final DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed history record");
+    }
+}
@@ -2,24 +2,35 @@ package org.lantern;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang.StringUtils;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableSortedSet;
+
 /**
  * Keeps track of which domains are whitelisted.
+ * 
+ * We check the whitelist for every request on the Netty I/O threads while
+ * the user edits it from the dashboard, so the entries and the
+ * {@link WhitelistMatcher} built from them are an immutable snapshot that
+ * lookups read without locking. Changes build a new snapshot and swap it
+ * in, so lookups always see either the old or the new entries.
  */
 public class Whitelist {
 
     private final Logger log = LoggerFactory.getLogger(Whitelist.class);
     
-    private Collection<String> requiredEntries = new HashSet<String>();
+    private final Collection<String> requiredEntries = new HashSet<String>();
     
-    private Collection<WhitelistEntry> whitelist = 
-        new TreeSet<WhitelistEntry>();
+    private final AtomicReference<Snapshot> whitelist = 
+        new AtomicReference<Snapshot>(
+            new Snapshot(ImmutableSortedSet.<WhitelistEntry>of()));
     
     {
         // these domains host required services and can't be removed
@@ -55,8 +66,7 @@ public class Whitelist {
     
     public boolean isWhitelisted(final String uri,
         final Collection<WhitelistEntry> wl) {
-        final String toMatch = toBaseUri(uri);
-        return wl.contains(new WhitelistEntry(toMatch));
+        return new WhitelistMatcher(wl).matches(uri);
     }
     
     /**
@@ -67,7 +77,7 @@ public class Whitelist {
      * our whitelist, otherwise <code>false</code>.
      */
     public boolean isWhitelisted(final String uri) {
-        return isWhitelisted(uri, whitelist);
+        return whitelist.get().matcher.matches(uri);
     }
     
     /**
@@ -78,14 +88,12 @@ public class Whitelist {
      * our whitelist, otherwise <code>false</code>.
      */
     public boolean isWhitelisted(final HttpRequest request) {
-        log.debug("Checking whitelist for request");
         final String uri = request.getUri();
-        log.debug("URI is: {}", uri);
-
         final String referer = request.getHeader("referer");
+        log.debug("Checking whitelist for URI {} with referer {}", uri, 
+            referer);
         
         final String uriToCheck;
-        log.debug("Referer: "+referer);
         if (!StringUtils.isBlank(referer)) {
             uriToCheck = referer;
         } else {
@@ -96,62 +104,64 @@ public class Whitelist {
     }
     
     private void addDefaultEntry(final String entry, final boolean required) {
-        whitelist.add(new WhitelistEntry(entry, required, true));
         if (required) {
             this.requiredEntries.add(entry);
         }
+        synchronized (whitelist) {
+            final SortedSet<WhitelistEntry> entries = 
+                new TreeSet<WhitelistEntry>(whitelist.get().entries);
+            entries.add(new WhitelistEntry(entry, required, true));
+            whitelist.set(new Snapshot(entries));
+        }
     }
     
     public void addEntry(final String entry) {
-        whitelist.add(new WhitelistEntry(entry));
+        synchronized (whitelist) {
+            final SortedSet<WhitelistEntry> entries = 
+                new TreeSet<WhitelistEntry>(whitelist.get().entries);
+            entries.add(new WhitelistEntry(entry));
+            whitelist.set(new Snapshot(entries));
+        }
     }
 
     public void removeEntry(final String entry) {
-        if (!this.requiredEntries.contains(entry)) {
-            whitelist.remove(new WhitelistEntry(entry));
+        if (this.requiredEntries.contains(entry)) {
+            return;
+        }
+        synchronized (whitelist) {
+            final SortedSet<WhitelistEntry> entries = 
+                new TreeSet<WhitelistEntry>(whitelist.get().entries);
+            entries.remove(new WhitelistEntry(entry));
+            whitelist.set(new Snapshot(entries));
         }
     }
     
+    /**
+     * Returns the current entries. These never change, so callers should 
+     * call this again to see changes.
+     * 
+     * @return The current entries.
+     */
     public Collection<WhitelistEntry> getEntries() {
-        return whitelist;
+        return whitelist.get().entries;
     }
     
     public void setEntries(final Collection<WhitelistEntry> entries) {
+        final Snapshot snapshot = new Snapshot(entries);
         synchronized (whitelist) {
-            this.whitelist = entries; 
+            this.whitelist.set(snapshot);
         }
     }
-    
 
-    private String toBaseUri(final String uri) {
-        log.debug("Parsing full URI: {}", uri);
-        final String afterHttp;
-        if (!uri.startsWith("http")) {
-            afterHttp = uri;
-        } else {
-            afterHttp = StringUtils.substringAfter(uri, "://");
-        }
-        final String base;
-        if (afterHttp.contains("/")) {
-            base = StringUtils.substringBefore(afterHttp, "/");
-        } else {
-            base = afterHttp;
-        }
-        String domainExtension = StringUtils.substringAfterLast(base, ".");
+    private static final class Snapshot {
         
-        // Make sure we strip alternative ports, like 443.
-        if (domainExtension.contains(":")) {
-            domainExtension = StringUtils.substringBefore(domainExtension, ":");
-        }
-        final String domain = StringUtils.substringBeforeLast(base, ".");
-        final String toMatchBase;
-        if (domain.contains(".")) {
-            toMatchBase = StringUtils.substringAfterLast(domain, ".");
-        } else {
-            toMatchBase = domain;
+        private final SortedSet<WhitelistEntry> entries;
+        
+        private final WhitelistMatcher matcher;
+        
+        private Snapshot(final Collection<WhitelistEntry> entries) {
+            this.entries = ImmutableSortedSet.copyOf(entries);
+            this.matcher = new WhitelistMatcher(this.entries);
         }
-        final String toMatch = toMatchBase + "." + domainExtension;
-        log.debug("Matching against: {}", toMatch);
-        return toMatch;
     }
 }
@@ -0,0 +1,227 @@
+package org.lantern;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.lantern.cookie.CookieUtils;
+
+/**
+ * Matches URIs against whitelist entries using a trie of the labels of the
+ * entries from right to left, so a lookup is one hash probe per label of
+ * the host no matter how many entries there are.
+ *
+ * An entry matches its own host and all its subdomains, so "bbc.co.uk"
+ * matches "news.bbc.co.uk" and "mail.google.com" matches only that host
+ * and below, not "www.google.com". An entry starting with "*." matches
+ * only subdomains. Entries that are public suffixes, as decided by
+ * {@link CookieUtils#isPublicSuffix(String)}, only match themselves, so
+ * whitelisting "co.uk" doesn't whitelist every British site.
+ *
+ * Lookups read the host straight out of the URI without allocating, since
+ * we do this for every request. A matcher never changes once built.
+ */
+public class WhitelistMatcher {
+
+    private final Node root;
+
+    /**
+     * Builds a matcher for the given entries.
+     *
+     * @param entries The whitelist entries.
+     */
+    public WhitelistMatcher(final Collection<WhitelistEntry> entries) {
+        final Node building = new Node("");
+        for (final WhitelistEntry entry : entries) {
+            if (entry.getSite() != null) {
+                add(building, entry.getSite().trim().toLowerCase(Locale.US));
+            }
+        }
+        building.freeze();
+        this.root = building;
+    }
+
+    private static void add(final Node root, final String site) {
+        final boolean wildcard = site.startsWith("*.");
+        final String domain = wildcard ? site.substring(2) : site;
+        if (domain.length() == 0) {
+            return;
+        }
+        Node node = root;
+        int end = domain.length();
+        while (end > 0) {
+            final int dot = domain.lastIndexOf('.', end - 1);
+            node = node.child(domain.substring(dot + 1, end));
+            end = dot;
+        }
+        if (wildcard) {
+            node.subdomainsMatch = true;
+        } else {
+            node.hostMatches = true;
+            if (!CookieUtils.isPublicSuffix(domain)) {
+                node.subdomainsMatch = true;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the host of the given URI matches any entry. The URI
+     * may be absolute or just a host, with or without a port.
+     *
+     * @param uri The URI.
+     * @return <code>true</code> if the host matches, otherwise
+     * <code>false</code>.
+     */
+    public boolean matches(final String uri) {
+        final long bounds = hostBounds(uri);
+        return matchesHost(uri, (int) (bounds >>> 32), (int) bounds);
+    }
+
+    /**
+     * Returns the lower case host of the given URI, parsed the same way
+     * {@link #matches(String)} parses it, so anything keyed by this host
+     * agrees with what the whitelist checked.
+     *
+     * @param uri The URI, absolute or just a host with or without a port.
+     * @return The host, without any user info, port or trailing dot.
+     */
+    public static String toHost(final String uri) {
+        final long bounds = hostBounds(uri);
+        return uri.substring((int) (bounds >>> 32), (int) bounds).
+            toLowerCase(Locale.US);
+    }
+
+    /**
+     * Finds the host in the given URI, skipping the scheme, user info and
+     * port, without allocating. The start is in the high 32 bits of the
+     * result and the end in the low 32 bits.
+     */
+    static long hostBounds(final String uri) {
+        final int scheme = uri.indexOf("://");
+        int start = scheme == -1 ? 0 : scheme + 3;
+        int end = uri.length();
+        for (int i = start; i < end; i++) {
+            final char c = uri.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+        final int at = uri.lastIndexOf('@', end - 1);
+        if (at >= start) {
+            start = at + 1;
+        }
+        final int colon = uri.indexOf(':', start);
+        if (colon != -1 && colon < end) {
+            end = colon;
+        }
+        if (end > start && uri.charAt(end - 1) == '.') {
+            end--;
+        }
+        return ((long) start << 32) | end;
+    }
+
+    private boolean matchesHost(final String uri, final int start,
+        final int end) {
+        Node node = root;
+        int labelEnd = end;
+        while (labelEnd > start) {
+            int labelStart = labelEnd;
+            while (labelStart > start && uri.charAt(labelStart - 1) != '.') {
+                labelStart--;
+            }
+            node = node.child(uri, labelStart, labelEnd);
+            if (node == null) {
+                return false;
+            }
+            if (labelStart == start) {
+                return node.hostMatches;
+            }
+            if (node.subdomainsMatch) {
+                return true;
+            }
+            labelEnd = labelStart - 1;
+        }
+        return false;
+    }
+
+    private static int hash(final String s, final int start, final int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(s.charAt(i));
+        }
+        return h;
+    }
+
+    private static final class Node {
+
+        private final String label;
+
+        private boolean hostMatches;
+
+        private boolean subdomainsMatch;
+
+        /**
+         * The children while we're building the trie.
+         */
+        private Map<String, Node> building = new HashMap<String, Node>();
+
+        /**
+         * The children once built, in an open addressed hash table.
+         */
+        private Node[] children;
+
+        private int[] hashes;
+
+        private Node(final String label) {
+            this.label = label;
+        }
+
+        private Node child(final String childLabel) {
+            Node child = building.get(childLabel);
+            if (child == null) {
+                child = new Node(childLabel);
+                building.put(childLabel, child);
+            }
+            return child;
+        }
+
+        private void freeze() {
+            int capacity = 1;
+            while (capacity < building.size() * 2) {
+                capacity <<= 1;
+            }
+            children = new Node[capacity];
+            hashes = new int[capacity];
+            final int mask = capacity - 1;
+            for (final Node child : building.values()) {
+                child.freeze();
+                final int h = hash(child.label, 0, child.label.length());
+                int i = h & mask;
+                while (children[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                children[i] = child;
+                hashes[i] = h;
+            }
+            building = null;
+        }
+
+        private Node child(final String s, final int start, final int end) {
+            final int length = end - start;
+            final int h = hash(s, start, end);
+            final int mask = children.length - 1;
+            int i = h & mask;
+            while (children[i] != null) {
+                final Node child = children[i];
+                if (hashes[i] == h && child.label.length() == length &&
+                    s.regionMatches(true, start, child.label, 0, length)) {
+                    return child;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+    }
+}
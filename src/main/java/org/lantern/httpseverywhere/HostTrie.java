@@ -0,0 +1,162 @@
+package org.lantern.httpseverywhere;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of HTTPS Everywhere target hosts, stored as a trie of host labels
+ * from right to left. A "*" label in a target matches any single label,
+ * and a target starting with "*." also matches any number of leading
+ * labels as long as at least two labels remain to its right, which is how
+ * HTTPS Everywhere interprets targets.
+ *
+ * Lookups only walk the labels of the host being looked up, so a host
+ * without rules usually fails after a hash lookup or two regardless of
+ * how many targets there are.
+ *
+ * This is not thread safe while it's being built, but it's safe to look
+ * up hosts from any number of threads once it's been safely published.
+ */
+public class HostTrie<T> {
+
+    private final Node<T> root = new Node<T>();
+
+    private int size;
+
+    /**
+     * Adds a value for the given target host.
+     *
+     * @param target The target host, possibly with wildcards.
+     * @param value The value to add.
+     */
+    public void add(final String target, final T value) {
+        final String[] labels = toLabels(target);
+        Node<T> node = root;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            node = node.child(labels[i]);
+        }
+        if (node.values == null) {
+            node.values = new ArrayList<T>(1);
+        }
+        if (!node.values.contains(value)) {
+            node.values.add(value);
+            size++;
+        }
+    }
+
+    /**
+     * Returns all values with targets matching the given host, without
+     * duplicates, in the order they were first found.
+     *
+     * @param host The host to look up.
+     * @return The matching values, or an empty list if there are none.
+     */
+    public List<T> get(final String host) {
+        if (host == null || host.length() == 0 || size == 0) {
+            return Collections.emptyList();
+        }
+        final String[] labels = toLabels(host);
+        final List<T> found =
+            find(root, labels, labels.length - 1, false, null);
+        if (found == null) {
+            return Collections.emptyList();
+        }
+        return found;
+    }
+
+    /**
+     * Returns the number of values in the trie.
+     *
+     * @return The number of values in the trie.
+     */
+    public int size() {
+        return size;
+    }
+
+    private List<T> find(final Node<T> node, final String[] labels,
+        final int index, final boolean substituted, List<T> found) {
+        if (index < 0) {
+            return addAll(found, node.values);
+        }
+        if (node.children != null) {
+            final Node<T> child = node.children.get(labels[index]);
+            if (child != null) {
+                found = find(child, labels, index - 1, substituted, found);
+            }
+        }
+        if (node.wildcard != null && !substituted) {
+            // The wildcard stands in for this label only...
+            found = find(node.wildcard, labels, index - 1, true, found);
+
+            // ...or for all the remaining labels if it's the leftmost label
+            // of the target and we've matched at least two labels already.
+            if (labels.length - 1 - index >= 2) {
+                found = addAll(found, node.wildcard.values);
+            }
+        }
+        return found;
+    }
+
+    private List<T> addAll(List<T> found, final List<T> values) {
+        if (values == null) {
+            return found;
+        }
+        for (final T value : values) {
+            if (found == null) {
+                found = new ArrayList<T>(2);
+            }
+            if (!found.contains(value)) {
+                found.add(value);
+            }
+        }
+        return found;
+    }
+
+    private static String[] toLabels(final String host) {
+        int count = 1;
+        for (int i = 0; i < host.length(); i++) {
+            if (host.charAt(i) == '.') {
+                count++;
+            }
+        }
+        final String[] labels = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            final int dot = host.indexOf('.', start);
+            labels[i] = host.substring(start, dot);
+            start = dot + 1;
+        }
+        labels[count - 1] = host.substring(start);
+        return labels;
+    }
+
+    private static final class Node<T> {
+
+        private Map<String, Node<T>> children;
+
+        private Node<T> wildcard;
+
+        private List<T> values;
+
+        private Node<T> child(final String label) {
+            if ("*".equals(label)) {
+                if (wildcard == null) {
+                    wildcard = new Node<T>();
+                }
+                return wildcard;
+            }
+            if (children == null) {
+                children = new HashMap<String, Node<T>>(4);
+            }
+            Node<T> child = children.get(label);
+            if (child == null) {
+                child = new Node<T>();
+                children.put(label, child);
+            }
+            return child;
+        }
+    }
+}
@@ -1,31 +1,17 @@
 package org.lantern.httpseverywhere;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.Locale;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
-import javax.xml.xpath.XPathExpressionException;
-
-import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.lantern.LanternUtils;
-import org.littleshoot.util.xml.XPathUtils;
-import org.littleshoot.util.xml.XmlUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import com.google.common.collect.ImmutableMap;
 
 /**
  * Class for converting requests to HTTPS when we can.
@@ -35,102 +21,73 @@ public class HttpsEverywhere {
     private final Logger LOG = 
         LoggerFactory.getLogger(HttpsEverywhere.class);
     
-    private final Map<String, HttpsRuleSet> httpsRules;
-    
-    {
-        final File httpsDir = new File("https");
-        final File[] ruleFiles = httpsDir.listFiles();
-        final Map<String, HttpsRuleSet> rules =
-            new TreeMap<String, HttpsRuleSet>();
-        for (final File ruleFile : ruleFiles) {
-            try {
-                addRuleFile(ruleFile, rules);
-            } catch (final XPathExpressionException e) {
-                LOG.error("Could not load rule file: "+ruleFile, e);
-            } catch (final IOException e) {
-                LOG.error("Could not load rule file: "+ruleFile, e);
-            } catch (final SAXException e) {
-                LOG.error("Could not load rule file: "+ruleFile, e);
-            }
-        }
-        httpsRules = ImmutableMap.copyOf(rules);
+    private final File rulesDir;
+    
+    private final File snapshot;
+    
+    /**
+     * The current rules. Lookups read whatever index is here without 
+     * locking, and reloads build a whole new index before swapping it in, 
+     * so lookups never see a partly built index.
+     */
+    private final AtomicReference<RuleIndex> httpsRules;
+    
+    private volatile long stamp;
+    
+    public HttpsEverywhere() {
+        this(new File("https"), new File(LanternUtils.dataDir(), "https.rules"));
     }
-
-    private void addRuleFile(final File ruleFile, 
-        final Map<String, HttpsRuleSet> rules) throws IOException, 
-        SAXException, XPathExpressionException {
-        InputStream is = null;
-        final Document doc;
-        try {
-            is = new FileInputStream(ruleFile);
-            doc = XmlUtils.toDoc(is);
-        } finally {
-            IOUtils.closeQuietly(is);
-        }
-        final XPathUtils utils = XPathUtils.newXPath(doc);
-        final Collection<String> targets = 
-            utils.getStrings("/ruleset/target/@host");
-        
-        final Collection<String> exclusions = 
-            utils.getStrings("/ruleset/exclusion/@pattern");
-        
-        final NodeList ruleNodes = utils.getNodes("/ruleset/rule");
-        final int rulesLength = ruleNodes.getLength();
-
-        final NodeList secureCookieNodes = utils.getNodes("/ruleset/securecookie");
-        final int secureCookiesLength = secureCookieNodes.getLength();
-
-        for (final String target : targets) {
-            //LOG.info("Checking target: {}", target);
-            final HttpsRuleSet ruleSet;
-            if (rules.containsKey(target)) {
-                ruleSet = rules.get(target);
-            } else {
-                ruleSet = new HttpsRuleSet(
-                    new ArrayList<HttpsRule>(rulesLength), 
-                    new ArrayList<HttpsSecureCookieRule>(secureCookiesLength), 
-                    exclusions);
-                rules.put(target, ruleSet);
-            }
-            for (int i = 0; i < rulesLength; i++) {
-                final Node node = ruleNodes.item(i);
-                final NamedNodeMap attributes = node.getAttributes();
-                final String from = 
-                    attributes.getNamedItem("from").getTextContent();
-                final String to = 
-                    attributes.getNamedItem("to").getTextContent();
-                final HttpsRule rule = new HttpsRule(from, to);
-                ruleSet.getRules().add(rule);
-            }
-            for (int i = 0; i < secureCookiesLength; i++) {
-                final Node node = secureCookieNodes.item(i);
-                final NamedNodeMap attributes = node.getAttributes();
-                final String host = attributes.getNamedItem("host").getTextContent();
-                final String name = attributes.getNamedItem("name").getTextContent();
-                final HttpsSecureCookieRule rule = new HttpsSecureCookieRule(host, name);
-                ruleSet.secureCookieRules.add(rule);
-            }
+    
+    public HttpsEverywhere(final File rulesDir, final File snapshot) {
+        this.rulesDir = rulesDir;
+        this.snapshot = snapshot;
+        this.stamp = RuleIndex.stamp(rulesDir);
+        final RuleIndex index = RuleIndex.load(rulesDir, snapshot);
+        this.httpsRules = new AtomicReference<RuleIndex>(index);
+        index.deleteOldSnapshots();
+    }
+    
+    /**
+     * Reloads the rules if any rule files were added, removed or modified
+     * since we last loaded them. This only looks at the names, sizes and 
+     * modification times of the files, so it's cheap to call periodically.
+     */
+    public void checkForUpdates() {
+        final long current = RuleIndex.stamp(rulesDir);
+        if (current != stamp) {
+            LOG.info("HTTPS Everywhere rules changed");
+            stamp = current;
+            reload();
         }
     }
     
+    /**
+     * Reloads the rules from disk. This can take seconds with the full 
+     * ruleset if there's no up to date snapshot, so it should never be 
+     * called on an I/O thread. Requests keep using the old rules until the 
+     * new rules are ready.
+     */
+    public void reload() {
+        final RuleIndex index = RuleIndex.load(rulesDir, snapshot);
+        httpsRules.set(index);
+        // The old index may still have its snapshot mapped until it's 
+        // collected, so anything we can't delete now goes next time.
+        index.deleteOldSnapshots();
+        LOG.info("Loaded {} HTTPS Everywhere rule sets", index.size());
+    }
+    
     public String toHttps(final String uri) {
         if (!uri.startsWith("http://")) {
             LOG.info("Not modifying non-http request: {}", uri);
             return uri;
         }
-        final Collection<String> candidates = 
-            LanternUtils.toHttpsCandidates(uri);
-        //LOG.info("Candidates: {}", candidates);
-        final Collection<HttpsRuleSet> ruleSets = getRules(candidates);
-        if (ruleSets == null || ruleSets.isEmpty()) {
-            LOG.info("NO RULES");
+        final Collection<HttpsRuleSet> ruleSets = httpsRules.get().get(toHost(uri));
+        if (ruleSets.isEmpty()) {
+            LOG.debug("NO RULES");
             return uri;
         } 
         for (final HttpsRuleSet ruleSet : ruleSets) {
-            //LOG.info("Rewriting to HTTPS for base URI: {}", toMatch);
-            //LOG.info("Got rules in: {}", httpsRules);
-            //LOG.info("RULES: {}", rules);
-            if (excluded(uri, ruleSet.getExclusions())) {
+            if (ruleSet.isExcluded(uri)) {
                 LOG.info("Excluding ignored URI: {}", uri);
                 continue;
             }
@@ -146,65 +103,91 @@ public class HttpsEverywhere {
             }
         }
         
-        LOG.info("Unchanged!");
+        LOG.debug("Unchanged!");
         return uri;
     }
     
+    /**
+     * Returns the rules we're currently using. Each reload replaces these
+     * with a new index rather than modifying them.
+     * 
+     * @return The current rules.
+     */
+    public RuleIndex ruleIndex() {
+        return httpsRules.get();
+    }
+    
+    /**
+     * Returns every target and its rule set. This reads all the rule sets
+     * we'd otherwise only read when a request matches them, so it's kept
+     * out of the settings we send to the UI.
+     * 
+     * @return The map of targets to rule sets.
+     */
+    @JsonIgnore
     public Map<String, HttpsRuleSet> getRules() {
-        return httpsRules;
+        return httpsRules.get().getRules();
+    }
+    
+    /**
+     * @return The number of rule sets we have, for the UI.
+     */
+    public int getRuleSetCount() {
+        return httpsRules.get().size();
     }
     
     public Collection<HttpsRuleSet> getApplicableRuleSets(
         final String uri) {
-        
-        final Collection<String> candidates = 
-            LanternUtils.toHttpsCandidates(uri);
-
-        final Collection<HttpsRuleSet> ruleSets = getRules(candidates);
+        final Collection<HttpsRuleSet> ruleSets = httpsRules.get().get(toHost(uri));
         final Collection<HttpsRuleSet> applicable = 
             new LinkedHashSet<HttpsRuleSet>();
     
-        if (ruleSets == null || ruleSets.isEmpty()) {
-            return applicable;
-        } 
         for (final HttpsRuleSet ruleSet : ruleSets) {
-            if (!excluded(uri, ruleSet.getExclusions())) {
+            if (!ruleSet.isExcluded(uri)) {
                 applicable.add(ruleSet);
             }
         }
         return applicable;
     }
 
-    private boolean excluded(final String uri,
-        final Collection<String> exclusions) {
-        for (final String exclusion : exclusions) {
-            if (uri.matches(exclusion)) {
-                LOG.info("URI {} matches exclusion {}", uri, exclusion);
-                return true;
-            }
+    /**
+     * Returns the lower case host of the given absolute URI, scanning the
+     * URI directly instead of parsing it since we do this for every
+     * request.
+     * 
+     * @param uri The URI.
+     * @return The host, or <code>null</code> if the URI isn't absolute.
+     */
+    static String toHost(final String uri) {
+        final int scheme = uri.indexOf("://");
+        if (scheme == -1) {
+            return null;
         }
-        return false;
-    }
-
-    private Collection<HttpsRuleSet> getRules(
-        final Collection<String> candidates) {
-        //LOG.info("Searching for rules in: {}", httpsRules);
-        final Collection<HttpsRuleSet> rules = new HashSet<HttpsRuleSet>();
-        for (final String candidate : candidates) {
-            final HttpsRuleSet ruleSet = httpsRules.get(candidate);
-            if (ruleSet != null) {
-                rules.add(ruleSet);
+        int start = scheme + 3;
+        int end = uri.length();
+        for (int i = start; i < end; i++) {
+            final char c = uri.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                end = i;
+                break;
             }
         }
-        return rules;
+        final int at = uri.lastIndexOf('@', end - 1);
+        if (at >= start) {
+            start = at + 1;
+        }
+        final int colon = uri.indexOf(':', start);
+        if (colon != -1 && colon < end) {
+            end = colon;
+        }
+        return uri.substring(start, end).toLowerCase(Locale.US);
     }
     
-    
     public static final class HttpsRuleSet {
         private final Collection<HttpsRule> rules;
         private final Collection<HttpsSecureCookieRule> secureCookieRules;
         private final Collection<String> exclusions;
-
+        private final Pattern[] exclusionPatterns;
 
         public HttpsRuleSet(final Collection<HttpsRule> rules,
             final Collection<HttpsSecureCookieRule> secureCookieRules,
@@ -212,6 +195,28 @@ public class HttpsEverywhere {
             this.rules = rules;
             this.secureCookieRules = secureCookieRules;
             this.exclusions = exclusions;
+            this.exclusionPatterns = new Pattern[exclusions.size()];
+            int i = 0;
+            for (final String exclusion : exclusions) {
+                this.exclusionPatterns[i++] = Pattern.compile(exclusion);
+            }
+        }
+        
+        /**
+         * Returns whether or not the given URI matches any of the 
+         * exclusions of this rule set.
+         * 
+         * @param uri The URI to check.
+         * @return <code>true</code> if the URI is excluded, otherwise
+         * <code>false</code>.
+         */
+        public boolean isExcluded(final String uri) {
+            for (final Pattern exclusion : exclusionPatterns) {
+                if (exclusion.matcher(uri).matches()) {
+                    return true;
+                }
+            }
+            return false;
         }
         
         public Collection<HttpsSecureCookieRule> getSecureCookieRules() {
@@ -1,15 +1,19 @@
 package org.lantern.httpseverywhere;
 
+import java.util.regex.Pattern;
+
 import org.jboss.netty.handler.codec.http.HttpRequest;
 
 public class HttpsRule {
 
     private final String from;
     private final String to;
+    private final Pattern pattern;
 
     public HttpsRule(final String from, final String to) {
         this.from = from;
         this.to = to;
+        this.pattern = Pattern.compile(from);
     }
     
     public String getFrom() {
@@ -25,7 +29,7 @@ public class HttpsRule {
     }
 
     public String apply(final String uri) {
-        return uri.replaceAll(this.from, this.to);
+        return this.pattern.matcher(uri).replaceAll(this.to);
     }
 
     @Override
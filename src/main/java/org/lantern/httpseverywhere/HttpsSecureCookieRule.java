@@ -1,21 +1,24 @@
 package org.lantern.httpseverywhere;
 
+import java.util.regex.Pattern;
 
 /* Class representing a parsed HTTPS Everywhere securecookie rule */
 public class HttpsSecureCookieRule {
 
     private final String host;
     private final String name;
+    private final Pattern pattern;
 
     public HttpsSecureCookieRule(final String host, final String name) {
         this.host = host;
         this.name = name;
+        this.pattern = Pattern.compile(name);
     }
 
     public boolean nameMatches(final String cookieName) {
         // XXX these are javascript regular expressions. 
         // mostly should work, but no actual guarantee until run
-        return cookieName.matches(name);
+        return pattern.matcher(cookieName).matches();
     }
     
     public String getHost() {
@@ -0,0 +1,643 @@
+package org.lantern.httpseverywhere;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.PatternSyntaxException;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.lantern.LanternUtils;
+import org.lantern.httpseverywhere.HttpsEverywhere.HttpsRuleSet;
+import org.littleshoot.util.Sha1;
+import org.littleshoot.util.xml.XPathUtils;
+import org.littleshoot.util.xml.XmlUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The HTTPS Everywhere rule sets in a directory of rule files, with their
+ * targets indexed by host.
+ *
+ * Parsing thousands of rule files with DOM and XPath takes seconds, so we
+ * compile the rules into a snapshot file the first time we see them and
+ * map that on later runs. The snapshot records a hash of the rule files,
+ * and we parse them again whenever it doesn't match. The targets are read
+ * from the snapshot up front to build the index, but each rule set is only
+ * read and its patterns compiled the first time a request matches it. That
+ * happens on whatever thread made the request, often a Netty I/O thread,
+ * but it's only a handful of patterns, and compiling every rule set up
+ * front would undo most of what the snapshot saves.
+ *
+ * Each snapshot goes in its own file named after the hash of the rules.
+ * An index keeps its file mapped for as long as it's in use, and Windows
+ * won't delete or replace a mapped file, so a reload never touches the
+ * file the live index is using. Once the new index is in use,
+ * {@link #deleteOldSnapshots()} clears out the others.
+ *
+ * The snapshot starts with a header of the magic number, the hash of the
+ * rule files, the number of rule sets and the number of targets. Then come
+ * each target with the index of its rule set, the offset of each rule set
+ * in the file, and finally the rules, exclusions and securecookie rules of
+ * each rule set.
+ */
+public class RuleIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RuleIndex.class);
+
+    /**
+     * Identifies our files ("LHR1"), and changes whenever the format does.
+     */
+    private static final int MAGIC = 0x4c485231;
+
+    private static final int HASH_BYTES = 20;
+
+    private static final int HEADER_BYTES = 4 + HASH_BYTES + 4 + 4;
+
+    private final HostTrie<Integer> targets;
+
+    private final Map<String, Integer> targetIndexes;
+
+    private final AtomicReferenceArray<HttpsRuleSet> ruleSets;
+
+    /**
+     * The mapped snapshot we read rule sets from, or <code>null</code> if
+     * we parsed them all already.
+     */
+    private final ByteBuffer snapshot;
+
+    private final int[] offsets;
+
+    /**
+     * The name all our snapshot files start with.
+     */
+    private final File base;
+
+    /**
+     * The snapshot file for these rules, or <code>null</code> if we 
+     * couldn't write one.
+     */
+    private final File file;
+
+    private volatile Map<String, HttpsRuleSet> rules;
+
+    private RuleIndex(final List<RuleFile> ruleFiles, final File base,
+        final File file) {
+        this.base = base;
+        this.file = file;
+        this.targets = new HostTrie<Integer>();
+        this.targetIndexes = new TreeMap<String, Integer>();
+        this.ruleSets = new AtomicReferenceArray<HttpsRuleSet>(ruleFiles.size());
+        this.snapshot = null;
+        this.offsets = null;
+        for (int i = 0; i < ruleFiles.size(); i++) {
+            final RuleFile ruleFile = ruleFiles.get(i);
+            ruleSets.set(i, ruleFile.ruleSet);
+            for (final String target : ruleFile.targets) {
+                addTarget(target, i);
+            }
+        }
+    }
+
+    private RuleIndex(final File base, final File file) throws IOException {
+        this.base = base;
+        this.file = file;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final MappedByteBuffer mapped = raf.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (mapped.getInt(0) != MAGIC) {
+                throw new IOException("Not a rule snapshot: " + file);
+            }
+            final int ruleSetCount = mapped.getInt(4 + HASH_BYTES);
+            final int targetCount = mapped.getInt(8 + HASH_BYTES);
+            this.targets = new HostTrie<Integer>();
+            this.targetIndexes = new TreeMap<String, Integer>();
+            this.ruleSets = new AtomicReferenceArray<HttpsRuleSet>(ruleSetCount);
+            this.offsets = new int[ruleSetCount];
+
+            final DataInputStream in = new DataInputStream(
+                new ByteBufferInputStream(mapped, HEADER_BYTES));
+            for (int i = 0; i < targetCount; i++) {
+                addTarget(in.readUTF(), in.readInt());
+            }
+            for (int i = 0; i < ruleSetCount; i++) {
+                offsets[i] = in.readInt();
+            }
+            this.snapshot = mapped.asReadOnlyBuffer();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void addTarget(final String target, final int index) {
+        targets.add(target.toLowerCase(Locale.US), index);
+        if (!targetIndexes.containsKey(target)) {
+            targetIndexes.put(target, index);
+        }
+    }
+
+    /**
+     * Returns the rule sets with targets matching the given host. The first
+     * time a rule set matches, this reads it from the snapshot and compiles
+     * its patterns.
+     *
+     * @param host The lower case host.
+     * @return The matching rule sets, or an empty list if there are none.
+     */
+    public List<HttpsRuleSet> get(final String host) {
+        final List<Integer> indexes = targets.get(host);
+        if (indexes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<HttpsRuleSet> matching =
+            new ArrayList<HttpsRuleSet>(indexes.size());
+        for (final Integer index : indexes) {
+            matching.add(ruleSet(index));
+        }
+        return matching;
+    }
+
+    /**
+     * Returns a map of each target to the first rule set for it. This reads
+     * every rule set, so it's only for showing the rules in the UI.
+     *
+     * @return The map of targets to rule sets.
+     */
+    public Map<String, HttpsRuleSet> getRules() {
+        if (rules == null) {
+            final Map<String, HttpsRuleSet> map =
+                new TreeMap<String, HttpsRuleSet>();
+            for (final Map.Entry<String, Integer> entry :
+                targetIndexes.entrySet()) {
+                map.put(entry.getKey(), ruleSet(entry.getValue()));
+            }
+            rules = ImmutableMap.copyOf(map);
+        }
+        return rules;
+    }
+
+    /**
+     * @return The number of rule sets.
+     */
+    public int size() {
+        return ruleSets.length();
+    }
+
+    private HttpsRuleSet ruleSet(final int index) {
+        final HttpsRuleSet ruleSet = ruleSets.get(index);
+        if (ruleSet != null) {
+            return ruleSet;
+        }
+        // Another thread may read the same rule set at the same time, which
+        // is harmless since they're identical.
+        try {
+            ruleSets.compareAndSet(index, null, readRuleSet(index));
+        } catch (final IOException e) {
+            // The snapshot is mapped, so this would mean it's corrupt.
+            LOG.error("Could not read rule set " + index, e);
+            ruleSets.compareAndSet(index, null, new HttpsRuleSet(
+                new ArrayList<HttpsRule>(0),
+                new ArrayList<HttpsSecureCookieRule>(0),
+                new ArrayList<String>(0)));
+        }
+        return ruleSets.get(index);
+    }
+
+    private HttpsRuleSet readRuleSet(final int index) throws IOException {
+        final DataInputStream in = new DataInputStream(
+            new ByteBufferInputStream(snapshot, offsets[index]));
+        final int ruleCount = in.readInt();
+        final List<HttpsRule> rules = new ArrayList<HttpsRule>(ruleCount);
+        for (int i = 0; i < ruleCount; i++) {
+            rules.add(new HttpsRule(in.readUTF(), in.readUTF()));
+        }
+        final int exclusionCount = in.readInt();
+        final List<String> exclusions = new ArrayList<String>(exclusionCount);
+        for (int i = 0; i < exclusionCount; i++) {
+            exclusions.add(in.readUTF());
+        }
+        final int cookieCount = in.readInt();
+        final List<HttpsSecureCookieRule> cookies =
+            new ArrayList<HttpsSecureCookieRule>(cookieCount);
+        for (int i = 0; i < cookieCount; i++) {
+            cookies.add(new HttpsSecureCookieRule(in.readUTF(), in.readUTF()));
+        }
+        return new HttpsRuleSet(rules, cookies, exclusions);
+    }
+
+    /**
+     * Loads the rules in the given directory, from the snapshot if it's up
+     * to date and otherwise by parsing the rule files and writing a new
+     * snapshot.
+     *
+     * @param dir The directory of rule files.
+     * @param snapshot The snapshot file, which we add the hash of the rules
+     * to the name of.
+     * @return The rules.
+     */
+    public static RuleIndex load(final File dir, final File snapshot) {
+        final File[] files = ruleFiles(dir);
+        final byte[] hash;
+        try {
+            hash = hash(files);
+        } catch (final IOException e) {
+            LOG.error("Could not read rule files", e);
+            return new RuleIndex(Collections.<RuleFile>emptyList(), snapshot,
+                null);
+        }
+        final File current = snapshotFile(snapshot, hash);
+        if (Arrays.equals(hash, snapshotHash(current))) {
+            try {
+                final RuleIndex index = new RuleIndex(snapshot, current);
+                LOG.info("Loaded {} rule sets from snapshot", index.size());
+                return index;
+            } catch (final IOException e) {
+                LOG.warn("Could not load rule snapshot", e);
+            }
+        }
+        final List<RuleFile> ruleFiles = parse(files);
+        File written = current;
+        try {
+            write(ruleFiles, hash, current);
+        } catch (final IOException e) {
+            LOG.warn("Could not write rule snapshot", e);
+            written = null;
+        }
+        LOG.info("Parsed {} rule sets", ruleFiles.size());
+        return new RuleIndex(ruleFiles, snapshot, written);
+    }
+
+    /**
+     * Deletes any snapshots other than the one for these rules. Call this
+     * once the old index is no longer in use. A snapshot some other index
+     * still has mapped may not be deleted, on Windows in particular, in
+     * which case we get it next time.
+     */
+    public void deleteOldSnapshots() {
+        final File dir = base.getAbsoluteFile().getParentFile();
+        final File[] files = dir == null ? null : dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final String prefix = base.getName() + ".";
+        for (final File old : files) {
+            final String name = old.getName();
+            // The plain name is where older versions kept the snapshot.
+            if (!name.equals(base.getName()) && !name.startsWith(prefix)) {
+                continue;
+            }
+            if (old.equals(file) || name.endsWith(".tmp")) {
+                continue;
+            }
+            if (old.delete()) {
+                LOG.debug("Deleted old rule snapshot {}", old);
+            } else {
+                LOG.debug("Could not delete old rule snapshot {}", old);
+            }
+        }
+    }
+
+    /**
+     * Returns the snapshot file for the rules with the given hash.
+     */
+    private static File snapshotFile(final File snapshot, final byte[] hash) {
+        return new File(snapshot.getPath() + "." +
+            new String(Hex.encodeHex(Arrays.copyOf(hash, 8))));
+    }
+
+    /**
+     * Returns the rule files in the given directory, sorted so the index
+     * of each rule set, and the hash, don't depend on the file system.
+     */
+    private static File[] ruleFiles(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            LOG.warn("No rules in {}", dir);
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Returns a value that changes whenever a rule file in the given 
+     * directory is added, removed, resized or touched, without reading any
+     * of them.
+     *
+     * @param dir The directory of rule files.
+     * @return The stamp of the directory.
+     */
+    public static long stamp(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        Arrays.sort(files);
+        long stamp = 17;
+        for (final File file : files) {
+            stamp = 31 * stamp + file.getName().hashCode();
+            stamp = 31 * stamp + file.length();
+            stamp = 31 * stamp + file.lastModified();
+        }
+        return stamp;
+    }
+
+    private static byte[] hash(final File[] files) throws IOException {
+        final MessageDigest md = new Sha1();
+        for (final File file : files) {
+            md.update(LanternUtils.utf8Bytes(file.getName()));
+            InputStream is = null;
+            try {
+                is = new FileInputStream(file);
+                md.update(IOUtils.toByteArray(is));
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return md.digest();
+    }
+
+    private static byte[] snapshotHash(final File snapshot) {
+        if (!snapshot.isFile()) {
+            return null;
+        }
+        final byte[] hash = new byte[HASH_BYTES];
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(snapshot));
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            in.readFully(hash);
+            return hash;
+        } catch (final IOException e) {
+            LOG.warn("Could not read rule snapshot", e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Parses the rule files on all cores, skipping any we can't parse.
+     */
+    private static List<RuleFile> parse(final File[] files) {
+        final ExecutorService pool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "HTTPS-Rule-Parser");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        try {
+            final List<Future<RuleFile>> futures =
+                new ArrayList<Future<RuleFile>>(files.length);
+            for (final File file : files) {
+                futures.add(pool.submit(new Callable<RuleFile>() {
+                    @Override
+                    public RuleFile call() {
+                        return parse(file);
+                    }
+                }));
+            }
+            final List<RuleFile> ruleFiles = new ArrayList<RuleFile>();
+            for (final Future<RuleFile> future : futures) {
+                final RuleFile ruleFile = future.get();
+                if (ruleFile != null) {
+                    ruleFiles.add(ruleFile);
+                }
+            }
+            return ruleFiles;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted parsing rules");
+            return Collections.emptyList();
+        } catch (final ExecutionException e) {
+            LOG.error("Could not parse rules", e.getCause());
+            return Collections.emptyList();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static RuleFile parse(final File ruleFile) {
+        try {
+            return parseRuleFile(ruleFile);
+        } catch (final XPathExpressionException e) {
+            LOG.error("Could not load rule file: "+ruleFile, e);
+        } catch (final IOException e) {
+            LOG.error("Could not load rule file: "+ruleFile, e);
+        } catch (final SAXException e) {
+            LOG.error("Could not load rule file: "+ruleFile, e);
+        } catch (final PatternSyntaxException e) {
+            LOG.error("Bad pattern in rule file: "+ruleFile, e);
+        }
+        return null;
+    }
+
+    private static RuleFile parseRuleFile(final File ruleFile)
+        throws IOException, SAXException, XPathExpressionException {
+        InputStream is = null;
+        final Document doc;
+        try {
+            is = new FileInputStream(ruleFile);
+            doc = XmlUtils.toDoc(is);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        final XPathUtils utils = XPathUtils.newXPath(doc);
+        final Collection<String> targets =
+            utils.getStrings("/ruleset/target/@host");
+
+        final Collection<String> exclusions =
+            utils.getStrings("/ruleset/exclusion/@pattern");
+
+        final NodeList ruleNodes = utils.getNodes("/ruleset/rule");
+        final int rulesLength = ruleNodes.getLength();
+
+        final NodeList secureCookieNodes = utils.getNodes("/ruleset/securecookie");
+        final int secureCookiesLength = secureCookieNodes.getLength();
+
+        final List<HttpsRule> rules = new ArrayList<HttpsRule>(rulesLength);
+        for (int i = 0; i < rulesLength; i++) {
+            final Node node = ruleNodes.item(i);
+            final NamedNodeMap attributes = node.getAttributes();
+            final String from =
+                attributes.getNamedItem("from").getTextContent();
+            final String to =
+                attributes.getNamedItem("to").getTextContent();
+            rules.add(new HttpsRule(from, to));
+        }
+        final List<HttpsSecureCookieRule> secureCookieRules =
+            new ArrayList<HttpsSecureCookieRule>(secureCookiesLength);
+        for (int i = 0; i < secureCookiesLength; i++) {
+            final Node node = secureCookieNodes.item(i);
+            final NamedNodeMap attributes = node.getAttributes();
+            final String host = attributes.getNamedItem("host").getTextContent();
+            final String name = attributes.getNamedItem("name").getTextContent();
+            secureCookieRules.add(new HttpsSecureCookieRule(host, name));
+        }
+        return new RuleFile(targets,
+            new HttpsRuleSet(rules, secureCookieRules, exclusions));
+    }
+
+    private static void write(final List<RuleFile> ruleFiles,
+        final byte[] hash, final File file) throws IOException {
+        final ByteArrayOutputStream targetBytes = new ByteArrayOutputStream();
+        final DataOutputStream targets = new DataOutputStream(targetBytes);
+        final ByteArrayOutputStream ruleSetBytes = new ByteArrayOutputStream();
+        final DataOutputStream ruleSets = new DataOutputStream(ruleSetBytes);
+        final int[] offsets = new int[ruleFiles.size()];
+        int targetCount = 0;
+        for (int i = 0; i < ruleFiles.size(); i++) {
+            final RuleFile ruleFile = ruleFiles.get(i);
+            for (final String target : ruleFile.targets) {
+                targets.writeUTF(target);
+                targets.writeInt(i);
+                targetCount++;
+            }
+            offsets[i] = ruleSets.size();
+            final HttpsRuleSet ruleSet = ruleFile.ruleSet;
+            ruleSets.writeInt(ruleSet.getRules().size());
+            for (final HttpsRule rule : ruleSet.getRules()) {
+                ruleSets.writeUTF(rule.getFrom());
+                ruleSets.writeUTF(rule.getTo());
+            }
+            ruleSets.writeInt(ruleSet.getExclusions().size());
+            for (final String exclusion : ruleSet.getExclusions()) {
+                ruleSets.writeUTF(exclusion);
+            }
+            ruleSets.writeInt(ruleSet.getSecureCookieRules().size());
+            for (final HttpsSecureCookieRule rule :
+                ruleSet.getSecureCookieRules()) {
+                ruleSets.writeUTF(rule.getHost());
+                ruleSets.writeUTF(rule.getName());
+            }
+        }
+        final int start = HEADER_BYTES + targets.size() + offsets.length * 4;
+
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream os = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            os.writeInt(MAGIC);
+            os.write(hash);
+            os.writeInt(ruleFiles.size());
+            os.writeInt(targetCount);
+            targetBytes.writeTo(os);
+            for (final int offset : offsets) {
+                os.writeInt(start + offset);
+            }
+            ruleSetBytes.writeTo(os);
+            os.close();
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+        if (file.isFile() && !file.delete()) {
+            throw new IOException("Could not replace " + file);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp);
+        }
+    }
+
+    /**
+     * Builds a snapshot from the command line, for example when packaging.
+     *
+     * @param args The directory of rule files and the snapshot to write.
+     * @throws IOException If we can't read the rules or write the snapshot.
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: RuleIndex <rule dir> <snapshot base>");
+            System.exit(1);
+        }
+        final File[] files = ruleFiles(new File(args[0]));
+        final byte[] hash = hash(files);
+        write(parse(files), hash, snapshotFile(new File(args[1]), hash));
+    }
+
+    private static final class RuleFile {
+
+        private final Collection<String> targets;
+
+        private final HttpsRuleSet ruleSet;
+
+        private RuleFile(final Collection<String> targets,
+            final HttpsRuleSet ruleSet) {
+            this.targets = targets;
+            this.ruleSet = ruleSet;
+        }
+    }
+
+    /**
+     * Reads a mapped buffer from a given position without copying it or
+     * moving the position of the buffer itself.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(final ByteBuffer buffer,
+            final int position) {
+            this.buffer = buffer.duplicate();
+            this.buffer.position(position);
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
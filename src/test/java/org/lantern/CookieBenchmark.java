@@ -0,0 +1,139 @@
+package org.lantern;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.handler.codec.http.Cookie;
+import org.jboss.netty.handler.codec.http.CookieEncoder;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.lantern.cookie.CookieFilter;
+import org.lantern.cookie.InMemoryCookieTracker;
+import org.lantern.cookie.UpstreamCookieFilterHandler;
+import org.lantern.httpseverywhere.HttpsBestEffortCookieFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures tracking cookies set by the sites we proxy and filtering the
+ * cookies the browser sends them, with a jar of a few thousand cookies
+ * across a hundred sites, about what a browser accumulates in a day of
+ * normal use. Requests carry the cookies of their site along with some
+ * the tracker never saw being set, as the browser sends cookies it
+ * received before we started proxying.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieBenchmark {
+
+    private static final int SITES = 100;
+
+    private static final int COOKIES_PER_SITE = 25;
+
+    private static final int UNKNOWN_COOKIES = 10;
+
+    private final InMemoryCookieTracker tracker = new InMemoryCookieTracker();
+
+    private final List<List<Cookie>> setCookies = new ArrayList<List<Cookie>>();
+
+    private final List<HttpRequest> setCookieRequests =
+        new ArrayList<HttpRequest>();
+
+    private Cookie known;
+
+    private Cookie unknown;
+
+    private URI uri;
+
+    private UpstreamCookieFilterHandler filter;
+
+    private HttpRequest request;
+
+    private String cookieHeader;
+
+    private int index;
+
+    @Setup
+    public void setUp() throws Exception {
+        for (int site = 0; site < SITES; site++) {
+            final List<Cookie> cookies = new ArrayList<Cookie>();
+            for (int i = 0; i < COOKIES_PER_SITE; i++) {
+                cookies.add(TestingUtils.createDefaultCookie("c" + i + "=" +
+                    Long.toHexString(site * 7919L + i * 104729L) +
+                    "; Domain=.site" + site + ".com; Path=/"));
+            }
+            final HttpRequest req =
+                TestingUtils.createGetRequest(siteUrl(site));
+            tracker.setCookies(cookies, req);
+            setCookies.add(cookies);
+            setCookieRequests.add(req);
+        }
+        known = TestingUtils.createDefaultCookie(
+            "c5=" + Long.toHexString(42 * 7919L + 5 * 104729L));
+        unknown = TestingUtils.createDefaultCookie("__utma=1.2.3.4");
+        uri = new URI(siteUrl(42));
+
+        filter = new UpstreamCookieFilterHandler(new CookieFilter.Factory() {
+            @Override
+            public CookieFilter createCookieFilter(final HttpRequest context) {
+                try {
+                    return new HttpsBestEffortCookieFilter(
+                        tracker.asOutboundCookieFilter(context, true), context);
+                } catch (final Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        final CookieEncoder encoder = new CookieEncoder(false);
+        for (final Cookie cookie : setCookies.get(42)) {
+            encoder.addCookie(cookie.getName(), cookie.getValue());
+        }
+        for (int i = 0; i < UNKNOWN_COOKIES; i++) {
+            encoder.addCookie("__tracker" + i, "0123456789abcdef" + i);
+        }
+        cookieHeader = encoder.encode();
+        request = TestingUtils.createGetRequest(siteUrl(42));
+    }
+
+    private static String siteUrl(final int site) {
+        return "http://www.site" + site + ".com/path/to/page?query=1";
+    }
+
+    @Benchmark
+    public boolean wouldSendKnown() {
+        return tracker.wouldSendCookie(known, uri, true);
+    }
+
+    @Benchmark
+    public boolean wouldSendUnknown() {
+        return tracker.wouldSendCookie(unknown, uri, true);
+    }
+
+    @Benchmark
+    public void setCookies() {
+        final int site = index++ % SITES;
+        tracker.setCookies(setCookies.get(site), setCookieRequests.get(site));
+    }
+
+    @Benchmark
+    public String filterCookies() {
+        // Filtering rewrites the header, so put back the original each time.
+        request.setHeader(HttpHeaders.Names.COOKIE, cookieHeader);
+        filter.filterCookies(request);
+        return request.getHeader(HttpHeaders.Names.COOKIE);
+    }
+}
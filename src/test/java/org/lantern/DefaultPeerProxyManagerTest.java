@@ -3,34 +3,124 @@ package org.lantern;
 import static org.junit.Assert.*;
 
 import java.net.URI;
+import java.util.Random;
 
 import org.junit.Test;
 import org.lantern.DefaultPeerProxyManager.ConnectionTimeSocket;
+import org.lantern.DefaultPeerProxyManager.PeerPool;
 
 
 public class DefaultPeerProxyManagerTest {
 
-    @Test public void testQueue() throws Exception {
-        final DefaultPeerProxyManager l = new DefaultPeerProxyManager(true);
-        
+    @Test public void testTakesNewestSocket() throws Exception {
+        final DefaultPeerProxyManager l = newManager();
         final URI peerUri = new URI("http://test.com");
-        final ConnectionTimeSocket cts1 = l.new ConnectionTimeSocket(peerUri);
-        cts1.elapsed = 1000L;
-        final ConnectionTimeSocket cts2 = l.new ConnectionTimeSocket(peerUri);
-        cts2.elapsed = 2000L;
-        final ConnectionTimeSocket cts3 = l.new ConnectionTimeSocket(peerUri);
-        cts3.elapsed = 3000L;
-        final ConnectionTimeSocket cts4 = l.new ConnectionTimeSocket(peerUri);
-        cts4.elapsed = 4000L;
-        
-        l.timedSockets.add(cts1);
-        l.timedSockets.add(cts2);
-        l.timedSockets.add(cts3);
-        l.timedSockets.add(cts4);
-        
-        assertEquals(l.timedSockets.poll(), cts1);
-        assertEquals(l.timedSockets.poll(), cts2);
-        assertEquals(l.timedSockets.poll(), cts3);
-        assertEquals(l.timedSockets.poll(), cts4);
+        final PeerPool pool = new PeerPool(peerUri);
+        final long now = System.currentTimeMillis();
+        
+        final ConnectionTimeSocket stale = newSocket(l, peerUri, 
+            now - LanternConstants.PEER_SOCKET_IDLE_TIMEOUT - 1);
+        final ConnectionTimeSocket older = newSocket(l, peerUri, now - 2000);
+        final ConnectionTimeSocket newer = newSocket(l, peerUri, now - 1000);
+        pool.onConnect(stale);
+        pool.onConnect(older);
+        pool.onConnect(newer);
+        
+        assertEquals(newer, pool.take(now));
+        
+        // A socket we took out to check goes back in age order.
+        assertTrue(pool.remove(older));
+        pool.restore(older);
+        assertEquals(older, pool.take(now));
+        
+        // Sockets idle for too long are thrown away.
+        assertNull(pool.take(now));
+        assertFalse(pool.hasReady());
+    }
+    
+    @Test public void testPrefersBetterPeer() throws Exception {
+        final PeerScorer scorer = new PeerScorer(0.0, 60 * 1000, new Random());
+        final DefaultPeerProxyManager l = 
+            new DefaultPeerProxyManager(true, scorer);
+        final URI good = new URI("http://good.com");
+        final URI bad = new URI("http://bad.com");
+        final PeerScorer.Transfer ok = scorer.newTransfer(good);
+        ok.onBytes(1000);
+        ok.onComplete();
+        scorer.newTransfer(bad).onError();
+        
+        final long now = System.currentTimeMillis();
+        final PeerPool goodPool = new PeerPool(good);
+        goodPool.onConnect(newSocket(l, good, now));
+        goodPool.onConnect(newSocket(l, good, now));
+        final PeerPool badPool = new PeerPool(bad);
+        badPool.onConnect(newSocket(l, bad, now));
+        l.peers.put(good, goodPool);
+        l.peers.put(bad, badPool);
+        
+        assertTrue(goodPool.hasReady());
+        l.takeSocket();
+        l.takeSocket();
+        // We only go to the bad peer once the good one is out of sockets.
+        assertFalse(goodPool.hasReady());
+        assertTrue(badPool.hasReady());
+        l.takeSocket();
+        assertFalse(badPool.hasReady());
+        assertNull(l.takeSocket());
+    }
+    
+    @Test public void testBackoff() throws Exception {
+        final PeerPool pool = new PeerPool(new URI("http://test.com"));
+        final long now = System.currentTimeMillis();
+        assertEquals(LanternConstants.PEER_POOL_MIN, pool.reserveDials(now));
+        
+        assertEquals(LanternConstants.PEER_BACKOFF_BASE, pool.onFailure());
+        assertTrue(pool.isBackingOff(now));
+        assertEquals(0, pool.reserveDials(now));
+        
+        // Once the backoff is over we only try one socket at a time.
+        final long later = now + LanternConstants.PEER_BACKOFF_BASE + 1;
+        assertEquals(1, pool.reserveDials(later));
+        assertEquals(2 * LanternConstants.PEER_BACKOFF_BASE, pool.onFailure());
+        
+        // A success clears the backoff.
+        pool.reserveDials(later + 4 * LanternConstants.PEER_BACKOFF_BASE);
+        pool.onConnect(newSocket(newManager(), new URI("http://test.com"), 
+            System.currentTimeMillis()));
+        assertFalse(pool.isBackingOff(System.currentTimeMillis()));
+    }
+    
+    @Test public void testPoolGrowsWithDemand() throws Exception {
+        final PeerPool pool = new PeerPool(new URI("http://test.com"));
+        final long now = System.currentTimeMillis();
+        assertEquals(LanternConstants.PEER_POOL_MIN, pool.targetSize(now));
+        pool.reserveDials(now);
+        final ConnectionTimeSocket cts = 
+            newSocket(newManager(), new URI("http://test.com"), now);
+        cts.elapsed = 2000L;
+        pool.onConnect(cts);
+        for (int i = 0; i < 20; i++) {
+            pool.onRequest();
+        }
+        // Many requests a second with slow connections needs a full pool.
+        assertEquals(LanternConstants.PEER_POOL_MAX, 
+            pool.targetSize(System.currentTimeMillis()));
+        
+        // Which shrinks back once requests stop.
+        assertEquals(LanternConstants.PEER_POOL_MIN, 
+            pool.targetSize(System.currentTimeMillis() + 60 * 60 * 1000));
+    }
+    
+    private DefaultPeerProxyManager newManager() {
+        return new DefaultPeerProxyManager(true, 
+            new PeerScorer(0.0, 60 * 1000, new Random()));
+    }
+    
+    private ConnectionTimeSocket newSocket(final DefaultPeerProxyManager l,
+        final URI peerUri, final long idleSince) {
+        final ConnectionTimeSocket cts = l.new ConnectionTimeSocket(peerUri);
+        cts.elapsed = 1000L;
+        cts.idleSince = idleSince;
+        return cts;
     }
 }
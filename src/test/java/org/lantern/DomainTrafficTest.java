@@ -0,0 +1,86 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+public class DomainTrafficTest {
+
+    @Test
+    public void testRegistrableDomains() throws Exception {
+        assertEquals("google.com", host("www.google.com", "/"));
+        assertEquals("google.co.uk", host("mail.google.co.uk:8080", "/"));
+        assertEquals("twitter.com",
+            host(null, "http://api.twitter.com/1/statuses"));
+        assertEquals("facebook.com", host(null, "www.facebook.com:443"));
+        assertEquals("10.0.0.1", host("10.0.0.1:80", "/"));
+    }
+
+    @Test
+    public void testFindsTopDomains() throws Exception {
+        final DomainTraffic traffic = new DomainTraffic(4, 256, 5);
+        final Random random = new Random(11);
+        for (int i = 0; i < 20000; i++) {
+            final DomainTraffic.Domain small = traffic.onRequest(
+                DomainTraffic.Route.PROXIED, null,
+                request("site" + random.nextInt(2000) + ".com", "/"));
+            traffic.addBytes(DomainTraffic.Route.PROXIED, small, 100);
+            if (i % 10 == 0) {
+                final DomainTraffic.Domain big = traffic.onRequest(
+                    DomainTraffic.Route.PROXIED, null,
+                    request("www.youtube.com", "/"));
+                traffic.addBytes(DomainTraffic.Route.PROXIED, big, 10000);
+            }
+        }
+        final List<String> top =
+            traffic.getTopDomains(DomainTraffic.Route.PROXIED);
+        assertEquals(5, top.size());
+        assertEquals("youtube.com", top.get(0));
+
+        // Estimates never undercount, and here the big domain dominates.
+        final long bytes =
+            traffic.getBytes(DomainTraffic.Route.PROXIED, "youtube.com");
+        assertTrue(bytes >= 2000 * 10000);
+        assertTrue(bytes < 2000 * 10000 * 1.1);
+        assertEquals(2000,
+            traffic.getRequests(DomainTraffic.Route.PROXIED, "youtube.com"),
+            200);
+        assertEquals(0L,
+            traffic.getBytes(DomainTraffic.Route.DIRECT, "youtube.com"));
+    }
+
+    @Test
+    public void testSameHashCodeDoesNotCollide() throws Exception {
+        // Same length and same String.hashCode().
+        assertEquals("Aa.com".hashCode(), "BB.com".hashCode());
+        final CountMinSketch sketch = new CountMinSketch(4, 1 << 16);
+        sketch.add(CountMinSketch.hash("Aa.com"), 1000);
+        assertTrue(CountMinSketch.hash("Aa.com") != 
+            CountMinSketch.hash("BB.com"));
+        assertEquals(0L, sketch.estimate(CountMinSketch.hash("BB.com")));
+    }
+
+    private static String host(final String host, final String uri) {
+        final DomainTraffic traffic = new DomainTraffic(2, 16, 1);
+        return traffic.onRequest(DomainTraffic.Route.DIRECT, null,
+            request(host, uri)).getName();
+    }
+
+    private static HttpRequest request(final String host, final String uri) {
+        final HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+            host == null && !uri.startsWith("http") ?
+                HttpMethod.CONNECT : HttpMethod.GET, uri);
+        if (host != null) {
+            request.setHeader("Host", host);
+        }
+        return request;
+    }
+}
@@ -0,0 +1,122 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.maxmind.geoip.LookupService;
+
+public class GeoIpTableTest {
+
+    private static File dat;
+
+    private static File table;
+
+    private static LookupService lookup;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        dat = File.createTempFile("GeoIP", ".dat");
+        table = File.createTempFile("GeoIP", ".table");
+        final InputStream is =
+            new GZIPInputStream(new FileInputStream("GeoIP.dat.gz"));
+        final OutputStream os = new FileOutputStream(dat);
+        try {
+            IOUtils.copy(is, os);
+        } finally {
+            IOUtils.closeQuietly(is);
+            IOUtils.closeQuietly(os);
+        }
+        lookup = new LookupService(dat, LookupService.GEOIP_MEMORY_CACHE);
+        GeoIpTable.build(lookup, table);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        lookup.close();
+        dat.delete();
+        table.delete();
+    }
+
+    @Test
+    public void testMatchesLookupService() throws Exception {
+        final GeoIpTable geo = new GeoIpTable(table);
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final int ip = random.nextInt();
+            assertEquals(lookup.getCountry(ip & 0xffffffffL).getCode(),
+                geo.getCountry(ip).getCode());
+        }
+        final InetAddress google = InetAddress.getByName("8.8.8.8");
+        assertEquals(lookup.getCountry(google).getCode(),
+            geo.getCountry(google).getCode());
+        assertEquals(lookup.getCountry(google).getName(),
+            geo.getCountry(google).getName());
+        assertEquals("--",
+            geo.getCountry(InetAddress.getByName("127.0.0.1")).getCode());
+        assertEquals("--", geo.getCountry(InetAddress.getByName("::1")).getCode());
+    }
+
+    @Test
+    public void testEmptyTable() throws Exception {
+        final GeoIpTable geo = GeoIpTable.empty();
+        assertEquals(0, geo.getRanges());
+        assertEquals("--",
+            geo.getCountry(InetAddress.getByName("8.8.8.8")).getCode());
+    }
+
+    /**
+     * Compares loading and looking up addresses with the lookup service
+     * and with the table.
+     */
+    @Test
+    public void testSpeed() throws Exception {
+        final int lookups = 1000000;
+        final InetAddress[] addresses = new InetAddress[4096];
+        final Random random = new Random(7);
+        for (int i = 0; i < addresses.length; i++) {
+            final byte[] bytes = new byte[4];
+            random.nextBytes(bytes);
+            addresses[i] = InetAddress.getByAddress(bytes);
+        }
+
+        long start = System.nanoTime();
+        final LookupService service =
+            new LookupService(dat, LookupService.GEOIP_MEMORY_CACHE);
+        final long serviceLoad = System.nanoTime() - start;
+        start = System.nanoTime();
+        final GeoIpTable geo = new GeoIpTable(table);
+        final long tableLoad = System.nanoTime() - start;
+
+        int hash = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            hash += service.getCountry(addresses[i & 4095]).getCode().hashCode();
+        }
+        final long serviceLookups = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            hash -= geo.getCountry(addresses[i & 4095]).getCode().hashCode();
+        }
+        final long tableLookups = System.nanoTime() - start;
+        service.close();
+
+        assertEquals(0, hash);
+        System.out.println("Lookup service: load " + serviceLoad / 1000 +
+            "us, " + serviceLookups / lookups + "ns per lookup. Table of " +
+            geo.getRanges() + " ranges: load " + tableLoad / 1000 + "us, " +
+            tableLookups / lookups + "ns per lookup");
+    }
+}
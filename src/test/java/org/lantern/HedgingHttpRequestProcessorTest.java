@@ -0,0 +1,198 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+public class HedgingHttpRequestProcessorTest {
+
+    private static final long DELAY = 50;
+
+    @Test
+    public void testSlowPrimary() throws Exception {
+        final Map<String, Long> samples = new HashMap<String, Long>();
+        final CountDownLatch hedged = new CountDownLatch(1);
+        final HedgingHttpRequestProcessor.Route fast =
+            new TestRoute("fast") {
+            @Override
+            public HttpRequestProcessor send(final Channel ch,
+                final ChannelHandlerContext ctx, final MessageEvent me,
+                final boolean hedge) {
+                ch.write(new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.OK));
+                hedged.countDown();
+                return NOOP;
+            }
+        };
+        final AtomicInteger writes = new AtomicInteger();
+        final HedgingHttpRequestProcessor processor =
+            new HedgingHttpRequestProcessor(
+                Arrays.asList(new TestRoute("slow"), fast),
+                tracker(samples));
+        final Channel browser = browser(writes);
+        assertTrue(processor.processRequest(browser, null, request(browser)));
+        assertTrue(hedged.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, writes.get());
+        synchronized (samples) {
+            // The primary is recorded as taking at least as long as we
+            // waited on it, not dropped.
+            assertTrue(samples.get("slow") >= DELAY);
+            assertTrue(samples.containsKey("fast"));
+        }
+    }
+
+    @Test
+    public void testLosingHedgeNotSampled() throws Exception {
+        final Map<String, Long> samples = new HashMap<String, Long>();
+        final AtomicReference<Channel> primary =
+            new AtomicReference<Channel>();
+        final CountDownLatch hedged = new CountDownLatch(1);
+        final HedgingHttpRequestProcessor.Route slow =
+            new TestRoute("slow") {
+            @Override
+            public HttpRequestProcessor send(final Channel ch,
+                final ChannelHandlerContext ctx, final MessageEvent me,
+                final boolean hedge) {
+                primary.set(ch);
+                return NOOP;
+            }
+        };
+        final HedgingHttpRequestProcessor.Route hedge =
+            new TestRoute("hedge") {
+            @Override
+            public HttpRequestProcessor send(final Channel ch,
+                final ChannelHandlerContext ctx, final MessageEvent me,
+                final boolean hedge) {
+                hedged.countDown();
+                return NOOP;
+            }
+        };
+        final AtomicInteger writes = new AtomicInteger();
+        final HedgingHttpRequestProcessor processor =
+            new HedgingHttpRequestProcessor(Arrays.asList(slow, hedge),
+                tracker(samples));
+        final Channel browser = browser(writes);
+        assertTrue(processor.processRequest(browser, null, request(browser)));
+        assertTrue(hedged.await(5, TimeUnit.SECONDS));
+
+        primary.get().write(new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+            HttpResponseStatus.OK));
+        assertEquals(1, writes.get());
+        synchronized (samples) {
+            assertTrue(samples.get("slow") >= DELAY);
+            assertFalse(samples.containsKey("hedge"));
+        }
+    }
+
+    private static final HttpRequestProcessor NOOP =
+        new HttpRequestProcessor() {
+        @Override
+        public boolean processRequest(final Channel browserToProxyChannel,
+            final ChannelHandlerContext ctx, final MessageEvent me) {
+            return true;
+        }
+
+        @Override
+        public boolean processChunk(final ChannelHandlerContext ctx,
+            final MessageEvent me) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private static class TestRoute
+        implements HedgingHttpRequestProcessor.Route {
+
+        private final String name;
+
+        private TestRoute(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public HttpRequestProcessor send(final Channel ch,
+            final ChannelHandlerContext ctx, final MessageEvent me,
+            final boolean hedge) {
+            // Never answers.
+            return NOOP;
+        }
+    }
+
+    private HedgeTracker tracker(final Map<String, Long> samples) {
+        return new HedgeTracker() {
+            @Override
+            public long getHedgeDelay(final String route) {
+                return DELAY;
+            }
+
+            @Override
+            public void addSample(final String route, final long millis) {
+                synchronized (samples) {
+                    samples.put(route, millis);
+                }
+            }
+        };
+    }
+
+    private MessageEvent request(final Channel browser) {
+        return new UpstreamMessageEvent(browser,
+            TestingUtils.createGetRequest("http://www.example.com/"), null);
+    }
+
+    /**
+     * Returns a browser channel that just counts what's written to it.
+     */
+    private Channel browser(final AtomicInteger writes) {
+        return (Channel) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {Channel.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method,
+                    final Object[] args) {
+                    if (method.getName().equals("write")) {
+                        writes.incrementAndGet();
+                    }
+                    if (method.getReturnType().equals(boolean.class)) {
+                        return true;
+                    }
+                    if (method.getName().equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    if (method.getReturnType().equals(ChannelFuture.class)) {
+                        return Channels.succeededFuture((Channel) proxy);
+                    }
+                    return null;
+                }
+            });
+    }
+}
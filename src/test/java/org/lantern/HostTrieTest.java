@@ -0,0 +1,44 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.lantern.httpseverywhere.HostTrie;
+
+public class HostTrieTest {
+
+    @Test
+    public void testTargets() throws Exception {
+        final HostTrie<String> trie = new HostTrie<String>();
+        trie.add("google.com", "google");
+        trie.add("*.google.com", "google");
+        trie.add("www.google.*", "google-tld");
+        trie.add("www.google.co.*", "google-tld");
+        trie.add("*.files.wordpress.com", "wordpress");
+        trie.add("t.co", "twitter");
+        
+        assertEquals(Arrays.asList("google"), trie.get("google.com"));
+        assertEquals(Arrays.asList("google", "google-tld"), 
+            trie.get("www.google.com"));
+        assertEquals(Arrays.asList("google"), trie.get("a.b.google.com"));
+        assertEquals(Arrays.asList("google-tld"), trie.get("www.google.de"));
+        assertEquals(Arrays.asList("google-tld"), 
+            trie.get("www.google.co.uk"));
+        assertEquals(Arrays.asList("wordpress"), 
+            trie.get("a.b.files.wordpress.com"));
+        assertEquals(Arrays.asList("twitter"), trie.get("t.co"));
+        
+        // Wildcards only stand in for a single label, other than on the
+        // left where they need at least one label.
+        assertTrue(trie.get("www.google.co.uk.evil").isEmpty());
+        assertTrue(trie.get("files.wordpress.com").isEmpty());
+        assertTrue(trie.get("mail.google.de").isEmpty());
+        assertTrue(trie.get("x.t.co").isEmpty());
+        assertTrue(trie.get("www.nytimes.com").isEmpty());
+        assertTrue(trie.get("").isEmpty());
+        assertTrue(trie.get(null).isEmpty());
+    }
+}
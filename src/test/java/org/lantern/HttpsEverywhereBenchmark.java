@@ -0,0 +1,95 @@
+package org.lantern;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.lantern.httpseverywhere.HttpsEverywhere;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+/**
+ * Measures rewriting URLs to HTTPS with the rulesets we ship in the https
+ * directory, which we do for every request the browser sends us. Most
+ * requests are for hosts without a ruleset, so that case matters as much
+ * as actual rewrites.
+ *
+ * To measure with another set of rules, such as the full HTTPS Everywhere
+ * ruleset, point the https.rules.dir system property at its directory, as
+ * in "mvn -Pbenchmarks test -Djmh.include=HttpsEverywhere
+ * -Dhttps.rules.dir=/path/to/rules".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpsEverywhereBenchmark {
+
+    private static final String[] REWRITTEN = {
+        "http://www.gmail.com/mail/u/0/?shva=1",
+        "http://www.facebook.com/profile.php?id=100001234567890",
+        "http://www.flickr.com/photos/someone/5432109876/",
+        "http://twitter.com/search?q=%23egypt",
+        "http://platform.linkedin.com/js/secureAnonymousFramework",
+    };
+
+    private static final String[] EXCLUDED = {
+        "http://www.google.com/search?tbm=isch&q=cairo",
+        "http://test.forums.wordpress.com/topic/12345",
+    };
+
+    private static final String[] NO_RULES = {
+        "http://www.nytimes.com/2012/01/01/world/middleeast/index.html",
+        "http://static.bbci.co.uk/frameworks/barlesque/2.8.11/desktop/3.5/img/blq-blocks_grey_alpha.png",
+        "http://ajax.aspnetcdn.com/ajax/jQuery/jquery-1.7.1.min.js",
+        "http://en.wikipedia.org/wiki/Internet_censorship",
+        "http://www.aljazeera.com/news/middleeast/",
+    };
+
+    private HttpsEverywhere https;
+
+    private File dir;
+
+    private int index;
+
+    @Setup
+    public void setUp() {
+        dir = Files.createTempDir();
+        https = new HttpsEverywhere(
+            new File(System.getProperty("https.rules.dir", "https")),
+            new File(dir, "https.rules"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public String rewritten() {
+        return https.toHttps(REWRITTEN[index++ % REWRITTEN.length]);
+    }
+
+    @Benchmark
+    public String excluded() {
+        return https.toHttps(EXCLUDED[index++ % EXCLUDED.length]);
+    }
+
+    @Benchmark
+    public String noRules() {
+        return https.toHttps(NO_RULES[index++ % NO_RULES.length]);
+    }
+}
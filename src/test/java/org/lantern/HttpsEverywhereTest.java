@@ -2,11 +2,17 @@ package org.lantern;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Test;
 import org.lantern.httpseverywhere.HttpsEverywhere;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.io.Files;
+
 public class HttpsEverywhereTest {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
@@ -57,4 +63,50 @@ public class HttpsEverywhereTest {
             assertEquals(request, converted);
         }
     }
+    
+    @Test public void testReload() throws Exception {
+        final File dir = Files.createTempDir();
+        final File rules = new File(dir, "rules");
+        try {
+            rules.mkdir();
+            final HttpsEverywhere https = 
+                new HttpsEverywhere(rules, new File(dir, "rules.snapshot"));
+            assertEquals("http://www.example.com/", 
+                https.toHttps("http://www.example.com/"));
+            
+            FileUtils.writeStringToFile(new File(rules, "Example.xml"),
+                "<ruleset name=\"Example\">" +
+                "<target host=\"www.example.com\" />" +
+                "<rule from=\"^http://www\\.example\\.com/\" " +
+                "to=\"https://www.example.com/\" />" +
+                "</ruleset>");
+            https.checkForUpdates();
+            assertEquals("https://www.example.com/", 
+                https.toHttps("http://www.example.com/"));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+    
+    @Test public void testJsonLeavesOutRules() throws Exception {
+        final File dir = Files.createTempDir();
+        final File rules = new File(dir, "rules");
+        try {
+            rules.mkdir();
+            FileUtils.writeStringToFile(new File(rules, "Example.xml"),
+                "<ruleset name=\"Example\">" +
+                "<target host=\"www.example.com\" />" +
+                "<rule from=\"^http://www\\.example\\.com/\" " +
+                "to=\"https://www.example.com/\" />" +
+                "</ruleset>");
+            final HttpsEverywhere https = 
+                new HttpsEverywhere(rules, new File(dir, "rules.snapshot"));
+            
+            // Serializing every rule set would read them all in.
+            final String json = new ObjectMapper().writeValueAsString(https);
+            assertEquals("{\"ruleSetCount\":1}", json);
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
 }
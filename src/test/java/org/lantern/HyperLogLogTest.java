@@ -0,0 +1,37 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void testEstimatesWithinError() throws Exception {
+        final HyperLogLog hll = new HyperLogLog(10);
+        assertEquals(0L, hll.cardinality());
+        for (final int n : new int[] {10, 1000, 100000}) {
+            hll.clear();
+            for (int i = 0; i < n; i++) {
+                hll.offer(ByteBuffer.allocate(4).putInt(i).array());
+            }
+            final double error = Math.abs(hll.cardinality() - n) / (double) n;
+            // About three standard errors.
+            assertTrue("Error of " + error + " for " + n, error < 0.1);
+        }
+    }
+
+    @Test
+    public void testDuplicatesDontCount() throws Exception {
+        final HyperLogLog hll = new HyperLogLog(10);
+        for (int repeat = 0; repeat < 100; repeat++) {
+            for (int i = 0; i < 50; i++) {
+                hll.offer(ByteBuffer.allocate(4).putInt(i).array());
+            }
+        }
+        assertEquals(50L, hll.cardinality(), 2);
+    }
+}
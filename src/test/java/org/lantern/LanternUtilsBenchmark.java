@@ -0,0 +1,84 @@
+package org.lantern;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@link LanternUtils} calls on the request path: working out
+ * the wildcard hosts to look up HTTPS rules for, and encoding requests to
+ * send to peers. The request has the headers a browser typically sends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LanternUtilsBenchmark {
+
+    private static final String[] URIS = {
+        "http://www.facebook.com/profile.php?id=100001234567890",
+        "http://static.bbci.co.uk/frameworks/barlesque/img/blq-blocks.png",
+        "http://en.wikipedia.org/wiki/Internet_censorship",
+        "http://a.b.c.d.example.com/",
+    };
+
+    private HttpRequest request;
+
+    private ChannelHandlerContext ctx;
+
+    private int index;
+
+    @Setup
+    public void setUp() {
+        request = TestingUtils.createGetRequest(
+            "http://www.youtube.com/watch?v=dQw4w9WgXcQ&feature=related");
+        request.setHeader("Host", "www.youtube.com");
+        request.setHeader("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) " +
+            "AppleWebKit/535.7 (KHTML, like Gecko) Chrome/16.0.912.75 " +
+            "Safari/535.7");
+        request.setHeader("Accept",
+            "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        request.setHeader("Accept-Language", "en-US,en;q=0.8");
+        request.setHeader("Accept-Encoding", "gzip,deflate,sdch");
+        request.setHeader("Accept-Charset", "ISO-8859-1,utf-8;q=0.7,*;q=0.3");
+        request.setHeader("Referer", "http://www.youtube.com/");
+        request.setHeader("Cookie", "VISITOR_INFO1_LIVE=Zx9k2yFv0aQ; " +
+            "PREF=f1=50000000&fv=11.1.102; " +
+            "GEUP=b0b1c4a5d6e7f8a9b0c1d2e3f4a5b6c7; " +
+            "s_gl=1d69aac621b2f9c0a25dade722d6e24bcwIAAABVUw==");
+        request.setHeader("Connection", "keep-alive");
+        request.setHeader("Cache-Control", "max-age=0");
+
+        final ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("handler", new SimpleChannelHandler());
+        TestingUtils.createDummyChannel(pipeline);
+        ctx = pipeline.getContext("handler");
+    }
+
+    @Benchmark
+    public Collection<String> toHttpsCandidates() {
+        return LanternUtils.toHttpsCandidates(URIS[index++ % URIS.length]);
+    }
+
+    @Benchmark
+    public byte[] toByteBuffer() throws Exception {
+        return LanternUtils.toByteBuffer(request, ctx);
+    }
+}
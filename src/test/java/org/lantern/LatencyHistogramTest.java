@@ -0,0 +1,60 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() throws Exception {
+        int last = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            final int index = LatencyHistogram.index(value);
+            assertTrue(index == last || index == last + 1);
+            assertTrue(LatencyHistogram.highestValue(index) >= value);
+            if (index != last) {
+                assertEquals(value - 1, LatencyHistogram.highestValue(last));
+            }
+            last = index;
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.percentile(0.99));
+
+        final Random random = new Random(42);
+        final long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            // Roughly log-normal, like real latencies.
+            values[i] = (long) Math.exp(8 + random.nextGaussian());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (final double fraction : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            final long expected =
+                values[(int) Math.ceil(fraction * values.length) - 1];
+            final long actual = histogram.percentile(fraction);
+            assertTrue(actual >= expected);
+            assertTrue(actual <= expected + expected / 16 + 1);
+        }
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(values[values.length - 1], histogram.percentile(1.0));
+
+        histogram.record(-5L);
+        assertEquals(0L, histogram.percentile(0.0));
+        histogram.record(Long.MAX_VALUE);
+        assertTrue(histogram.getMax() > 60L * 60 * 1000 * 1000);
+
+        histogram.clear();
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0L, histogram.percentile(0.5));
+    }
+}
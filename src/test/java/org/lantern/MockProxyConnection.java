@@ -11,6 +11,7 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.json.simple.JSONObject;
 
 import static org.lantern.TestingUtils.*;
 import org.lantern.cookie.CookieTracker;
@@ -77,6 +78,11 @@ class MockProxyConnection extends MockConnection {
                         // TODO Auto-generated method stub
                         
                     }
+
+                    @Override
+                    public JSONObject toJson() {
+                        return new JSONObject();
+                    }
                     
                 };
             }
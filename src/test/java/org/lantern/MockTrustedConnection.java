@@ -13,6 +13,7 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.json.simple.JSONObject;
 
 import static org.lantern.TestingUtils.*;
 import org.lantern.cookie.CookieTracker;
@@ -72,6 +73,11 @@ class MockTrustedConnection extends MockConnection {
                 // TODO Auto-generated method stub
                 
             }
+
+            @Override
+            public JSONObject toJson() {
+                return new JSONObject();
+            }
         };
         
         /* this proxyprovider will explode if anything but the expected type 
@@ -0,0 +1,47 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class OpenMetricsTest {
+
+    @Test
+    public void testFormat() throws Exception {
+        final OpenMetrics metrics = new OpenMetrics();
+        metrics.family("test_bytes", "counter", "Bytes \"sent\".");
+        metrics.sample("test_bytes_total", 42L, "route", "a\\b\n");
+        metrics.family("test_peers", "gauge", "Peers.");
+        metrics.sample("test_peers", 1.5);
+        assertEquals(
+            "# TYPE test_bytes counter\n" +
+            "# HELP test_bytes Bytes \\\"sent\\\".\n" +
+            "test_bytes_total{route=\"a\\\\b\\n\"} 42\n" +
+            "# TYPE test_peers gauge\n" +
+            "# HELP test_peers Peers.\n" +
+            "test_peers 1.5\n" +
+            "# EOF\n", metrics.toString());
+    }
+
+    @Test
+    public void testHistogram() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(500L);
+        histogram.record(1500L);
+        histogram.record(1500L);
+        histogram.record(100000000000L);
+        final OpenMetrics metrics = new OpenMetrics();
+        metrics.family("test_latency_seconds", "histogram", "Latency.");
+        metrics.histogram("test_latency_seconds", histogram,
+            new long[] {1024L, 2048L}, "route", "direct");
+        final String text = metrics.toString();
+        assertTrue(text, text.contains(
+            "test_latency_seconds_bucket{route=\"direct\",le=\"0.001024\"} 1\n" +
+            "test_latency_seconds_bucket{route=\"direct\",le=\"0.002048\"} 3\n" +
+            "test_latency_seconds_bucket{route=\"direct\",le=\"+Inf\"} 4\n" +
+            "test_latency_seconds_count{route=\"direct\"} 4\n" +
+            "test_latency_seconds_sum{route=\"direct\"} "));
+        assertTrue(text.endsWith("# EOF\n"));
+    }
+}
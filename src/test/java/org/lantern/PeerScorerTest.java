@@ -0,0 +1,100 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class PeerScorerTest {
+
+    @Test
+    public void testPrefersReliablePeer() throws Exception {
+        final PeerScorer scorer = new PeerScorer(0.0, 60 * 1000, new Random());
+        final URI good = new URI("http://good.com");
+        final URI bad = new URI("http://bad.com");
+        complete(scorer, good, 1000);
+        scorer.newTransfer(bad).onError();
+        assertTrue(scorer.cost(bad) > scorer.cost(good));
+
+        final Collection<URI> candidates = Arrays.asList(good, bad);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(good, scorer.select(candidates));
+        }
+    }
+
+    @Test
+    public void testTriesUnmeasuredPeers() throws Exception {
+        final PeerScorer scorer = new PeerScorer(0.0, 60 * 1000, new Random());
+        final URI known = new URI("http://known.com");
+        final URI fresh = new URI("http://fresh.com");
+        complete(scorer, known, 1000);
+        assertEquals(fresh, scorer.select(Arrays.asList(known, fresh)));
+    }
+
+    @Test
+    public void testRemeasuresStalePeers() throws Exception {
+        final PeerScorer scorer = new PeerScorer(0.0, 0L, new Random());
+        final URI good = new URI("http://good.com");
+        final URI bad = new URI("http://bad.com");
+        complete(scorer, good, 1000);
+        scorer.newTransfer(bad).onError();
+        Thread.sleep(5);
+        // Both scores are stale, so either could come back.
+        final Set<URI> picked = new HashSet<URI>();
+        for (int i = 0; i < 100; i++) {
+            picked.add(scorer.select(Arrays.asList(good, bad)));
+        }
+        assertEquals(2, picked.size());
+    }
+
+    @Test
+    public void testExploration() throws Exception {
+        final PeerScorer scorer = new PeerScorer(0.5, 60 * 1000, new Random(1));
+        final URI good = new URI("http://good.com");
+        final URI bad = new URI("http://bad.com");
+        complete(scorer, good, 1000);
+        scorer.newTransfer(bad).onError();
+        int badPicks = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (bad.equals(scorer.select(Arrays.asList(good, bad)))) {
+                badPicks++;
+            }
+        }
+        // Half the time we explore, and half of those pick the bad peer.
+        assertTrue(badPicks > 150 && badPicks < 350);
+    }
+
+    @Test
+    public void testOnlyFirstOutcomeCounts() throws Exception {
+        final PeerScorer scorer = new PeerScorer(0.0, 60 * 1000, new Random());
+        final URI peer = new URI("http://peer.com");
+        final PeerScorer.Transfer transfer = scorer.newTransfer(peer);
+        transfer.onBytes(100);
+        transfer.onComplete();
+        transfer.onError();
+        transfer.onClosed();
+        assertEquals(0.0, scorer.cost(peer), 50.0);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final PeerScorer scorer = new PeerScorer();
+        assertNull(scorer.select(Collections.<URI>emptyList()));
+    }
+
+    private void complete(final PeerScorer scorer, final URI peer,
+        final long bytes) {
+        final PeerScorer.Transfer transfer = scorer.newTransfer(peer);
+        transfer.onBytes(bytes);
+        transfer.onComplete();
+    }
+}
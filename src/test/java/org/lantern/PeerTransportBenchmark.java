@@ -0,0 +1,108 @@
+package org.lantern;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares reading a peer socket the way the peer reader used to, probing
+ * with a single byte and allocating an array for each read, with reading
+ * through the transport's pooled buffers. Each operation reads a few
+ * megabytes sent over loopback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerTransportBenchmark {
+
+    private static final int TOTAL = 4 * 1024 * 1024;
+
+    private final ChannelBufferFactory factory =
+        HeapChannelBufferFactory.getInstance();
+
+    private final PeerTransport transport = new PeerTransport(16 * 1024, 4, 1);
+
+    @Benchmark
+    public long readPerReadAllocation() throws Exception {
+        final PushbackInputStream in = new PushbackInputStream(serve());
+        long count = 0;
+        while (true) {
+            final int available = in.available();
+            if (available > 0) {
+                final byte[] buf = new byte[available];
+                final int n = in.read(buf);
+                factory.getBuffer(buf, 0, n);
+                count += n;
+            } else {
+                final int b = in.read();
+                if (b < 0) {
+                    in.close();
+                    return count;
+                }
+                in.unread(b);
+            }
+        }
+    }
+
+    @Benchmark
+    public long readPooled() throws Exception {
+        final InputStream in = serve();
+        final byte[] buf = transport.acquire();
+        long count = 0;
+        ChannelBuffer read;
+        while ((read = transport.read(in, buf, factory)) != null) {
+            count += read.readableBytes();
+        }
+        transport.release(buf);
+        in.close();
+        return count;
+    }
+
+    private static InputStream serve() throws Exception {
+        final ServerSocket server =
+            new ServerSocket(0, 1, InetAddress.getLocalHost());
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Socket sock = server.accept();
+                    final OutputStream os = sock.getOutputStream();
+                    final byte[] chunk = new byte[8192];
+                    Arrays.fill(chunk, (byte) 'x');
+                    for (int sent = 0; sent < TOTAL; sent += chunk.length) {
+                        os.write(chunk, 0, Math.min(chunk.length, TOTAL - sent));
+                    }
+                    sock.close();
+                    server.close();
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+        return new Socket(server.getInetAddress(),
+            server.getLocalPort()).getInputStream();
+    }
+}
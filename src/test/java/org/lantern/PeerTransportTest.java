@@ -0,0 +1,140 @@
+package org.lantern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.junit.Test;
+
+public class PeerTransportTest {
+
+    private final ChannelBufferFactory factory =
+        HeapChannelBufferFactory.getInstance();
+
+    @Test
+    public void testReadsCopyOutOfPooledBuffer() throws Exception {
+        final PeerTransport transport = new PeerTransport(1024, 4, 1);
+        final byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final InputStream in = new ByteArrayInputStream(data);
+        final byte[] buf = transport.acquire();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChannelBuffer read;
+        ChannelBuffer first = null;
+        while ((read = transport.read(in, buf, factory)) != null) {
+            if (first == null) {
+                first = read;
+            }
+            read.getBytes(read.readerIndex(), out, read.readableBytes());
+        }
+        // Later reads into the pooled buffer mustn't change earlier data.
+        assertEquals(1024, first.readableBytes());
+        assertEquals(data[0], first.getByte(0));
+        assertEquals(data[1023], first.getByte(1023));
+        assertArrayEquals(data, out.toByteArray());
+        assertNull(transport.read(in, buf, factory));
+        transport.release(buf);
+    }
+
+    @Test
+    public void testBuffersAreReused() throws Exception {
+        final PeerTransport transport = new PeerTransport(1024, 1, 1);
+        final byte[] buf = transport.acquire();
+        transport.release(buf);
+        assertSame(buf, transport.acquire());
+        assertEquals(1, transport.getBufferAllocations());
+
+        // We only keep as many as we're told to.
+        final byte[] other = transport.acquire();
+        transport.release(buf);
+        transport.release(other);
+        transport.acquire();
+        transport.acquire();
+        assertEquals(3, transport.getBufferAllocations());
+    }
+
+    @Test
+    public void testReadsFromSocket() throws Exception {
+        final int total = 256 * 1024;
+        final PeerTransport transport = new PeerTransport(16 * 1024, 4, 1);
+        final InputStream in = serve(total);
+        final byte[] buf = transport.acquire();
+        long bytes = 0;
+        ChannelBuffer read;
+        while ((read = transport.read(in, buf, factory)) != null) {
+            for (int i = read.readerIndex(); i < read.writerIndex(); i++) {
+                assertEquals('x', read.getByte(i));
+            }
+            bytes += read.readableBytes();
+        }
+        transport.release(buf);
+        in.close();
+        assertEquals(total, bytes);
+    }
+
+    @Test
+    public void testLimitsReaders() throws Exception {
+        final PeerTransport transport = new PeerTransport(1024, 1, 1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Runnable blocked = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    done.await();
+                } catch (final InterruptedException e) {
+                }
+            }
+        };
+        assertTrue(transport.execute(blocked));
+        // The only reader thread is busy, so we turn the next one away
+        // rather than start another thread.
+        assertFalse(transport.execute(blocked));
+        assertEquals(1, transport.getRejectedReaders());
+        done.countDown();
+    }
+
+    private InputStream serve(final int total) throws Exception {
+        final ServerSocket server =
+            new ServerSocket(0, 1, InetAddress.getLocalHost());
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Socket sock = server.accept();
+                    final OutputStream os = sock.getOutputStream();
+                    final byte[] chunk = new byte[8192];
+                    Arrays.fill(chunk, (byte) 'x');
+                    for (int sent = 0; sent < total; sent += chunk.length) {
+                        os.write(chunk, 0, Math.min(chunk.length, total - sent));
+                    }
+                    sock.close();
+                    server.close();
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+        return new Socket(server.getInetAddress(),
+            server.getLocalPort()).getInputStream();
+    }
+}
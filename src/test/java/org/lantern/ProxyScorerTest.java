@@ -0,0 +1,73 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ProxyScorerTest {
+
+    private final InetSocketAddress fast =
+        InetSocketAddress.createUnresolved("fast", 443);
+    private final InetSocketAddress slow =
+        InetSocketAddress.createUnresolved("slow", 443);
+
+    @Test
+    public void testPrefersFasterProxy() throws Exception {
+        final ProxyScorer scorer = new ProxyScorer();
+        scorer.onConnect(fast, 50);
+        scorer.onFirstByte(fast, 100);
+        scorer.onConnect(slow, 500);
+        scorer.onFirstByte(slow, 1000);
+
+        // With two candidates power of two choices always compares both.
+        final Collection<InetSocketAddress> candidates =
+            Arrays.asList(fast, slow);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(fast, scorer.select(candidates));
+        }
+    }
+
+    @Test
+    public void testQuarantine() throws Exception {
+        final ProxyScorer scorer = new ProxyScorer(60 * 1000, 120 * 1000);
+        scorer.onFailure(fast);
+        assertTrue(scorer.isQuarantined(fast));
+        final Collection<InetSocketAddress> candidates =
+            Arrays.asList(fast, slow);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(slow, scorer.select(candidates));
+        }
+
+        // If everything is quarantined we still return something.
+        scorer.onFailure(slow);
+        assertEquals(fast, scorer.select(candidates));
+
+        // A success clears the quarantine.
+        scorer.onConnect(fast, 50);
+        assertFalse(scorer.isQuarantined(fast));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final ProxyScorer scorer = new ProxyScorer();
+        assertNull(scorer.select(
+            Collections.<InetSocketAddress>emptyList()));
+    }
+
+    @Test
+    public void testSmallTransfersIgnored() throws Exception {
+        final ProxyScorer scorer = new ProxyScorer();
+        scorer.onTransfer(fast, 100, 1000);
+        assertEquals(0.0, scorer.cost(fast), 0.0001);
+        scorer.onTransfer(fast, 1024 * 1024, 1000);
+        assertTrue(scorer.cost(fast) > 0.0);
+    }
+}
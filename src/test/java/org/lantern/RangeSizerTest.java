@@ -0,0 +1,63 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RangeSizerTest {
+
+    @Test
+    public void testSlowStart() throws Exception {
+        final RangeSizer sizer = new RangeSizer(1000, 100000, 1000);
+        final RangeSizer.Download download = sizer.newDownload(1000);
+        
+        // A range that transfers almost instantly relative to the RTT 
+        // should double the size.
+        download.onRange(1000, 100, 101);
+        assertEquals(2000, download.currentSize());
+        download.onRange(2000, 100, 101);
+        assertEquals(4000, download.currentSize());
+        
+        // We never go over the max.
+        for (int i = 0; i < 20; i++) {
+            download.onRange(download.currentSize(), 100, 101);
+        }
+        assertEquals(100000, download.currentSize());
+    }
+    
+    @Test
+    public void testSlowLinkStopsGrowing() throws Exception {
+        final RangeSizer sizer = new RangeSizer(1000, 100000, 1000);
+        final RangeSizer.Download download = sizer.newDownload(8000);
+        
+        // 8000 bytes in 10 RTTs means the target is 3200 bytes.
+        download.onRange(8000, 100, 1100);
+        assertEquals(3200, download.currentSize());
+    }
+    
+    @Test
+    public void testFailureHalves() throws Exception {
+        final RangeSizer sizer = new RangeSizer(1000, 100000, 1000);
+        final RangeSizer.Download download = sizer.newDownload(8000);
+        download.onFailure();
+        assertEquals(4000, download.currentSize());
+        download.onFailure();
+        download.onFailure();
+        download.onFailure();
+        assertEquals(1000, download.currentSize());
+    }
+    
+    @Test
+    public void testStats() throws Exception {
+        final RangeSizer sizer = new RangeSizer(1000, 100000, 1000);
+        final RangeSizer.Download download = sizer.newDownload(4000);
+        download.nextSize();
+        download.onFailure();
+        download.nextSize();
+        assertEquals(2, sizer.getRanges());
+        assertEquals(3000, sizer.getAverageSize());
+        download.finish();
+        assertTrue(sizer.getInitialSize() > 1000);
+    }
+}
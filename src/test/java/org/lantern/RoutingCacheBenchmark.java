@@ -0,0 +1,94 @@
+package org.lantern;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.lantern.httpseverywhere.RuleIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+/**
+ * Compares routing a request with a cached decision against checking the
+ * whitelist and the HTTPS rules for it every time, which is what the cache
+ * saves us on the dispatch path. The requests are for a few hosts, some
+ * with referers, as when loading a page. Like HttpsEverywhereBenchmark it
+ * reads the rules from the https.rules.dir system property if it's set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingCacheBenchmark {
+
+    private static final String[][] REQUESTS = {
+        {"http://www.facebook.com/profile.php?id=100001234567890", null},
+        {"http://static.ak.fbcdn.net/rsrc.php/v1/yQ/r/abc.js",
+            "http://www.facebook.com/"},
+        {"http://www.nytimes.com/2012/01/01/world/middleeast/index.html",
+            null},
+        {"http://graphics8.nytimes.com/images/misc/nytlogo152x23.gif",
+            "http://www.nytimes.com/"},
+        {"http://twitter.com/search?q=%23egypt", null},
+    };
+
+    private final Whitelist whitelist = new Whitelist();
+
+    private final RoutingCache cache = new RoutingCache(1000, 60 * 1000);
+
+    private final HttpRequest[] requests = new HttpRequest[REQUESTS.length];
+
+    private File dir;
+
+    private RuleIndex rules;
+
+    private int index;
+
+    @Setup
+    public void setUp() {
+        dir = Files.createTempDir();
+        rules = RuleIndex.load(
+            new File(System.getProperty("https.rules.dir", "https")),
+            new File(dir, "snapshot"));
+        for (int i = 0; i < REQUESTS.length; i++) {
+            requests[i] = TestingUtils.createGetRequest(REQUESTS[i][0]);
+            if (REQUESTS[i][1] != null) {
+                requests[i].setHeader("Referer", REQUESTS[i][1]);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public RoutingCache.Decision cached() {
+        return cache.decide(requests[index++ % requests.length], whitelist,
+            rules);
+    }
+
+    @Benchmark
+    public boolean uncached() {
+        final HttpRequest request = requests[index++ % requests.length];
+        final boolean whitelisted = whitelist.isWhitelisted(request);
+        final boolean httpsRules =
+            !rules.get(WhitelistMatcher.toHost(request.getUri())).isEmpty();
+        return whitelisted ^ httpsRules;
+    }
+}
@@ -0,0 +1,113 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.junit.Test;
+import org.lantern.httpseverywhere.RuleIndex;
+
+import com.google.common.io.Files;
+
+public class RoutingCacheTest {
+
+    @Test
+    public void testDecisions() throws Exception {
+        final File dir = Files.createTempDir();
+        final File rules = new File(dir, "rules");
+        try {
+            rules.mkdir();
+            FileUtils.writeStringToFile(new File(rules, "Example.xml"),
+                "<ruleset name=\"Example\">" +
+                "<target host=\"www.example.com\" />" +
+                "<rule from=\"^http://www\\.example\\.com/\" " +
+                "to=\"https://www.example.com/\" />" +
+                "</ruleset>");
+            final RuleIndex index = 
+                RuleIndex.load(rules, new File(dir, "rules.snapshot"));
+            final Whitelist whitelist = new Whitelist();
+            final RoutingCache cache = new RoutingCache(100, 60 * 1000);
+            
+            final HttpRequest example = 
+                TestingUtils.createGetRequest("http://www.example.com/a");
+            RoutingCache.Decision decision = 
+                cache.decide(example, whitelist, index);
+            assertFalse(decision.isWhitelisted());
+            assertTrue(decision.hasHttpsRules());
+            assertEquals(0, cache.getHits());
+            
+            // Other paths on the same host use the cached decision.
+            decision = cache.decide(
+                TestingUtils.createGetRequest("http://www.example.com/b"),
+                whitelist, index);
+            assertTrue(decision.hasHttpsRules());
+            assertEquals(1, cache.getHits());
+            assertEquals(0.5, cache.getHitRate(), 0.0001);
+            
+            // The whitelist goes by the referer.
+            final HttpRequest referred = 
+                TestingUtils.createGetRequest("http://www.example.com/c");
+            referred.setHeader("Referer", "http://www.facebook.com/");
+            assertTrue(cache.decide(referred, whitelist, index).isWhitelisted());
+            
+            // Changing the whitelist or the rules invalidates decisions.
+            whitelist.addEntry("example.com");
+            assertTrue(cache.decide(example, whitelist, index).isWhitelisted());
+            final File none = new File(dir, "none");
+            none.mkdir();
+            final RuleIndex empty = 
+                RuleIndex.load(none, new File(dir, "none.snapshot"));
+            assertFalse(cache.decide(example, whitelist, empty).hasHttpsRules());
+            assertEquals(1, cache.getHits());
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testUserInfoAndCase() throws Exception {
+        final File dir = Files.createTempDir();
+        final File rules = new File(dir, "rules");
+        try {
+            rules.mkdir();
+            FileUtils.writeStringToFile(new File(rules, "Example.xml"),
+                "<ruleset name=\"Example\">" +
+                "<target host=\"www.example.com\" />" +
+                "<rule from=\"^http://www\\.example\\.com/\" " +
+                "to=\"https://www.example.com/\" />" +
+                "</ruleset>");
+            final RuleIndex index = 
+                RuleIndex.load(rules, new File(dir, "rules.snapshot"));
+            final Whitelist whitelist = new Whitelist();
+            final RoutingCache cache = new RoutingCache(100, 60 * 1000);
+            
+            // User info isn't part of the host, so these are different
+            // hosts even though both start with a whitelisted one.
+            assertFalse(cache.decide(TestingUtils.createGetRequest(
+                "http://www.facebook.com:x@evil.com/"), 
+                whitelist, index).isWhitelisted());
+            assertTrue(cache.decide(TestingUtils.createGetRequest(
+                "http://www.facebook.com:y@www.facebook.com/"), 
+                whitelist, index).isWhitelisted());
+            assertFalse(cache.decide(TestingUtils.createGetRequest(
+                "http://www.facebook.com@evil.com/"), 
+                whitelist, index).isWhitelisted());
+            assertEquals(1, cache.getHits());
+            
+            // Hosts are case insensitive.
+            assertTrue(cache.decide(TestingUtils.createGetRequest(
+                "http://WWW.Example.COM/a"), 
+                whitelist, index).hasHttpsRules());
+            assertTrue(cache.decide(TestingUtils.createGetRequest(
+                "http://www.example.com/b"), 
+                whitelist, index).hasHttpsRules());
+            assertEquals(2, cache.getHits());
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.lantern.httpseverywhere.HttpsEverywhere.HttpsRuleSet;
+import org.lantern.httpseverywhere.RuleIndex;
+
+import com.google.common.io.Files;
+
+public class RuleIndexTest {
+
+    @Test
+    public void testSnapshot() throws Exception {
+        final File dir = Files.createTempDir();
+        final File rules = new File(dir, "rules");
+        final File snapshot = new File(dir, "rules.snapshot");
+        try {
+            rules.mkdir();
+            FileUtils.writeStringToFile(new File(rules, "Example.xml"),
+                ruleSet("^http://(www\\.)?example\\.com/", 
+                    "https://www.example.com/"));
+            
+            // The first load parses the rules and writes the snapshot, and
+            // the second reads the snapshot.
+            assertRewrites(RuleIndex.load(rules, snapshot), 
+                "https://www.example.com/");
+            final File[] written = snapshots(dir);
+            assertEquals(1, written.length);
+            final long modified = written[0].lastModified();
+            final RuleIndex first = RuleIndex.load(rules, snapshot);
+            assertRewrites(first, "https://www.example.com/");
+            assertEquals(modified, written[0].lastModified());
+            
+            // Changing the rules writes a new snapshot alongside the one 
+            // the live index has mapped, rather than replacing it.
+            FileUtils.writeStringToFile(new File(rules, "Example.xml"),
+                ruleSet("^http://(www\\.)?example\\.com/", 
+                    "https://secure.example.com/"));
+            final RuleIndex second = RuleIndex.load(rules, snapshot);
+            assertRewrites(second, "https://secure.example.com/");
+            assertEquals(2, snapshots(dir).length);
+            assertRewrites(first, "https://www.example.com/");
+            assertRewrites(RuleIndex.load(rules, snapshot), 
+                "https://secure.example.com/");
+            
+            // Once the new rules are in use the old snapshot can go.
+            second.deleteOldSnapshots();
+            assertEquals(1, snapshots(dir).length);
+            assertRewrites(RuleIndex.load(rules, snapshot), 
+                "https://secure.example.com/");
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private File[] snapshots(final File dir) {
+        return dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File parent, final String name) {
+                return name.startsWith("rules.snapshot.");
+            }
+        });
+    }
+
+    private void assertRewrites(final RuleIndex index, final String expected) {
+        assertTrue(index.get("www.nytimes.com").isEmpty());
+        final List<HttpsRuleSet> ruleSets = index.get("www.example.com");
+        assertEquals(1, ruleSets.size());
+        final HttpsRuleSet ruleSet = ruleSets.get(0);
+        assertTrue(ruleSet.isExcluded("http://www.example.com/plain/"));
+        assertEquals(expected, ruleSet.getRules().iterator().next().apply(
+            "http://www.example.com/"));
+        assertEquals("session", 
+            ruleSet.getSecureCookieRules().iterator().next().getName());
+    }
+
+    private String ruleSet(final String from, final String to) {
+        return "<ruleset name=\"Example\">" +
+            "<target host=\"example.com\" />" +
+            "<target host=\"www.example.com\" />" +
+            "<exclusion pattern=\"^http://www\\.example\\.com/plain/\" />" +
+            "<securecookie host=\"^www\\.example\\.com$\" name=\"session\" />" +
+            "<rule from=\"" + from + "\" to=\"" + to + "\" />" +
+            "</ruleset>";
+    }
+}
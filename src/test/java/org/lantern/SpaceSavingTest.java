@@ -0,0 +1,48 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SpaceSavingTest {
+
+    @Test
+    public void testFindsHeavyHitters() throws Exception {
+        final SpaceSaving<String> top = new SpaceSaving<String>(10);
+        final Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            // Lots of small items with a couple of large ones mixed in.
+            top.offer("small-" + random.nextInt(10000), 1);
+            if (i % 10 == 0) {
+                top.offer("big", 10);
+            }
+            if (i % 20 == 0) {
+                top.offer("medium", 10);
+            }
+        }
+        final List<SpaceSaving.Counter<String>> counters = top.top();
+        assertEquals(10, counters.size());
+        assertEquals("big", counters.get(0).getItem());
+        assertEquals("medium", counters.get(1).getItem());
+        final SpaceSaving.Counter<String> big = counters.get(0);
+        assertTrue(big.getCount() >= 100000);
+        assertTrue(big.getCount() - big.getError() <= 100000);
+    }
+
+    @Test
+    public void testExactBelowCapacity() throws Exception {
+        final SpaceSaving<String> top = new SpaceSaving<String>(3);
+        top.offer("a", 5);
+        top.offer("b", 7);
+        top.offer("a", 5);
+        final List<SpaceSaving.Counter<String>> counters = top.top();
+        assertEquals("a", counters.get(0).getItem());
+        assertEquals(10L, counters.get(0).getCount());
+        assertEquals(0L, counters.get(0).getError());
+        assertEquals(7L, counters.get(1).getCount());
+    }
+}
@@ -0,0 +1,73 @@
+package org.lantern;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelSink;
+import org.jboss.netty.channel.Channels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures counting bytes we proxy for other users, which happens for
+ * every chunk we relay. The channels come from a few hundred addresses
+ * spread over many countries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsTrackerBenchmark {
+
+    private static final int CHANNELS = 256;
+
+    private static final ChannelSink SINK = new AbstractChannelSink() {
+        @Override
+        public void eventSunk(final ChannelPipeline p, final ChannelEvent e) {}
+    };
+
+    private final Channel[] channels = new Channel[CHANNELS];
+
+    private StatsTracker tracker;
+
+    private int index;
+
+    @Setup
+    public void setUp() {
+        tracker = LanternHub.statsTracker();
+        for (int i = 0; i < CHANNELS; i++) {
+            // Spread the addresses across the IPv4 space so they land in
+            // different countries.
+            final String ip = (1 + (i * 37) % 223) + "." + ((i * 91) % 256) +
+                "." + ((i * 13) % 256) + "." + (1 + i % 254);
+            final SocketAddress remote = new InetSocketAddress(ip, 40000 + i);
+            channels[i] = new TestingUtils.DummyChannel(Channels.pipeline(),
+                SINK) {
+                @Override
+                public SocketAddress getRemoteAddress() {
+                    return remote;
+                }
+            };
+        }
+    }
+
+    @Benchmark
+    public void addBytesProxied() {
+        tracker.addBytesProxied(1460, channels[index++ % CHANNELS]);
+    }
+}
@@ -0,0 +1,138 @@
+package org.lantern;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of recording a single observation, which we do for
+ * every read and write on every proxied connection. This compares the
+ * ring of counters in {@link TimeSeries1D} against the skip list map it
+ * replaced, configured the way {@link StatsTracker} configures its rate
+ * series.
+ *
+ * Run with <code>mvn -Pbenchmarks test -Djmh.include=TimeSeries1D</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeSeries1DBenchmark {
+
+    private static final long ONE_SECOND = 1000;
+
+    private static final long AGE_LIMIT = ONE_SECOND * 6;
+
+    private final TimeSeries1D ring = new TimeSeries1D(ONE_SECOND, AGE_LIMIT);
+
+    private final SkipListTimeSeries skipList =
+        new SkipListTimeSeries(ONE_SECOND, AGE_LIMIT);
+
+    @Benchmark
+    public void ring() {
+        ring.addData(1460);
+    }
+
+    @Benchmark
+    public void skipList() {
+        skipList.addData(1460);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void ringContended() {
+        ring.addData(1460);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void skipListContended() {
+        skipList.addData(1460);
+    }
+
+    @Benchmark
+    public double ringWindowAverage() {
+        final long now = System.currentTimeMillis();
+        return ring.windowAverage(now - 5 * ONE_SECOND, now);
+    }
+
+    @Benchmark
+    public double skipListWindowAverage() {
+        final long now = System.currentTimeMillis();
+        return skipList.windowAverage(now - 5 * ONE_SECOND, now);
+    }
+
+    /**
+     * The previous implementation of {@link TimeSeries1D}, kept here as the
+     * baseline.
+     */
+    static final class SkipListTimeSeries {
+
+        private final ConcurrentNavigableMap<Long, AtomicLong> observations =
+            new ConcurrentSkipListMap<Long, AtomicLong>();
+        private final AtomicLong lifetimeTotal = new AtomicLong(0);
+        private final long bucketSizeMillis;
+        private final long ageLimit;
+
+        SkipListTimeSeries(final long bucketSizeMillis, final long ageLimit) {
+            this.bucketSizeMillis = bucketSizeMillis;
+            this.ageLimit = ageLimit;
+        }
+
+        void addData(final long value) {
+            final long timestamp = System.currentTimeMillis();
+            lifetimeTotal.addAndGet(value);
+            final long bucketKey = timestamp / bucketSizeMillis;
+            if (!observations.containsKey(bucketKey)) {
+                observations.putIfAbsent(bucketKey, new AtomicLong(0));
+            }
+            final AtomicLong bucket = observations.get(bucketKey);
+            if (bucket == null) {
+                return;
+            }
+            bucket.addAndGet(value);
+            checkLimits();
+        }
+
+        double windowAverage(final long minTimestamp,
+            final long maxTimestamp) {
+            final long minBucket = minTimestamp / bucketSizeMillis;
+            final long maxBucket = maxTimestamp / bucketSizeMillis;
+            long total = 0;
+            for (final AtomicLong cur : observations.subMap(minBucket, true,
+                maxBucket, true).values()) {
+                total += cur.get();
+            }
+            return total / (double) (maxBucket - minBucket + 1);
+        }
+
+        private void checkLimits() {
+            final long newestKey = observations.lastKey();
+            final long minKey =
+                ((newestKey * bucketSizeMillis) - ageLimit) / bucketSizeMillis;
+            final List<Long> deleteKeys = new LinkedList<Long>();
+            for (final long i : observations.headMap(minKey).keySet()) {
+                deleteKeys.add(i);
+            }
+            for (final long key : deleteKeys) {
+                observations.remove(key);
+            }
+        }
+    }
+}
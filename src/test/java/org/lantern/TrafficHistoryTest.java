@@ -0,0 +1,163 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrafficHistoryTest {
+
+    private static final long ONE_SECOND = 1000;
+    private static final long ONE_MINUTE = 60 * ONE_SECOND;
+    private static final long ONE_HOUR = 60 * ONE_MINUTE;
+
+    /**
+     * Half way through an hour, so the ten seconds before it are in the
+     * same minute and hour buckets.
+     */
+    private static final long NOW = 472222L * ONE_HOUR + 30 * ONE_MINUTE;
+
+    private static final TrafficHistory.Clock CLOCK = 
+        new TrafficHistory.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return NOW;
+            }
+        };
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("history", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testRollsUpSeconds() throws Exception {
+        final TrafficHistory history = history();
+        final long start = NOW - 10 * ONE_SECOND;
+        history.record(start, values(100, 2));
+        history.record(start + ONE_SECOND, values(200, 4));
+        history.record(start + 2 * ONE_SECOND, values(300, 6));
+
+        final JSONObject seconds = history.query(start, start + 2 * ONE_SECOND);
+        assertEquals(ONE_SECOND, seconds.get("resolution"));
+        assertEquals(start, seconds.get("start"));
+        final JSONArray down = (JSONArray) seconds.get("down_via_proxies");
+        assertEquals(3, down.size());
+        assertEquals(100L, down.get(0));
+        assertEquals(300L, down.get(2));
+
+        final JSONObject minutes =
+            history.query(start, start + 2 * ONE_SECOND, ONE_MINUTE);
+        assertEquals(ONE_MINUTE, minutes.get("resolution"));
+        assertEquals(600L, total(minutes, "down_via_proxies"));
+        assertEquals(3L, total(minutes, "seconds"));
+        final JSONArray peers = (JSONArray) minutes.get("peers");
+        assertEquals(1, peers.size());
+        // The peer count is averaged over the seconds in the bucket.
+        assertEquals(4L, peers.get(0));
+    }
+
+    @Test
+    public void testClampsPeriod() throws Exception {
+        final TrafficHistory history = history();
+        history.record(NOW - ONE_SECOND, values(100, 1));
+
+        // Nothing past now, and nothing older than the tier keeps.
+        final JSONObject all = history.query(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(60 * ONE_MINUTE, all.get("resolution"));
+        assertEquals(30 * 24 + 1, 
+            ((JSONArray) all.get("up_via_proxies")).size());
+        assertEquals(100L, total(all, "up_via_proxies"));
+
+        final JSONObject seconds = 
+            history.query(NOW - 10 * ONE_SECOND, Long.MAX_VALUE);
+        assertEquals(ONE_SECOND, seconds.get("resolution"));
+        assertEquals(11, ((JSONArray) seconds.get("seconds")).size());
+        assertEquals(100L, total(seconds, "up_via_proxies"));
+    }
+
+    @Test
+    public void testReloadsFromDisk() throws Exception {
+        final long start = NOW - 10 * ONE_SECOND;
+        final TrafficHistory history = history();
+        for (int i = 0; i < 5; i++) {
+            history.record(start + i * ONE_SECOND, values(10, 1));
+        }
+        history.flush();
+
+        final TrafficHistory reloaded = history();
+        final long end = start + 4 * ONE_SECOND;
+        assertEquals(50L, total(reloaded.query(start, end), "up_to_peers"));
+        assertEquals(50L,
+            total(reloaded.query(start, end, ONE_MINUTE), "up_to_peers"));
+        assertEquals(50L,
+            total(reloaded.query(start, end, 60 * ONE_MINUTE), "up_to_peers"));
+    }
+
+    @Test
+    public void testPartialBucketsAreNotCountedTwice() throws Exception {
+        final long start = NOW - 10 * ONE_SECOND;
+        final TrafficHistory history = history();
+        history.record(start, values(10, 1));
+        history.flush();
+
+        // Carry on adding to the same minute and hour after a restart.
+        final TrafficHistory restarted = history();
+        restarted.record(start + ONE_SECOND, values(20, 1));
+        restarted.flush();
+
+        final TrafficHistory reloaded = history();
+        final long end = start + ONE_SECOND;
+        assertEquals(30L, total(reloaded.query(start, end, 60 * ONE_MINUTE),
+            "up_for_peers"));
+        assertEquals(2L, total(reloaded.query(start, end, 60 * ONE_MINUTE),
+            "seconds"));
+    }
+
+    @Test
+    public void testResetDeletesHistory() throws Exception {
+        final long start = NOW - 10 * ONE_SECOND;
+        final TrafficHistory history = history();
+        history.record(start, values(10, 1));
+        history.flush();
+        history.reset();
+        assertEquals(0L, total(history.query(start, start), "up_for_peers"));
+        assertEquals(0L, total(history().query(start, start),
+            "up_for_peers"));
+    }
+
+    private TrafficHistory history() {
+        return new TrafficHistory(dir, CLOCK);
+    }
+
+    private static long[] values(final long bytes, final long peers) {
+        final long[] values = new long[TrafficHistory.SERIES.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = bytes;
+        }
+        values[TrafficHistory.PEERS] = peers;
+        return values;
+    }
+
+    private static long total(final JSONObject json, final String series) {
+        long total = 0;
+        for (final Object value : (JSONArray) json.get(series)) {
+            total += (Long) value;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,77 @@
+package org.lantern;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures checking requests against the whitelist, which we do for every
+ * request to decide whether to proxy it. The whitelist has the default
+ * entries plus a couple of hundred more, as users who add sites tend to add
+ * many.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WhitelistBenchmark {
+
+    private static final String[] WHITELISTED = {
+        "http://www.facebook.com/profile.php?id=100001234567890",
+        "http://mail.google.com/mail/u/0/",
+        "http://www.youtube.com/watch?v=dQw4w9WgXcQ",
+        "http://www.site150.org/index.html",
+    };
+
+    private static final String[] NOT_WHITELISTED = {
+        "http://www.nytimes.com/2012/01/01/world/middleeast/index.html",
+        "http://static.bbci.co.uk/frameworks/barlesque/img/blq-blocks.png",
+        "http://en.wikipedia.org/wiki/Internet_censorship",
+        "http://cdn.example.net/assets/app.js",
+    };
+
+    private final Whitelist whitelist = new Whitelist();
+
+    private HttpRequest withReferer;
+
+    private int index;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < 200; i++) {
+            whitelist.addEntry("site" + i + ".org");
+        }
+        withReferer = TestingUtils.createGetRequest(
+            "http://static.ak.fbcdn.net/rsrc.php/v1/yQ/r/abc.js");
+        withReferer.setHeader("Referer", "http://www.facebook.com/");
+    }
+
+    @Benchmark
+    public boolean whitelisted() {
+        return whitelist.isWhitelisted(
+            WHITELISTED[index++ % WHITELISTED.length]);
+    }
+
+    @Benchmark
+    public boolean notWhitelisted() {
+        return whitelist.isWhitelisted(
+            NOT_WHITELISTED[index++ % NOT_WHITELISTED.length]);
+    }
+
+    @Benchmark
+    public boolean request() {
+        return whitelist.isWhitelisted(withReferer);
+    }
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.util.Collection;
 
 import org.apache.commons.lang.math.RandomUtils;
 import org.junit.Test;
@@ -45,6 +46,22 @@ public class WhitelistTest {
         assertTrue(readWhitelist.isWhitelisted("getlantern.org"));
     }
     
+    @Test
+    public void testEntriesSnapshot() throws Exception {
+        final Whitelist whitelist = new Whitelist();
+        final Collection<WhitelistEntry> before = whitelist.getEntries();
+        whitelist.addEntry("nytimes.com");
+        
+        // Entries we already handed out don't change under the caller.
+        assertFalse(before.contains(new WhitelistEntry("nytimes.com")));
+        assertTrue(whitelist.getEntries().contains(
+            new WhitelistEntry("nytimes.com")));
+        assertTrue(whitelist.isWhitelisted("http://www.nytimes.com/"));
+        
+        whitelist.removeEntry("nytimes.com");
+        assertFalse(whitelist.isWhitelisted("http://www.nytimes.com/"));
+    }
+    
     private File settingsFile() {
         return testFile("settings.json");
     }